@@ -0,0 +1,145 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Compares a JMH JSON result file against the checked-in baseline and exits non-zero if any
+ * benchmark regressed by more than the given percentage.
+ * <p>
+ * Usage: {@code BaselineComparator <baseline.json> <result.json> [thresholdPercent]}
+ */
+public final class BaselineComparator {
+
+    private static final class Score {
+        final String mode;
+        final double score;
+        final double error;
+        final String unit;
+
+        Score(String mode, double score, double error, String unit) {
+            this.mode = mode;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        /** throughput modes are "bigger is better", all time based modes are "smaller is better" */
+        boolean isThroughput() {
+            return "thrpt".equals(mode);
+        }
+    }
+
+    private BaselineComparator() {
+    }
+
+    static Map<String, Score> load(File file) throws IOException, JSONException {
+        Map<String, Score> scores = new TreeMap<String, Score>();
+        JSONArray runs = new JSONArray(Files.toString(file, Charsets.UTF_8));
+        for (int i = 0; i < runs.length(); i++) {
+            JSONObject run = runs.getJSONObject(i);
+            StringBuilder key = new StringBuilder(run.getString("benchmark"));
+            JSONObject params = run.optJSONObject("params");
+            if (params != null) {
+                TreeSet<String> names = new TreeSet<String>();
+                for (Iterator<?> it = params.keys(); it.hasNext();) {
+                    names.add((String) it.next());
+                }
+                for (String name : names) {
+                    key.append(':').append(name).append('=').append(params.getString(name));
+                }
+            }
+            JSONObject metric = run.getJSONObject("primaryMetric");
+            double error = metric.optDouble("scoreError", 0.0);
+            scores.put(key.toString(), new Score(run.getString("mode"), metric.getDouble("score"),
+                    Double.isNaN(error) ? 0.0 : error, metric.getString("scoreUnit")));
+        }
+        return scores;
+    }
+
+    /**
+     * @return number of benchmarks that regressed beyond {@code thresholdPercent} and beyond the
+     *         combined JMH error margins
+     */
+    static int compare(Map<String, Score> baseline, Map<String, Score> current, double thresholdPercent) {
+        int regressions = 0;
+        for (Map.Entry<String, Score> entry : current.entrySet()) {
+            Score now = entry.getValue();
+            Score base = baseline.get(entry.getKey());
+            if (base == null) {
+                System.out.printf("NEW       %s %.3f %s%n", entry.getKey(), now.score, now.unit);
+                continue;
+            }
+            if (!base.unit.equals(now.unit) || !base.mode.equals(now.mode)) {
+                System.out.printf("SKIPPED   %s (baseline is %s %s, result is %s %s)%n", entry.getKey(),
+                        base.mode, base.unit, now.mode, now.unit);
+                continue;
+            }
+            double delta = now.isThroughput() ? base.score - now.score : now.score - base.score;
+            double percent = base.score == 0.0 ? 0.0 : delta * 100.0 / base.score;
+            boolean regressed = percent > thresholdPercent && delta > base.error + now.error;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-9s %s %.3f -> %.3f %s (%+.1f%%)%n", regressed ? "REGRESSED" : "OK",
+                    entry.getKey(), base.score, now.score, now.unit, now.isThroughput() ? -percent : percent);
+        }
+        return regressions;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: BaselineComparator <baseline.json> <result.json> [thresholdPercent]");
+            System.exit(2);
+        }
+        File baselineFile = new File(args[0]);
+        File resultFile = new File(args[1]);
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+        if (!resultFile.exists()) {
+            System.err.println("no benchmark result at " + resultFile + ", run 'ant bench' first");
+            System.exit(2);
+        }
+        if (!baselineFile.exists()) {
+            System.err.println("no baseline at " + baselineFile + ", record one on the reference build host with"
+                    + " 'ant bench-baseline' and commit it");
+            System.exit(2);
+        }
+        Map<String, Score> baseline = load(baselineFile);
+        if (baseline.isEmpty()) {
+            System.err.println("baseline " + baselineFile + " has no benchmarks, nothing to compare against");
+            System.exit(2);
+        }
+        int regressions = compare(baseline, load(resultFile), threshold);
+        if (regressions > 0) {
+            System.out.printf("%d benchmark(s) regressed by more than %.1f%%%n", regressions, threshold);
+            System.exit(1);
+        }
+    }
+}
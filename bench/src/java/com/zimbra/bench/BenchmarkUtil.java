@@ -0,0 +1,106 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.bench;
+
+import java.util.HashMap;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Shared setup for the JMH benchmarks: an in-memory HSQLDB mailbox server and canned MIME messages.
+ */
+public final class BenchmarkUtil {
+
+    public static final String ACCOUNT = "bench@zimbra.com";
+
+    private static boolean initialized = false;
+
+    private BenchmarkUtil() {
+    }
+
+    /**
+     * Starts the in-memory server (mock provisioning, HSQLDB, mock store) once per forked JVM and
+     * creates the benchmark account.
+     */
+    public static synchronized void initServer() throws Exception {
+        if (initialized) {
+            return;
+        }
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount(ACCOUNT, "secret", new HashMap<String, Object>());
+        ZimbraLog.toolSetupLog4jConsole("WARN", true, false);
+        initialized = true;
+    }
+
+    /**
+     * Drops all mailbox data so that each iteration starts from an empty mailbox.
+     */
+    public static void reset() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    public static Mailbox getMailbox() throws Exception {
+        return MailboxManager.getInstance().getMailboxByAccount(Provisioning.getInstance().getAccountByName(ACCOUNT));
+    }
+
+    /**
+     * Returns a message with a text/plain + text/html alternative body and {@code attachments}
+     * base64 encoded attachments of {@code attachmentSize} bytes each.
+     */
+    public static byte[] sampleMessage(int seq, int attachments, int attachmentSize) {
+        StringBuilder sb = new StringBuilder(1024 + attachments * attachmentSize * 2);
+        sb.append("Return-Path: <sender@example.com>\r\n");
+        sb.append("Date: Mon, 4 Mar 2019 10:15:").append(String.format("%02d", seq % 60)).append(" -0800\r\n");
+        sb.append("From: Sender Name <sender@example.com>\r\n");
+        sb.append("To: Bench User <").append(ACCOUNT).append(">, Other User <other@example.com>\r\n");
+        sb.append("Cc: =?utf-8?B?w4lsaXNl?= <elise@example.com>\r\n");
+        sb.append("Subject: quarterly report ").append(seq).append(" =?utf-8?Q?r=C3=A9sum=C3=A9?=\r\n");
+        sb.append("Message-ID: <bench-").append(seq).append("@example.com>\r\n");
+        sb.append("MIME-Version: 1.0\r\n");
+        sb.append("Content-Type: multipart/mixed; boundary=\"outer\"\r\n\r\n");
+        sb.append("--outer\r\nContent-Type: multipart/alternative; boundary=\"inner\"\r\n\r\n");
+        sb.append("--inner\r\nContent-Type: text/plain; charset=utf-8\r\n\r\n");
+        for (int i = 0; i < 40; i++) {
+            sb.append("The quick brown fox jumps over the lazy dog, line ").append(i).append(" of message ").append(seq).append(".\r\n");
+        }
+        sb.append("--inner\r\nContent-Type: text/html; charset=utf-8\r\n\r\n<html><body>");
+        for (int i = 0; i < 40; i++) {
+            sb.append("<p>The quick brown fox jumps over the <b>lazy</b> dog, line ").append(i).append("</p>\r\n");
+        }
+        sb.append("</body></html>\r\n--inner--\r\n");
+        for (int a = 0; a < attachments; a++) {
+            sb.append("--outer\r\nContent-Type: application/octet-stream; name=\"attachment").append(a).append(".bin\"\r\n");
+            sb.append("Content-Disposition: attachment; filename=\"attachment").append(a).append(".bin\"\r\n");
+            sb.append("Content-Transfer-Encoding: base64\r\n\r\n");
+            int line = 0;
+            for (int i = 0; i < attachmentSize * 4 / 3; i++) {
+                sb.append((char) ('A' + (i + a) % 26));
+                if (++line == 76) {
+                    sb.append("\r\n");
+                    line = 0;
+                }
+            }
+            sb.append("\r\n");
+        }
+        sb.append("--outer--\r\n");
+        return sb.toString().getBytes();
+    }
+}
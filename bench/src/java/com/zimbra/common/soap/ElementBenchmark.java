@@ -0,0 +1,161 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.soap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building and serializing a SearchResponse shaped {@link Element} tree, in both the XML and JSON
+ * flavours used by SoapServlet, and the same response encoded hit by hit through a
+ * {@link Element.StreamingElement}.  Run with <tt>-Dbench.args="-prof gc"</tt> to compare allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+public class ElementBenchmark {
+
+    @Param({"SOAP12", "JSON"})
+    public String protocol;
+
+    @Param({"100", "1000"})
+    public int hits;
+
+    private SoapProtocol proto;
+    private Element response;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        proto = "JSON".equals(protocol) ? SoapProtocol.SoapJS : SoapProtocol.Soap12;
+        response = buildSearchResponse();
+    }
+
+    private Element buildSearchResponse() throws Exception {
+        Element resp = Element.create(proto, MailConstants.SEARCH_RESPONSE);
+        resp.addAttribute(MailConstants.A_SORTBY, "dateDesc");
+        resp.addAttribute(MailConstants.A_QUERY_OFFSET, 0);
+        resp.addAttribute(MailConstants.A_QUERY_MORE, true);
+        for (int i = 0; i < hits; i++) {
+            addHit(resp, i);
+        }
+        return resp;
+    }
+
+    private Element buildStreamingSearchResponse() throws Exception {
+        Element resp = Element.create(proto, MailConstants.SEARCH_RESPONSE);
+        resp.addAttribute(MailConstants.A_SORTBY, "dateDesc");
+        resp.addAttribute(MailConstants.A_QUERY_OFFSET, 0);
+        resp.addAttribute(MailConstants.A_QUERY_MORE, true);
+        resp.addNonUniqueElement(new Element.StreamingElement(MailConstants.E_MSG, new Element.StreamingElement.Streamer() {
+            @Override
+            public void stream(Element.StreamingElement.Output out) throws IOException {
+                for (int i = 0; i < hits; i++) {
+                    addHit(out.getParent(), i);
+                    out.flush();
+                }
+            }
+        }));
+        return resp;
+    }
+
+    private static void addHit(Element resp, int i) {
+        Element m = resp.addNonUniqueElement(MailConstants.E_MSG);
+        m.addAttribute(MailConstants.A_ID, 1000 + i);
+        m.addAttribute(MailConstants.A_CONV_ID, -(1000 + i));
+        m.addAttribute(MailConstants.A_FOLDER, "2");
+        m.addAttribute(MailConstants.A_FLAGS, "ua");
+        m.addAttribute(MailConstants.A_SIZE, 4096 + i);
+        m.addAttribute(MailConstants.A_DATE, 1551723300000L + i * 1000L);
+        Element e = m.addNonUniqueElement(MailConstants.E_EMAIL);
+        e.addAttribute(MailConstants.A_ADDRESS, "sender" + i + "@example.com");
+        e.addAttribute(MailConstants.A_DISPLAY, "Sender");
+        e.addAttribute(MailConstants.A_PERSONAL, "Sender Name <&> " + i);
+        e.addAttribute(MailConstants.A_ADDRESS_TYPE, "f");
+        m.addAttribute(MailConstants.E_SUBJECT, "quarterly report " + i + " r\u00e9sum\u00e9",
+                Element.Disposition.CONTENT);
+        m.addAttribute(MailConstants.E_FRAG, "The quick brown fox jumps over the lazy dog, \"line\" " + i,
+                Element.Disposition.CONTENT);
+    }
+
+    @Benchmark
+    public Element build() throws Exception {
+        return buildSearchResponse();
+    }
+
+    @Benchmark
+    public int serialize() throws Exception {
+        StringBuilder sb = new StringBuilder(hits * 512);
+        response.marshal(sb);
+        return sb.length();
+    }
+
+    @Benchmark
+    public int buildAndSerialize() throws Exception {
+        return buildSearchResponse().toUTF8().length;
+    }
+
+    /** What SoapServlet does for a chunked response: build the whole tree, then write it out. */
+    @Benchmark
+    public long buildAndWrite() throws Exception {
+        CountingAppendable out = new CountingAppendable();
+        buildSearchResponse().output(out);
+        return out.count;
+    }
+
+    /** The same response with the hits encoded while it's written. */
+    @Benchmark
+    public long streamAndWrite() throws Exception {
+        CountingAppendable out = new CountingAppendable();
+        buildStreamingSearchResponse().output(out);
+        return out.count;
+    }
+
+    /** Stands in for the servlet output stream. */
+    private static final class CountingAppendable implements Appendable {
+        long count = 0;
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            count += csq.length();
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            count += end - start;
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            count++;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.base.Charsets;
+import com.zimbra.bench.BenchmarkUtil;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * The ENVELOPE and BODYSTRUCTURE encoders used by the IMAP FETCH path, on an already parsed
+ * MIME tree (i.e. excluding blob I/O and MessageCache lookups).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+public class ImapFetchBenchmark {
+
+    @Param({"0", "5"})
+    public int attachments;
+
+    /** Messages per FETCH 1:* in {@link #fetchAll} and {@link #fetchAllStreamPerMessage}. */
+    private static final int FOLDER_SIZE = 100;
+
+    private MimeMessage mm;
+    private ByteArrayOutputStream baos;
+    private PrintStream ps;
+    private File blob;
+    private FileOutputStream sink;
+    private FileChannel sinkChannel;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkUtil.initServer();
+        byte[] raw = BenchmarkUtil.sampleMessage(1, attachments, 4096);
+        mm = new ParsedMessage(raw, false).getMimeMessage();
+        baos = new ByteArrayOutputStream(8192);
+        ps = new PrintStream(baos, false, "utf-8");
+
+        blob = File.createTempFile("bench", ".msg");
+        try (FileOutputStream fos = new FileOutputStream(blob)) {
+            fos.write(raw);
+        }
+        sink = new FileOutputStream("/dev/null");
+        sinkChannel = sink.getChannel();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        sink.close();
+        blob.delete();
+    }
+
+    @Benchmark
+    public int envelope() throws Exception {
+        baos.reset();
+        ImapMessage.serializeEnvelope(ps, mm);
+        ps.flush();
+        return baos.size();
+    }
+
+    @Benchmark
+    public int bodyStructure() throws Exception {
+        baos.reset();
+        ImapMessage.serializeStructure(ps, mm, true);
+        ps.flush();
+        return baos.size();
+    }
+
+    /** FETCH (ENVELOPE BODYSTRUCTURE), the attribute set most clients request on folder sync. */
+    @Benchmark
+    public int envelopeAndBodyStructure() throws Exception {
+        baos.reset();
+        ps.print("* 1 FETCH (ENVELOPE ");
+        ImapMessage.serializeEnvelope(ps, mm);
+        ps.print(" BODYSTRUCTURE ");
+        ImapMessage.serializeStructure(ps, mm, true);
+        ps.print(")\r\n");
+        ps.flush();
+        return baos.size();
+    }
+
+    private void fetchResponse(PrintStream result, int seq) throws Exception {
+        result.print("* " + seq + " FETCH (FLAGS (\\Seen) ENVELOPE ");
+        ImapMessage.serializeEnvelope(result, mm);
+        result.print(" BODYSTRUCTURE ");
+        ImapMessage.serializeStructure(result, mm, true);
+        result.write(')');
+        result.write(ImapHandler.LINE_SEPARATOR_BYTES, 0, 2);
+    }
+
+    /** FETCH 1:* (FLAGS ENVELOPE BODYSTRUCTURE) with one PrintStream for the whole command, as ImapHandler does. */
+    @Benchmark
+    public int fetchAll() throws Exception {
+        baos.reset();
+        PrintStream result = new PrintStream(baos, false, Charsets.UTF_8.name());
+        for (int seq = 1; seq <= FOLDER_SIZE; seq++) {
+            fetchResponse(result, seq);
+        }
+        return baos.size();
+    }
+
+    /** As {@link #fetchAll}, with the PrintStream per FETCH response that ImapHandler used to create. */
+    @Benchmark
+    public int fetchAllStreamPerMessage() throws Exception {
+        baos.reset();
+        for (int seq = 1; seq <= FOLDER_SIZE; seq++) {
+            fetchResponse(new PrintStream(baos, false, Charsets.UTF_8.name()), seq);
+        }
+        return baos.size();
+    }
+
+    /** The BODY[] literal copied from the blob file through a heap buffer. */
+    @Benchmark
+    public long bodyLiteralCopy() throws Exception {
+        try (FileInputStream fis = new FileInputStream(blob)) {
+            return ByteUtil.copy(fis, false, sink, false);
+        }
+    }
+
+    /** The BODY[] literal as sent on the NIO path: straight from the file with {@link FileChannel#transferTo}. */
+    @Benchmark
+    public long bodyLiteralTransfer() throws Exception {
+        try (FileChannel channel = FileChannel.open(blob.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size(), position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, sinkChannel);
+            }
+            return position;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Loading a SELECTed folder's message list into an {@link ImapFolder} and looking messages up by item ID.
+ * Run with {@code -prof gc} to see the per-folder heap cost ({@code gc.alloc.rate.norm} of {@link #load}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+public class ImapFolderBenchmark {
+
+    private static final String[] TAGS = {"work", "todo", "receipts"};
+
+    @Param({"1000", "200000"})
+    public int messages;
+
+    /** Percentage of messages whose item ID differs from their UID, e.g. after a move or renumber. */
+    @Param({"10"})
+    public int moved;
+
+    private ImapFolder folder;
+
+    private ImapFolder newFolder() {
+        ImapFlagCache tags = new ImapFlagCache();
+        for (int i = 0; i < TAGS.length; i++) {
+            tags.cache(new ImapFlag(TAGS[i], TAGS[i], 64 + i, 0, true, true, true));
+        }
+        return new ImapFolder(new ItemIdentifier("12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f", 2), 1, null,
+                ImapHandler.ITEM_TYPES, tags, Collections.<ImapMessage>emptyList());
+    }
+
+    private int itemId(int i) {
+        return i % 100 < moved ? 1000000 + i : 300 + i;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        folder = load();
+    }
+
+    @Benchmark
+    public ImapFolder load() {
+        ImapFolder i4folder = newFolder();
+        i4folder.ensureCapacity(messages);
+        for (int i = 0; i < messages; i++) {
+            // every message read from the mailbox carries its own tag array
+            String[] tags = i % 4 == 0 ? null : new String[] {TAGS[i % TAGS.length]};
+            i4folder.cache(new ImapMessage(itemId(i), MailItem.Type.MESSAGE, 300 + i,
+                    i % 3 == 0 ? Flag.BITMASK_UNREAD : 0, tags), false);
+        }
+        return i4folder;
+    }
+
+    @Benchmark
+    public int getById() {
+        int found = 0;
+        for (int i = 0; i < messages; i += 97) {
+            if (folder.getById(itemId(i)) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
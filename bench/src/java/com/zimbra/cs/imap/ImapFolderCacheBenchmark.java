@@ -0,0 +1,136 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.cs.io.SecureObjectInputStream;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Paging an {@link ImapFolder} out to and back in from the IMAP folder cache, comparing the
+ * {@link ImapFolderSnapshot} format against the Java serialization it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+public class ImapFolderCacheBenchmark {
+
+    private static final String[][] TAGSETS = {null, null, null, {"work"}, {"work", "todo"}, {"receipts"}};
+
+    @Param({"1000", "50000"})
+    public int messages;
+
+    private ImapFolder folder;
+    private byte[] serialized;
+    private byte[] snapshot;
+    private File pagefile;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        List<ImapMessage> i4list = new ArrayList<ImapMessage>(messages);
+        for (int i = 0; i < messages; i++) {
+            ImapMessage i4msg = new ImapMessage(300 + i * 2, MailItem.Type.MESSAGE, 100 + i,
+                    i % 3 == 0 ? Flag.BITMASK_UNREAD : 0, TAGSETS[i % TAGSETS.length]);
+            i4msg.sequence = i + 1;
+            i4list.add(i4msg);
+        }
+        folder = new ImapFolder(new ItemIdentifier("12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f", 2), 1, null,
+                ImapHandler.ITEM_TYPES, ImapFlagCache.getSystemFlags(), i4list);
+        serialized = javaSerialize();
+        snapshot = ImapFolderSnapshot.encode(folder);
+
+        pagefile = File.createTempFile("bench", ".i4c");
+        try (FileOutputStream fos = new FileOutputStream(pagefile)) {
+            fos.write(snapshot);
+        }
+        channel = FileChannel.open(pagefile.toPath(), StandardOpenOption.READ);
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        mapped.load();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.close();
+        pagefile.delete();
+    }
+
+    private byte[] javaSerialize() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(folder);
+        }
+        return baos.toByteArray();
+    }
+
+    @Benchmark
+    public int writeSerialized() throws Exception {
+        return javaSerialize().length;
+    }
+
+    @Benchmark
+    public int writeSnapshot() throws Exception {
+        return ImapFolderSnapshot.encode(folder).length;
+    }
+
+    @Benchmark
+    public ImapFolder readSerialized() throws Exception {
+        try (SecureObjectInputStream ois = new SecureObjectInputStream(new ByteArrayInputStream(serialized),
+                ImapFolder.class.getName())) {
+            return (ImapFolder) ois.readObject();
+        }
+    }
+
+    @Benchmark
+    public ImapFolder readSnapshot() throws Exception {
+        return ImapFolderSnapshot.decode(ByteBuffer.wrap(snapshot));
+    }
+
+    /** The {@link DiskImapCache} read path, minus the open and map of the page file. */
+    @Benchmark
+    public ImapFolder readMappedSnapshot() throws Exception {
+        return ImapFolderSnapshot.decode(mapped);
+    }
+}
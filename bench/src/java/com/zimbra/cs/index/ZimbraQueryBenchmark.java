@@ -0,0 +1,102 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.zimbra.bench.BenchmarkUtil;
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * {@link ZimbraQuery} parsing on its own, and parsing plus execution of the first page of results
+ * against an indexed mailbox.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+public class ZimbraQueryBenchmark {
+
+    @Param({"in:inbox", "in:inbox quick brown", "from:sender@example.com subject:report after:1/1/2019",
+        "(fox OR dog) -has:attachment is:unread"})
+    public String query;
+
+    @Param({"500"})
+    public int messages;
+
+    private Mailbox mbox;
+    private OperationContext octxt;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkUtil.initServer();
+        BenchmarkUtil.reset();
+        mbox = BenchmarkUtil.getMailbox();
+        octxt = new OperationContext(mbox);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX).setNoICal(true);
+        for (int i = 0; i < messages; i++) {
+            mbox.addMessage(null, new ParsedMessage(BenchmarkUtil.sampleMessage(i, i % 3 == 0 ? 1 : 0, 1024), false),
+                    dopt, null);
+        }
+        MailboxTestUtil.index(mbox);
+    }
+
+    private SearchParams params() {
+        SearchParams params = new SearchParams();
+        params.setQueryString(query);
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setSortBy(SortBy.DATE_DESC);
+        params.setLimit(100);
+        return params;
+    }
+
+    @Benchmark
+    public ZimbraQuery parse() throws Exception {
+        return new ZimbraQuery(octxt, SoapProtocol.Soap12, mbox, params());
+    }
+
+    @Benchmark
+    public int parseAndExecute() throws Exception {
+        ZimbraQuery zq = new ZimbraQuery(octxt, SoapProtocol.Soap12, mbox, params());
+        int hits = 0;
+        try (ZimbraQueryResults results = zq.execute()) {
+            while (hits < 100 && results.hasNext()) {
+                results.getNext();
+                hits++;
+            }
+        }
+        return hits;
+    }
+}
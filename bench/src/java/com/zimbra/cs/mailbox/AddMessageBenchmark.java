@@ -0,0 +1,74 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.zimbra.bench.BenchmarkUtil;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * {@link Mailbox#addMessage} against the in-memory HSQLDB mailbox and mock blob store, i.e. the
+ * transaction, threading, metadata and DB cost of a delivery without disk I/O.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+public class AddMessageBenchmark {
+
+    @Param({"0", "2"})
+    public int attachments;
+
+    private Mailbox mbox;
+    private DeliveryOptions dopt;
+    private byte[][] raw;
+    private int seq;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkUtil.initServer();
+        raw = new byte[64][];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = BenchmarkUtil.sampleMessage(i, attachments, 16 * 1024);
+        }
+        dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX).setNoICal(true);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetMailbox() throws Exception {
+        BenchmarkUtil.reset();
+        mbox = BenchmarkUtil.getMailbox();
+    }
+
+    @Benchmark
+    public Message addMessage() throws Exception {
+        ParsedMessage pm = new ParsedMessage(raw[seq++ & (raw.length - 1)], false);
+        return mbox.addMessage(null, pm, dopt, null);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mime;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.zimbra.bench.BenchmarkUtil;
+import com.zimbra.cs.index.IndexDocument;
+
+/**
+ * {@link ParsedMessage} construction, header parsing and full analysis (the work done once per
+ * delivered message before it reaches the mailbox).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+public class ParsedMessageBenchmark {
+
+    @Param({"0", "3"})
+    public int attachments;
+
+    @Param({"4096", "262144"})
+    public int attachmentSize;
+
+    private byte[] raw;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkUtil.initServer();
+        raw = BenchmarkUtil.sampleMessage(1, attachments, attachmentSize);
+    }
+
+    @Benchmark
+    public String parseHeaders() throws Exception {
+        ParsedMessage pm = new ParsedMessage(raw, false);
+        return pm.getSubject();
+    }
+
+    @Benchmark
+    public List<IndexDocument> analyzeFully() throws Exception {
+        ParsedMessage pm = new ParsedMessage(raw, true);
+        pm.analyzeFully();
+        return pm.getLuceneDocuments();
+    }
+}
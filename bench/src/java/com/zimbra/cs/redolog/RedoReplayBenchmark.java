@@ -0,0 +1,113 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.zimbra.cs.mailbox.MailboxOperation;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+/**
+ * Replay throughput of {@link ReplayExecutor}, i.e. of crash recovery and log playback.  Each op
+ * parks for {@code opMicros} to stand in for the database round trips of a real redo, so the
+ * score shows how well replay overlaps independent mailboxes rather than the cost of any one op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(2)
+public class RedoReplayBenchmark {
+
+    private static final int OPS = 2000;
+
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    @Param({"100"})
+    public int mailboxes;
+
+    @Param({"200"})
+    public int opMicros;
+
+    private RedoableOp[] ops;
+
+    private static final class SimulatedOp extends RedoableOp {
+        private final long nanos;
+
+        SimulatedOp(int mboxId, long nanos) {
+            super(MailboxOperation.Preview, null);
+            this.nanos = nanos;
+            setMailboxId(mboxId);
+        }
+
+        @Override
+        public void redo() {
+            LockSupport.parkNanos(nanos);
+        }
+
+        @Override
+        protected String getPrintableData() {
+            return null;
+        }
+
+        @Override
+        protected void serializeData(RedoLogOutput out) throws IOException {
+        }
+
+        @Override
+        protected void deserializeData(RedoLogInput in) throws IOException {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ops = new RedoableOp[OPS];
+        for (int i = 0; i < OPS; i++) {
+            ops[i] = new SimulatedOp(1 + i % mailboxes, TimeUnit.MICROSECONDS.toNanos(opMicros));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public int replay() throws Exception {
+        ReplayExecutor replayer = new ReplayExecutor(threads, OPS, new ReplayExecutor.Player() {
+            @Override
+            public void play(RedoableOp op) throws Exception {
+                op.redo();
+            }
+        });
+        for (RedoableOp op : ops) {
+            replayer.submit(op);
+        }
+        replayer.finish();
+        return replayer.getCompleted();
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecFactory;
+import org.apache.mina.filter.codec.ProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+import org.apache.mina.filter.codec.textline.LineDelimiter;
+import org.apache.mina.filter.codec.textline.TextLineDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.base.Charsets;
+import com.zimbra.bench.BenchmarkUtil;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Log;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Round trip latency of a line echo protocol while {@link #connections} other connections sit idle, the way IMAP IDLE
+ * clients do, on each of the three server models: a {@link TcpServer} with a platform thread pool ({@code pool}), a
+ * {@link TcpServer} with virtual threads ({@code virtual}, needs a JVM with virtual threads, otherwise it falls back to
+ * the pool) and a MINA {@link NioServer} ({@code nio}).
+ * <p>
+ * The setup prints the heap and thread cost per idle connection.  Run with a raised open files limit, e.g.
+ * {@code ulimit -n 65536}, before trying more than a few thousand connections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xss256k")
+public class ConnectionServerBenchmark {
+
+    @Param({"pool", "virtual", "nio"})
+    public String server;
+
+    @Param({"1000", "10000"})
+    public int connections;
+
+    private Server echoServer;
+    private final List<Socket> idle = new ArrayList<Socket>();
+    private Socket active;
+    private OutputStream activeOut;
+    private BufferedReader activeIn;
+
+    private static final class EchoConfig extends ServerConfig {
+        private final int port;
+        private final int maxConnections;
+
+        EchoConfig(int port, int maxConnections) {
+            super("echo", false);
+            this.port = port;
+            this.maxConnections = maxConnections;
+        }
+
+        @Override
+        public int getBindPort() {
+            return port;
+        }
+
+        @Override
+        public Log getLog() {
+            return ZimbraLog.misc;
+        }
+
+        @Override
+        public int getMaxThreads() {
+            return maxConnections;
+        }
+
+        @Override
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        @Override
+        public int getMaxIdleTime() {
+            return 3600;
+        }
+    }
+
+    private static final class TcpEchoServer extends TcpServer {
+        TcpEchoServer(ServerConfig config) throws Exception {
+            super(config);
+        }
+
+        @Override
+        public String getName() {
+            return "EchoServer";
+        }
+
+        @Override
+        protected ProtocolHandler newProtocolHandler() {
+            return new ProtocolHandler(this) {
+                private BufferedReader in;
+                private PrintStream out;
+
+                @Override
+                protected boolean setupConnection(Socket sock) throws IOException {
+                    in = new BufferedReader(new InputStreamReader(sock.getInputStream(), Charsets.US_ASCII));
+                    out = new PrintStream(sock.getOutputStream(), false, "US-ASCII");
+                    return true;
+                }
+
+                @Override
+                protected boolean authenticate() {
+                    return true;
+                }
+
+                @Override
+                protected boolean processCommand() throws IOException {
+                    String line = in.readLine();
+                    if (line == null) {
+                        return false;
+                    }
+                    setIdle(false);
+                    out.print(line);
+                    out.print("\r\n");
+                    out.flush();
+                    return true;
+                }
+
+                @Override
+                protected void dropConnection() {
+                }
+
+                @Override
+                protected void notifyIdleConnection() {
+                }
+            };
+        }
+    }
+
+    private static final class NioEchoServer extends NioServer {
+        private static final ProtocolDecoder DECODER = new TextLineDecoder(Charsets.US_ASCII, LineDelimiter.AUTO);
+
+        NioEchoServer(ServerConfig config) throws Exception {
+            super(config);
+        }
+
+        @Override
+        public String getName() {
+            return "NioEchoServer";
+        }
+
+        @Override
+        protected NioHandler createHandler(final NioConnection conn) {
+            return new NioHandler() {
+                @Override
+                public void connectionOpened() {
+                }
+
+                @Override
+                public void connectionClosed() {
+                    conn.close();
+                }
+
+                @Override
+                public void connectionIdle() {
+                }
+
+                @Override
+                public void messageReceived(Object msg) throws IOException {
+                    OutputStream out = conn.getOutputStream();
+                    out.write((msg + "\r\n").getBytes(Charsets.US_ASCII));
+                    out.flush();
+                }
+
+                @Override
+                public void exceptionCaught(Throwable e) {
+                }
+
+                @Override
+                public void dropConnection() {
+                    conn.close();
+                }
+
+                @Override
+                public void setLoggingContext() {
+                }
+            };
+        }
+
+        @Override
+        protected ProtocolCodecFactory getProtocolCodecFactory() {
+            return new ProtocolCodecFactory() {
+                @Override
+                public ProtocolEncoder getEncoder(IoSession session) {
+                    return DEFAULT_ENCODER;
+                }
+
+                @Override
+                public ProtocolDecoder getDecoder(IoSession session) {
+                    return DECODER;
+                }
+            };
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket probe = new ServerSocket(0);
+        try {
+            return probe.getLocalPort();
+        } finally {
+            probe.close();
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private Socket connect(int port) throws IOException {
+        Socket sock = new Socket();
+        sock.connect(new InetSocketAddress("127.0.0.1", port));
+        sock.setTcpNoDelay(true);
+        return sock;
+    }
+
+    private static String echo(Socket sock, BufferedReader in, String line) throws IOException {
+        OutputStream out = sock.getOutputStream();
+        out.write((line + "\r\n").getBytes(Charsets.US_ASCII));
+        out.flush();
+        return in.readLine();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkUtil.initServer();
+        LC.tcp_server_virtual_threads.setDefault("virtual".equals(server));
+
+        int port = freePort();
+        EchoConfig config = new EchoConfig(port, connections + 10);
+        echoServer = "nio".equals(server) ? new NioEchoServer(config) : new TcpEchoServer(config);
+        echoServer.start();
+        Thread.sleep(500);
+
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        for (int i = 0; i < connections; i++) {
+            Socket sock = connect(port);
+            // make sure each connection has a handler parked in its read before counting
+            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), Charsets.US_ASCII));
+            echo(sock, in, "IDLE");
+            idle.add(sock);
+        }
+        long heapAfter = usedHeap();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.printf("%n%s: %d idle connections, %d bytes of heap and %.2f platform threads per connection%n",
+                server, connections, (heapAfter - heapBefore) / connections,
+                (threadsAfter - threadsBefore) / (double) connections);
+
+        active = connect(port);
+        activeOut = active.getOutputStream();
+        activeIn = new BufferedReader(new InputStreamReader(active.getInputStream(), Charsets.US_ASCII));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (Socket sock : idle) {
+            sock.close();
+        }
+        idle.clear();
+        active.close();
+        echoServer.stop(1);
+        LC.tcp_server_virtual_threads.setDefault(false);
+    }
+
+    @Benchmark
+    public String roundTrip() throws IOException {
+        activeOut.write("NOOP\r\n".getBytes(Charsets.US_ASCII));
+        activeOut.flush();
+        return activeIn.readLine();
+    }
+}
@@ -115,6 +115,42 @@ public class ElementTest {
         Assert.assertEquals("explicit child namespace", "urn:zimbraMail", json.getElement("foo").getNamespaceURI(""));
     }
 
+    @Test
+    public void streamingElement() throws Exception {
+        for (ElementFactory factory : new ElementFactory[] { XMLElement.mFactory, Element.JSONElement.mFactory }) {
+            Element tree = factory.createElement(MailConstants.SEARCH_RESPONSE);
+            tree.addAttribute(MailConstants.A_QUERY_OFFSET, 0);
+            for (int i = 0; i < 3; i++) {
+                addHit(tree, i);
+            }
+            tree.addAttribute(MailConstants.A_QUERY_MORE, false);
+
+            Element streamed = factory.createElement(MailConstants.SEARCH_RESPONSE);
+            streamed.addAttribute(MailConstants.A_QUERY_OFFSET, 0);
+            streamed.addNonUniqueElement(new Element.StreamingElement(MailConstants.E_MSG,
+                    new Element.StreamingElement.Streamer() {
+                @Override
+                public void stream(Element.StreamingElement.Output out) throws IOException {
+                    for (int i = 0; i < 3; i++) {
+                        addHit(out.getParent(), i);
+                        out.flush();
+                    }
+                }
+            }));
+            streamed.addAttribute(MailConstants.A_QUERY_MORE, false);
+
+            Assert.assertEquals(tree.toString(), streamed.toString());
+            // serializing again streams the children again
+            Assert.assertEquals(tree.toString(), streamed.toString());
+        }
+    }
+
+    private static void addHit(Element parent, int i) {
+        Element m = parent.addNonUniqueElement(MailConstants.E_MSG);
+        m.addAttribute(MailConstants.A_ID, 100 + i);
+        m.addAttribute(MailConstants.E_SUBJECT, "subject <" + i + ">", Element.Disposition.CONTENT);
+    }
+
     @Test
     public void getPathElementList() {
         Element e = XMLElement.mFactory.createElement("parent");
@@ -0,0 +1,108 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.soap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class StaxElementParserTest {
+
+    private static byte[] resource(String name) throws IOException {
+        return ByteStreams.toByteArray(StaxElementParserTest.class.getResourceAsStream(name));
+    }
+
+    private static void assertSameAsDom(byte[] xml) throws XmlParseException {
+        Element dom = W3cDomUtil.parseXML(new ByteArrayInputStream(xml));
+        Element stax = StaxElementParser.parseXML(xml);
+        Assert.assertEquals(dom.toString(), stax.toString());
+    }
+
+    @Test
+    public void soapRequest() throws Exception {
+        byte[] xml = resource("GetInfoRequestSOAP.xml");
+        assertSameAsDom(xml);
+        Element envelope = StaxElementParser.parseXML(xml);
+        Assert.assertEquals(SoapProtocol.Soap12, SoapProtocol.determineProtocol(envelope));
+        Assert.assertEquals("GetInfoRequest", SoapProtocol.Soap12.getBodyElement(envelope).getName());
+    }
+
+    @Test
+    public void namespacesAndText() throws Exception {
+        assertSameAsDom(("<a xmlns='urn:zimbraMail' xmlns:x='urn:x'>\n" +
+                "  <m id='1' x:flag='y'><su>café &amp; <![CDATA[<bar>]]></su><!-- dropped --></m>\n" +
+                "  <x:e>  </x:e>\n" +
+                "</a>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void fallsBackToDom() throws Exception {
+        // mixed content and XHTML are flattened to text by the DOM path
+        assertSameAsDom("<a><b>text <i>and</i> more</b></a>".getBytes(StandardCharsets.UTF_8));
+        assertSameAsDom(resource("wrappedXhtml.xml"));
+    }
+
+    @Test(expected = XmlParseException.class)
+    public void doctypeDisallowed() throws Exception {
+        StaxElementParser.parseXML(resource("entityRef.xml"));
+    }
+
+    @Test(expected = XmlParseException.class)
+    public void entityExpansion() throws Exception {
+        StaxElementParser.parseXML(resource("recursiveEntity.xml"));
+    }
+
+    @Test
+    public void depthLimit() throws Exception {
+        Assert.assertNotNull(StaxElementParser.parseXML(nested(StaxElementParser.MAX_ELEMENT_DEPTH)));
+        try {
+            StaxElementParser.parseXML(nested(StaxElementParser.MAX_ELEMENT_DEPTH + 1));
+            Assert.fail("expected XmlParseException");
+        } catch (XmlParseException expected) {
+        }
+    }
+
+    private static byte[] nested(int depth) {
+        StringBuilder xml = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            xml.append("<a>");
+        }
+        for (int i = 0; i < depth; i++) {
+            xml.append("</a>");
+        }
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test(expected = XmlParseException.class)
+    public void attributeLimit() throws Exception {
+        StringBuilder xml = new StringBuilder("<a");
+        for (int i = 0; i <= StaxElementParser.MAX_ATTRIBUTES; i++) {
+            xml.append(" a").append(i).append("='x'");
+        }
+        StaxElementParser.parseXML(xml.append("/>").toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = XmlParseException.class)
+    public void malformed() throws Exception {
+        StaxElementParser.parseXML("<a><b></a>".getBytes(StandardCharsets.UTF_8));
+    }
+}
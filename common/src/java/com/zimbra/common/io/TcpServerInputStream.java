@@ -17,26 +17,34 @@
 package com.zimbra.common.io;
 
 import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
+ * Buffered stream with a CRLF-aware {@link #readLine()}.
+ * <p>
+ * This wraps a plain {@link BufferedInputStream} rather than extending it: the JDK only
+ * swaps the monitor of an exact {@code BufferedInputStream} for a {@code j.u.c} lock, so
+ * a subclass blocked in {@code read()} on an idle connection would pin the carrier of a
+ * virtual thread.
+ *
  * @since 2004. 10. 26.
  * @author jhahm
  */
-public class TcpServerInputStream extends BufferedInputStream {
+public class TcpServerInputStream extends FilterInputStream {
 
     StringBuilder buffer;
     protected static final int CR = 13;
     protected static final int LF = 10;
 
     public TcpServerInputStream(InputStream in) {
-        super(in);
+        super(new BufferedInputStream(in));
         buffer = new StringBuilder(128);
     }
 
     public TcpServerInputStream(InputStream in, int size) {
-        super(in, size);
+        super(new BufferedInputStream(in, size));
         buffer = new StringBuilder(128);
     }
 
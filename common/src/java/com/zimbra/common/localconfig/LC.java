@@ -151,6 +151,23 @@ public final class LC {
     public static final KnownKey zimbra_store_copy_buffer_size_kb = KnownKey.newKey(16); // KB
     public static final KnownKey zimbra_nio_file_copy_chunk_size_kb = KnownKey.newKey(512); // KB
     public static final KnownKey zimbra_blob_input_stream_buffer_size_kb = KnownKey.newKey(1); // KB
+    // worker threads linking duplicate blobs in DedupeBlobs; each one owns a slice of the digest space
+    public static final KnownKey zimbra_blob_deduper_threads = KnownKey.newKey(4);
+    // digest groups queued per deduper worker before the volume scan waits for it
+    public static final KnownKey zimbra_blob_deduper_queue_size = KnownKey.newKey(256);
+    // mailboxes checked at once by a CheckBlobConsistency request
+    public static final KnownKey zimbra_blob_consistency_check_threads = KnownKey.newKey(4);
+    // store blobs uncompressed on delivery and compress them in the background on volumes with compression enabled
+    public static final KnownKey zimbra_blob_compress_async = KnownKey.newKey(false);
+    public static final KnownKey zimbra_blob_compress_threads = KnownKey.newKey(1);
+    // time to let a delivery finish and drop its incoming link before the blob is compressed
+    public static final KnownKey zimbra_blob_compress_delay_ms = KnownKey.newKey(30000);
+    // blobs waiting for the background compressor; any beyond this are left uncompressed
+    public static final KnownKey zimbra_blob_compress_queue_size = KnownKey.newKey(10000);
+    // upper bound on the number of independently locked LRU shards in the blob file descriptor cache
+    public static final KnownKey zimbra_fd_cache_shards = KnownKey.newKey(16);
+    // share of zimbraMessageCacheSize that may also hold a converted or decrypted copy of the message
+    public static final KnownKey zimbra_message_cache_expanded_percent = KnownKey.newKey(50);
 
     @Supported
     public static final KnownKey zimbra_mailbox_manager_hardref_cache = KnownKey.newKey(2500);
@@ -164,6 +181,11 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_mailbox_galsync_cache = KnownKey.newKey(10000);
 
+    // server-wide cache of encoded items evicted from the per-mailbox item caches; 0 disables it
+    public static final KnownKey zimbra_mailbox_shared_item_cache_size = KnownKey.newKey(0L);
+    public static final KnownKey zimbra_mailbox_shared_item_cache_mailbox_quota = KnownKey.newKey(5); // percent
+    public static final KnownKey zimbra_mailbox_shared_item_cache_offheap = KnownKey.newKey(false);
+
     @Supported
     public static final KnownKey zimbra_mailbox_change_checkpoint_frequency = KnownKey.newKey(100);
 
@@ -175,6 +197,23 @@ public final class LC {
 
     public static final KnownKey zimbra_mailbox_lock_readwrite = KnownKey.newKey(true);
 
+    // read-only sync checks validate against a write stamp instead of taking the shared lock
+    @Reloadable
+    public static final KnownKey zimbra_mailbox_lock_optimistic_read = KnownKey.newKey(false);
+
+    // redolog writers queue ops for a single thread that writes and fsyncs them in batches
+    public static final KnownKey zimbra_redolog_group_commit = KnownKey.newKey(false);
+    public static final KnownKey zimbra_redolog_group_commit_buffer_size = KnownKey.newKey(1024 * 1024);
+    // redo replay threads; ops on the same mailbox are still replayed in log order
+    public static final KnownKey zimbra_redolog_replay_threads = KnownKey.newKey(1);
+    // read-only scans of redo logs parse a memory mapping of the file
+    public static final KnownKey zimbra_redolog_mmap_reader = KnownKey.newKey(true);
+    // write a side index of op offsets and mailbox ids next to archived redo logs
+    public static final KnownKey zimbra_redolog_index = KnownKey.newKey(true);
+
+    // recipients of a multi-recipient LMTP delivery are delivered on this many threads; 0 delivers on the handler thread
+    public static final KnownKey zimbra_lmtp_delivery_threads = KnownKey.newKey(0);
+
     @Supported
     public static final KnownKey zimbra_index_threads = KnownKey.newKey(10);
 
@@ -234,6 +273,22 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_index_lucene_max_terms_per_query = KnownKey.newKey(50000);
 
+    // keep index writers open across indexing batches and search from near-real-time readers
+    public static final KnownKey zimbra_index_lucene_nrt = KnownKey.newKey(false);
+
+    // max number of idle index writers kept open in near-real-time mode
+    public static final KnownKey zimbra_index_lucene_nrt_writer_pool_size = KnownKey.newKey(20);
+
+    // in near-real-time mode, commit a writer once this many seconds passed since its last commit
+    public static final KnownKey zimbra_index_lucene_nrt_commit_interval = KnownKey.newKey(60);
+
+    // in near-real-time mode, commit a writer once this many documents were added or deleted since its last commit
+    public static final KnownKey zimbra_index_lucene_nrt_commit_docs = KnownKey.newKey(1000);
+
+    // answer simple date-sorted text searches from the index and the item cache when all hits are cached;
+    // off until it has been checked against the DbSearch results
+    public static final KnownKey zimbra_index_covering_search = KnownKey.newKey(false);
+
     @Supported
     public static final KnownKey zimbra_index_elasticsearch_url_base = KnownKey.newKey("http://localhost:9200/");
 
@@ -274,6 +329,8 @@ public final class LC {
 
     @Supported
     public static final KnownKey zimbra_session_max_pending_notifications = KnownKey.newKey(400);
+    // encoded notification items kept for other sessions notified of the same change; 0 disables
+    public static final KnownKey zimbra_session_notification_cache_size = KnownKey.newKey(2000);
 
     @Supported
     public static final KnownKey zimbra_converter_enabled_uuencode = KnownKey.newKey(true);
@@ -299,6 +356,12 @@ public final class LC {
     @Supported
     @Reloadable
     public static final KnownKey soap_response_chunked_transfer_encoding_enabled = KnownKey.newKey(true);
+    // let handlers such as Search encode large result lists while the chunked response is written
+    public static final KnownKey soap_response_streaming_enabled = KnownKey.newKey(false);
+    // build XML SOAP requests straight from a StAX parser instead of going through a W3C DOM
+    public static final KnownKey soap_request_pull_parser_enabled = KnownKey.newKey(true);
+    // threads running the read-only sub-requests of a BatchRequest concurrently; 0 runs them in order
+    public static final KnownKey soap_batch_parallel_threads = KnownKey.newKey(0);
     public static final KnownKey zimbra_servlet_output_stream_buffer_size = KnownKey.newKey(5120);
 
     public static final KnownKey rest_response_cache_control_value = KnownKey.newKey("no-store, no-cache");
@@ -670,6 +733,8 @@ public final class LC {
 
     public static final KnownKey nio_imap_enabled = KnownKey.newKey(true);
     public static final KnownKey nio_pop3_enabled = KnownKey.newKey(true);
+    // run each connection of the thread-per-connection (non-NIO) servers on a virtual thread, if the JVM has them
+    public static final KnownKey tcp_server_virtual_threads = KnownKey.newKey(false);
 
     public static final KnownKey nio_max_write_queue_size = KnownKey.newKey(10000);
 
@@ -692,6 +757,8 @@ public final class LC {
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    // bytes of BODYSTRUCTURE and ENVELOPE kept in a message's metadata at delivery time for FETCH; 0 disables
+    public static final KnownKey imap_precomputed_structure_max_size = KnownKey.newKey(8192);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     @Supported
@@ -832,6 +899,14 @@ public final class LC {
     public static final KnownKey zimbra_archive_formatter_disable_timeout = KnownKey.newKey(true);
     public static final KnownKey zimbra_csv_formatter_disable_timeout = KnownKey.newKey(true);
     public static final KnownKey zimbra_archive_formatter_search_chunk_size = KnownKey.newKey(4096);
+    // threads shared by all exports for reading blobs ahead of the archive writer; 0 reads every blob inline
+    public static final KnownKey zimbra_archive_formatter_read_ahead_threads = KnownKey.newKey(0);
+    // max bytes of blobs held in memory ahead of the archive writer per export; bigger blobs are streamed inline
+    public static final KnownKey zimbra_archive_formatter_read_ahead_bytes = KnownKey.newKey(16 * 1024 * 1024);
+    // 64k buffers queued between the tar stream and the gzip stage of tgz export/import; 0 runs gzip inline
+    public static final KnownKey zimbra_archive_formatter_pipeline_buffers = KnownKey.newKey(0);
+    // threads shared by all tgz exports/imports for the gzip stage; when all are busy gzip runs inline
+    public static final KnownKey zimbra_archive_formatter_pipeline_threads = KnownKey.newKey(4);
     public static final KnownKey zimbra_gal_sync_disable_timeout = KnownKey.newKey(true);
     // for bug 79865
     /**
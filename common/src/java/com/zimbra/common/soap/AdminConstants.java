@@ -1105,6 +1105,12 @@ public final class AdminConstants {
     public static final String A_CB_SEQ_NO = "cbSeqNo";
     public static final String A_CURRENT_SEQ_NO = "currentSeqNo";
     public static final String A_NEXT_SEQ_NO = "nextSeqNo";
+    public static final String A_NUM_ACCOUNTS = "numAccounts";
+    public static final String A_BACKLOG = "backlog";
+    public static final String A_BACKLOG_AGE = "backlogAge";
+    public static final String A_DELIVERED = "delivered";
+    public static final String A_LATENCY_AVG = "latencyAvg";
+    public static final String A_LATENCY_MAX = "latencyMax";
     public static final String A_AID = "aid";
     public static final String A_CID = "cid";
     public static final String E_ERRORS = "errors";
@@ -1298,6 +1304,7 @@ public final class AdminConstants {
     public static final String A_FILE_SIZE = "fileSize";
     public static final String A_CHECK_SIZE = "checkSize";
     public static final String A_REPORT_USED_BLOBS = "reportUsedBlobs";
+    public static final String A_SAMPLE_PERCENT = "samplePercent";
     public static final String A_VOLUME_ID = "volumeId";
     public static final String A_EXPORT_DIR = "exportDir";
     public static final String A_EXPORT_FILENAME_PREFIX = "exportFilenamePrefix";
@@ -1364,6 +1371,7 @@ public final class AdminConstants {
 
     public static final String A_TOTAL_COUNT = "totalCount";
     public static final String A_PROGRESS = "progress";
+    public static final String A_DIGEST_RATE = "digestRate";
     public static final String E_VOLUME_BLOBS_PROGRESS = "volumeBlobsProgress";
     public static final String E_BLOB_DIGESTS_PROGRESS = "blobDigestsProgress";
     // index stats
@@ -938,9 +938,18 @@ public abstract class Element implements Cloneable {
             } else if (elt.mParent != null) {
                 throw new ContainerException("element already has a parent");
             }
-            assert(elt instanceof JSONElement);
             String name = elt.getName();
             Object obj = mAttributes.get(name);
+            if (elt instanceof StreamingElement) {
+                // the streamed children are written as the whole array for this name
+                if (obj != null) {
+                    throw new ContainerException("already stored children with name: " + name);
+                }
+                mAttributes.put(name, elt);
+                elt.mParent = this;
+                return elt;
+            }
+            assert(elt instanceof JSONElement);
             if (obj instanceof Element) {
                 throw new ContainerException("already stored element as unique: " + name);
             } else if (obj != null && !(obj instanceof List)) {
@@ -1478,6 +1487,8 @@ public abstract class Element implements Cloneable {
                         ((JSONElement) value).marshal(out, indent, safe);
                     } else if (value instanceof FileBackedElement) {
                         ((FileBackedElement) value).marshal(out);
+                    } else if (value instanceof StreamingElement) {
+                        ((StreamingElement) value).marshal(out, indent, safe);
                     } else if (value instanceof Element) {
                         out.append('"').append(StringUtil.jsEncode(value)).append('"');
                     } else if (!(value instanceof List<?>)) {
@@ -1649,7 +1660,7 @@ public abstract class Element implements Cloneable {
                         "cannot add children to element containing text - <" +
                         this.getName() + ">, trying to add <" + elt.getName() + ">");
             }
-            assert(elt instanceof XMLElement || elt instanceof FileBackedElement);
+            assert(elt instanceof XMLElement || elt instanceof FileBackedElement || elt instanceof StreamingElement);
             if (mChildren == null) {
                 mChildren = new ArrayList<Element>();
             }
@@ -1990,6 +2001,8 @@ public abstract class Element implements Cloneable {
                             ((XMLElement) child).marshal(out, indent < 0 ? -1 : indent + INDENT_SIZE, safe);
                         } else if (child instanceof FileBackedElement) {
                             child.marshal(out);
+                        } else if (child instanceof StreamingElement) {
+                            ((StreamingElement) child).marshal(out, indent < 0 ? -1 : indent + INDENT_SIZE, safe);
                         } else {
                             out.append(xmlEncode(child.toString(), false));
                         }
@@ -2170,6 +2183,213 @@ public abstract class Element implements Cloneable {
         }
     }
 
+    /**
+     * Placeholder {@link Element} whose children are produced by a {@link Streamer} while the
+     * enclosing document is being serialized, one at a time, so that a large response never has
+     * all of its children in memory at once.  Like {@link FileBackedElement} it can only be
+     * serialized; the tree accessors are not supported.
+     * <p>
+     * In JSON all the streamed children are written as the array named by this element, so the
+     * streamer must only produce children with that name, and the parent can't have other
+     * children with that name.
+     */
+    public static final class StreamingElement extends Element {
+
+        /**
+         * Produces the children of a {@link StreamingElement}.
+         */
+        public interface Streamer {
+            /**
+             * Adds the children to {@link Output#getParent}, calling {@link Output#flush} after
+             * each one.  May be called more than once for the same response (e.g. when the
+             * response is also logged), and must produce the same children each time.
+             */
+            void stream(Output out) throws IOException;
+        }
+
+        /**
+         * Receives the children of a {@link StreamingElement} as they are produced.
+         */
+        public static final class Output {
+            private final Element scratch;
+            private final Appendable out;
+            private final int indent;
+            private final boolean safe;
+            private final String name;
+            private int count = 0;
+
+            Output(Element scratch, Appendable out, int indent, boolean safe, String name) {
+                this.scratch = scratch;
+                this.out = out;
+                this.indent = indent;
+                this.safe = safe;
+                this.name = name;
+            }
+
+            /** Returns the element to add the next child to. */
+            public Element getParent() {
+                return scratch;
+            }
+
+            /** Serializes the children added since the last flush and drops them. */
+            public void flush() throws IOException {
+                if (scratch instanceof XMLElement) {
+                    XMLElement xml = (XMLElement) scratch;
+                    if (xml.mChildren != null) {
+                        for (Element child : xml.mChildren) {
+                            if (child instanceof XMLElement) {
+                                ((XMLElement) child).marshal(out, indent, safe);
+                            } else {
+                                child.marshal(out);
+                            }
+                            count++;
+                        }
+                        xml.mChildren = null;
+                    }
+                } else {
+                    for (Map.Entry<String, Object> attr : scratch.mAttributes.entrySet()) {
+                        if (!name.equals(attr.getKey()) || !(attr.getValue() instanceof List<?>)) {
+                            throw new IOException("cannot stream <" + attr.getKey() + "> as part of <" + name + ">");
+                        }
+                        for (Object child : (List<?>) attr.getValue()) {
+                            if (count++ > 0) {
+                                out.append(',');
+                            }
+                            scratch.indent(out, indent, true);
+                            ((JSONElement) child).marshal(out, indent, safe);
+                        }
+                    }
+                    scratch.mAttributes.clear();
+                }
+            }
+        }
+
+        private final Streamer streamer;
+
+        public StreamingElement(String name, Streamer streamer) {
+            mName = name;
+            this.streamer = streamer;
+        }
+
+        void marshal(Appendable out, int indent, boolean safe) throws IOException {
+            // The scratch parent mirrors the real one, so children don't redeclare its namespace.
+            Element scratch = mParent.getFactory().createElement(mParent.getQName());
+            if (scratch instanceof XMLElement) {
+                streamer.stream(new Output(scratch, out, indent, safe, mName));
+            } else {
+                out.append('[');
+                Output output = new Output(scratch, out, indent < 0 ? -1 : indent + 2, safe, mName);
+                streamer.stream(output);
+                if (output.count > 0) {
+                    indent(out, indent, true);
+                }
+                out.append(']');
+            }
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public ElementFactory getFactory() {
+            return null;
+        }
+
+        @Override
+        public Element addNonUniqueElement(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element addNonUniqueElement(QName qname) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element addNonUniqueElement(Element elt) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element setText(String content) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element addAttribute(String key, String value, Disposition disp) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public KeyValuePair addKeyValuePair(String key, String value, String eltname, String attrname) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element clone() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element getOptionalElement(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<Attribute> listAttributes() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Element> listElements(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean hasChildren() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<KeyValuePair> listKeyValuePairs(String eltname, String attrname) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getText() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        String getRawText() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getAttribute(String key, String defaultValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String prettyPrint() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String prettyPrint(boolean safe) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void marshal(Appendable out) throws IOException {
+            if (mParent == null) {
+                throw new IOException("StreamingElement <" + mName + "> must be added to a parent before it's marshaled");
+            }
+            marshal(out, -1, false);
+        }
+    }
+
     public static void main(String[] args) throws ContainerException, SoapParseException {
         System.out.println(Element.parseJSON("{ 'a':'b'}").getAttribute("a", null));
         System.out.println(Element.parseJSON("{ '_attrs' : {'a':'b'}}").getAttribute("a", null));
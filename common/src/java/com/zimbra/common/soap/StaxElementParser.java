@@ -0,0 +1,193 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.common.soap;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.base.Strings;
+import com.zimbra.common.soap.Element.ElementFactory;
+
+/**
+ * Builds an {@link Element} tree straight from a StAX pull parser, without the intermediate W3C DOM
+ * that {@link W3cDomUtil#parseXML} builds and then converts.  Produces the same tree as
+ * {@link W3cDomUtil#parseXML} for SOAP requests; the rare documents it can't represent directly
+ * (XHTML, or elements mixing text and child elements, which W3cDomUtil flattens to text) are
+ * handed to W3cDomUtil instead.
+ * <p>
+ * Like the DOM path, DOCTYPE declarations and external entities are not allowed.  Entity expansions and
+ * attributes per element are capped at the limits secure processing puts on the DOM path, and element nesting at
+ * {@link #MAX_ELEMENT_DEPTH}; depth and attributes are also checked here, as not every StAX implementation
+ * supports those limits.
+ */
+public final class StaxElementParser {
+
+    /** the JDK's secure processing defaults, which apply to {@link W3cDomUtil#parseXML} */
+    static final int MAX_ENTITY_EXPANSIONS = 64000;
+    static final int MAX_ATTRIBUTES = 10000;
+    static final int MAX_ELEMENT_DEPTH = 1000;
+
+    private static final XMLInputFactory FACTORY = makeInputFactory();
+
+    private StaxElementParser() {
+    }
+
+    private static XMLInputFactory makeInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        // Woodstox and JDK property names
+        setLimit(factory, MAX_ENTITY_EXPANSIONS, "com.ctc.wstx.maxEntityCount",
+                "http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit");
+        setLimit(factory, MAX_ATTRIBUTES, "com.ctc.wstx.maxAttributesPerElement",
+                "http://www.oracle.com/xml/jaxp/properties/elementAttributeLimit");
+        setLimit(factory, MAX_ELEMENT_DEPTH, "com.ctc.wstx.maxElementDepth",
+                "http://www.oracle.com/xml/jaxp/properties/maxElementDepth");
+        return factory;
+    }
+
+    private static void setLimit(XMLInputFactory factory, int limit, String... names) {
+        for (String name : names) {
+            if (factory.isPropertySupported(name)) {
+                factory.setProperty(name, limit);
+            }
+        }
+    }
+
+    public static Element parseXML(byte[] xml) throws XmlParseException {
+        return parseXML(xml, Element.XMLElement.mFactory);
+    }
+
+    public static Element parseXML(byte[] xml, ElementFactory factory) throws XmlParseException {
+        Element elt;
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.createXMLStreamReader(new ByteArrayInputStream(xml));
+            elt = build(reader, factory);
+        } catch (XMLStreamException e) {
+            /* Bug 93816 log actual problem but throw generic one to avoid information disclosure */
+            W3cDomUtil.logParseProblem(e);
+            throw XmlParseException.PARSE_ERROR();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                }
+            }
+        }
+        return elt != null ? elt : W3cDomUtil.parseXML(new ByteArrayInputStream(xml), factory);
+    }
+
+    /**
+     * Returns the root element, or null if the document needs the DOM parser.
+     */
+    private static Element build(XMLStreamReader reader, ElementFactory factory) throws XMLStreamException {
+        Deque<Element> stack = new ArrayDeque<Element>();
+        // text seen in each open element, and whether it has child elements
+        Deque<StringBuilder> text = new ArrayDeque<StringBuilder>();
+        Deque<Boolean> hasChildren = new ArrayDeque<Boolean>();
+        Element root = null;
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamReader.DTD:
+                    throw new XMLStreamException("DOCTYPE is disallowed");
+                case XMLStreamReader.START_ELEMENT:
+                    String uri = Strings.emptyToNull(reader.getNamespaceURI());
+                    if (Element.XMLElement.XHTML_NS_URI.equalsIgnoreCase(uri)) {
+                        return null;
+                    }
+                    if (!hasChildren.isEmpty()) {
+                        if (!hasChildren.peek() && hasText(text.peek())) {
+                            return null;
+                        }
+                        hasChildren.pop();
+                        hasChildren.push(Boolean.TRUE);
+                    }
+                    if (stack.size() >= MAX_ELEMENT_DEPTH) {
+                        throw new XMLStreamException("element depth exceeds " + MAX_ELEMENT_DEPTH, reader.getLocation());
+                    } else if (reader.getAttributeCount() > MAX_ATTRIBUTES) {
+                        throw new XMLStreamException("attribute count exceeds " + MAX_ATTRIBUTES, reader.getLocation());
+                    }
+                    Element elt = factory.createElement(new org.dom4j.QName(reader.getLocalName(),
+                            uri == null ? null : new org.dom4j.Namespace(reader.getPrefix(), uri)));
+                    makeAttributes(elt, reader);
+                    if (stack.isEmpty()) {
+                        root = elt;
+                    } else {
+                        stack.peek().addElement(elt);
+                    }
+                    stack.push(elt);
+                    text.push(new StringBuilder());
+                    hasChildren.push(Boolean.FALSE);
+                    break;
+                case XMLStreamReader.CHARACTERS:
+                case XMLStreamReader.CDATA:
+                case XMLStreamReader.SPACE:
+                    if (!stack.isEmpty()) {
+                        text.peek().append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                    break;
+                case XMLStreamReader.END_ELEMENT:
+                    Element done = stack.pop();
+                    StringBuilder content = text.pop();
+                    if (hasChildren.pop()) {
+                        if (hasText(content)) {
+                            return null;
+                        }
+                    } else if (hasText(content)) {
+                        done.setText(content.toString());
+                    }
+                    break;
+                default:
+                    // comments and processing instructions are dropped, as in the DOM path
+            }
+        }
+        return root;
+    }
+
+    /** True if the text isn't just the whitespace between elements (same test as String.trim()). */
+    private static boolean hasText(StringBuilder content) {
+        for (int i = 0; i < content.length(); i++) {
+            if (content.charAt(i) > ' ') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void makeAttributes(Element elt, XMLStreamReader reader) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String prefix = reader.getAttributePrefix(i);
+            String name = reader.getAttributeLocalName(i);
+            elt.addAttribute(Strings.isNullOrEmpty(prefix) ? name : prefix + ":" + name, reader.getAttributeValue(i));
+            String nsURI = reader.getAttributeNamespace(i);
+            if (!Strings.isNullOrEmpty(nsURI)) {
+                // see W3cDomUtil: namespaces are stored on the elements that use them
+                elt.setNamespace(prefix, nsURI);
+            }
+        }
+    }
+}
@@ -305,7 +305,7 @@ public class W3cDomUtil {
         return reader.read(w3cDoc);
     }
 
-    private static void logParseProblem(Exception e) {
+    static void logParseProblem(Exception e) {
         if (LOG.isDebugEnabled()) {
             LOG.warn("Problem parsing XML", e);
         } else {
@@ -622,6 +622,23 @@ public final class ZimbraLog {
         }
     }
 
+    /**
+     * Returns a copy of the current thread's logging context, so that work handed to another thread
+     * can be logged with it (see {@link #setContext}).
+     */
+    public static Map<String, String> getContextMap() {
+        Map<String, String> contextMap = sContextMap.get();
+        return contextMap == null ? new LinkedHashMap<String, String>() : new LinkedHashMap<String, String>(contextMap);
+    }
+
+    /**
+     * Replaces the current thread's logging context with one returned by {@link #getContextMap}.
+     */
+    public static void setContext(Map<String, String> context) {
+        sContextMap.set(new LinkedHashMap<String, String>(context));
+        updateContextString();
+    }
+
     /**
      * Updates the context string with the latest data in {@link #sContextMap}.
      */
@@ -49,6 +49,12 @@ public class DedupeBlobsResponse {
     @XmlAttribute(name=AdminConstants.A_TOTAL_COUNT, required=false)
     private Integer totalCount;
 
+    /**
+     * @zm-api-field-description Digests deduped per second by the current or last run
+     */
+    @XmlAttribute(name=AdminConstants.A_DIGEST_RATE, required=false)
+    private Long digestRate;
+
     @XmlElement(name=AdminConstants.E_VOLUME_BLOBS_PROGRESS, required=false)
     private VolumeIdAndProgress[] volumeBlobsProgress;
     
@@ -69,6 +75,10 @@ public class DedupeBlobsResponse {
     public void setTotalSize(long size) {
         this.totalSize = size;
     }
+
+    public void setDigestRate(long rate) {
+        this.digestRate = rate;
+    }
     
     public void setVolumeBlobsProgress(VolumeIdAndProgress[] progress) {
         this.volumeBlobsProgress = progress;
@@ -89,6 +99,10 @@ public class DedupeBlobsResponse {
     public Long getTotalSize() {
         return totalSize;
     }
+
+    public Long getDigestRate() {
+        return digestRate;
+    }
     
     public VolumeIdAndProgress[] getVolumeBlobsProgress() {
         return volumeBlobsProgress;
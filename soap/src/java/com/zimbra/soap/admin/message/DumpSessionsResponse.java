@@ -17,6 +17,9 @@
 
 package com.zimbra.soap.admin.message;
 
+import java.util.Collections;
+import java.util.List;
+
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
@@ -24,13 +27,15 @@ import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlType;
 
+import com.google.common.collect.Lists;
 import com.zimbra.common.soap.AdminConstants;
 import com.zimbra.soap.admin.type.InfoForSessionType;
+import com.zimbra.soap.admin.type.WaitSetInfo;
 
 @XmlAccessorType(XmlAccessType.NONE)
 @XmlRootElement(name=AdminConstants.E_DUMP_SESSIONS_RESPONSE)
 @XmlType(propOrder = {"soapSessions", "imapSessions", "adminSessions",
-                "wikiSessions", "synclistenerSessions", "waitsetSessions"})
+                "wikiSessions", "synclistenerSessions", "waitsetSessions", "waitSets"})
 public class DumpSessionsResponse {
 
     /**
@@ -82,6 +87,12 @@ public class DumpSessionsResponse {
     @XmlElement(name="waitset", required=false)
     private InfoForSessionType waitsetSessions;
 
+    /**
+     * @zm-api-field-description Size, backlog and delivery latency of each WaitSet
+     */
+    @XmlElement(name=AdminConstants.E_WAITSET /* waitSet */, required=false)
+    private final List<WaitSetInfo> waitSets = Lists.newArrayList();
+
     /**
      * no-argument constructor wanted by JAXB
      */
@@ -130,4 +141,13 @@ public class DumpSessionsResponse {
     }
 
     public InfoForSessionType getWaitsetSessions() { return waitsetSessions; }
+
+    public DumpSessionsResponse addWaitSet(WaitSetInfo waitSet) {
+        this.waitSets.add(waitSet);
+        return this;
+    }
+
+    public List<WaitSetInfo> getWaitSets() {
+        return Collections.unmodifiableList(waitSets);
+    }
 }
@@ -116,6 +116,50 @@ public class WaitSetInfo {
     @XmlAttribute(name=AdminConstants.A_NEXT_SEQ_NO /* nextSeqNo */, required=false)
     private String nextSeqNo;
 
+    /**
+     * @zm-api-field-tag num-accounts
+     * @zm-api-field-description Number of accounts being watched
+     */
+    @XmlAttribute(name=AdminConstants.A_NUM_ACCOUNTS /* numAccounts */, required=false)
+    private Integer numAccounts;
+
+    /**
+     * @zm-api-field-tag backlog
+     * @zm-api-field-description Number of changed accounts not yet returned to a WaitSetRequest
+     */
+    @XmlAttribute(name=AdminConstants.A_BACKLOG /* backlog */, required=false)
+    private Integer backlog;
+
+    /**
+     * @zm-api-field-tag backlog-age-millis
+     * @zm-api-field-description Milliseconds the oldest change in the backlog has been waiting
+     */
+    @XmlAttribute(name=AdminConstants.A_BACKLOG_AGE /* backlogAge */, required=false)
+    private Long backlogAge;
+
+    /**
+     * @zm-api-field-tag delivered
+     * @zm-api-field-description Number of changed accounts returned to WaitSetRequests since the WaitSet was created
+     */
+    @XmlAttribute(name=AdminConstants.A_DELIVERED /* delivered */, required=false)
+    private Long delivered;
+
+    /**
+     * @zm-api-field-tag latency-avg-millis
+     * @zm-api-field-description Average milliseconds between an account changing and it being returned to a
+     * WaitSetRequest
+     */
+    @XmlAttribute(name=AdminConstants.A_LATENCY_AVG /* latencyAvg */, required=false)
+    private Long latencyAvg;
+
+    /**
+     * @zm-api-field-tag latency-max-millis
+     * @zm-api-field-description Maximum milliseconds between an account changing and it being returned to a
+     * WaitSetRequest
+     */
+    @XmlAttribute(name=AdminConstants.A_LATENCY_MAX /* latencyMax */, required=false)
+    private Long latencyMax;
+
     /**
      * @zm-api-field-description Buffered commit information
      */
@@ -185,6 +229,12 @@ public class WaitSetInfo {
     }
 
     public void setNextSeqNo(String nextSeqNo) { this.nextSeqNo = nextSeqNo; }
+    public void setNumAccounts(Integer numAccounts) { this.numAccounts = numAccounts; }
+    public void setBacklog(Integer backlog) { this.backlog = backlog; }
+    public void setBacklogAge(Long backlogAge) { this.backlogAge = backlogAge; }
+    public void setDelivered(Long delivered) { this.delivered = delivered; }
+    public void setLatencyAvg(Long latencyAvg) { this.latencyAvg = latencyAvg; }
+    public void setLatencyMax(Long latencyMax) { this.latencyMax = latencyMax; }
     public void setBufferedCommits(
                     Iterable <BufferedCommitInfo> bufferedCommits) {
         this.bufferedCommits.clear();
@@ -212,6 +262,12 @@ public class WaitSetInfo {
     public String getCbSeqNo() { return cbSeqNo; }
     public String getCurrentSeqNo() { return currentSeqNo; }
     public String getNextSeqNo() { return nextSeqNo; }
+    public Integer getNumAccounts() { return numAccounts; }
+    public Integer getBacklog() { return backlog; }
+    public Long getBacklogAge() { return backlogAge; }
+    public Long getDelivered() { return delivered; }
+    public Long getLatencyAvg() { return latencyAvg; }
+    public Long getLatencyMax() { return latencyMax; }
     public List<BufferedCommitInfo> getBufferedCommits() {
         return Collections.unmodifiableList(bufferedCommits);
     }
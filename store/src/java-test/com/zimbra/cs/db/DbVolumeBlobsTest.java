@@ -19,6 +19,7 @@ package com.zimbra.cs.db;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -527,4 +528,101 @@ public class DbVolumeBlobsTest {
         }
     }
 
+    private void addDigestRef(Volume vol, int itemId, String digest) throws ServiceException {
+        DbVolumeBlobs.addBlobReference(conn, new MailboxBlobInfo(null, 1, itemId, 1, String.valueOf(vol.getId()), digest));
+    }
+
+    private static class CollectingVisitor implements DbVolumeBlobs.DigestVisitor {
+        final List<List<BlobReference>> groups = new ArrayList<List<BlobReference>>();
+        int limit = Integer.MAX_VALUE;
+
+        @Override
+        public boolean visit(List<BlobReference> blobs) {
+            groups.add(blobs);
+            return groups.size() < limit;
+        }
+    }
+
+    @Test
+    public void visitDigestsAcrossPages() throws Exception {
+        Volume vol = VolumeManager.getInstance().getCurrentMessageVolume();
+        // interleave the inserts so the rows of one digest are not adjacent by id
+        addDigestRef(vol, 1, "aaa");
+        addDigestRef(vol, 2, "ccc");
+        addDigestRef(vol, 3, "aaa");
+        addDigestRef(vol, 4, null);
+        addDigestRef(vol, 5, "bbb");
+        addDigestRef(vol, 6, "aaa");
+        addDigestRef(vol, 7, "ccc");
+
+        // a page size of 2 splits the "aaa" group across pages
+        final CollectingVisitor visitor = new CollectingVisitor() {
+            @Override
+            public boolean visit(List<BlobReference> blobs) {
+                super.visit(blobs);
+                // the deduper writes back on the connection between groups; the page cursor must already be closed
+                for (BlobReference blob : blobs) {
+                    try {
+                        DbVolumeBlobs.updateProcessed(conn, blob.getId(), true);
+                    } catch (ServiceException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return true;
+            }
+        };
+        DbVolumeBlobs.visitUnprocessedDigests(conn, vol, visitor, 2);
+
+        Assert.assertEquals(3, visitor.groups.size());
+        String[] digests = { "aaa", "bbb", "ccc" };
+        int[] sizes = { 3, 1, 2 };
+        for (int i = 0; i < digests.length; i++) {
+            List<BlobReference> group = visitor.groups.get(i);
+            Assert.assertEquals(sizes[i], group.size());
+            for (BlobReference blob : group) {
+                Assert.assertEquals(digests[i], blob.getDigest());
+            }
+        }
+
+        CollectingVisitor again = new CollectingVisitor();
+        DbVolumeBlobs.visitUnprocessedDigests(conn, vol, again, 2);
+        Assert.assertTrue(again.groups.isEmpty());
+    }
+
+    @Test
+    public void visitSkipsProcessedDigests() throws Exception {
+        Volume vol = VolumeManager.getInstance().getCurrentMessageVolume();
+        addDigestRef(vol, 1, "aaa");
+        addDigestRef(vol, 2, "aaa");
+        addDigestRef(vol, 3, "bbb");
+        addDigestRef(vol, 4, "bbb");
+
+        List<BlobReference> refs = DbVolumeBlobs.getBlobReferences(conn, "aaa", vol);
+        DbVolumeBlobs.updateProcessed(conn, refs.get(0).getId(), true);
+        for (BlobReference blob : DbVolumeBlobs.getBlobReferences(conn, "bbb", vol)) {
+            DbVolumeBlobs.updateProcessed(conn, blob.getId(), true);
+        }
+
+        CollectingVisitor visitor = new CollectingVisitor();
+        DbVolumeBlobs.visitUnprocessedDigests(conn, vol, visitor);
+        // a partly processed digest is still visited with all its references
+        Assert.assertEquals(1, visitor.groups.size());
+        Assert.assertEquals(2, visitor.groups.get(0).size());
+        Assert.assertEquals("aaa", visitor.groups.get(0).get(0).getDigest());
+    }
+
+    @Test
+    public void visitStopsWhenVisitorDeclines() throws Exception {
+        Volume vol = VolumeManager.getInstance().getCurrentMessageVolume();
+        addDigestRef(vol, 1, "aaa");
+        addDigestRef(vol, 2, "bbb");
+        addDigestRef(vol, 3, "ccc");
+
+        CollectingVisitor visitor = new CollectingVisitor();
+        visitor.limit = 2;
+        DbVolumeBlobs.visitUnprocessedDigests(conn, vol, visitor, 1);
+        Assert.assertEquals(2, visitor.groups.size());
+        Assert.assertEquals("bbb", visitor.groups.get(1).get(0).getDigest());
+    }
+
 }
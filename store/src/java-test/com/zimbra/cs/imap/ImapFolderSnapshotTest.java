@@ -0,0 +1,110 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+
+public final class ImapFolderSnapshotTest {
+
+    private static ImapFolder folder(String query) {
+        List<ImapMessage> messages = Lists.newArrayList(
+                new ImapMessage(257, MailItem.Type.MESSAGE, 101, Flag.BITMASK_UNREAD, null),
+                new ImapMessage(258, MailItem.Type.CONTACT, 102, 0, new String[] {"work", "todo"}),
+                new ImapMessage(260, MailItem.Type.MESSAGE, 105, Flag.BITMASK_FLAGGED, new String[] {"work", "todo"}),
+                new ImapMessage(261, MailItem.Type.CHAT, 106, 0, new String[] {"über"}));
+        for (int i = 0; i < messages.size(); i++) {
+            messages.get(i).sequence = i + 1;
+        }
+        messages.get(2).sflags |= ImapMessage.FLAG_RECENT | ImapMessage.FLAG_SPAM;
+        return new ImapFolder(new ItemIdentifier("12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f", 2), 17, query,
+                EnumSet.of(MailItem.Type.MESSAGE, MailItem.Type.CHAT), ImapFlagCache.getSystemFlags(), messages);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ImapFolder original = folder(null);
+        ImapFolder copy = ImapFolderSnapshot.decode(ByteBuffer.wrap(ImapFolderSnapshot.encode(original)));
+
+        Assert.assertEquals(original.getItemIdentifier().accountId, copy.getItemIdentifier().accountId);
+        Assert.assertEquals(2, copy.getId());
+        Assert.assertEquals(17, copy.getUIDValidity());
+        Assert.assertFalse(copy.isVirtual());
+        Assert.assertEquals(original.getTypeConstraint(), copy.getTypeConstraint());
+
+        Assert.assertEquals(4, copy.getSize());
+        for (int seq = 1; seq <= 4; seq++) {
+            ImapMessage expected = original.getBySequence(seq), actual = copy.getBySequence(seq);
+            Assert.assertEquals(seq, actual.sequence);
+            Assert.assertEquals(expected.msgId, actual.msgId);
+            Assert.assertEquals(expected.imapUid, actual.imapUid);
+            Assert.assertEquals(expected.flags, actual.flags);
+            Assert.assertEquals(expected.sflags, actual.sflags);
+            Assert.assertEquals(expected.getType(), actual.getType());
+            Assert.assertTrue(Arrays.equals(expected.tags, actual.tags));
+        }
+
+        List<ImapFlag> expectedFlags = Lists.newArrayList(original.getTagset());
+        List<ImapFlag> actualFlags = Lists.newArrayList(copy.getTagset());
+        Assert.assertEquals(expectedFlags.size(), actualFlags.size());
+        for (int i = 0; i < expectedFlags.size(); i++) {
+            ImapFlag expected = expectedFlags.get(i), actual = actualFlags.get(i);
+            Assert.assertEquals(expected.mName, actual.mName);
+            Assert.assertEquals(expected.mImapName, actual.mImapName);
+            Assert.assertEquals(expected.mId, actual.mId);
+            Assert.assertEquals(expected.mBitmask, actual.mBitmask);
+            Assert.assertEquals(expected.mPositive, actual.mPositive);
+            Assert.assertEquals(expected.mPermanent, actual.mPermanent);
+            Assert.assertEquals(expected.mListed, actual.mListed);
+        }
+    }
+
+    @Test
+    public void searchFolder() throws Exception {
+        ImapFolder copy = ImapFolderSnapshot.decode(ByteBuffer.wrap(ImapFolderSnapshot.encode(folder("in:inbox"))));
+        Assert.assertTrue(copy.isVirtual());
+        Assert.assertEquals("in:inbox", copy.getQuery());
+    }
+
+    @Test
+    public void corrupt() throws Exception {
+        byte[] snapshot = ImapFolderSnapshot.encode(folder(null));
+        try {
+            ImapFolderSnapshot.decode(ByteBuffer.wrap(snapshot, 0, snapshot.length - 3));
+            Assert.fail("truncated snapshot decoded");
+        } catch (IOException expected) {
+        }
+        snapshot[7] = (byte) (ImapFolderSnapshot.VERSION + 1);
+        try {
+            ImapFolderSnapshot.decode(ByteBuffer.wrap(snapshot));
+            Assert.fail("unknown version decoded");
+        } catch (IOException expected) {
+        }
+    }
+}
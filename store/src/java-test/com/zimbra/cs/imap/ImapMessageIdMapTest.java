@@ -0,0 +1,65 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailItem;
+
+public final class ImapMessageIdMapTest {
+
+    @Test
+    public void basic() {
+        ImapMessageIdMap map = new ImapMessageIdMap();
+        ImapMessage i4msg = new ImapMessage(300, MailItem.Type.MESSAGE, 101, 0, null);
+        Assert.assertNull(map.get(300));
+        Assert.assertNull(map.put(300, i4msg));
+        Assert.assertSame(i4msg, map.get(300));
+        Assert.assertSame(i4msg, map.put(300, i4msg));
+        Assert.assertEquals(1, map.size());
+        Assert.assertSame(i4msg, map.remove(300));
+        Assert.assertNull(map.remove(300));
+        Assert.assertNull(map.get(300));
+        Assert.assertEquals(0, map.size());
+    }
+
+    /** Checks lookups against a HashMap across many collisions, removals and resizes. */
+    @Test
+    public void random() {
+        ImapMessageIdMap map = new ImapMessageIdMap();
+        Map<Integer, ImapMessage> expected = new HashMap<Integer, ImapMessage>();
+        Random rnd = new Random(42);
+        for (int n = 0; n < 100000; n++) {
+            int key = rnd.nextInt(5000) - 100;
+            if (rnd.nextInt(3) == 0) {
+                Assert.assertSame(expected.remove(key), map.remove(key));
+            } else {
+                ImapMessage i4msg = new ImapMessage(key, MailItem.Type.MESSAGE, n, 0, null);
+                Assert.assertSame(expected.put(key, i4msg), map.put(key, i4msg));
+            }
+            Assert.assertEquals(expected.size(), map.size());
+        }
+        for (int key = -100; key < 4900; key++) {
+            Assert.assertSame(expected.get(key), map.get(key));
+        }
+    }
+}
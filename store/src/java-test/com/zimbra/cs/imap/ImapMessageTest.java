@@ -0,0 +1,93 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTest;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+
+public class ImapMessageTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LC.imap_precomputed_structure_max_size.setDefault(8192);
+        MailboxTestUtil.clearData();
+    }
+
+    private Message addMessage(String resource) throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        byte[] content = ByteUtil.getContent(getClass().getResourceAsStream(resource), -1);
+        return mbox.addMessage(null, new ParsedMessage(content, false), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+    }
+
+    @Test
+    public void precomputedStructure() throws Exception {
+        Message msg = addMessage("toplevel-nested-message");
+        String[] precomputed = ImapMessage.getPrecomputedStructure(msg);
+        Assert.assertNotNull(precomputed);
+
+        MimeMessage mm = msg.getMimeMessage(false);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(baos, false, "utf-8");
+        ImapMessage.serializeStructure(ps, mm, true);
+        ps.flush();
+        Assert.assertEquals("BODYSTRUCTURE", baos.toString("utf-8"), precomputed[0]);
+
+        baos.reset();
+        ImapMessage.serializeEnvelope(ps, mm);
+        ps.flush();
+        Assert.assertEquals("ENVELOPE", baos.toString("utf-8"), precomputed[1]);
+    }
+
+    @Test
+    public void precomputedStructureDisabled() throws Exception {
+        LC.imap_precomputed_structure_max_size.setDefault(0);
+        Message msg = addMessage("calendar-bounce");
+        Assert.assertNull(msg.getImapStructure());
+        Assert.assertNull(ImapMessage.getPrecomputedStructure(msg));
+    }
+}
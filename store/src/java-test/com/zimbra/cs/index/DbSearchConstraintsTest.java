@@ -19,6 +19,8 @@ package com.zimbra.cs.index;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.zimbra.cs.mailbox.MailItem;
+
 /**
  * Unit test for {@link DbSearchConstraints}.
  *
@@ -36,4 +38,25 @@ public final class DbSearchConstraintsTest {
         Assert.assertEquals(1, leaf.ranges.size());
         Assert.assertEquals(2, clone.ranges.size());
     }
+
+    @Test
+    public void coverable() {
+        DbSearchConstraints.Leaf leaf = new DbSearchConstraints.Leaf();
+        Assert.assertFalse(leaf.isCoverable());
+        leaf.types.add(MailItem.Type.MESSAGE);
+        leaf.addDateRange(100, true, 200, false, true);
+        Assert.assertTrue(leaf.isCoverable());
+
+        DbSearchConstraints.Leaf contacts = leaf.clone();
+        contacts.types.add(MailItem.Type.CONTACT);
+        Assert.assertFalse(contacts.isCoverable());
+
+        DbSearchConstraints.Leaf size = leaf.clone();
+        size.addSizeRange(300, true, 300, false, true);
+        Assert.assertFalse(size.isCoverable());
+
+        DbSearchConstraints.Leaf conv = leaf.clone();
+        conv.convId = 10;
+        Assert.assertFalse(conv.isCoverable());
+    }
 }
@@ -0,0 +1,166 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.Contact;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mime.ParsedContact;
+
+/**
+ * Unit test for the near-real-time mode of {@link LuceneIndex}.
+ */
+public final class LuceneIndexNrtTest {
+    private static String originalIndexStoreFactory;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        originalIndexStoreFactory = IndexStore.getFactory().getClass().getName();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        LC.zimbra_index_lucene_nrt.setDefault(true);
+        LC.zimbra_index_lucene_nrt_commit_docs.setDefault(1000);
+        LC.zimbra_index_lucene_nrt_commit_interval.setDefault(3600);
+        IndexStore.setFactory(LuceneIndex.Factory.class.getName());
+        MailboxTestUtil.clearData();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        IndexStore.getFactory().destroy();
+        LC.zimbra_index_lucene_nrt.setDefault(false);
+        LC.zimbra_index_lucene_nrt_commit_docs.setDefault(1000);
+        LC.zimbra_index_lucene_nrt_commit_interval.setDefault(60);
+        MailboxTestUtil.clearData();
+        IndexStore.setFactory(originalIndexStoreFactory);
+    }
+
+    @Test
+    public void searchableBeforeCommit() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Contact contact = createContact(mbox, "first@zimbra.com");
+        mbox.index.indexDeferredItems();
+
+        Assert.assertEquals(1, countHits(mbox, "first@zimbra.com"));
+        Assert.assertTrue("not committed yet, so still deferred in the database",
+                getDeferredIds(mbox).contains(contact.getId()));
+    }
+
+    @Test
+    public void reopenCachedSearcher() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        createContact(mbox, "first@zimbra.com");
+        mbox.index.indexDeferredItems();
+        ZimbraIndexSearcher searcher = mbox.index.getIndexStore().openSearcher(); // cached from now on
+        Assert.assertEquals(1, searcher.getIndexReader().numDocs());
+        searcher.close();
+
+        createContact(mbox, "second@zimbra.com");
+        mbox.index.indexDeferredItems();
+        Assert.assertEquals(1, countHits(mbox, "second@zimbra.com"));
+        searcher = mbox.index.getIndexStore().openSearcher();
+        Assert.assertEquals(2, searcher.getIndexReader().numDocs());
+        searcher.close();
+    }
+
+    @Test
+    public void commitWhenDue() throws Exception {
+        LC.zimbra_index_lucene_nrt_commit_docs.setDefault(2);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Contact first = createContact(mbox, "first@zimbra.com");
+        mbox.index.indexDeferredItems();
+        Assert.assertTrue(getDeferredIds(mbox).contains(first.getId()));
+
+        // the second document makes a commit due, which covers the first one too
+        Contact second = createContact(mbox, "second@zimbra.com");
+        mbox.index.indexDeferredItems();
+        Set<Integer> deferred = getDeferredIds(mbox);
+        Assert.assertFalse(deferred.contains(first.getId()));
+        Assert.assertFalse(deferred.contains(second.getId()));
+    }
+
+    @Test
+    public void replayAfterRestart() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Contact contact = createContact(mbox, "first@zimbra.com");
+        mbox.index.indexDeferredItems();
+        Assert.assertTrue(getDeferredIds(mbox).contains(contact.getId()));
+
+        // the reloaded mailbox only knows what the database says, so it indexes the item again
+        MailboxManager.getInstance().clearCache();
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        mbox.index.indexDeferredItems();
+        Assert.assertEquals("replay must not duplicate documents", 1, countHits(mbox, "first@zimbra.com"));
+
+        IndexStore.getFactory().destroy(); // commits the pooled writer
+        LC.zimbra_index_lucene_nrt_commit_docs.setDefault(1);
+        IndexStore.setFactory(LuceneIndex.Factory.class.getName());
+        createContact(mbox, "second@zimbra.com");
+        mbox.index.indexDeferredItems();
+        Assert.assertFalse(getDeferredIds(mbox).contains(contact.getId()));
+        Assert.assertEquals(1, countHits(mbox, "first@zimbra.com"));
+    }
+
+    private static int countHits(Mailbox mbox, String email) throws Exception {
+        ZimbraIndexSearcher searcher = mbox.index.getIndexStore().openSearcher();
+        try {
+            return searcher.search(new TermQuery(new Term(LuceneFields.L_CONTACT_DATA, email)), 100).getTotalHits();
+        } finally {
+            searcher.close();
+        }
+    }
+
+    private static Set<Integer> getDeferredIds(Mailbox mbox) throws Exception {
+        DbConnection conn = DbPool.getConnection(mbox);
+        try {
+            return Sets.newHashSet(DbMailItem.getIndexDeferredIds(conn, mbox).values());
+        } finally {
+            conn.closeQuietly();
+        }
+    }
+
+    private static Contact createContact(Mailbox mbox, String email) throws Exception {
+        Map<String, Object> fields = ImmutableMap.<String, Object>of(ContactConstants.A_email, email);
+        return mbox.createContact(null, new ParsedContact(fields), Mailbox.ID_FOLDER_CONTACTS, null);
+    }
+}
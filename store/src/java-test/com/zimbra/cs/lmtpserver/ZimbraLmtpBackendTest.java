@@ -0,0 +1,101 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.lmtpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link ZimbraLmtpBackend}.
+ */
+public final class ZimbraLmtpBackendTest {
+    private static final String[] CHARSETS = { "windows-1251", "iso-8859-1" };
+    private static final int RECIPIENTS = 8;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(Provisioning.A_zimbraPrefMailDefaultCharset, CHARSETS[i % CHARSETS.length]);
+            prov.createAccount("rcpt" + i + "@zimbra.com", "secret", attrs);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        LC.zimbra_lmtp_delivery_threads.setDefault(4);
+        MailboxTestUtil.clearData();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LC.zimbra_lmtp_delivery_threads.setDefault(0);
+        MailboxTestUtil.clearData();
+    }
+
+    /**
+     * An unlabeled 8-bit subject is decoded with each recipient's own default charset, even when the recipients
+     * are delivered concurrently from the same ParsedMessage.
+     */
+    @Test
+    public void concurrentDeliveryWithDifferentCharsets() throws Exception {
+        byte[] subject = "Привет".getBytes("windows-1251");
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write("From: sender@zimbra.com\r\nTo: rcpt0@zimbra.com\r\nSubject: ".getBytes(StandardCharsets.US_ASCII));
+        content.write(subject);
+        content.write("\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII));
+        byte[] data = content.toByteArray();
+
+        LmtpEnvelope env = new LmtpEnvelope();
+        env.setSender(new LmtpAddress("<sender@zimbra.com>", null, null));
+        for (int i = 0; i < RECIPIENTS; i++) {
+            env.addLocalRecipient(new LmtpAddress("<rcpt" + i + "@zimbra.com>", null, null));
+        }
+        LmtpConfig.getInstance().getLmtpBackend().deliver(env, new ByteArrayInputStream(data), data.length);
+
+        List<LmtpAddress> recipients = env.getRecipients();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            Assert.assertEquals(LmtpReply.DELIVERY_OK, recipients.get(i).getDeliveryStatus());
+            Account account = Provisioning.getInstance().getAccountByName("rcpt" + i + "@zimbra.com");
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+            List<Integer> ids = mbox.getItemIds(null, Mailbox.ID_FOLDER_INBOX).getIds(MailItem.Type.MESSAGE);
+            Assert.assertEquals(1, ids.size());
+            Assert.assertEquals(account.getName(), new String(subject, CHARSETS[i % CHARSETS.length]),
+                    mbox.getMessageById(null, ids.get(0)).getSubject());
+        }
+    }
+}
@@ -687,4 +687,117 @@ public class MailboxLockTest {
             t.join();
         }
     }
+
+    @Test
+    public void optimisticRead() throws ServiceException {
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        LC.zimbra_mailbox_lock_optimistic_read.setDefault(true);
+        try {
+            final AtomicBoolean locked = new AtomicBoolean(true);
+            int changeId = mbox.lock.readOptimistically(new MailboxLock.OptimisticRead<Integer>() {
+                @Override
+                public Integer read() {
+                    locked.set(mbox.lock.getHoldCount() > 0);
+                    return mbox.getLastChangeID();
+                }
+            });
+            Assert.assertFalse("uncontended read should not take the lock", locked.get());
+            Assert.assertEquals(mbox.getLastChangeID(), changeId);
+            Assert.assertTrue(mbox.lock.isUnlocked());
+        } finally {
+            LC.zimbra_mailbox_lock_optimistic_read.setDefault(false);
+        }
+    }
+
+    @Test
+    public void optimisticReadConflict() throws Exception {
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        LC.zimbra_mailbox_lock_optimistic_read.setDefault(true);
+        try {
+            final List<Boolean> attempts = new ArrayList<Boolean>();
+            mbox.lock.readOptimistically(new MailboxLock.OptimisticRead<Void>() {
+                @Override
+                public Void read() throws ServiceException {
+                    attempts.add(mbox.lock.getHoldCount() > 0);
+                    if (attempts.size() == 1) {
+                        // a writer gets in while the optimistic read is running
+                        Thread writer = new Thread("MailboxLockTest-writer") {
+                            @Override
+                            public void run() {
+                                mbox.lock.lock(true);
+                                mbox.lock.release();
+                            }
+                        };
+                        writer.start();
+                        try {
+                            writer.join(10000);
+                        } catch (InterruptedException e) {
+                            throw ServiceException.FAILURE("interrupted", e);
+                        }
+                    }
+                    return null;
+                }
+            });
+            Assert.assertEquals("read should be retried after the conflicting write", 2, attempts.size());
+            Assert.assertFalse(attempts.get(0));
+            Assert.assertTrue("retry should hold the shared lock", attempts.get(1));
+            Assert.assertTrue(mbox.lock.isUnlocked());
+        } finally {
+            LC.zimbra_mailbox_lock_optimistic_read.setDefault(false);
+        }
+    }
+
+    @Test
+    public void optimisticReadFallback() throws Exception {
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        LC.zimbra_mailbox_lock_optimistic_read.setDefault(true);
+        try {
+            final List<Boolean> attempts = new ArrayList<Boolean>();
+            boolean result = mbox.lock.readOptimistically(new MailboxLock.OptimisticRead<Boolean>() {
+                @Override
+                public Boolean read() throws ServiceException {
+                    attempts.add(mbox.lock.getHoldCount() > 0);
+                    Thread writer = new Thread("MailboxLockTest-writer") {
+                        @Override
+                        public void run() {
+                            mbox.lock.lock(true);
+                            mbox.lock.release();
+                        }
+                    };
+                    writer.start();
+                    try {
+                        writer.join(10000);
+                    } catch (InterruptedException e) {
+                        throw ServiceException.FAILURE("interrupted", e);
+                    }
+                    return true;
+                }
+            }, false);
+            Assert.assertFalse("conflicting read should return the fallback", result);
+            Assert.assertEquals("fallback should not rerun the read under the lock", 1, attempts.size());
+            Assert.assertFalse(attempts.get(0));
+            Assert.assertTrue(mbox.lock.isUnlocked());
+
+            // with the lock already held the read just runs under it
+            attempts.clear();
+            mbox.lock.lock(false);
+            try {
+                result = mbox.lock.readOptimistically(new MailboxLock.OptimisticRead<Boolean>() {
+                    @Override
+                    public Boolean read() {
+                        attempts.add(mbox.lock.getHoldCount() > 0);
+                        return true;
+                    }
+                }, false);
+            } finally {
+                mbox.lock.release();
+            }
+            Assert.assertTrue(result);
+            Assert.assertEquals(1, attempts.size());
+            Assert.assertTrue(attempts.get(0));
+            Assert.assertTrue(mbox.lock.isUnlocked());
+        } finally {
+            LC.zimbra_mailbox_lock_optimistic_read.setDefault(false);
+        }
+    }
 }
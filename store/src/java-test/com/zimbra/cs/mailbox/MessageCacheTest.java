@@ -0,0 +1,219 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.ParsedMessage;
+
+public class MessageCacheTest {
+
+    private Mailbox mbox;
+    private int originalCacheSize;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        originalCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
+        // a cache of size 0 keeps nothing, so resizing through it empties the cache
+        resize(0);
+        Assert.assertEquals(0, MessageCache.getSize());
+        Assert.assertEquals(0, MessageCache.getDataSize());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LC.zimbra_message_cache_expanded_percent.setDefault(50);
+        resize(originalCacheSize);
+    }
+
+    private static void resize(int size) throws Exception {
+        Provisioning.getInstance().getLocalServer().setMessageCacheSize(size);
+        MessageCache.loadSettings();
+    }
+
+    private Message addMessage(String subject) throws Exception {
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage(subject), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        MessageCache.purge(msg);
+        return msg;
+    }
+
+    /** Adds a text/plain message with a uuencoded attachment, which the cache keeps an expanded copy of. */
+    private Message addUUEncodedMessage(String subject) throws Exception {
+        String raw = "From: sender@zimbra.com\r\nTo: test@zimbra.com\r\nSubject: " + subject + "\r\n" +
+                "Content-Type: text/plain\r\n\r\nsee attached\r\nbegin 644 a.txt\r\n#86)C\r\n`\r\nend\r\n";
+        Message msg = mbox.addMessage(null, new ParsedMessage(raw.getBytes(), false), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        MessageCache.purge(msg);
+        return msg;
+    }
+
+    private static long cachedSize(List<Message> msgs) {
+        long size = 0;
+        for (Message msg : msgs) {
+            if (MessageCache.contains(msg.getDigest())) {
+                size += msg.getSize();
+            }
+        }
+        return size;
+    }
+
+    @Test
+    public void concurrentLoadsCoalesce() throws Exception {
+        resize(10);
+        final Message msg = addMessage("coalesce");
+
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<MimeMessage>> futures = new ArrayList<Future<MimeMessage>>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(new Callable<MimeMessage>() {
+                    @Override
+                    public MimeMessage call() throws Exception {
+                        start.await();
+                        return MessageCache.getMimeMessage(msg, false);
+                    }
+                }));
+            }
+            start.countDown();
+            MimeMessage first = futures.get(0).get();
+            for (Future<MimeMessage> future : futures) {
+                Assert.assertSame(first, future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, MessageCache.getSize());
+        // a second load would have counted the message twice
+        Assert.assertEquals(msg.getSize(), MessageCache.getDataSize());
+    }
+
+    @Test
+    public void expandedBudget() throws Exception {
+        LC.zimbra_message_cache_expanded_percent.setDefault(20);
+        resize(10);
+
+        List<Message> msgs = new ArrayList<Message>();
+        for (int i = 0; i < 4; i++) {
+            Message msg = addUUEncodedMessage("expanded " + i);
+            msgs.add(msg);
+            MimeMessage expanded = MessageCache.getMimeMessage(msg, true);
+            Assert.assertNotSame(MessageCache.getMimeMessage(msg, false), expanded);
+        }
+
+        // only two of the expanded copies fit, but all the originals stay cached
+        Assert.assertEquals(4, MessageCache.getSize());
+        Assert.assertEquals(2, MessageCache.getExpandedSize());
+        long size = cachedSize(msgs);
+        Assert.assertEquals(size + msgs.get(2).getSize() + msgs.get(3).getSize(), MessageCache.getDataSize());
+
+        // an original whose expanded copy aged out is expanded again on demand
+        MimeMessage original = MessageCache.getMimeMessage(msgs.get(0), false);
+        Assert.assertNotSame(original, MessageCache.getMimeMessage(msgs.get(0), true));
+        Assert.assertSame(original, MessageCache.getMimeMessage(msgs.get(0), false));
+        Assert.assertEquals(2, MessageCache.getExpandedSize());
+        Assert.assertEquals(size + msgs.get(3).getSize() + msgs.get(0).getSize(), MessageCache.getDataSize());
+    }
+
+    @Test
+    public void dataSizeAccounting() throws Exception {
+        resize(2);
+
+        List<Message> msgs = new ArrayList<Message>();
+        for (int i = 0; i < 3; i++) {
+            Message msg = addMessage("size " + i);
+            msgs.add(msg);
+            MessageCache.getMimeMessage(msg, false);
+        }
+        // the first message was evicted and no longer counts
+        Assert.assertFalse(MessageCache.contains(msgs.get(0).getDigest()));
+        Assert.assertEquals(2, MessageCache.getSize());
+        Assert.assertEquals(msgs.get(1).getSize() + msgs.get(2).getSize(), MessageCache.getDataSize());
+
+        Message uu = addUUEncodedMessage("size uu");
+        MessageCache.getMimeMessage(uu, true);
+        Assert.assertEquals(1, MessageCache.getExpandedSize());
+        Assert.assertEquals(msgs.get(2).getSize() + uu.getSize() * 2, MessageCache.getDataSize());
+
+        // dropping a node also drops its expanded copy
+        MessageCache.purge(uu);
+        Assert.assertEquals(0, MessageCache.getExpandedSize());
+        Assert.assertEquals(msgs.get(2).getSize(), MessageCache.getDataSize());
+
+        MessageCache.purge(msgs.get(2));
+        Assert.assertEquals(0, MessageCache.getSize());
+        Assert.assertEquals(0, MessageCache.getDataSize());
+    }
+
+    @Test
+    public void resizeKeepsEntries() throws Exception {
+        resize(10);
+
+        List<Message> msgs = new ArrayList<Message>();
+        List<MimeMessage> cached = new ArrayList<MimeMessage>();
+        for (int i = 0; i < 3; i++) {
+            Message msg = addMessage("resize " + i);
+            msgs.add(msg);
+            cached.add(MessageCache.getMimeMessage(msg, false));
+        }
+        Message uu = addUUEncodedMessage("resize uu");
+        MimeMessage expanded = MessageCache.getMimeMessage(uu, true);
+        long dataSize = MessageCache.getDataSize();
+
+        resize(20);
+        Assert.assertEquals(4, MessageCache.getSize());
+        Assert.assertEquals(1, MessageCache.getExpandedSize());
+        Assert.assertEquals(dataSize, MessageCache.getDataSize());
+        for (int i = 0; i < msgs.size(); i++) {
+            Assert.assertSame(cached.get(i), MessageCache.getMimeMessage(msgs.get(i), false));
+        }
+        Assert.assertSame(expanded, MessageCache.getMimeMessage(uu, true));
+
+        // shrinking evicts down to the new size and releases what it evicts
+        resize(2);
+        Assert.assertEquals(2, MessageCache.getSize());
+        msgs.add(uu);
+        long expandedSize = MessageCache.contains(uu.getDigest()) ? uu.getSize() : 0;
+        Assert.assertEquals(cachedSize(msgs) + expandedSize, MessageCache.getDataSize());
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2013, 2014, 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+
+public class SharedItemCacheTest {
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void takeRemovesEntry() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("test"), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+
+        SharedItemCache cache = new SharedItemCache(1024 * 1024, 100, false);
+        cache.put(mbox, msg);
+        Assert.assertEquals(1, cache.getSize());
+
+        MailItem.UnderlyingData data = cache.take(mbox.getId(), msg.getUuid());
+        Assert.assertNotNull(data);
+        Assert.assertEquals(msg.getId(), data.id);
+        Assert.assertEquals(msg.getSubject(), data.getSubject());
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertEquals(0, cache.getWeight());
+        Assert.assertNull(cache.take(mbox.getId(), msg.getId()));
+    }
+
+    @Test
+    public void offHeap() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("test"), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+
+        SharedItemCache cache = new SharedItemCache(1024 * 1024, 100, true);
+        cache.put(mbox, msg);
+        MailItem.UnderlyingData data = cache.take(mbox.getId(), msg.getId());
+        Assert.assertNotNull(data);
+        Assert.assertEquals(msg.getSubject(), data.getSubject());
+    }
+
+    @Test
+    public void mailboxQuota() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg1 = mbox.addMessage(null, MailboxTestUtil.generateMessage("first"), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        Message msg2 = mbox.addMessage(null, MailboxTestUtil.generateMessage("second"), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+
+        // size the cache so that a single mailbox can hold exactly one of the two messages
+        SharedItemCache probe = new SharedItemCache(1024 * 1024, 100, false);
+        probe.put(mbox, msg1);
+        long weight = probe.getWeight() + 64;
+        SharedItemCache cache = new SharedItemCache(weight * 150, 1, false);
+        cache.put(mbox, msg1);
+        cache.put(mbox, msg2);
+        Assert.assertEquals(1, cache.getSize());
+        Assert.assertNull("eldest entry evicted", cache.take(mbox.getId(), msg1.getId()));
+        Assert.assertNotNull(cache.take(mbox.getId(), msg2.getId()));
+    }
+
+    @Test
+    public void purge() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("test"), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+
+        SharedItemCache cache = new SharedItemCache(1024 * 1024, 100, false);
+        cache.put(mbox, msg);
+        cache.purgeMailbox(mbox.getId());
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertNull(cache.take(mbox.getId(), msg.getId()));
+
+        cache.put(mbox, msg);
+        cache.remove(mbox.getId(), msg.getId());
+        Assert.assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void offHeapReusesBlocks() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg1 = mbox.addMessage(null, MailboxTestUtil.generateMessage("first"), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        Message msg2 = mbox.addMessage(null, MailboxTestUtil.generateMessage("second"), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+
+        // room for about one entry per stripe, so the second put must reuse the first one's blocks
+        SharedItemCache probe = new SharedItemCache(1024 * 1024, 100, false);
+        probe.put(mbox, msg1);
+        SharedItemCache cache = new SharedItemCache((probe.getWeight() + 300) * 16, 100, true);
+        for (int i = 0; i < 10; i++) {
+            cache.put(mbox, msg1);
+            cache.put(mbox, msg2);
+            Assert.assertEquals(1, cache.getSize());
+        }
+        MailItem.UnderlyingData data = cache.take(mbox.getId(), msg2.getId());
+        Assert.assertNotNull(data);
+        Assert.assertEquals(msg2.getSubject(), data.getSubject());
+
+        cache.put(mbox, msg1);
+        cache.purgeMailbox(mbox.getId());
+        cache.put(mbox, msg2);
+        data = cache.take(mbox.getId(), msg2.getId());
+        Assert.assertNotNull(data);
+        Assert.assertEquals(msg2.getSubject(), data.getSubject());
+    }
+
+    @Test
+    public void removeChildren() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg1 = mbox.addMessage(null, MailboxTestUtil.generateMessage("test"), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        Message msg2 = mbox.addMessage(null, MailboxTestUtil.generateMessage("other"), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+
+        SharedItemCache cache = new SharedItemCache(1024 * 1024, 100, false);
+        cache.put(mbox, msg1);
+        cache.put(mbox, msg2);
+        cache.removeChildren(mbox.getId(), msg1.getParentId());
+        Assert.assertNull(cache.take(mbox.getId(), msg1.getId()));
+        Assert.assertNotNull(cache.take(mbox.getId(), msg2.getId()));
+    }
+
+    @Test
+    public void mailboxSpillsTrimmedItems() throws Exception {
+        SharedItemCache original = SharedItemCache.getInstance();
+        SharedItemCache cache = new SharedItemCache(1024 * 1024, 100, false);
+        SharedItemCache.setInstance(cache);
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+            List<Message> msgs = new ArrayList<Message>();
+            // a mailbox without listeners keeps zimbra_mailbox_inactive_cache items, the rest is spilled on commit
+            for (int i = 0; i < LC.zimbra_mailbox_inactive_cache.intValue() + 10; i++) {
+                msgs.add(mbox.addMessage(null, MailboxTestUtil.generateMessage("test " + i), MailboxTest.STANDARD_DELIVERY_OPTIONS, null));
+            }
+            Assert.assertTrue(cache.getSize() > 0);
+            for (Message msg : msgs) {
+                Assert.assertEquals(msg.getSubject(), mbox.getMessageById(null, msg.getId()).getSubject());
+            }
+        } finally {
+            SharedItemCache.setInstance(original);
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package com.zimbra.cs.redolog;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.cs.mailbox.MailboxOperation;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.logger.LogWriter;
 import com.zimbra.cs.redolog.op.RedoableOp;
 import junit.framework.Assert;
 import org.easymock.EasyMock;
@@ -86,4 +88,33 @@ public class RedoLogManagerTest {
         Assert.assertTrue(
             previousFile.getName().contains("seq" + currentSequence + ".log"));
     }
+
+    @Test
+    public void groupCommit() throws Exception {
+        redoLogManager.stop();
+        LC.zimbra_redolog_group_commit.setDefault(true);
+        try {
+            redoLogManager.start();
+            LogWriter writer = redoLogManager.getCurrentLogWriter();
+            long size = writer.getSize();
+
+            RedoableOp op = EasyMock.createMockBuilder(RedoableOp.class)
+                                .withConstructor(MailboxOperation.Preview)
+                                .createMock();
+            op.start(7 /* timestamp */);
+            op.log(true);
+            Assert.assertTrue("op should be accounted for", writer.getSize() > size);
+            Assert.assertEquals("synchronous log should return after the op was written",
+                                writer.getSize(), new File(writer.getAbsolutePath()).length());
+
+            op.log(false);
+            redoLogManager.flush();
+            Assert.assertEquals("flush should wait for queued ops",
+                                writer.getSize(), new File(writer.getAbsolutePath()).length());
+        } finally {
+            redoLogManager.stop();
+            LC.zimbra_redolog_group_commit.setDefault(false);
+            redoLogManager.start();
+        }
+    }
 }
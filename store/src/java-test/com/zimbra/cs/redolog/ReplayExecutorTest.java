@@ -0,0 +1,86 @@
+package com.zimbra.cs.redolog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.mailbox.MailboxOperation;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+public class ReplayExecutorTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    private static RedoableOp op(int mboxId) {
+        RedoableOp op = EasyMock.createMockBuilder(RedoableOp.class)
+                            .withConstructor(MailboxOperation.Preview)
+                            .createMock();
+        op.setMailboxId(mboxId);
+        return op;
+    }
+
+    @Test
+    public void perMailboxOrder() throws Exception {
+        final Map<Integer, List<RedoableOp>> played = new ConcurrentHashMap<Integer, List<RedoableOp>>();
+        List<RedoableOp> ops = new ArrayList<RedoableOp>();
+        for (int i = 0; i < 500; i++) {
+            ops.add(op(i % 7 == 6 ? RedoableOp.MAILBOX_ID_ALL : 1 + i % 5));
+        }
+
+        ReplayExecutor replayer = new ReplayExecutor(4, ops.size(), new ReplayExecutor.Player() {
+            @Override
+            public void play(RedoableOp op) {
+                List<RedoableOp> list = played.get(op.getMailboxId());
+                if (list == null) {
+                    played.putIfAbsent(op.getMailboxId(), Collections.synchronizedList(new ArrayList<RedoableOp>()));
+                    list = played.get(op.getMailboxId());
+                }
+                list.add(op);
+            }
+        });
+        for (RedoableOp op : ops) {
+            replayer.submit(op);
+        }
+        replayer.finish();
+
+        Assert.assertEquals(ops.size(), replayer.getCompleted());
+        for (Map.Entry<Integer, List<RedoableOp>> entry : played.entrySet()) {
+            List<RedoableOp> expected = new ArrayList<RedoableOp>();
+            for (RedoableOp op : ops) {
+                if (op.getMailboxId() == entry.getKey()) {
+                    expected.add(op);
+                }
+            }
+            Assert.assertEquals("mailbox " + entry.getKey(), expected, entry.getValue());
+        }
+    }
+
+    @Test
+    public void failure() throws Exception {
+        ReplayExecutor replayer = new ReplayExecutor(2, -1, new ReplayExecutor.Player() {
+            @Override
+            public void play(RedoableOp op) throws Exception {
+                throw new Exception("boom");
+            }
+        });
+        replayer.submit(op(1));
+        try {
+            replayer.finish();
+            Assert.fail("replay error should be rethrown");
+        } catch (ServiceException e) {
+            Assert.assertEquals(ServiceException.FAILURE, e.getCode());
+        }
+    }
+}
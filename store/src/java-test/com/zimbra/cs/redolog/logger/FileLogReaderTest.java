@@ -1,12 +1,17 @@
 package com.zimbra.cs.redolog.logger;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
 import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.RedoLogProvider;
+import com.zimbra.cs.redolog.RolloverManager;
 import com.zimbra.cs.redolog.TransactionId;
 import com.zimbra.cs.redolog.op.CopyItem;
+import com.zimbra.cs.redolog.op.DeleteMailbox;
 import com.zimbra.cs.redolog.op.RedoableOp;
 import junit.framework.Assert;
 import org.easymock.EasyMock;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
@@ -16,8 +21,15 @@ import org.junit.rules.TemporaryFolder;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * Runs against the memory-mapped reader; {@link UnmappedFileLogReaderTest} runs the same tests against the
+ * {@code RandomAccessFile} reader.
+ */
 public class FileLogReaderTest {
     private FileLogReader logReader;
     private FileLogWriter logWriter;
@@ -30,8 +42,13 @@ public class FileLogReaderTest {
         MailboxTestUtil.initServer();
     }
 
+    protected boolean isMapped() {
+        return true;
+    }
+
     @Before
     public void setUp() throws Exception {
+        LC.zimbra_redolog_mmap_reader.setDefault(isMapped());
         logfile = folder.newFile("logfile");
         RedoLogManager mockRedoLogManager =
             EasyMock.createNiceMock(RedoLogManager.class);
@@ -40,6 +57,11 @@ public class FileLogReaderTest {
                                       0 /* no fsync thread */);
     }
 
+    @After
+    public void tearDown() {
+        LC.zimbra_redolog_mmap_reader.setDefault(true);
+    }
+
     private void writeOp(TransactionId id) throws IOException {
         logWriter.open();
         RedoableOp op = EasyMock.createMockBuilder(CopyItem.class)
@@ -53,6 +75,34 @@ public class FileLogReaderTest {
         logWriter.close();
     }
 
+    // 30 ops, round-robin over mailboxes 1, 2 and 3
+    private void writeDeleteMailboxOps() throws IOException {
+        FileLogWriter writer = new FileLogWriter(RedoLogProvider.getInstance().getRedoLogManager(), logfile, 0);
+        writer.open();
+        for (int i = 0; i < 30; i++) {
+            RedoableOp op = new DeleteMailbox(1 + i % 3);
+            op.start(1000 + i);
+            writer.log(op, op.getInputStream(), false);
+        }
+        writer.close();
+    }
+
+    private List<String> readAll(boolean writable) throws Exception {
+        FileLogReader reader = new FileLogReader(logfile, writable);
+        reader.open();
+        List<String> ops = new ArrayList<String>();
+        try {
+            RedoableOp op;
+            while ((op = reader.getNextOp()) != null) {
+                ops.add(op.toString());
+            }
+            Assert.assertEquals(logfile.length(), reader.position());
+        } finally {
+            reader.close();
+        }
+        return ops;
+    }
+
     @Test
     public void openReadClose() throws Exception {
         writeOp(new TransactionId(7, 3));
@@ -106,6 +156,7 @@ public class FileLogReaderTest {
                             op.getTransactionId(), new TransactionId(8, 4));
 
         Assert.assertNull("More ops in file.", logReader.getNextOp());
+        logReader.close();
     }
 
     @Test(expected = IOException.class)
@@ -133,4 +184,67 @@ public class FileLogReaderTest {
         }
         Assert.fail("No exception thrown.");
     }
+
+    @Test
+    public void mappedMatchesFile() throws Exception {
+        writeDeleteMailboxOps();
+        LC.zimbra_redolog_mmap_reader.setDefault(true);
+        List<String> mapped = readAll(false);
+        LC.zimbra_redolog_mmap_reader.setDefault(false);
+        List<String> unmapped = readAll(false);
+        Assert.assertEquals(30, mapped.size());
+        Assert.assertEquals(unmapped, mapped);
+        Assert.assertEquals(unmapped, readAll(true));
+    }
+
+    @Test
+    public void mailboxFilter() throws Exception {
+        writeDeleteMailboxOps();
+        // without an index the filter is only a hint
+        FileLogReader reader = new FileLogReader(logfile);
+        reader.setMailboxFilter(Collections.singleton(2));
+        reader.open();
+        RedoLogIndex index = new RedoLogIndex();
+        int count = 0;
+        RedoableOp op;
+        while ((op = reader.getNextOp()) != null) {
+            index.add(reader.getLastOpStartOffset(), op.getMailboxId());
+            count++;
+        }
+        reader.close();
+        Assert.assertEquals(30, count);
+
+        index.setEnd(logfile.length());
+        index.write(logfile);
+
+        reader = new FileLogReader(logfile);
+        reader.setMailboxFilter(Collections.singleton(2));
+        reader.open();
+        count = 0;
+        while ((op = reader.getNextOp()) != null) {
+            Assert.assertEquals(2, op.getMailboxId());
+            count++;
+        }
+        reader.close();
+        Assert.assertEquals(10, count);
+    }
+
+    @Test
+    public void deleteOrphans() throws Exception {
+        writeDeleteMailboxOps();
+        RedoLogIndex index = new RedoLogIndex();
+        index.setEnd(logfile.length());
+        index.write(logfile);
+        File idx = RedoLogIndex.getIndexFile(logfile);
+        File orphan = RedoLogIndex.getIndexFile(new File(folder.getRoot(), "gone"));
+        Assert.assertTrue(orphan.createNewFile());
+
+        Assert.assertEquals(1, RedoLogIndex.deleteOrphans(folder.getRoot()));
+        Assert.assertTrue(idx.exists());
+        Assert.assertFalse(orphan.exists());
+
+        Assert.assertTrue(RolloverManager.deleteArchiveLog(logfile));
+        Assert.assertFalse(logfile.exists());
+        Assert.assertFalse(idx.exists());
+    }
 }
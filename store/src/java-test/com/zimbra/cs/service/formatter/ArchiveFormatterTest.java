@@ -16,6 +16,19 @@
  */
 package com.zimbra.cs.service.formatter;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.easymock.EasyMock;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -23,11 +36,19 @@ import org.junit.Test;
 
 import com.google.common.collect.Maps;
 import com.zimbra.common.account.Key.AccountBy;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTest;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.service.UserServletContext;
+import com.zimbra.cs.service.formatter.ArchiveFormatter.ArchiveInputEntry;
+import com.zimbra.cs.service.formatter.ArchiveFormatter.ArchiveInputStream;
 import com.zimbra.cs.service.util.ItemData;
 
 public class ArchiveFormatterTest {
@@ -43,6 +64,13 @@ public class ArchiveFormatterTest {
         MailboxTestUtil.clearData();
     }
 
+    @After
+    public void tearDown() {
+        LC.zimbra_archive_formatter_read_ahead_threads.setDefault(0);
+        LC.zimbra_archive_formatter_read_ahead_bytes.setDefault(16 * 1024 * 1024);
+        LC.zimbra_archive_formatter_pipeline_buffers.setDefault(0);
+    }
+
     @Test
     public void tagDecode() throws Exception {
         Account acct = Provisioning.getInstance().get(AccountBy.name, "test@zimbra.com");
@@ -80,4 +108,78 @@ public class ArchiveFormatterTest {
         Assert.assertEquals("Tags starting with numerics", "1-Tag:2-Tag", id.tags);
         Assert.assertArrayEquals("Tags starting with numerics", tags, ArchiveFormatter.getTagNames(id));
     }
+
+    @Test
+    public void readAheadExport() throws Exception {
+        Account acct = Provisioning.getInstance().get(AccountBy.name, "test@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            body.append("the quick brown fox jumps over the lazy dog\r\n");
+        }
+        for (int i = 0; i < 20; i++) {
+            // read_ahead_bytes / 16 is 4K below, so the long ones are left for the archive writer
+            String msg = "From: test" + i + "@zimbra.com\r\nSubject: message " + i + "\r\n\r\n" +
+                    (i % 2 == 0 ? body : "short body " + i) + "\r\n";
+            mbox.addMessage(null, new ParsedMessage(msg.getBytes("UTF-8"), false), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        }
+
+        List<String> serial = export(mbox);
+        Assert.assertTrue(serial.size() > 20);
+
+        LC.zimbra_archive_formatter_read_ahead_threads.setDefault(2);
+        LC.zimbra_archive_formatter_read_ahead_bytes.setDefault(64 * 1024);
+        LC.zimbra_archive_formatter_pipeline_buffers.setDefault(4);
+        Assert.assertEquals(serial, export(mbox));
+    }
+
+    /** Exports the whole mailbox as tgz and returns the name, date and digest of each archive entry in order. */
+    private static List<String> export(Mailbox mbox) throws Exception {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        HttpServletRequest req = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.expect(req.getPathInfo()).andReturn("/test@zimbra.com/").anyTimes();
+        EasyMock.expect(req.getQueryString()).andReturn("").anyTimes();
+        HttpServletResponse resp = EasyMock.createNiceMock(HttpServletResponse.class);
+        EasyMock.expect(resp.getOutputStream()).andReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                baos.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+            }
+        }).anyTimes();
+        EasyMock.replay(req, resp);
+
+        TgzFormatter formatter = new TgzFormatter();
+        UserServletContext context = new UserServletContext(req, resp, null);
+        context.formatter = formatter;
+        context.targetMailbox = mbox;
+        context.opContext = new OperationContext(mbox);
+        formatter.formatCallback(context);
+
+        List<String> entries = new ArrayList<String>();
+        ArchiveInputStream ais = new TarArchiveInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray())), "UTF-8");
+        try {
+            byte[] buf = new byte[8192];
+            for (ArchiveInputEntry aie = ais.getNextEntry(); aie != null; aie = ais.getNextEntry()) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                for (int n = ais.read(buf, 0, buf.length); n > 0; n = ais.read(buf, 0, buf.length)) {
+                    content.write(buf, 0, n);
+                }
+                entries.add(aie.getName() + ' ' + aie.getModTime() + ' ' +
+                        ByteUtil.getSHA1Digest(content.toByteArray(), false));
+            }
+        } finally {
+            ais.close();
+        }
+        return entries;
+    }
 }
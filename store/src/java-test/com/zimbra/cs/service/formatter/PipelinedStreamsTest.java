@@ -0,0 +1,127 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.formatter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.util.ByteUtil;
+
+public class PipelinedStreamsTest {
+    private static final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterClass
+    public static void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] data = new byte[300 * 1024 + 17];
+        new Random(42).nextBytes(data);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream os = new PipelinedOutputStream(new GZIPOutputStream(baos), 8 * 1024, 4, executor, "test-gzip");
+        os.write(data, 0, 1000);
+        os.write(data[1000]);
+        os.flush();
+        os.write(data, 1001, data.length - 1001);
+        os.close();
+
+        InputStream is = new PipelinedInputStream(new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray())),
+                8 * 1024, 4, executor, "test-gunzip");
+        try {
+            Assert.assertArrayEquals(data, ByteUtil.getContent(is, data.length));
+            Assert.assertEquals(-1, is.read());
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void writeFailure() throws Exception {
+        OutputStream os = new PipelinedOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken pipe");
+            }
+        }, 16, 2, executor, "test-fail");
+        try {
+            for (int i = 0; i < 1024; i++) {
+                os.write(new byte[16]);
+            }
+            os.close();
+            Assert.fail("expected IOException");
+        } catch (IOException e) {
+            Assert.assertEquals("broken pipe", e.getMessage());
+        }
+    }
+
+    @Test
+    public void readFailure() throws Exception {
+        InputStream is = new PipelinedInputStream(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("truncated");
+            }
+        }, 16, 2, executor, "test-fail");
+        try {
+            is.read();
+            Assert.fail("expected IOException");
+        } catch (IOException e) {
+            Assert.assertEquals("truncated", e.getMessage());
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void noIdleThread() throws Exception {
+        ThreadPoolExecutor single = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.AbortPolicy());
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            OutputStream os = new PipelinedOutputStream(baos, 16, 2, single, "test-first");
+            try {
+                new PipelinedOutputStream(new ByteArrayOutputStream(), 16, 2, single, "test-second");
+                Assert.fail("expected RejectedExecutionException");
+            } catch (RejectedExecutionException expected) {
+            }
+            os.write(new byte[40]);
+            os.close();
+            Assert.assertEquals(40, baos.size());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+}
@@ -16,7 +16,9 @@
  */
 package com.zimbra.cs.service.mail;
 
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -29,16 +31,30 @@ import org.junit.rules.TestName;
 
 import com.google.common.collect.Maps;
 import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.Element.ElementFactory;
+import com.zimbra.common.soap.Element.JSONElement;
+import com.zimbra.common.soap.Element.XMLElement;
 import com.zimbra.common.soap.MailConstants;
+import com.zimbra.common.soap.SoapProtocol;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.index.ProxiedHit;
+import com.zimbra.cs.index.ProxiedQueryResults;
+import com.zimbra.cs.index.SearchParams;
+import com.zimbra.cs.index.SortBy;
+import com.zimbra.cs.index.ZimbraQueryResults;
 import com.zimbra.cs.mailbox.DeliveryOptions;
 import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
 import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mime.ParsedMessage;
 import com.zimbra.cs.util.ZTestWatchman;
+import com.zimbra.soap.SoapEngine;
+import com.zimbra.soap.ZimbraSoapContext;
 
 public class SearchTest {
     @Rule
@@ -140,6 +156,57 @@ public class SearchTest {
             hits.get(1).getAttributeLong(MailConstants.A_ID));
     }
 
+    /**
+     * Hits from a mountpoint on another server arrive as {@link ProxiedHit}s carrying the remote server's
+     * element.  When the response streams its hits, they must still come out as part of the one list of hits,
+     * in sort order.
+     */
+    @Test
+    public void streamedSearchWithProxiedHits() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Message msg1 = mbox.addMessage(null, new ParsedMessage(
+                MailboxTestUtil.generateMessage("test subject").getRawData(), 3000L, false), dopt, null);
+        Message msg2 = mbox.addMessage(null, new ParsedMessage(
+                MailboxTestUtil.generateMessage("test subject").getRawData(), 1000L, false), dopt, null);
+        String remoteId = "9bca1b24-0a36-4c71-8a8e-1fbea5d0ad32:300";
+
+        Map<String, Object> context = ServiceTestUtil.getRequestContext(acct);
+        ZimbraSoapContext zsc = (ZimbraSoapContext) context.get(SoapEngine.ZIMBRA_CONTEXT);
+        OperationContext octxt = new OperationContext(acct);
+        SearchParams params = new SearchParams();
+        params.setSortBy(SortBy.DATE_DESC);
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setQueryString("test");
+
+        for (ElementFactory factory : new ElementFactory[] { XMLElement.mFactory, JSONElement.mFactory }) {
+            Element response = factory.createElement(MailConstants.SEARCH_RESPONSE);
+            SearchResponse resp = new SearchResponse(zsc, octxt, response, params);
+            resp.setSortOrder(SortBy.DATE_DESC);
+            resp.setStreaming(MailConstants.E_MSG);
+            try (ZimbraQueryResults results = mbox.index.search(SoapProtocol.Soap12, octxt, params)) {
+                resp.add(results.getNext());
+                // a remote message dated between the two local ones
+                Element remote = factory.createElement(MailConstants.E_MSG).addAttribute(MailConstants.A_ID, remoteId);
+                resp.add(new ProxiedHit(new ProxiedQueryResults(SoapProtocol.Soap12, null, "remote.zimbra.com",
+                        params, SearchParams.Fetch.NORMAL), remote, "2000"));
+                resp.add(results.getNext());
+                Assert.assertFalse(results.hasNext());
+            }
+            resp.addHasMore(false);
+            Assert.assertEquals(3, resp.size());
+
+            String serialized = resp.toElement().toString();
+            Element parsed = factory == JSONElement.mFactory ? Element.parseJSON(serialized) : Element.parseXML(serialized);
+            List<Element> hits = parsed.listElements(MailConstants.E_MSG);
+            Assert.assertEquals(factory.getClass().getName(), 3, hits.size());
+            Assert.assertEquals(msg1.getId(), hits.get(0).getAttributeLong(MailConstants.A_ID));
+            Assert.assertEquals(remoteId, hits.get(1).getAttribute(MailConstants.A_ID));
+            Assert.assertEquals(msg2.getId(), hits.get(2).getAttributeLong(MailConstants.A_ID));
+        }
+    }
+
     @After
     public void tearDown() {
         try {
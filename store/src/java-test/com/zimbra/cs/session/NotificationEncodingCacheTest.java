@@ -0,0 +1,80 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.MailConstants;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTest;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.service.mail.ToXML;
+import com.zimbra.cs.service.util.ItemIdFormatter;
+
+public final class NotificationEncodingCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void sharedEncoding() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("test subject"),
+                MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        OperationContext octxt = new OperationContext(mbox);
+        ItemIdFormatter ifmt = new ItemIdFormatter(mbox.getAccountId(), mbox, false);
+
+        Element first = new Element.XMLElement("modified");
+        Element second = new Element.XMLElement("modified");
+        Element e1 = NotificationEncodingCache.encodeItem(first, ifmt, octxt, msg, ToXML.NOTIFY_FIELDS);
+        Element e2 = NotificationEncodingCache.encodeItem(second, ifmt, octxt, msg, ToXML.NOTIFY_FIELDS);
+        Assert.assertNotSame(e1, e2);
+        Assert.assertSame(second, e2.getParent());
+        Assert.assertEquals(first.toString(), second.toString());
+        Assert.assertEquals(String.valueOf(msg.getId()), e2.getAttribute(MailConstants.A_ID));
+
+        // a session authenticated as someone else sees qualified IDs
+        Element other = new Element.XMLElement("modified");
+        Element e3 = NotificationEncodingCache.encodeItem(other, new ItemIdFormatter("other-account", mbox, false),
+                octxt, msg, ToXML.NOTIFY_FIELDS);
+        Assert.assertEquals(mbox.getAccountId() + ":" + msg.getId(), e3.getAttribute(MailConstants.A_ID));
+
+        // and JSON sessions get JSON
+        Element json = new Element.JSONElement("modified");
+        Element e4 = NotificationEncodingCache.encodeItem(json, ifmt, octxt, msg, ToXML.NOTIFY_FIELDS);
+        Assert.assertTrue(e4 instanceof Element.JSONElement);
+    }
+}
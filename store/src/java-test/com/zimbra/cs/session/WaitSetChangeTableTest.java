@@ -0,0 +1,67 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+public final class WaitSetChangeTableTest {
+
+    @Test
+    public void signal() {
+        WaitSetChangeTable changes = new WaitSetChangeTable();
+        Assert.assertTrue(changes.isEmpty());
+        Assert.assertTrue(changes.signal("a1", null, null));
+        Assert.assertFalse("already pending", changes.signal("a1", null, null));
+        Assert.assertTrue(changes.signal("a2", null, null));
+        Assert.assertEquals(2, changes.size());
+
+        Assert.assertTrue(changes.unsignal("a2"));
+        Assert.assertFalse(changes.unsignal("a2"));
+        Assert.assertEquals(Sets.newHashSet("a1"), Sets.newHashSet(changes.getAccountIds()));
+    }
+
+    @Test
+    public void drain() {
+        WaitSetChangeTable changes = new WaitSetChangeTable();
+        for (int i = 0; i < 100; i++) {
+            changes.signal("a" + i, null, null);
+        }
+        Set<String> accounts = Sets.newHashSet();
+        Set<WaitSetSession> sessions = Sets.newHashSet();
+        Map<String, PendingModifications> mods = Maps.newHashMap();
+        Assert.assertEquals(100, changes.drainTo(accounts, sessions, mods));
+        Assert.assertEquals(100, accounts.size());
+        Assert.assertTrue(sessions.isEmpty());
+        Assert.assertTrue(mods.isEmpty());
+        Assert.assertTrue(changes.isEmpty());
+        Assert.assertEquals(0, changes.getBacklogAge());
+        Assert.assertEquals(100, changes.getDeliveredCount());
+        Assert.assertTrue(changes.getMaxLatency() >= changes.getAverageLatency());
+
+        // drained accounts can be signalled again
+        Assert.assertTrue(changes.signal("a0", null, null));
+        Assert.assertEquals(1, changes.drainTo(Sets.<String>newHashSet(), sessions, mods));
+        Assert.assertEquals(101, changes.getDeliveredCount());
+    }
+}
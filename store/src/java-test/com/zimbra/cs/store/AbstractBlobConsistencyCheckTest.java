@@ -200,6 +200,30 @@ public abstract class AbstractBlobConsistencyCheckTest {
         Assert.assertEquals(0, results.incorrectModContent.size());
     }
 
+    @Test
+    public void sampledCheck() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        int msgs = 10;
+        for (int i = 0; i < msgs; i++) {
+            mbox.addMessage(null, new ParsedMessage("From: test1-1@sub1.zimbra.com".getBytes(), false), dopt, null);
+        }
+
+        deleteAllBlobs();
+
+        // all the blobs share one directory, which is either checked completely or skipped
+        for (int i = 0; i < 10; i++) {
+            BlobConsistencyChecker checker = getChecker();
+            checker.setSamplePercent(50);
+            Results results = checker.check(getVolumeIds(), mbox.getId(), true, false);
+
+            int missing = results.missingBlobs.size();
+            Assert.assertTrue("missing " + missing, missing == 0 || missing == msgs);
+            Assert.assertEquals(0, results.unexpectedBlobs.size());
+        }
+    }
+
     @After
     public void tearDown() throws Exception {
         StoreManager.getInstance().shutdown();
@@ -122,6 +122,43 @@ public class FileDescriptorCacheTest {
         assertEquals(2, fdc.getSize());
     }
 
+    @Test
+    public void testResize()
+    throws Exception {
+        FileDescriptorCache fdc = new FileDescriptorCache(null);
+        fdc.setMaxSize(1000);
+
+        List<File> files = Lists.newArrayList();
+        byte[] buf = new byte[10];
+        for (int i = 0; i < 100; i++) {
+            File file = File.createTempFile(NAME_PREFIX, ".tmp");
+            tempFiles.add(file);
+            Files.write(("content " + i).getBytes(), file);
+            files.add(file);
+            fdc.read(file.getPath(), file.length(), 0, buf, 0, buf.length);
+        }
+        assertEquals(100, fdc.getSize());
+        assertEquals(100, fdc.getNumOpen());
+
+        // Shrinking moves the entries to the new shards and closes the ones that don't fit.
+        fdc.setMaxSize(10);
+        assertEquals(10, fdc.getSize());
+        assertEquals(10, fdc.getNumOpen());
+
+        for (File file : files) {
+            fdc.remove(file.getPath());
+        }
+        assertEquals(0, fdc.getSize());
+        assertEquals(0, fdc.getNumOpen());
+
+        fdc.read(files.get(0).getPath(), files.get(0).length(), 0, buf, 0, buf.length);
+        assertEquals(1, fdc.getSize());
+
+        fdc.shutdown();
+        assertEquals(0, fdc.getSize());
+        assertEquals(0, fdc.getNumOpen());
+    }
+
     private void write(File file, String content)
     throws IOException {
         OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
@@ -0,0 +1,191 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.cs.store.FileDescriptorCache;
+
+public class BlobCompressorTest {
+    private static final byte[] CONTENT = new byte[64 * 1024];
+    static {
+        Arrays.fill(CONTENT, (byte) 'a');
+    }
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private BlobCompressor compressor;
+
+    @Before
+    public void setUp() {
+        BlobInputStream.setFileDescriptorCache(new FileDescriptorCache(null));
+        compressor = new BlobCompressor(1, 10, 0);
+    }
+
+    @After
+    public void tearDown() {
+        BlobInputStream.setFileDescriptorCache(null);
+    }
+
+    private File createBlob() throws IOException {
+        File file = folder.newFile("257-1.msg");
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(CONTENT);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    private static File getTempFile(File file) {
+        return new File(file.getParentFile(), file.getName() + ".compressing");
+    }
+
+    @Test
+    public void swap() throws Exception {
+        File file = createBlob();
+        Assert.assertTrue(compressor.compress(file, CONTENT.length));
+        Assert.assertTrue(FileUtil.isGzipped(file));
+        Assert.assertTrue(file.length() < CONTENT.length);
+        Assert.assertFalse(getTempFile(file).exists());
+
+        Blob blob = new VolumeBlob(file, (short) 1).setRawSize(CONTENT.length);
+        InputStream in = blob.getInputStream();
+        try {
+            Assert.assertArrayEquals(CONTENT, ByteUtil.getContent(in, CONTENT.length));
+        } finally {
+            in.close();
+        }
+
+        // already compressed, so the size no longer matches
+        Assert.assertFalse(compressor.compress(file, CONTENT.length));
+    }
+
+    @Test
+    public void skipLinkedBlob() throws Exception {
+        File file = createBlob();
+        File link = new File(file.getParentFile(), "258-1.msg");
+        Files.createLink(link.toPath(), file.toPath());
+
+        Assert.assertFalse(compressor.compress(file, CONTENT.length));
+        Assert.assertFalse(FileUtil.isGzipped(file));
+        Assert.assertEquals(CONTENT.length, file.length());
+        Assert.assertFalse(getTempFile(file).exists());
+    }
+
+    @Test
+    public void deleteDuringCompression() throws Exception {
+        final File file = createBlob();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // Striped.lock() hands out ReentrantLocks
+        ReentrantLock lock = (ReentrantLock) BlobCompressor.getLock(file);
+        lock.lock();
+        Future<Boolean> result;
+        try {
+            result = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return compressor.compress(file, CONTENT.length);
+                }
+            });
+            // wait until the compressed copy is written and the swap is waiting for the lock
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!(getTempFile(file).exists() && lock.hasQueuedThreads())) {
+                Assert.assertTrue("compression never reached the swap", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(file.delete());
+        } finally {
+            lock.unlock();
+        }
+        try {
+            Assert.assertFalse(result.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertFalse("deleted blob resurrected", file.exists());
+        Assert.assertFalse(getTempFile(file).exists());
+    }
+
+    @Test
+    public void isCompressedRecheck() throws Exception {
+        File file = createBlob();
+        Blob blob = new VolumeBlob(file, (short) 1).setRawSize(CONTENT.length);
+        Assert.assertFalse(blob.isCompressed());
+
+        Assert.assertTrue(compressor.compress(file, CONTENT.length));
+        // Blobs only look at the file again while background compression is on
+        Assert.assertFalse(blob.isCompressed());
+        BlobCompressor.setInstance(compressor);
+        try {
+            Assert.assertTrue("compressed behind the Blob's back", blob.isCompressed());
+        } finally {
+            BlobCompressor.setInstance(null);
+        }
+        Assert.assertEquals(CONTENT.length, blob.getRawSize());
+    }
+
+    @Test
+    public void deleteLeftover() throws Exception {
+        File file = createBlob();
+        File temp = getTempFile(file);
+        Assert.assertTrue(temp.createNewFile());
+
+        Assert.assertFalse(BlobCompressor.deleteLeftover(file));
+        Assert.assertTrue(file.exists());
+        Assert.assertTrue(BlobCompressor.deleteLeftover(temp));
+        Assert.assertFalse(temp.exists());
+    }
+
+    @Test
+    public void sweep() throws Exception {
+        File file = createBlob();
+        File temp = getTempFile(file);
+        Assert.assertTrue(temp.createNewFile());
+        File sub = folder.newFolder("0", "msg", "1");
+        File nested = new File(sub, "258-1.msg.compressing");
+        Assert.assertTrue(nested.createNewFile());
+
+        Assert.assertEquals(2, compressor.sweep(Arrays.asList(folder.getRoot())));
+        Assert.assertFalse(temp.exists());
+        Assert.assertFalse(nested.exists());
+        Assert.assertTrue(file.exists());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.Db;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.db.DbVolumeBlobs;
+import com.zimbra.cs.db.HSQLDB;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.VolumeManager;
+import com.zimbra.znative.Util;
+
+public class BlobDeduperTest {
+
+    private StoreManager originalStoreManager;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        System.setProperty("zimbra.native.required", "false");
+        // the deduper workers and the volume metadata updates open connections of their own
+        HSQLDB db = (HSQLDB) Db.getInstance();
+        db.useMVCC(null);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        originalStoreManager = StoreManager.getInstance();
+        LC.zimbra_tmp_directory.setDefault(System.getProperty("user.dir") + "/build/tmp");
+        StoreManager.setInstance(new FileBlobStore());
+        StoreManager.getInstance().startup();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LC.zimbra_blob_deduper_threads.setDefault(4);
+        LC.zimbra_blob_deduper_queue_size.setDefault(256);
+        StoreManager.getInstance().shutdown();
+        StoreManager.setInstance(originalStoreManager);
+    }
+
+    @Test
+    public void dedupeAcrossWorkers() throws Exception {
+        // more digests than workers and a queue of one, so the scan has to wait for the workers
+        LC.zimbra_blob_deduper_threads.setDefault(3);
+        LC.zimbra_blob_deduper_queue_size.setDefault(1);
+
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions opt = new DeliveryOptions();
+        opt.setFolderId(Mailbox.ID_FOLDER_INBOX);
+        List<Message> unique = new ArrayList<Message>();
+        for (int i = 0; i < 6; i++) {
+            unique.add(mbox.addMessage(null, new ParsedMessage(("From: from" + i + "@zimbra.com\r\nTo: to1@zimbra.com").getBytes(), false), opt, null));
+        }
+        byte[] dupContent = "From: dup@zimbra.com\r\nTo: to1@zimbra.com\r\nSubject: dup".getBytes();
+        List<Message> dups = new ArrayList<Message>();
+        for (int i = 0; i < 3; i++) {
+            dups.add(mbox.addMessage(null, new ParsedMessage(dupContent, false), opt, null));
+        }
+        // the volume is scanned up to the current second, exclusive
+        Thread.sleep(1100);
+
+        Volume vol = VolumeManager.getInstance().getCurrentMessageVolume();
+        BlobDeduper deduper = BlobDeduper.getInstance();
+        deduper.process(Lists.newArrayList(vol.getId()));
+        long deadline = System.currentTimeMillis() + 30 * 1000;
+        while (deduper.isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Assert.assertFalse(deduper.isRunning());
+        Assert.assertEquals("7/7", deduper.getBlobDigestsProgress().get(vol.getId()));
+
+        DbConnection conn = DbPool.getConnection();
+        try {
+            for (Message msg : unique) {
+                List<BlobReference> refs = DbVolumeBlobs.getBlobReferences(conn, msg.getDigest(), vol);
+                Assert.assertEquals(1, refs.size());
+                Assert.assertTrue(refs.get(0).isProcessed());
+            }
+            // the copies can only be linked when the native file info is there
+            List<BlobReference> refs = DbVolumeBlobs.getBlobReferences(conn, dups.get(0).getDigest(), vol);
+            Assert.assertEquals(3, refs.size());
+            for (BlobReference ref : refs) {
+                Assert.assertEquals(Util.haveNativeCode(), ref.isProcessed());
+            }
+        } finally {
+            DbPool.quietClose(conn);
+        }
+        for (Message msg : dups) {
+            Assert.assertArrayEquals(dupContent, mbox.getMessageById(null, msg.getId()).getContent());
+        }
+    }
+}
@@ -23,6 +23,9 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 
+import org.junit.Assert;
+import org.junit.Test;
+
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.cs.account.MockProvisioning;
@@ -31,6 +34,7 @@ import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.store.AbstractBlobConsistencyCheckTest;
 import com.zimbra.cs.store.MailboxBlob;
 import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.store.file.BlobConsistencyChecker.Results;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
 
@@ -83,4 +87,17 @@ public class FileBlobStoreConsistencyCheckTest extends AbstractBlobConsistencyCh
         return new FileBlobStore();
     }
 
+    @Test
+    public void leftoverCompressedCopy() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Volume vol = VolumeManager.getInstance().getCurrentMessageVolume();
+        File file = new File(vol.getBlobDir(mbox.getId(), 0), "257-1.msg.compressing");
+        file.getParentFile().mkdirs();
+        Assert.assertTrue(file.createNewFile());
+
+        Results results = getChecker().check(getVolumeIds(), mbox.getId(), true, false);
+        // reported, but the checker never deletes anything itself
+        Assert.assertEquals(1, results.unexpectedBlobs.size());
+        Assert.assertTrue(file.exists());
+    }
 }
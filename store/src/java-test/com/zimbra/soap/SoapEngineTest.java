@@ -0,0 +1,296 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import org.dom4j.QName;
+import org.eclipse.jetty.continuation.ContinuationThrowable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.MailConstants;
+import com.zimbra.common.soap.ZimbraNamespace;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.service.mail.ServiceTestUtil;
+import com.zimbra.cs.session.Session;
+
+public class SoapEngineTest {
+    private static final QName PARALLEL_REQUEST = QName.get("ParallelTestRequest", MailConstants.NAMESPACE);
+    private static final QName SERIAL_REQUEST = QName.get("SerialTestRequest", MailConstants.NAMESPACE);
+
+    /** start and end of every sub-request, in the order they happened */
+    private static final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    /** sub-request id to the name of the thread that ran it */
+    private static final Map<String, String> threads = Collections.synchronizedMap(new HashMap<String, String>());
+    /** sub-request id to the ZimbraSoapContext its handler got */
+    private static final Map<String, ZimbraSoapContext> contexts =
+            Collections.synchronizedMap(new HashMap<String, ZimbraSoapContext>());
+
+    private SoapEngine engine;
+    private Map<String, Object> context;
+    private ZimbraSoapContext zsc;
+
+    /**
+     * Sleeps for <tt>sleep</tt> milliseconds and sets the proxy auth token to <tt>proxy</tt> if given, then throws
+     * whatever <tt>fail</tt> asks for or returns an empty response.
+     */
+    private static class TestHandler extends DocumentHandler {
+        private final boolean parallelSafe;
+
+        TestHandler(boolean parallelSafe) {
+            this.parallelSafe = parallelSafe;
+        }
+
+        @Override
+        public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+            String id = request.getAttribute(SoapEngine.A_REQUEST_CORRELATOR);
+            threads.put(id, Thread.currentThread().getName());
+            contexts.put(id, getZimbraSoapContext(context));
+            events.add("start " + id);
+            try {
+                Thread.sleep(request.getAttributeLong("sleep", 0));
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED(id);
+            }
+            String proxy = request.getAttribute("proxy", null);
+            if (proxy != null) {
+                getZimbraSoapContext(context).getAuthToken().setProxyAuthToken(proxy);
+            }
+            events.add("end " + id);
+            String fail = request.getAttribute("fail", null);
+            if ("service".equals(fail)) {
+                throw ServiceException.FAILURE("failing " + id, null);
+            } else if ("continuation".equals(fail)) {
+                throw new ContinuationThrowable();
+            }
+            return getResponseElement(getZimbraSoapContext(context));
+        }
+
+        @Override
+        public boolean needsAuth(Map<String, Object> context) {
+            return false;
+        }
+
+        @Override
+        public Session.Type getDefaultSessionType() {
+            return null;
+        }
+
+        @Override
+        public boolean isParallelSafe(Element request) {
+            return parallelSafe;
+        }
+    }
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        LC.soap_batch_parallel_threads.setDefault(4);
+        events.clear();
+        threads.clear();
+        contexts.clear();
+        engine = new MockSoapEngine(new DocumentService() {
+            @Override
+            public void registerHandlers(DocumentDispatcher dispatcher) {
+                dispatcher.registerHandler(PARALLEL_REQUEST, new TestHandler(true));
+                dispatcher.registerHandler(SERIAL_REQUEST, new TestHandler(false));
+            }
+        });
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        context = ServiceTestUtil.getRequestContext(acct);
+        zsc = (ZimbraSoapContext) context.get(SoapEngine.ZIMBRA_CONTEXT);
+    }
+
+    @After
+    public void tearDown() {
+        LC.soap_batch_parallel_threads.setDefault(0);
+        SoapEngine.getBatchExecutor();
+    }
+
+    private static Element addRequest(Element batch, QName qname, String id, long sleep) {
+        return batch.addNonUniqueElement(qname).addAttribute(SoapEngine.A_REQUEST_CORRELATOR, id)
+                .addAttribute("sleep", sleep);
+    }
+
+    private static List<String> getIds(Element response) {
+        List<String> ids = new ArrayList<String>();
+        for (Element br : response.listElements()) {
+            ids.add(br.getAttribute(SoapEngine.A_REQUEST_CORRELATOR, null));
+        }
+        return ids;
+    }
+
+    private static void assertBefore(String first, String second) {
+        Assert.assertTrue(events.toString(), events.indexOf(first) >= 0 && events.indexOf(first) < events.indexOf(second));
+    }
+
+    @Test
+    public void groupsAroundSerialRequest() throws Exception {
+        Element batch = new Element.XMLElement(ZimbraNamespace.E_BATCH_REQUEST);
+        // after the first, the earlier sub-requests of each group take longest, so that the responses would come
+        // back reversed
+        addRequest(batch, PARALLEL_REQUEST, "p1", 0);
+        addRequest(batch, PARALLEL_REQUEST, "p2", 300);
+        addRequest(batch, PARALLEL_REQUEST, "p3", 200);
+        addRequest(batch, PARALLEL_REQUEST, "p4", 100);
+        addRequest(batch, SERIAL_REQUEST, "s", 0);
+        addRequest(batch, PARALLEL_REQUEST, "p5", 0);
+        addRequest(batch, PARALLEL_REQUEST, "p6", 200);
+        addRequest(batch, PARALLEL_REQUEST, "p7", 100);
+
+        Element response = engine.dispatchBatch(batch, context, zsc, false, null);
+        Assert.assertEquals(ZimbraNamespace.E_BATCH_RESPONSE.getName(), response.getName());
+        Assert.assertEquals("responses in request order",
+                ImmutableList.of("p1", "p2", "p3", "p4", "s", "p5", "p6", "p7"), getIds(response));
+        for (Element br : response.listElements()) {
+            Assert.assertFalse(br.prettyPrint(), zsc.getResponseProtocol().isFault(br));
+        }
+
+        for (String id : new String[] { "p2", "p3", "p4" }) {
+            assertBefore("end p1", "start " + id);
+            assertBefore("end " + id, "start s");
+        }
+        for (String id : new String[] { "p5", "p6", "p7" }) {
+            assertBefore("end s", "start " + id);
+        }
+        // the rest of the group really ran concurrently: p3 started before p2 was done
+        assertBefore("start p3", "end p2");
+        Assert.assertEquals("serial request runs on the request thread", Thread.currentThread().getName(), threads.get("s"));
+        Assert.assertEquals("first of a group runs on the request thread", Thread.currentThread().getName(), threads.get("p1"));
+        Assert.assertEquals("last of a group runs on the request thread", Thread.currentThread().getName(), threads.get("p4"));
+        Assert.assertTrue(threads.get("p2"), threads.get("p2").startsWith("SoapBatch-"));
+    }
+
+    @Test
+    public void ownContextPerParallelRequest() throws Exception {
+        Element batch = new Element.XMLElement(ZimbraNamespace.E_BATCH_REQUEST);
+        addRequest(batch, PARALLEL_REQUEST, "p1", 0);
+        addRequest(batch, PARALLEL_REQUEST, "p2", 100).addAttribute("proxy", "p2-token");
+        addRequest(batch, PARALLEL_REQUEST, "p3", 100).addAttribute("proxy", "p3-token");
+        addRequest(batch, PARALLEL_REQUEST, "p4", 0);
+
+        engine.dispatchBatch(batch, context, zsc, false, null);
+        Assert.assertSame("first of a group runs with the batch's context", zsc, contexts.get("p1"));
+        for (String id : new String[] { "p2", "p3", "p4" }) {
+            Assert.assertNotSame(id, zsc, contexts.get(id));
+            Assert.assertNotSame(id, zsc.getAuthToken(), contexts.get(id).getAuthToken());
+        }
+        Assert.assertNotSame(contexts.get("p2"), contexts.get("p3"));
+        Assert.assertEquals("p2-token", contexts.get("p2").getAuthToken().getProxyAuthToken());
+        Assert.assertEquals("p3-token", contexts.get("p3").getAuthToken().getProxyAuthToken());
+        Assert.assertNull(contexts.get("p4").getAuthToken().getProxyAuthToken());
+        Assert.assertNull(zsc.getAuthToken().getProxyAuthToken());
+    }
+
+    @Test
+    public void faultsKeepRequestId() throws Exception {
+        Element batch = new Element.XMLElement(ZimbraNamespace.E_BATCH_REQUEST);
+        addRequest(batch, PARALLEL_REQUEST, "p1", 100);
+        addRequest(batch, PARALLEL_REQUEST, "failed", 0).addAttribute("fail", "service");
+        // escapes dispatchRequest, so it surfaces as an ExecutionException from the pool
+        addRequest(batch, PARALLEL_REQUEST, "thrown", 0).addAttribute("fail", "continuation");
+        addRequest(batch, PARALLEL_REQUEST, "p2", 0);
+
+        Element response = engine.dispatchBatch(batch, context, zsc, false, null);
+        Assert.assertEquals(ImmutableList.of("p1", "failed", "thrown", "p2"), getIds(response));
+        List<Element> brs = response.listElements();
+        Assert.assertFalse(zsc.getResponseProtocol().isFault(brs.get(0)));
+        Assert.assertTrue(zsc.getResponseProtocol().isFault(brs.get(1)));
+        Assert.assertTrue(zsc.getResponseProtocol().isFault(brs.get(2)));
+        Assert.assertFalse(zsc.getResponseProtocol().isFault(brs.get(3)));
+    }
+
+    @Test
+    public void stopOnErrorRunsInOrder() throws Exception {
+        Element batch = new Element.XMLElement(ZimbraNamespace.E_BATCH_REQUEST);
+        batch.addAttribute(ZimbraNamespace.A_ONERROR, "stop");
+        addRequest(batch, PARALLEL_REQUEST, "p1", 100);
+        addRequest(batch, PARALLEL_REQUEST, "p2", 0);
+        addRequest(batch, PARALLEL_REQUEST, "failed", 0).addAttribute("fail", "service");
+        addRequest(batch, PARALLEL_REQUEST, "skipped", 0);
+
+        Element response = engine.dispatchBatch(batch, context, zsc, false, null);
+        Assert.assertEquals(ImmutableList.of("p1", "p2", "failed"), getIds(response));
+        Assert.assertEquals(ImmutableList.of("start p1", "end p1", "start p2", "end p2", "start failed", "end failed"),
+                events);
+        for (String thread : threads.values()) {
+            Assert.assertEquals(Thread.currentThread().getName(), thread);
+        }
+    }
+
+    @Test
+    public void callerRunsWhenSaturated() throws Exception {
+        // one thread and a queue of four: with eight sub-requests, some are handed back to the request thread
+        LC.soap_batch_parallel_threads.setDefault(1);
+        Element batch = new Element.XMLElement(ZimbraNamespace.E_BATCH_REQUEST);
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 8; i++) {
+            ids.add("p" + i);
+            addRequest(batch, PARALLEL_REQUEST, "p" + i, 100);
+        }
+
+        Element response = engine.dispatchBatch(batch, context, zsc, false, null);
+        Assert.assertEquals(ids, getIds(response));
+        for (Element br : response.listElements()) {
+            Assert.assertFalse(br.prettyPrint(), zsc.getResponseProtocol().isFault(br));
+        }
+        // the first and the last always run on the request thread
+        int onCaller = 0;
+        for (int i = 1; i < 7; i++) {
+            if (Thread.currentThread().getName().equals(threads.get("p" + i))) {
+                onCaller++;
+            }
+        }
+        Assert.assertTrue(threads.toString(), onCaller > 0);
+    }
+
+    @Test
+    public void poolFollowsThreadCount() throws Exception {
+        ExecutorService executor = SoapEngine.getBatchExecutor();
+        Assert.assertNotNull(executor);
+        Assert.assertSame(executor, SoapEngine.getBatchExecutor());
+
+        LC.soap_batch_parallel_threads.setDefault(2);
+        ExecutorService resized = SoapEngine.getBatchExecutor();
+        Assert.assertNotSame(executor, resized);
+        Assert.assertTrue(executor.isShutdown());
+
+        LC.soap_batch_parallel_threads.setDefault(0);
+        Assert.assertNull(SoapEngine.getBatchExecutor());
+        Assert.assertTrue(resized.isShutdown());
+    }
+}
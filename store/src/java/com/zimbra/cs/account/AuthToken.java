@@ -94,6 +94,18 @@ public abstract class AuthToken {
         }
     }
 
+    /**
+     * Returns a copy of the auth token that can be changed, e.g. its proxy auth token, without affecting the
+     * original, or {@code null} if this kind of auth token can't be copied.
+     */
+    public static AuthToken copyOf(AuthToken authToken) {
+        try {
+            return (AuthToken) authToken.clone();
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
     @Override
     public abstract String toString();
 
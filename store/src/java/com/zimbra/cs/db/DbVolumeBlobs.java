@@ -21,9 +21,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ListUtil;
 import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.MailServiceException;
@@ -49,6 +52,8 @@ public final class DbVolumeBlobs {
     private static final String SELECT_BLOB_REFS = "SELECT " + CN_ID + "," + CN_VOLUME_ID + "," + CN_MAILBOX_ID + "," + CN_ITEM_ID + "," + CN_REVISION + "," + CN_DIGEST + "," + CN_PROCESSED + " FROM " + TB_VOLUME_BLOBS + " WHERE ";
     private static final String DELETE_BLOB_REFS = "DELETE FROM " + TB_VOLUME_BLOBS + " WHERE ";
 
+    private static final int DIGEST_PAGE_SIZE = 1000;
+
     public static void addBlobReference(DbConnection conn, Mailbox mbox, Volume vol, MailItem item) throws ServiceException {
         PreparedStatement stmt = null;
         try {
@@ -112,6 +117,132 @@ public final class DbVolumeBlobs {
         }
     }
 
+    public static void updateProcessed(DbConnection conn, Collection<Long> ids, boolean processed) throws ServiceException {
+        PreparedStatement stmt = null;
+        try {
+            for (List<Long> batch : ListUtil.split(ids, Db.getINClauseBatchSize())) {
+                stmt = conn.prepareStatement("UPDATE " + TB_VOLUME_BLOBS + " SET " + CN_PROCESSED + " = ? WHERE " +
+                        DbUtil.whereIn(CN_ID, batch.size()));
+                int pos = 1;
+                stmt.setBoolean(pos++, processed);
+                for (long id : batch) {
+                    stmt.setLong(pos++, id);
+                }
+                stmt.executeUpdate();
+                DbPool.closeStatement(stmt);
+                stmt = null;
+            }
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("unable to update processed", e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    /**
+     * Callback for {@link #visitUnprocessedDigests}.
+     */
+    public interface DigestVisitor {
+        /**
+         * @param blobs all the references on the volume that share one digest
+         * @return {@code false} to stop the scan
+         */
+        boolean visit(List<BlobReference> blobs) throws ServiceException;
+    }
+
+    /**
+     * Walks the blob references of a volume grouped by digest, skipping the digests whose references have all
+     * been processed and the references that have no digest.  The references are read in keyset pages of
+     * {@code pageSize} rows, and the visitor is only called once a page has been read and its cursor closed, so a
+     * visitor that blocks does not hold a result set open on the server.  Only one page and the current group are
+     * held in memory.
+     */
+    public static void visitUnprocessedDigests(DbConnection conn, Volume vol, DigestVisitor visitor) throws ServiceException {
+        visitUnprocessedDigests(conn, vol, visitor, DIGEST_PAGE_SIZE);
+    }
+
+    @VisibleForTesting
+    static void visitUnprocessedDigests(DbConnection conn, Volume vol, DigestVisitor visitor, int pageSize)
+    throws ServiceException {
+        List<BlobReference> group = new ArrayList<BlobReference>();
+        boolean unprocessed = false;
+        String lastDigest = "";
+        long lastId = -1;
+        while (true) {
+            List<BlobReference> page = getBlobReferencePage(conn, vol, lastDigest, lastId, pageSize);
+            for (BlobReference blob : page) {
+                if (!group.isEmpty() && !group.get(0).getDigest().equals(blob.getDigest())) {
+                    if (unprocessed && !visitor.visit(group)) {
+                        return;
+                    }
+                    group = new ArrayList<BlobReference>();
+                    unprocessed = false;
+                }
+                group.add(blob);
+                unprocessed |= !blob.isProcessed();
+            }
+            if (page.size() < pageSize) {
+                break;
+            }
+            BlobReference last = page.get(page.size() - 1);
+            lastDigest = last.getDigest();
+            lastId = last.getId();
+        }
+        if (unprocessed) {
+            visitor.visit(group);
+        }
+    }
+
+    /**
+     * Returns the next {@code limit} references of the volume ordered by (digest, id) after the given position.
+     * References without a digest never compare greater than the position and are left out.
+     */
+    private static List<BlobReference> getBlobReferencePage(DbConnection conn, Volume vol, String afterDigest,
+            long afterId, int limit) throws ServiceException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement(SELECT_BLOB_REFS + CN_VOLUME_ID + " = ? AND (" + CN_DIGEST + " > ? OR (" +
+                    CN_DIGEST + " = ? AND " + CN_ID + " > ?)) ORDER BY " + CN_DIGEST + ", " + CN_ID + " " +
+                    Db.getInstance().limit(limit));
+            int pos = 1;
+            stmt.setShort(pos++, vol.getId());
+            stmt.setString(pos++, afterDigest);
+            stmt.setString(pos++, afterDigest);
+            stmt.setLong(pos++, afterId);
+            rs = stmt.executeQuery();
+            return fillBlobReferences(rs);
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("unable to query blob references", e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    public static int countUniqueDigests(DbConnection conn, Volume vol) throws ServiceException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT COUNT(DISTINCT " + CN_DIGEST + ") FROM " + TB_VOLUME_BLOBS +
+                                         " WHERE " + CN_VOLUME_ID + " = ? AND " + CN_PROCESSED + " = ?");
+            int pos = 1;
+            stmt.setShort(pos++, vol.getId());
+            stmt.setBoolean(pos++, false);
+            rs = stmt.executeQuery();
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("unable to count blob digests", e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    /**
+     * Returns every reference to one digest on the volume.  Kept for tools and tests that inspect a single digest;
+     * the deduper walks the volume with {@link #visitUnprocessedDigests} instead.
+     */
     public static List<BlobReference> getBlobReferences(DbConnection conn, String digest, Volume volume) throws ServiceException {
         PreparedStatement stmt = null;
         ResultSet rs = null;
@@ -133,18 +264,22 @@ public final class DbVolumeBlobs {
     private static List<BlobReference> fillBlobReferences(ResultSet rs) throws SQLException {
         List<BlobReference> blobs = new ArrayList<BlobReference>();
         while (rs.next()) {
-            BlobReference blob = new BlobReference();
-            blob.setId(rs.getLong(1));
-            blob.setVolumeId(rs.getShort(2));
-            blob.setMailboxId(rs.getInt(3));
-            blob.setItemId(rs.getInt(4));
-            blob.setRevision(rs.getInt(5));
-            blob.setDigest(rs.getString(6));
-            blob.setProcessed(rs.getBoolean(7));
-            blobs.add(blob);
+            blobs.add(readBlobReference(rs));
         }
         return blobs;
     }
+
+    private static BlobReference readBlobReference(ResultSet rs) throws SQLException {
+        BlobReference blob = new BlobReference();
+        blob.setId(rs.getLong(1));
+        blob.setVolumeId(rs.getShort(2));
+        blob.setMailboxId(rs.getInt(3));
+        blob.setItemId(rs.getInt(4));
+        blob.setRevision(rs.getInt(5));
+        blob.setDigest(rs.getString(6));
+        blob.setProcessed(rs.getBoolean(7));
+        return blob;
+    }
     
     private static SpoolingCache<String> fillBlobDigests(ResultSet rs) throws SQLException, IOException {
         SpoolingCache<String> digests = new SpoolingCache<String>();
@@ -154,6 +289,9 @@ public final class DbVolumeBlobs {
         return digests;
     }
 
+    /**
+     * Returns every reference on the volume in one list.  Only suitable for small volumes and tests.
+     */
     public static List<BlobReference> getBlobReferences(DbConnection conn, Volume vol) throws ServiceException {
         PreparedStatement stmt = null;
         ResultSet rs = null;
@@ -171,6 +309,10 @@ public final class DbVolumeBlobs {
         }
     }
     
+    /**
+     * Returns the distinct digests on the volume that still have unprocessed references, spooled to disk when
+     * there are many of them.
+     */
     public static SpoolingCache<String> getUniqueDigests(DbConnection conn, Volume vol) throws ServiceException, IOException {
         PreparedStatement stmt = null;
         ResultSet rs = null;
@@ -17,17 +17,15 @@
 package com.zimbra.cs.imap;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.Comparator;
 
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.ByteUtil;
-import com.zimbra.cs.io.SecureObjectInputStream;
 
 /**
  * IMAP cache using local disk.
@@ -91,18 +89,17 @@ final class DiskImapCache implements ImapSessionManager.Cache<String, ImapFolder
             return;
         }
         FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(fos = new FileOutputStream(pagefile));
+            byte[] snapshot;
             synchronized (folder) {
-                oos.writeObject(folder);
+                snapshot = ImapFolderSnapshot.encode(folder);
             }
+            fos = new FileOutputStream(pagefile);
+            fos.write(snapshot);
         } catch (IOException e) {
-            ByteUtil.closeStream(oos);
             ByteUtil.closeStream(fos);
             pagefile.delete();
         } finally {
-            ByteUtil.closeStream(oos);
             ByteUtil.closeStream(fos);
         }
     }
@@ -113,20 +110,13 @@ final class DiskImapCache implements ImapSessionManager.Cache<String, ImapFolder
         if (!pagefile.exists()) {
             return null;
         }
-        FileInputStream fis = null;
-        ObjectInputStream ois = null;
-        try {
-            // read serialized ImapFolder from cache
-            ois = new SecureObjectInputStream(fis = new FileInputStream(pagefile), ImapFolder.class.getName());
-            return (ImapFolder) ois.readObject();
+        // decode straight out of the page cache; files left by an older release fail the snapshot
+        // header check and are dropped like any other unreadable entry
+        try (FileChannel channel = FileChannel.open(pagefile.toPath(), StandardOpenOption.READ)) {
+            return ImapFolderSnapshot.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
         } catch (Exception e) {
-            ByteUtil.closeStream(ois);
-            ByteUtil.closeStream(fis);
             pagefile.delete();
             return null;
-        } finally {
-            ByteUtil.closeStream(ois);
-            ByteUtil.closeStream(fis);
         }
     }
 
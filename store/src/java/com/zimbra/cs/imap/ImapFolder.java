@@ -25,7 +25,6 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -68,7 +67,8 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     private transient ImapListener session;
     private transient ImapPath path;
     private transient SessionData sessionData;
-    private transient Map<Integer, ImapMessage> messageIds;
+    private transient ImapMessageIdMap messageIds;
+    private transient Map<List<String>, String[]> tagsets;
 
     private final ItemIdentifier folderIdentifier;
     private final int uidValidity;
@@ -123,6 +123,19 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         this.tags = new ImapFlagCache();
     }
 
+    /** Rebuilds a paged-out ImapFolder from an {@link ImapFolderSnapshot}.  As
+     *  with a Java-deserialized folder, the session state must be reattached
+     *  via {@link #restore} before the folder is used by a session. */
+    ImapFolder(ItemIdentifier folderIdentifier, int uidValidity, String query, Set<MailItem.Type> typeConstraint,
+            ImapFlagCache tags, List<ImapMessage> messages) {
+        this.folderIdentifier = folderIdentifier;
+        this.uidValidity = uidValidity;
+        this.query = query;
+        this.typeConstraint = typeConstraint;
+        this.tags = tags;
+        this.sequence.addAll(messages);
+    }
+
     protected void setInitialSize() {
         SessionData sdata = sessionData;
         if (sdata != null) {
@@ -299,6 +312,12 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
     }
 
+    /** Returns the folder's {@link #sequence} message list itself.  Callers
+     *  must hold the folder's monitor while reading it. */
+    List<ImapMessage> getSequence() {
+        return sequence;
+    }
+
     public ImapPath getPath() {
         return path;
     }
@@ -373,14 +392,14 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         // if item id and IMAP uid differ, the message goes in the "mMessageIds" map
         if (messageIds == null) {
             // lookup miss means we need to generate the item-id-to-imap-message mapping
-            messageIds = new HashMap<Integer, ImapMessage>();
+            messageIds = new ImapMessageIdMap();
             for (ImapMessage i4msg : sequence) {
                 if (i4msg != null && i4msg.msgId != i4msg.imapUid) {
                     messageIds.put(i4msg.msgId, i4msg);
                 }
             }
         }
-        return checkRemoved(messageIds.get(Integer.valueOf(id)));
+        return checkRemoved(messageIds.get(id));
     }
 
     /** Returns the ImapMessage with the given IMAP UID from the folder's
@@ -431,6 +450,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
                 sdata.recentCount++;
             }
         }
+        i4msg.tags = internTags(i4msg.tags);
         // update the folder information
         ImapMessage last = null;
         if (sequence.size() > 0 && (last = sequence.get(sequence.size() - 1)).imapUid > i4msg.imapUid) {
@@ -485,6 +505,32 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         return true;
     }
 
+    /** Returns the folder's shared copy of the given tag set.  Each message
+     *  read from the mailbox carries its own tag array, but a folder rarely
+     *  holds more than a handful of distinct tag sets, so sharing them saves
+     *  an array per tagged message.  Tag arrays are replaced on an
+     *  ImapMessage, never modified in place. */
+    synchronized String[] internTags(String[] msgTags) {
+        if (ArrayUtil.isEmpty(msgTags)) {
+            return msgTags;
+        }
+        if (tagsets == null) {
+            tagsets = new HashMap<List<String>, String[]>();
+        }
+        List<String> key = Arrays.asList(msgTags);
+        String[] shared = tagsets.get(key);
+        if (shared == null) {
+            tagsets.put(key, shared = msgTags);
+        }
+        return shared;
+    }
+
+    /** Presizes the {@link #sequence} message list before a bulk load of
+     *  <tt>size</tt> messages via {@link #cache}. */
+    protected synchronized void ensureCapacity(int size) {
+        ((ArrayList<ImapMessage>) sequence).ensureCapacity(size);
+    }
+
     protected void updateTagCache(ImapMessage i4msg) {
         if (!ArrayUtil.isEmpty(i4msg.tags)) {
             for (String tag : i4msg.tags) {
@@ -508,9 +554,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         i4msg.sequence = position;
         if (messageIds != null) {
             if (i4msg.msgId != i4msg.imapUid) {
-                messageIds.put(Integer.valueOf(i4msg.msgId), i4msg);
+                messageIds.put(i4msg.msgId, i4msg);
             } else {
-                messageIds.remove(Integer.valueOf(i4msg.msgId));
+                messageIds.remove(i4msg.msgId);
             }
         }
     }
@@ -1079,28 +1125,30 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
         ZimbraLog.imap.debug("  ** iterating (collapseExpunged)");
 
-        boolean trimmed = false;
+        // compact the list in a single pass rather than paying an array shift for every removal
         int seq = 1;
         List<Integer> removed = new ArrayList<Integer>();
-        for (ListIterator<ImapMessage> lit = sequence.listIterator(); lit.hasNext(); seq++) {
-            ImapMessage i4msg = lit.next();
+        for (int i = 0, size = sequence.size(); i < size; i++) {
+            ImapMessage i4msg = sequence.get(i);
             if (i4msg.isExpunged()) {
                 ZimbraLog.imap.debug("  ** removing: %s", i4msg);
                 // uncache() removes pointers to the message from mMessageIds;
                 //   if the message appears again in sequence, it *must* be later and the
                 //   subsequent call to setIndex() will correctly update the mMessageIds mapping
                 uncache(i4msg);
-                lit.remove();
                 // note that we can't send expunge notifications for messages the client doesn't know about yet...
                 if (!i4msg.isAdded()) {
                     removed.add(byUID ? i4msg.imapUid : seq);
                 }
-                seq--;
-                trimmed = true;
-            } else if (trimmed) {
-                setIndex(i4msg, seq);
+            } else {
+                if (seq != i + 1) {
+                    sequence.set(seq - 1, i4msg);
+                    setIndex(i4msg, seq);
+                }
+                seq++;
             }
         }
+        sequence.subList(seq - 1, sequence.size()).clear();
         return removed;
     }
 
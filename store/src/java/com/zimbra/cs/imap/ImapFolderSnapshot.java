@@ -0,0 +1,251 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Compact binary form of a paged-out {@link ImapFolder}, used by the disk and memcached IMAP caches in
+ * place of Java serialization.
+ * <p>
+ * A short header (magic, version, folder identity, UID validity, search query and types) and the folder's
+ * tag cache are followed by the message list stored column by column: sequence numbers, item IDs, IMAP UIDs
+ * and flags as fixed-width int arrays, an index per message into a table of the distinct tag sets seen in
+ * the folder, and the session flags as a short array.  The columns are bulk-read straight out of the
+ * supplied {@link ByteBuffer}, so a memory-mapped cache file is decoded without first being copied onto the
+ * heap and without any reflection.
+ *
+ * Bump {@link #VERSION} when changing the layout; snapshots of any other version are rejected and the
+ * folder is reloaded from the mailbox.
+ */
+final class ImapFolderSnapshot {
+    /** "I4F\0" -- distinct from the 0xACED header of a Java serialization stream. */
+    private static final int MAGIC = 0x49344600;
+    static final int VERSION = 1;
+
+    private static final int NO_TAGS = -1;
+
+    private static final byte FLAG_POSITIVE  = 0x01;
+    private static final byte FLAG_PERMANENT = 0x02;
+    private static final byte FLAG_LISTED    = 0x04;
+
+    private ImapFolderSnapshot() {
+    }
+
+    /** Serializes the folder.  The caller must hold the folder's monitor. */
+    static byte[] encode(ImapFolder folder) throws IOException {
+        List<ImapMessage> sequence = folder.getSequence();
+        int size = sequence.size();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256 + size * 22);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        ItemIdentifier ident = folder.getItemIdentifier();
+        writeString(out, ident.accountId);
+        out.writeInt(ident.id);
+        out.writeInt(ident.subPartId);
+        out.writeInt(folder.getUIDValidity());
+        writeString(out, folder.isVirtual() ? folder.getQuery() : null);
+        Set<MailItem.Type> types = folder.getTypeConstraint();
+        out.writeInt(types.size());
+        for (MailItem.Type type : types) {
+            writeString(out, type.toString());
+        }
+
+        List<ImapFlag> flags = Lists.newArrayList(folder.getTagset());
+        out.writeInt(flags.size());
+        for (ImapFlag i4flag : flags) {
+            writeString(out, i4flag.mName);
+            writeString(out, i4flag.mImapName);
+            out.writeInt(i4flag.mId);
+            out.writeLong(i4flag.mBitmask);
+            out.writeByte((i4flag.mPositive ? FLAG_POSITIVE : 0) | (i4flag.mPermanent ? FLAG_PERMANENT : 0) |
+                    (i4flag.mListed ? FLAG_LISTED : 0));
+        }
+
+        // most messages in a folder share one of a handful of tag sets, so store each distinct set once
+        Map<List<String>, Integer> tagsets = new LinkedHashMap<List<String>, Integer>();
+        int[] tagsetIndex = new int[size];
+        for (int i = 0; i < size; i++) {
+            String[] tags = sequence.get(i).tags;
+            if (tags == null) {
+                tagsetIndex[i] = NO_TAGS;
+                continue;
+            }
+            List<String> key = Arrays.asList(tags);
+            Integer index = tagsets.get(key);
+            if (index == null) {
+                tagsets.put(key, index = tagsets.size());
+            }
+            tagsetIndex[i] = index;
+        }
+        out.writeInt(tagsets.size());
+        for (List<String> tagset : tagsets.keySet()) {
+            out.writeInt(tagset.size());
+            for (String tag : tagset) {
+                writeString(out, tag);
+            }
+        }
+
+        out.writeInt(size);
+        for (ImapMessage i4msg : sequence) {
+            out.writeInt(i4msg.sequence);
+        }
+        for (ImapMessage i4msg : sequence) {
+            out.writeInt(i4msg.msgId);
+        }
+        for (ImapMessage i4msg : sequence) {
+            out.writeInt(i4msg.imapUid);
+        }
+        for (ImapMessage i4msg : sequence) {
+            out.writeInt(i4msg.flags);
+        }
+        for (int index : tagsetIndex) {
+            out.writeInt(index);
+        }
+        for (ImapMessage i4msg : sequence) {
+            out.writeShort(i4msg.sflags);
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    /** Rebuilds a folder from a snapshot starting at the buffer's position.  The buffer itself is left
+     *  untouched.  The returned folder must be {@link ImapFolder#restore restored} before use. */
+    static ImapFolder decode(ByteBuffer buffer) throws IOException {
+        ByteBuffer buf = buffer.duplicate();
+        try {
+            if (buf.remaining() < 8 || buf.getInt() != MAGIC) {
+                throw new IOException("not an ImapFolder snapshot");
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported ImapFolder snapshot version " + version);
+            }
+
+            String accountId = readString(buf);
+            int id = buf.getInt();
+            int subPartId = buf.getInt();
+            ItemIdentifier ident = new ItemIdentifier(accountId, id, subPartId);
+            int uidValidity = buf.getInt();
+            String query = readString(buf);
+            int typeCount = readCount(buf, 4);
+            Set<MailItem.Type> types = EnumSet.noneOf(MailItem.Type.class);
+            for (int i = 0; i < typeCount; i++) {
+                types.add(MailItem.Type.of(readString(buf)));
+            }
+
+            ImapFlagCache tags = new ImapFlagCache();
+            int flagCount = readCount(buf, 25);
+            for (int i = 0; i < flagCount; i++) {
+                String name = readString(buf), imapName = readString(buf);
+                int flagId = buf.getInt();
+                long bitmask = buf.getLong();
+                byte bits = buf.get();
+                tags.cache(new ImapFlag(name, imapName, flagId, bitmask, (bits & FLAG_POSITIVE) != 0,
+                        (bits & FLAG_PERMANENT) != 0, (bits & FLAG_LISTED) != 0));
+            }
+
+            String[][] tagsets = new String[readCount(buf, 4)][];
+            for (int i = 0; i < tagsets.length; i++) {
+                String[] tagset = new String[readCount(buf, 4)];
+                for (int j = 0; j < tagset.length; j++) {
+                    tagset[j] = readString(buf);
+                }
+                tagsets[i] = tagset;
+            }
+
+            int size = readCount(buf, 22);
+            int[] seq = readInts(buf, size), msgIds = readInts(buf, size), uids = readInts(buf, size);
+            int[] msgFlags = readInts(buf, size), tagsetIndex = readInts(buf, size);
+            short[] sflags = new short[size];
+            buf.asShortBuffer().get(sflags);
+            buf.position(buf.position() + size * 2);
+
+            List<ImapMessage> messages = new ArrayList<ImapMessage>(size);
+            for (int i = 0; i < size; i++) {
+                int index = tagsetIndex[i];
+                // tag arrays are only ever replaced on an ImapMessage, never modified, so they can be shared
+                ImapMessage i4msg = new ImapMessage(msgIds[i], MailItem.Type.MESSAGE, uids[i], msgFlags[i],
+                        index == NO_TAGS ? null : tagsets[index]);
+                i4msg.sflags = sflags[i];
+                i4msg.sequence = seq[i];
+                messages.add(i4msg);
+            }
+            return new ImapFolder(ident, uidValidity, query, types, tags, messages);
+        } catch (RuntimeException e) { // BufferUnderflowException, ArrayIndexOutOfBoundsException...
+            throw new IOException("corrupt ImapFolder snapshot", e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buf) throws IOException {
+        int length = buf.getInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[checkCount(buf, length, 1)];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int[] readInts(ByteBuffer buf, int count) {
+        int[] values = new int[count];
+        buf.asIntBuffer().get(values);
+        buf.position(buf.position() + count * 4);
+        return values;
+    }
+
+    /** Reads an element count, checking it against the bytes left so that a corrupt snapshot cannot trigger
+     *  a huge allocation. */
+    private static int readCount(ByteBuffer buf, int minBytesPerElement) throws IOException {
+        return checkCount(buf, buf.getInt(), minBytesPerElement);
+    }
+
+    private static int checkCount(ByteBuffer buf, int count, int minBytesPerElement) throws IOException {
+        if (count < 0 || (long) count * minBytesPerElement > buf.remaining()) {
+            throw new IOException("corrupt ImapFolder snapshot: bad count " + count);
+        }
+        return count;
+    }
+}
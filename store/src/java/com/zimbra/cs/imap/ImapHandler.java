@@ -3884,10 +3884,12 @@ public abstract class ImapHandler {
         } finally {
             mbox.unlock();
         }
+        // a PrintStream carries its own char buffer and encoder, so share one across all the FETCH responses
+        PrintStream fetchStream = new PrintStream(output, false, Charsets.UTF_8.name());
         ReentrantLock lock = null;
         try {
             for (ImapMessage i4msg : i4set) {
-                PrintStream result = new PrintStream(output, false, Charsets.UTF_8.name());
+                PrintStream result = fetchStream;
                 try {
                     result.print("* " + i4msg.sequence + " FETCH (");
 
@@ -3944,7 +3946,12 @@ public abstract class ImapHandler {
                     }
 
                     if ((parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
-                        mm = ImapMessage.getMimeMessage(item);
+                        // BODYSTRUCTURE and ENVELOPE alone can come from the message metadata without parsing the blob
+                        String[] precomputed = null;
+                        if ((parts == null || parts.isEmpty()) && (attributes & FETCH_BODY) == 0) {
+                            precomputed = ImapMessage.getPrecomputedStructure(item);
+                        }
+                        mm = precomputed == null ? ImapMessage.getMimeMessage(item) : null;
                         if ((attributes & FETCH_BODY) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODY ");
@@ -3954,13 +3961,21 @@ public abstract class ImapHandler {
                         if ((attributes & FETCH_BODYSTRUCTURE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODYSTRUCTURE ");
-                            ImapMessage.serializeStructure(result, mm, true);
+                            if (precomputed != null) {
+                                result.print(precomputed[0]);
+                            } else {
+                                ImapMessage.serializeStructure(result, mm, true);
+                            }
                             empty = false;
                         }
                         if ((attributes & FETCH_ENVELOPE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("ENVELOPE ");
-                            ImapMessage.serializeEnvelope(result, mm);
+                            if (precomputed != null) {
+                                result.print(precomputed[1]);
+                            } else {
+                                ImapMessage.serializeEnvelope(result, mm);
+                            }
                             empty = false;
                         }
                         if (parts != null) {
@@ -23,6 +23,7 @@ import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
@@ -48,9 +49,11 @@ import org.apache.commons.codec.net.BCodec;
 import org.apache.commons.codec.net.QCodec;
 import org.apache.commons.io.IOUtils;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.MoreObjects;
 import com.zimbra.client.ZContact;
 import com.zimbra.client.ZMessage;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.BaseItemInfo;
 import com.zimbra.common.mailbox.ContactConstants;
 import com.zimbra.common.mailbox.MailItemType;
@@ -70,9 +73,11 @@ import com.zimbra.cs.mailbox.Contact;
 import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.Metadata;
 import com.zimbra.cs.mailbox.util.TagUtil;
 import com.zimbra.cs.mime.MPartInfo;
 import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.mime.ParsedMessage;
 import com.zimbra.cs.service.formatter.VCard;
 import com.zimbra.cs.util.JMSession;
 import com.zimbra.soap.mail.type.ImapMessageInfo;
@@ -316,12 +321,79 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
         }
     }
 
+    private static final String FN_STRUCTURE_DIGEST = "d";
+    private static final String FN_BODYSTRUCTURE = "bs";
+    private static final String FN_ENVELOPE = "env";
+
+    /**
+     * Serializes the message's BODYSTRUCTURE and ENVELOPE at delivery time so that the common
+     * "FETCH 1:* (ENVELOPE BODYSTRUCTURE)" sync does not have to parse every blob again.  The
+     * result is keyed by the blob digest; returns {@code null} when the structure is larger than
+     * {@link LC#imap_precomputed_structure_max_size} or cannot be serialized.
+     */
+    public static Metadata precomputeStructure(ParsedMessage pm, String digest) {
+        int maxSize = LC.imap_precomputed_structure_max_size.intValue();
+        if (maxSize <= 0 || pm == null || digest == null) {
+            return null;
+        }
+        byte[] bodystructure, envelope;
+        // the same ParsedMessage is shared by all the recipients of an LMTP delivery
+        synchronized (pm) {
+            try {
+                MimeMessage mm = pm.getOriginalMessage();
+                bodystructure = serialize(mm, true);
+                envelope = bodystructure.length < maxSize ? serialize(mm, false) : null;
+            } catch (Exception e) {
+                ZimbraLog.imap.debug("unable to precompute BODYSTRUCTURE for message with digest %s", digest, e);
+                return null;
+            }
+        }
+        if (envelope == null || bodystructure.length + envelope.length > maxSize) {
+            return null;
+        }
+        String bs = new String(bodystructure, Charsets.UTF_8), env = new String(envelope, Charsets.UTF_8);
+        // raw 8-bit header bytes that aren't UTF-8 would not survive the trip through a String
+        if (!Arrays.equals(bodystructure, bs.getBytes(Charsets.UTF_8)) || !Arrays.equals(envelope, env.getBytes(Charsets.UTF_8))) {
+            return null;
+        }
+        return new Metadata().put(FN_STRUCTURE_DIGEST, digest).put(FN_BODYSTRUCTURE, bs).put(FN_ENVELOPE, env);
+    }
+
+    private static byte[] serialize(MimeMessage mm, boolean structure) throws IOException, MessagingException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(baos, false, Charsets.UTF_8.name());
+        if (structure) {
+            serializeStructure(ps, mm, true);
+        } else {
+            serializeEnvelope(ps, mm);
+        }
+        ps.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Returns the BODYSTRUCTURE and ENVELOPE stored by {@link #precomputeStructure}, or
+     * {@code null} if there are none or they were computed for a different blob.
+     */
+    static String[] getPrecomputedStructure(ZimbraMailItem item) {
+        if (!(item instanceof Message)) {
+            return null;
+        }
+        Message msg = (Message) item;
+        Metadata meta = msg.getImapStructure();
+        if (meta == null || !msg.getDigest().equals(meta.get(FN_STRUCTURE_DIGEST, null))) {
+            return null;
+        }
+        String bs = meta.get(FN_BODYSTRUCTURE, null), env = meta.get(FN_ENVELOPE, null);
+        return bs == null || env == null ? null : new String[] { bs, env };
+    }
+
     void setPermanentFlags(int f, String[] t, int changeId, ImapFolder parent) {
         if (TagUtil.tagsMatch(t, tags) && (f & IMAP_FLAGS) == (flags & IMAP_FLAGS))
             return;
 
         this.flags = f & IMAP_FLAGS;
-        this.tags  = t;
+        this.tags  = parent != null ? parent.internTags(t) : t;
         if (parent != null) {
             parent.updateTagCache(this);
             parent.dirtyMessage(this, changeId);
@@ -0,0 +1,121 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+/**
+ * Item-ID-to-{@link ImapMessage} map for {@link ImapFolder}, using open addressing over a primitive
+ * key array.  A folder can hold hundreds of thousands of messages, and a {@code HashMap<Integer, ImapMessage>}
+ * spends a boxed key and an entry object on each of them; this one costs two array slots.
+ * <p>
+ * Not thread-safe; guarded by the owning folder's monitor.
+ */
+final class ImapMessageIdMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys;
+    private ImapMessage[] values;  // a null value marks an empty slot
+    private int size;
+
+    ImapMessageIdMap() {
+        keys = new int[MIN_CAPACITY];
+        values = new ImapMessage[MIN_CAPACITY];
+    }
+
+    int size() {
+        return size;
+    }
+
+    ImapMessage get(int key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    ImapMessage put(int key, ImapMessage value) {
+        if ((size + 1) * 2 > keys.length) {  // keep the load factor at or below 1/2
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                ImapMessage old = values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    ImapMessage remove(int key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                break;
+            }
+        }
+        ImapMessage old = values[i];
+        if (old == null) {
+            return null;
+        }
+        values[i] = null;
+        size--;
+        // shift the rest of the probe run back so that lookups never stop early at the hole
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!stays) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+        return old;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        ImapMessage[] oldValues = values;
+        keys = new int[capacity];
+        values = new ImapMessage[capacity];
+        int mask = capacity - 1;
+        for (int k = 0; k < oldKeys.length; k++) {
+            if (oldValues[k] != null) {
+                int i = slot(oldKeys[k], mask);
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[k];
+                values[i] = oldValues[k];
+            }
+        }
+    }
+
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;  // item IDs are dense and sequential; spread them across the table
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Enumeration;
 import java.util.List;
 
@@ -37,7 +39,13 @@ import com.zimbra.common.util.InputStreamWithSize;
 import com.zimbra.common.util.StartOutOfBoundsException;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.server.NioOutputStream;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.file.VolumeBlob;
+import com.zimbra.cs.store.file.VolumeMailboxBlob;
+import com.zimbra.cs.util.IOUtil;
 
 class ImapPartSpecifier {
     static class BinaryDecodingException extends Exception {
@@ -182,9 +190,55 @@ class ImapPartSpecifier {
 
     void write(PrintStream ps, OutputStream os, ZimbraMailItem zmi)
     throws IOException, BinaryDecodingException, ServiceException {
+        FileChannel blob = null;
+        if (os instanceof NioOutputStream && ((NioOutputStream) os).canTransferFiles()) {
+            blob = openBlobFile(zmi);
+        }
+        if (blob != null) {
+            long length = zmi.getSize();
+            ps.print(this);
+            ps.print(" {");
+            ps.print(length);
+            ps.write('}');   /* } added to fix vim buggy brace matching code */
+            os.write(ImapHandler.LINE_SEPARATOR_BYTES);
+            ((NioOutputStream) os).transferFrom(blob, 0, length);
+            return;
+        }
         write(ps, os, new ZimbraMailItemGettableInputStreamWithSize(zmi));
     }
 
+    /** Opens the file behind the message's blob if this part's literal is
+     *  exactly that file (the whole message, no partial range or decoding)
+     *  and it is stored uncompressed on a local volume, so that it can be
+     *  sent without copying it through the heap.  Returns <tt>null</tt> if
+     *  the content has to be streamed the regular way. */
+    private FileChannel openBlobFile(ZimbraMailItem zmi) throws ServiceException {
+        if (!(zmi instanceof Message) || !isEntireMessage() || octetStart >= 0 || command.startsWith("BINARY")) {
+            return null;
+        }
+        MailboxBlob mblob = ((Message) zmi).getBlob();
+        if (!(mblob instanceof VolumeMailboxBlob)) {
+            return null;
+        }
+        VolumeBlob blob = ((VolumeMailboxBlob) mblob).getLocalBlob();
+        FileChannel channel = null;
+        try {
+            if (blob == null || blob.isCompressed()) {
+                return null;
+            }
+            channel = FileChannel.open(blob.getFile().toPath(), StandardOpenOption.READ);
+            if (channel.size() != zmi.getSize()) {
+                IOUtil.closeQuietly(channel);
+                return null;
+            }
+            return channel;
+        } catch (IOException e) {
+            // leave it to the regular path to report the problem
+            IOUtil.closeQuietly(channel);
+            return null;
+        }
+    }
+
     void write(PrintStream ps, OutputStream os, MimeMessage mimeMsg)
     throws IOException, BinaryDecodingException, ServiceException {
         write(ps, os, new MimeMessageGettableInputStreamWithSize(mimeMsg));
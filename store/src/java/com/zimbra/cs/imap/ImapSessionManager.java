@@ -350,6 +350,7 @@ final class ImapSessionManager {
             // can't set these until *after* loading the folder because UID renumbering affects them
             InitialFolderValues initial = new InitialFolderValues(folder);
 
+            i4folder.ensureCapacity(i4list.size());
             for (ImapMessage i4msg : i4list) {
                 i4folder.cache(i4msg, i4msg.imapUid > recentCutoff);
                 if (initial.firstUnread == -1 && (i4msg.flags & Flag.BITMASK_UNREAD) != 0) {
@@ -16,19 +16,13 @@
  */
 package com.zimbra.cs.imap;
 
-import java.io.ByteArrayInputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
-
-import com.google.common.io.Closeables;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.util.memcached.MemcachedKey;
 import com.zimbra.common.util.memcached.MemcachedMap;
 import com.zimbra.common.util.memcached.MemcachedSerializer;
-import com.zimbra.cs.io.SecureObjectInputStream;
 import com.zimbra.cs.memcached.MemcachedConnector;
 import com.zimbra.cs.memcached.MemcachedKeyPrefix;
 
@@ -99,25 +93,19 @@ final class MemcachedImapCache implements ImapSessionManager.Cache<String, ImapF
 
         @Override
         public Object serialize(ImapFolder folder) throws ServiceException {
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            try (ObjectOutputStream oout = new ObjectOutputStream(bout)) {
-                oout.writeObject(folder);
+            try {
+                return ImapFolderSnapshot.encode(folder);
             } catch (Exception e) {
                 throw ServiceException.FAILURE("Failed to serialize ImapFolder", e);
             }
-            return bout.toByteArray();
         }
 
         @Override
         public ImapFolder deserialize(Object obj) throws ServiceException {
-            ObjectInputStream in = null;
             try {
-                in = new SecureObjectInputStream(new ByteArrayInputStream((byte[]) obj), ImapFolder.class.getName());
-                return (ImapFolder) in.readObject();
+                return ImapFolderSnapshot.decode(ByteBuffer.wrap((byte[]) obj));
             } catch (Exception e) {
                 throw ServiceException.FAILURE("Failed to deserialize ImapFolder", e);
-            } finally {
-                Closeables.closeQuietly(in);
             }
         }
 
@@ -32,6 +32,7 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.Term;
 
 import com.google.common.collect.ImmutableSet;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.Db;
@@ -46,6 +47,7 @@ import com.zimbra.cs.mailbox.Mountpoint;
 import com.zimbra.cs.mailbox.SearchFolder;
 import com.zimbra.cs.mailbox.Tag;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.IOUtil;
 
 /**
@@ -788,6 +790,8 @@ public class DBQueryOperation extends QueryOperation {
                 // we know we got all the index-id's from lucene.  since we don't have a
                 // LIMIT clause, we can be assured that this query will get all the remaining results.
                 endOfHits = true;
+            } else if (coveredSearch(sc, sort)) {
+                ZimbraLog.search.debug("Answered %d index IDs from the item cache", sc.indexIds.size());
             } else {
                 // must not ask for offset,limit here b/c of indexId constraints!,
                 dbSearch(dbHits, sort, -1, -1);
@@ -795,6 +799,28 @@ public class DBQueryOperation extends QueryOperation {
         } while (dbHits.size() == 0 && !endOfHits);
     }
 
+    /**
+     * Answers a chunk of Lucene hits without the database when the index and the mailbox item cache cover the query:
+     * a date-sorted search of messages restricted only by local folder, tag and date. Falls back to the database if
+     * any of the hits can't be resolved from the cache.
+     *
+     * @return true if dbHits was filled from the cache
+     */
+    private boolean coveredSearch(DbSearchConstraints.Leaf sc, SortBy sort) throws ServiceException {
+        if (!LC.zimbra_index_covering_search.booleanValue() || constraints != sc ||
+                fetch != DbSearch.FetchMode.MAIL_ITEM || context.getParams().inDumpster() ||
+                (sort != SortBy.DATE_DESC && sort != SortBy.DATE_ASC) || !sc.isCoverable()) {
+            return false;
+        }
+        List<DbSearch.Result> results = context.getMailbox().index.searchCached(sc, sort);
+        ZimbraPerf.COUNTER_IDX_COVERED_SEARCH.increment(results != null ? 100 : 0);
+        if (results == null) {
+            return false;
+        }
+        dbHits.addAll(results);
+        return true;
+    }
+
     /**
      * Use all the search parameters (including the embedded {@link LuceneQueryOperation}) to get a chunk of search
      * results and put them into dbHits
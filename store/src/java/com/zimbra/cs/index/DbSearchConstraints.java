@@ -294,6 +294,96 @@ public interface DbSearchConstraints extends Cloneable {
                     (types.contains(MailItem.Type.APPOINTMENT) || types.contains(MailItem.Type.TASK)));
         }
 
+        /**
+         * Returns TRUE if {@link #matches(MailItem)} can evaluate these constraints, i.e. they only restrict messages
+         * by local folder, tag and date.
+         */
+        public boolean isCoverable() {
+            if (noResults || convId != 0 || remoteConvId != null || hasIndexId != null || excludeHasRecipients ||
+                    cursorRange != null) {
+                return false;
+            }
+            if (!remoteFolders.isEmpty() || !excludeRemoteFolders.isEmpty() || !prohibitedConvIds.isEmpty() ||
+                    !prohibitedRemoteConvIds.isEmpty() || !itemIds.isEmpty() || !prohibitedItemIds.isEmpty() ||
+                    !remoteItemIds.isEmpty() || !prohibitedRemoteItemIds.isEmpty()) {
+                return false;
+            }
+            if (types.isEmpty() || !EnumSet.of(MailItem.Type.MESSAGE, MailItem.Type.CHAT).containsAll(types)) {
+                return false;
+            }
+            for (RangeType type : ranges.keySet()) {
+                if (type != RangeType.DATE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Evaluates these constraints, except {@link #indexIds}, against an item the way the SQL query would.
+         * Only valid if {@link #isCoverable()}.
+         */
+        public boolean matches(MailItem item) {
+            if (!types.contains(item.getType()) || excludeTypes.contains(item.getType())) {
+                return false;
+            }
+            for (Tag tag : tags) {
+                if (!isTagged(item, tag)) {
+                    return false;
+                }
+            }
+            for (Tag tag : excludeTags) {
+                if (isTagged(item, tag)) {
+                    return false;
+                }
+            }
+            if (!folders.isEmpty()) {
+                boolean found = false;
+                for (Folder folder : folders) {
+                    found |= folder.getId() == item.getFolderId();
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            for (Folder folder : excludeFolders) {
+                if (folder.getId() == item.getFolderId()) {
+                    return false;
+                }
+            }
+            // mail_item.date is in seconds, see DbSearch.encodeDateRange()
+            long date = item.getDate() / 1000;
+            for (Range range : ranges.get(RangeType.DATE)) {
+                NumericRange nr = (NumericRange) range;
+                boolean lowValid = nr.min >= 1;
+                boolean highValid = nr.max >= 1;
+                if (!(lowValid || highValid)) {
+                    continue;
+                }
+                boolean inRange = true;
+                if (lowValid) {
+                    long min = Math.min(nr.min / 1000, Integer.MAX_VALUE);
+                    inRange = nr.minInclusive ? date >= min : date > min;
+                }
+                if (highValid && inRange) {
+                    long max = Math.min(nr.max / 1000, Integer.MAX_VALUE);
+                    inRange = nr.maxInclusive ? date <= max : date < max;
+                }
+                if (inRange != nr.bool) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isTagged(MailItem item, Tag tag) {
+            // unread is kept in its own column rather than in the flags bitmask
+            if (tag.getId() == Flag.ID_UNREAD) {
+                return item.isUnread();
+            }
+            return item.isTagged(tag);
+        }
+
         /**
          * Returns the only folder if query is for a single folder, item type list includes
          * {@link MailItem.Type#MESSAGE}, and no other conditions are specified. Otherwise returns null.
@@ -18,6 +18,7 @@ package com.zimbra.cs.index;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Collection;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.localconfig.LC;
@@ -83,6 +84,16 @@ public abstract class IndexStore {
      */
     public abstract boolean verify(PrintStream out) throws IOException;
 
+    /**
+     * Returns the IDs of indexed items whose documents are durable, so that they can be marked as indexed in the
+     * database. {@code indexed} are the items just added through an {@link Indexer} that has been closed. By default
+     * documents are durable once their indexer is closed and {@code indexed} is returned as is. A store that commits
+     * later holds the IDs back and returns them from a call after the commit instead.
+     */
+    public Collection<Integer> takeDurableIds(Collection<Integer> indexed) {
+        return indexed;
+    }
+
     public static Factory getFactory() {
         if (factory == null) {
             setFactory(LC.zimbra_class_index_store_factory.value());
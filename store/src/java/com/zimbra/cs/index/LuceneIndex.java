@@ -19,8 +19,16 @@ package com.zimbra.cs.index;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
@@ -56,6 +64,7 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import com.googlecode.concurrentlinkedhashmap.EvictionListener;
@@ -66,7 +75,9 @@ import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxIndex;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.IOUtil;
+import com.zimbra.cs.util.Zimbra;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
 
@@ -114,9 +125,22 @@ public final class LuceneIndex extends IndexStore {
         })
         .build();
 
+    /**
+     * In near-real-time mode writers stay open across indexing batches, searches see changes before they are
+     * committed, and commits are driven by {@link IndexWriterRef#isCommitDue()} instead of every batch.
+     * Set from {@link LC#zimbra_index_lucene_nrt} when the {@link Factory} is created.
+     */
+    private static volatile boolean nrt = false;
+
+    // pooled writers hold writer permits, leave at least half of them to mailboxes outside the pool
+    private static final WriterPool WRITER_POOL = new WriterPool(Math.max(1, Math.min(
+            LC.zimbra_index_lucene_nrt_writer_pool_size.intValue(), LC.zimbra_index_max_writers.intValue() / 2)));
+
     private final Mailbox mailbox;
     private final LuceneDirectory luceneDirectory;
     private final AtomicBoolean pendingDelete = new AtomicBoolean(false);
+    /** near-real-time mode: IDs of items whose documents were committed but not yet returned by takeDurableIds() */
+    private final Queue<Integer> durableIds = new ConcurrentLinkedQueue<Integer>();
     private final WriterInfo writerInfo = new WriterInfo();
 
     /**
@@ -245,6 +269,7 @@ public final class LuceneIndex extends IndexStore {
     @Override
     public void deleteIndex() throws IOException {
         pendingDelete.set(true);
+        releasePooledWriter();
         writerInfo.getHasNoWritersLock().lock();
         try {
             if (writerInfo.getWriterRef() != null) {
@@ -374,12 +399,7 @@ public final class LuceneIndex extends IndexStore {
      */
     @Override
     public synchronized ZimbraIndexSearcher openSearcher() throws IOException {
-        IndexSearcherImpl searcher = null;
-        if (mailbox.isGalSyncMailbox()) {
-            searcher = GAL_SEARCHER_CACHE.get(mailbox.getId());
-        } else {
-            searcher = SEARCHER_CACHE.getIfPresent(mailbox.getId());
-        }
+        IndexSearcherImpl searcher = getCachedSearcher();
         if (searcher != null) {
             ZimbraLog.search.debug("CacheHitLuceneSearcher %s", searcher);
             searcher.inc();
@@ -389,7 +409,11 @@ public final class LuceneIndex extends IndexStore {
         READER_THROTTLE.acquireUninterruptibly();
         long start = System.currentTimeMillis();
         try {
-            searcher = new IndexSearcherImpl(openIndexReader(true));
+            if (nrt && writerInfo.getWriterRef() != null) {
+                searcher = new IndexSearcherImpl(IndexReader.open(writerInfo.getWriterRef().get(), true));
+            } else {
+                searcher = new IndexSearcherImpl(openIndexReader(true));
+            }
         } catch (IOException e) {
             // Handle the special case of trying to open a not-yet-created index, by opening for write and immediately
             // closing. Index directory should get initialized as a result.
@@ -410,12 +434,55 @@ public final class LuceneIndex extends IndexStore {
 
         ZimbraLog.search.debug("OpenLuceneSearcher %s,elapsed=%d", searcher, System.currentTimeMillis() - start);
         searcher.inc();
+        cacheSearcher(searcher);
+        return searcher;
+    }
+
+    private IndexSearcherImpl getCachedSearcher() {
+        if (mailbox.isGalSyncMailbox()) {
+            return GAL_SEARCHER_CACHE.get(mailbox.getId());
+        } else {
+            return SEARCHER_CACHE.getIfPresent(mailbox.getId());
+        }
+    }
+
+    private void cacheSearcher(IndexSearcherImpl searcher) {
         if (mailbox.isGalSyncMailbox()) {
+            //make sure that we close the previous value associated with the key
             IOUtil.closeQuietly(GAL_SEARCHER_CACHE.put(mailbox.getId(), searcher));
         } else {
+            // Bug: 69870
+            // No need to close the previous value associated with the key here.
+            // CacheBuilder sends a callback using removalListener onRemoval(..)
+            // which eventually closes IndexSearcher
             SEARCHER_CACHE.asMap().put(mailbox.getId(), searcher);
         }
-        return searcher;
+    }
+
+    /**
+     * Replaces the cached searcher, if any, with a near-real-time reader on the current writer, so that changes not
+     * committed yet become searchable.
+     */
+    private void refreshSearcher() {
+        assert(Thread.holdsLock(this));
+
+        IndexSearcherImpl searcher = getCachedSearcher();
+        if (searcher == null) {
+            return;
+        }
+        long start = ZimbraPerf.STOPWATCH_IDX_NRT_REOPEN.start();
+        try {
+            IndexReader reader = ((ZimbraLuceneIndexReader) searcher.getIndexReader()).getLuceneReader();
+            IndexReader newReader = IndexReader.openIfChanged(reader, writerInfo.getWriterRef().get(), true);
+            if (newReader != null) {
+                cacheSearcher(new IndexSearcherImpl(newReader));
+            }
+        } catch (IOException e) {
+            ZimbraLog.index.warn("Failed to reopen near-real-time reader %s", this, e);
+            evict();
+        } finally {
+            ZimbraPerf.STOPWATCH_IDX_NRT_REOPEN.stop(start);
+        }
     }
 
     /**
@@ -455,7 +522,15 @@ public final class LuceneIndex extends IndexStore {
     public synchronized Indexer openIndexer() throws IOException {
         if (writerInfo.getWriterRef() != null) {
             writerInfo.getWriterRef().inc();
+            ZimbraPerf.COUNTER_IDX_WRT_OPENED_CACHE_HIT.increment();
+            if (nrt) {
+                WRITER_POOL.touch(mailbox.getId());
+            }
         } else {
+            if (nrt) {
+                // a writer left over by a previous instance of this index still holds the write lock
+                releasePooledWriter();
+            }
             WRITER_THROTTLE.acquireUninterruptibly();
             try {
                 writerInfo.setWriterRef(openWriter());
@@ -464,6 +539,10 @@ public final class LuceneIndex extends IndexStore {
                     WRITER_THROTTLE.release();
                 }
             }
+            ZimbraPerf.COUNTER_IDX_WRT_OPENED.increment();
+            if (nrt) {
+                WRITER_POOL.add(writerInfo.getWriterRef());
+            }
         }
         return new LuceneIndexerImpl(writerInfo.getWriterRef());
     }
@@ -499,12 +578,15 @@ public final class LuceneIndex extends IndexStore {
         boolean success = false;
         try {
             try {
-                writerInfo.getWriterRef().get().commit();
+                if (!nrt || writerInfo.getWriterRef().isCommitDue()) {
+                    writerInfo.getWriterRef().commit();
+                }
             } catch (CorruptIndexException e) {
                 try {
                     writerInfo.getWriterRef().get().close(false);
                 } catch (Throwable ignore) {
                 }
+                releasePooledWriter();
                 repair(e);
                 throw e; // fail to commit regardless of the repair
             } catch (AssertionError e) {
@@ -513,9 +595,13 @@ public final class LuceneIndex extends IndexStore {
                 } catch (Throwable ignore) {
                 }
                 writerInfo.getWriterRef().get().close(false);
+                releasePooledWriter();
                 repair(e);
                 throw e; // fail to commit regardless of the repair
             }
+            if (nrt) {
+                refreshSearcher();
+            }
             mailbox.index.submit(task); // merge must run in background
             success = true;
         } catch (RejectedExecutionException e) {
@@ -527,18 +613,68 @@ public final class LuceneIndex extends IndexStore {
         }
     }
 
+    /**
+     * In near-real-time mode documents only become durable when a commit covers them, which may be long after the
+     * indexer that added them was closed. Until then their items stay deferred in the database, so that they are
+     * indexed again if the server stops before the commit.
+     */
+    @Override
+    public Collection<Integer> takeDurableIds(Collection<Integer> indexed) {
+        if (!nrt) {
+            return indexed;
+        }
+        List<Integer> result = new ArrayList<Integer>();
+        for (Integer id = durableIds.poll(); id != null; id = durableIds.poll()) {
+            result.add(id);
+        }
+        return result;
+    }
+
+    private void committed(Collection<Integer> ids) {
+        durableIds.addAll(ids);
+    }
+
+    /**
+     * Drops the writer of this mailbox from the near-real-time writer pool, if any.
+     */
+    private void releasePooledWriter() {
+        IndexWriterRef pooled = WRITER_POOL.remove(mailbox.getId());
+        if (pooled != null) {
+            pooled.dec();
+        }
+    }
+
+    /**
+     * Called periodically in near-real-time mode to commit pooled writers that were not committed by indexing.
+     */
+    private synchronized void commitIfDue(IndexWriterRef ref) {
+        if (writerInfo.getWriterRef() != ref || !ref.isCommitDue()) {
+            return;
+        }
+        ZimbraLog.index.debug("Commit idle IndexWriter %s", this);
+        try {
+            ref.commit();
+        } catch (IOException e) {
+            ZimbraLog.index.warn("Failed to commit IndexWriter %s", this, e);
+        } catch (AssertionError e) {
+            ZimbraLog.index.warn("Failed to commit IndexWriter %s", this, e);
+        }
+    }
+
     /**
      * Called by {@link IndexWriterRef#dec()}. Can be called by the thread that opened the writer or the merge thread.
      */
     private synchronized void closeWriter() {
-        if (writerInfo.getWriterRef() == null) {
+        IndexWriterRef ref = writerInfo.getWriterRef();
+        if (ref == null) {
             return;
         }
 
         ZimbraLog.index.debug("Close IndexWriter");
 
         try {
-            writerInfo.getWriterRef().get().close(false); // ignore phantom pending merges
+            ref.get().close(false); // ignore phantom pending merges
+            ref.closed();
         } catch (CorruptIndexException e) {
             try {
                 repair(e);
@@ -767,8 +903,27 @@ public final class LuceneIndex extends IndexStore {
     }
 
     public static final class Factory implements IndexStore.Factory {
+        private TimerTask committer;
+
         public Factory() {
             BooleanQuery.setMaxClauseCount(LC.zimbra_index_lucene_max_terms_per_query.intValue());
+            nrt = LC.zimbra_index_lucene_nrt.booleanValue();
+            if (nrt) {
+                long interval = Math.max(1000L, LC.zimbra_index_lucene_nrt_commit_interval.intValue() * 1000L / 2);
+                committer = new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (IndexWriterRef ref : WRITER_POOL.values()) {
+                                ref.getIndex().commitIfDue(ref);
+                            }
+                        } catch (Throwable t) {
+                            ZimbraLog.index.warn("Failed to commit pooled index writers", t);
+                        }
+                    }
+                };
+                Zimbra.sTimer.schedule(committer, interval, interval);
+            }
         }
 
         @Override
@@ -778,6 +933,12 @@ public final class LuceneIndex extends IndexStore {
 
         @Override
         public void destroy() {
+            if (committer != null) {
+                committer.cancel();
+            }
+            for (IndexWriterRef ref : WRITER_POOL.removeAll()) {
+                ref.dec(); // closing the writer commits it
+            }
             SEARCHER_CACHE.asMap().clear();
 
             for (IndexSearcherImpl searcher : GAL_SEARCHER_CACHE.values()) {
@@ -797,28 +958,15 @@ public final class LuceneIndex extends IndexStore {
         @Override
         public void close() throws IOException {
             writer.index.commitWriter();
-            ZimbraIndexSearcher searcher = null;
-            if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                searcher = GAL_SEARCHER_CACHE.get(writer.getIndex().mailbox.getId());
-            } else {
-                searcher = SEARCHER_CACHE.getIfPresent(writer.getIndex().mailbox.getId());
+            if (nrt) {
+                return; // commitWriter() already reopened the searcher from the writer
             }
+            ZimbraIndexSearcher searcher = writer.getIndex().getCachedSearcher();
             if (searcher != null) {
                 ZimbraLuceneIndexReader ndxReader = (ZimbraLuceneIndexReader)searcher.getIndexReader();
                 IndexReader newReader = IndexReader.openIfChanged(ndxReader.getLuceneReader(), true);
                 if (newReader != null) {
-                    if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                        //make sure that we close the previous value associated with the key
-                        IOUtil.closeQuietly(GAL_SEARCHER_CACHE.put(writer.getIndex().mailbox.getId(),
-                                new IndexSearcherImpl(newReader)));
-                    } else {
-                        // Bug: 69870
-                        // No need to close the previous value associated with the key here.
-                        // CacheBuilder sends a callback using removalListener onRemoval(..)
-                        // which eventually closes IndexSearcher
-                        SEARCHER_CACHE.asMap().put(writer.getIndex().mailbox.getId(),
-                            new IndexSearcherImpl(newReader));
-                    }
+                    writer.getIndex().cacheSearcher(new IndexSearcherImpl(newReader));
                 }
             }
         }
@@ -854,6 +1002,7 @@ public final class LuceneIndex extends IndexStore {
         public synchronized void addDocument(Folder folder, MailItem item, List<IndexDocument> docs)
                 throws IOException {
             if (docs == null || docs.isEmpty()) {
+                writer.added(item.getId(), 0);
                 return;
             }
 
@@ -866,6 +1015,12 @@ public final class LuceneIndex extends IndexStore {
                     writer.get().deleteDocuments(term);
                     break;
                 case DEFERRED:
+                    if (nrt) {
+                        // the item may be deferred again because its documents were lost in a crash before a commit,
+                        // or only because the database was not updated before the crash; either way replace them
+                        writer.get().deleteDocuments(new Term(LuceneFields.L_MAILBOX_BLOB_ID,
+                                String.valueOf(item.getId())));
+                    }
                     break;
                 default:
                     assert false : item.getIndexId();
@@ -882,6 +1037,7 @@ public final class LuceneIndex extends IndexStore {
                     writer.get().addDocument(luceneDoc);
                 }
             }
+            writer.added(item.getId(), docs.size());
         }
 
         /**
@@ -898,6 +1054,7 @@ public final class LuceneIndex extends IndexStore {
                 writer.get().deleteDocuments(term);
                 ZimbraLog.index.debug("Deleted documents id=%d", id);
             }
+            writer.changed(ids.size());
         }
     }
 
@@ -908,6 +1065,9 @@ public final class LuceneIndex extends IndexStore {
         private final LuceneIndex index;
         private final IndexWriter writer;
         private final AtomicInteger count = new AtomicInteger(1); // ref counter
+        private final AtomicInteger pending = new AtomicInteger(); // changes since the last commit
+        private final Set<Integer> uncommitted = Sets.newConcurrentHashSet(); // items added since the last commit
+        private volatile long lastCommit = System.currentTimeMillis();
 
         IndexWriterRef(LuceneIndex index, IndexWriter writer) {
             this.index = index;
@@ -934,6 +1094,102 @@ public final class LuceneIndex extends IndexStore {
             }
         }
 
+        void changed(int num) {
+            pending.addAndGet(num);
+        }
+
+        void added(int id, int docs) {
+            if (nrt) {
+                uncommitted.add(id);
+            }
+            pending.addAndGet(Math.max(1, docs));
+        }
+
+        /**
+         * Called after the writer was closed, which commits it.
+         */
+        void closed() {
+            List<Integer> ids = new ArrayList<Integer>(uncommitted);
+            uncommitted.removeAll(ids);
+            index.committed(ids);
+        }
+
+        /**
+         * Near-real-time commit policy: commit once enough changes piled up or the oldest one is old enough.
+         */
+        boolean isCommitDue() {
+            int num = pending.get();
+            return num > 0 && (num >= LC.zimbra_index_lucene_nrt_commit_docs.intValue() ||
+                    System.currentTimeMillis() - lastCommit >= LC.zimbra_index_lucene_nrt_commit_interval.intValue() * 1000L);
+        }
+
+        void commit() throws IOException {
+            int num = pending.get();
+            List<Integer> ids = new ArrayList<Integer>(uncommitted);
+            long start = ZimbraPerf.STOPWATCH_IDX_COMMIT.start();
+            try {
+                writer.commit();
+            } finally {
+                ZimbraPerf.STOPWATCH_IDX_COMMIT.stop(start);
+            }
+            pending.addAndGet(-num);
+            uncommitted.removeAll(ids);
+            index.committed(ids);
+            lastCommit = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Bounded LRU of writers kept open between indexing batches in near-real-time mode. Each pooled writer holds one
+     * reference, which is released when the writer falls out of the pool. References are released outside of the
+     * pool lock, because releasing a writer locks its index.
+     */
+    private static final class WriterPool {
+        private final int capacity;
+        private final LinkedHashMap<Integer, IndexWriterRef> writers =
+            new LinkedHashMap<Integer, IndexWriterRef>(16, 0.75f, true);
+
+        WriterPool(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void add(IndexWriterRef ref) {
+            List<IndexWriterRef> evicted = new ArrayList<IndexWriterRef>();
+            synchronized (this) {
+                ref.inc();
+                IndexWriterRef prev = writers.put(ref.getIndex().mailbox.getId(), ref);
+                if (prev != null) {
+                    evicted.add(prev);
+                }
+                Iterator<IndexWriterRef> itr = writers.values().iterator();
+                while (writers.size() > capacity && itr.hasNext()) {
+                    evicted.add(itr.next());
+                    itr.remove();
+                }
+            }
+            for (IndexWriterRef stale : evicted) {
+                ZimbraLog.index.debug("Release pooled IndexWriter %s", stale.getIndex());
+                stale.dec(); // closing the writer commits it
+            }
+        }
+
+        synchronized void touch(int mboxId) {
+            writers.get(mboxId);
+        }
+
+        synchronized IndexWriterRef remove(int mboxId) {
+            return writers.remove(mboxId);
+        }
+
+        synchronized List<IndexWriterRef> values() {
+            return new ArrayList<IndexWriterRef>(writers.values());
+        }
+
+        synchronized List<IndexWriterRef> removeAll() {
+            List<IndexWriterRef> result = new ArrayList<IndexWriterRef>(writers.values());
+            writers.clear();
+            return result;
+        }
     }
 
     /**
@@ -21,7 +21,6 @@ import java.io.InputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -638,7 +637,24 @@ public class Mailbox implements MailboxStore {
                 }
                 return item;
             } else {
-                return mapById.get(id);
+                MailItem item = mapById.get(id);
+                if (item == null) {
+                    item = construct(SharedItemCache.getInstance().take(mbox.getId(), id));
+                }
+                return item;
+            }
+        }
+
+        /** rebuilds an item evicted to the {@link SharedItemCache}; the new item caches itself in this cache */
+        private MailItem construct(MailItem.UnderlyingData data) {
+            if (data == null) {
+                return null;
+            }
+            try {
+                return MailItem.constructItem(mbox, data);
+            } catch (ServiceException e) {
+                ZimbraLog.cache.warn("error reconstructing item %d from shared item cache", data.id, e);
+                return null;
             }
         }
 
@@ -654,7 +670,11 @@ public class Mailbox implements MailboxStore {
             } else {
                 // Always fetch item from mapById map to preserve LRU's access time ordering.
                 Integer id = uuid2id.get(uuid);
-                return id != null ? mapById.get(id) : null;
+                MailItem item = id != null ? mapById.get(id) : null;
+                if (item == null) {
+                    item = construct(SharedItemCache.getInstance().take(mbox.getId(), uuid));
+                }
+                return item;
             }
         }
 
@@ -743,7 +763,8 @@ public class Mailbox implements MailboxStore {
 
     private FolderCache mFolderCache;
     private Map<Object, Tag> mTagCache;
-    private SoftReference<ItemCache> mItemCache = new SoftReference<ItemCache>(null);
+    /** held strongly and bounded by {@link #trimItemCache}, which hands what it drops to the {@link SharedItemCache} */
+    private ItemCache mItemCache;
     private final Map<String, Integer> mConvHashes = new ConcurrentLinkedHashMap.Builder<String, Integer>()
                     .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
     private final Map<String, Integer> mSentMessageIDs = new ConcurrentLinkedHashMap.Builder<String, Integer>()
@@ -1116,6 +1137,9 @@ public class Mailbox implements MailboxStore {
         mListeners.remove(session);
 
         try {
+            if (mListeners.isEmpty() && mItemCache != null && !currentChange().isActive()) {
+                shrinkItemCache();
+            }
             if (Zimbra.isAlwaysOn()) {
                 if (mListeners.size() == 0) {
                     // DbSessions Cleanup
@@ -1829,11 +1853,10 @@ public class Mailbox implements MailboxStore {
             recorder.setChangeId(getOperationChangeID());
         }
 
-        // keep a hard reference to the item cache to avoid having it GCed during the op
-        ItemCache cache = mItemCache.get();
+        ItemCache cache = mItemCache;
         if (cache == null) {
             cache = new ItemCache(this);
-            mItemCache = new SoftReference<ItemCache>(cache);
+            mItemCache = cache;
             ZimbraLog.cache.debug("created a new MailItem cache for mailbox " + getId());
         }
         currentChange().itemCache = cache;
@@ -1998,9 +2021,10 @@ public class Mailbox implements MailboxStore {
     private void clearItemCache() {
         if (currentChange().isActive()) {
             currentChange().itemCache.clear();
-        } else {
+        } else if (mItemCache != null) {
             mItemCache.clear();
         }
+        SharedItemCache.getInstance().purgeMailbox(getId());
         try {
             if (Zimbra.isAlwaysOn()) {
                 DbMailbox.incrementItemcacheCheckpoint(this);
@@ -2049,6 +2073,7 @@ public class Mailbox implements MailboxStore {
             mFolderCache.remove((Folder) item);
         } else {
             getItemCache().remove(item);
+            SharedItemCache.getInstance().remove(getId(), item.getId());
             MessageCache.purge(item);
         }
 
@@ -2066,6 +2091,7 @@ public class Mailbox implements MailboxStore {
      * @param itemId  The id of the item to uncache */
     void uncacheItem(Integer itemId) throws ServiceException {
         MailItem item = getItemCache().remove(itemId);
+        SharedItemCache.getInstance().remove(getId(), itemId);
         if (ZimbraLog.cache.isDebugEnabled()) {
             ZimbraLog.cache.debug("uncached item " + itemId + " in mailbox " + getId());
         }
@@ -2085,6 +2111,8 @@ public class Mailbox implements MailboxStore {
 
         Collection<? extends MailItem> cached;
         if (!(parent instanceof Folder)) {
+            // subfolders never go to the shared cache, but a conversation's messages may be there
+            SharedItemCache.getInstance().removeChildren(getId(), parent.getId());
             cached = getItemCache().values();
         } else if (mFolderCache != null) {
             cached = mFolderCache.values();
@@ -2479,6 +2507,7 @@ public class Mailbox implements MailboxStore {
                     // Remove all data related to this mailbox from memcached, so the data doesn't
                     // get used by another user later by mistake if/when mailbox id gets reused.
                     MemcachedCacheManager.purgeMailbox(this);
+                    SharedItemCache.getInstance().purgeMailbox(getId());
 
                     success = true;
                 } finally {
@@ -2801,7 +2830,7 @@ public class Mailbox implements MailboxStore {
         }
         assert (currentChange().depth == 0);
 
-        ItemCache cache = mItemCache.get();
+        ItemCache cache = mItemCache;
         FolderCache folders = mFolderCache == null || Collections.disjoint(pms.changedTypes, FOLDER_TYPES) ? mFolderCache
                         : snapshotFolders();
 
@@ -3844,11 +3873,32 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /**
+     * Lock-free version of the {@code lastSync >= getLastChangeID()} short-circuit done by the sync methods below,
+     * so that sync polls of an idle mailbox do not queue up behind writers.  Returns {@code false} without taking
+     * the lock unless optimistic reads are enabled and the read validates; callers repeat the check under the
+     * mailbox lock they take next.
+     */
+    private boolean isUnchangedSince(final int lastSync) throws ServiceException {
+        if (!LC.zimbra_mailbox_lock_optimistic_read.booleanValue()) {
+            return false;
+        }
+        return lock.readOptimistically(new MailboxLock.OptimisticRead<Boolean>() {
+            @Override
+            public Boolean read() {
+                return lastSync >= getLastChangeID();
+            }
+        }, Boolean.FALSE);
+    }
+
     public List<Folder> getModifiedFolders(final int lastSync) throws ServiceException {
         return getModifiedFolders(lastSync, MailItem.Type.UNKNOWN);
     }
 
     public List<Folder> getModifiedFolders(final int lastSync, final MailItem.Type type) throws ServiceException {
+        if (isUnchangedSince(lastSync)) {
+            return Collections.emptyList();
+        }
         lock.lock(false);
         try {
             if (lastSync >= getLastChangeID()) {
@@ -3877,6 +3927,9 @@ public class Mailbox implements MailboxStore {
     }
 
     public List<Tag> getModifiedTags(OperationContext octxt, int lastSync) throws ServiceException {
+        if (isUnchangedSince(lastSync)) {
+            return Collections.emptyList();
+        }
         lock.lock(false);
         try {
             if (lastSync >= getLastChangeID()) {
@@ -3996,6 +4049,9 @@ public class Mailbox implements MailboxStore {
      */
     public Pair<List<Integer>, TypedIdList> getModifiedItems(OperationContext octxt, int lastSync, int sinceDate,
             MailItem.Type type, Set<Integer> folderIds, int lastDeleteSync, int limit) throws ServiceException {
+        if (isUnchangedSince(lastSync)) {
+            return new Pair<List<Integer>, TypedIdList>(Collections.<Integer> emptyList(), new TypedIdList());
+        }
         lock.lock(false);
         try {
             if (lastSync >= getLastChangeID()) {
@@ -4038,6 +4094,9 @@ public class Mailbox implements MailboxStore {
      */
     public int getModifiedItemsCount(OperationContext octxt, int lastSync, int sinceDate,
             MailItem.Type type, Set<Integer> folderIds) throws ServiceException {
+        if (isUnchangedSince(lastSync)) {
+            return 0;
+        }
         lock.lock(false);
         try {
             if (lastSync >= getLastChangeID()) {
@@ -6156,11 +6215,14 @@ public class Mailbox implements MailboxStore {
         }
 
 
+        // serialize the IMAP BODYSTRUCTURE and ENVELOPE before taking the mailbox lock
+        Metadata imapStructure = ImapMessage.precomputeStructure(pm, staged.getDigest());
+
         lock.lock();
         try {
             try {
                 Message message =  addMessageInternal(octxt, pm, folderId, noICal, flags, tags, conversationId,
-                        rcptEmail, dinfo, customData, dctxt, staged);
+                        rcptEmail, dinfo, customData, dctxt, staged, imapStructure);
                 if (localMsgMarkedRead && account.getPrefMailSendReadReceipts().isAlways()) {
                     SendDeliveryReport.sendReport(account, message, true, null, null);
                 }
@@ -6183,7 +6245,7 @@ public class Mailbox implements MailboxStore {
 
     private Message addMessageInternal(OperationContext octxt, ParsedMessage pm, int folderId, boolean noICal,
             int flags, String[] tags, int conversationId, String rcptEmail, Message.DraftInfo dinfo,
-            CustomMetadata customData, DeliveryContext dctxt, StagedBlob staged)
+            CustomMetadata customData, DeliveryContext dctxt, StagedBlob staged, Metadata imapStructure)
     throws IOException, ServiceException {
         assert lock.isWriteLockedByCurrentThread();
         if (pm == null) {
@@ -6359,7 +6421,8 @@ public class Mailbox implements MailboxStore {
             if (cpi != null && CalendarItem.isAcceptableInvite(getAccount(), cpi)) {
                 iCal = cpi.cal;
             }
-            msg = Message.create(messageId, folder, convTarget, pm, staged, unread, flags, ntags, dinfo, noICal, iCal, extended);
+            msg = Message.create(messageId, folder, convTarget, pm, staged, unread, flags, ntags, dinfo, noICal, iCal, extended,
+                    imapStructure);
 
             redoRecorder.setMessageId(msg.getId());
 
@@ -9969,12 +10032,15 @@ public class Mailbox implements MailboxStore {
             ZimbraLog.mailbox.error("ignoring error during cache commit", e);
         } finally {
             // keep our MailItem cache at a reasonable size
-            trimItemCache();
+            trimItemCache(true);
             // make sure we're ready for the next change
             change.reset();
         }
 
         if (notification != null) {
+            if (!mListeners.isEmpty()) {
+                ZimbraPerf.COUNTER_NOTIFY_FANOUT.increment(mListeners.size());
+            }
             for (Session session : mListeners) {
                 try {
                     session.notifyPendingChanges(notification.mods, notification.lastChangeId, source);
@@ -10025,13 +10091,36 @@ public class Mailbox implements MailboxStore {
             return null;
         } finally {
             // keep our MailItem cache at a reasonable size
-            trimItemCache();
+            trimItemCache(false);
             // toss any pending changes to the Mailbox object and get ready for the next change
             change.reset();
         }
     }
 
-    private void trimItemCache() {
+    /**
+     * Trims the item cache down to its size without listeners now instead of at the next commit, so that an idle
+     * mailbox does not keep its active-sized cache.  The trimmed items are clean and go to the {@link SharedItemCache}.
+     */
+    private void shrinkItemCache() {
+        boolean success = false;
+        try {
+            beginReadTransaction("shrinkItemCache", null);
+            success = true;
+        } catch (ServiceException e) {
+            ZimbraLog.mailbox.warn("unable to trim the item cache of mailbox %d", getId(), e);
+        } finally {
+            try {
+                endTransaction(success);
+            } catch (ServiceException e) {
+                ZimbraLog.mailbox.warn("unable to trim the item cache of mailbox %d", getId(), e);
+            }
+        }
+    }
+
+    /**
+     * @param spill if true, the trimmed items have just been committed and are handed to the {@link SharedItemCache}
+     */
+    private void trimItemCache(boolean spill) {
         try {
             int sizeTarget = mListeners.isEmpty() ? MAX_ITEM_CACHE_WITHOUT_LISTENERS : MAX_ITEM_CACHE_WITH_LISTENERS;
             if (galSyncMailbox) {
@@ -10065,6 +10154,9 @@ public class Mailbox implements MailboxStore {
 
                 try {
                     uncache(overflow[i]);
+                    if (spill) {
+                        SharedItemCache.getInstance().put(this, overflow[i]);
+                    }
                 } catch (ServiceException e) {
                 }
             }
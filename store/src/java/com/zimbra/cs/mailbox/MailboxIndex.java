@@ -21,6 +21,7 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
@@ -963,7 +964,10 @@ public final class MailboxIndex {
         for (MailItem item : indexed) {
             ids.add(item.getId());
         }
-        DbMailItem.setIndexIds(mailbox.getOperationConnection(), mailbox, ids);
+        // only mark items indexed in the database once the store says their documents survive a crash, any others
+        // are still searchable and are marked by a later batch after the store commits them
+        DbMailItem.setIndexIds(mailbox.getOperationConnection(), mailbox,
+                new ArrayList<Integer>(indexStore.takeDurableIds(ids)));
         for (MailItem item : indexed) {
             item.mData.indexId = item.getId();
             removeDeferredId(item.getId());
@@ -1096,6 +1100,53 @@ public final class MailboxIndex {
         return result;
     }
 
+    /**
+     * Answers a Lucene-first search chunk, i.e. {@code constraints} restricted to {@link DbSearchConstraints.Leaf#indexIds},
+     * from the item cache instead of the database. {@code constraints} must be
+     * {@link DbSearchConstraints.Leaf#isCoverable() coverable} and {@code sort} must be by date.
+     *
+     * @return results in {@code sort} order, or null if an index ID could not be resolved with certainty from the cache
+     *  and the chunk has to be searched in the database
+     */
+    public List<DbSearch.Result> searchCached(DbSearchConstraints.Leaf constraints, final SortBy sort)
+            throws ServiceException {
+        List<DbSearch.Result> result = new ArrayList<DbSearch.Result>(constraints.indexIds.size());
+        boolean resolved = true;
+        boolean success = false;
+        try {
+            mailbox.beginReadTransaction("searchCached", null);
+            for (int indexId : constraints.indexIds) {
+                // copies sharing an index entry are flagged COPIED (see MailItem.copy()) and can only be found in the DB
+                MailItem item = mailbox.getCachedItem(indexId);
+                if (item == null || item.getIndexId() != indexId || item.isTagged(Flag.FlagInfo.COPIED)) {
+                    resolved = false;
+                    break;
+                }
+                if (constraints.matches(item)) {
+                    result.add(new ItemSearchResult(item, item.getDate()));
+                }
+            }
+            success = true;
+        } finally {
+            mailbox.endTransaction(success);
+        }
+        if (!resolved) {
+            return null;
+        }
+        // same order as DbSearch: by date, then by ID
+        Collections.sort(result, new Comparator<DbSearch.Result>() {
+            @Override
+            public int compare(DbSearch.Result r1, DbSearch.Result r2) {
+                int cmp = Long.compare((Long) r1.getSortValue(), (Long) r2.getSortValue());
+                if (cmp == 0) {
+                    cmp = Integer.compare(r1.getId(), r2.getId());
+                }
+                return sort.getDirection() == SortBy.Direction.DESC ? -cmp : cmp;
+            }
+        });
+        return result;
+    }
+
     /* These regexes really shouldn't be complicated - so this value should be way more than enough.
      * Leaving hard coded.  This is the number of accesses allowed to the underlying CharSequence before
      * deciding that too much resource has been used.
@@ -19,6 +19,7 @@ package com.zimbra.cs.mailbox;
 import java.util.EmptyStackException;
 import java.util.Stack;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
 
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
 
@@ -29,6 +30,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.lock.DebugZLock;
 import com.zimbra.cs.mailbox.lock.ZLock;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
 import com.zimbra.cs.zookeeper.CuratorManager;
 
@@ -39,6 +41,13 @@ import com.zimbra.cs.zookeeper.CuratorManager;
  * thrown. {@code Mailbox.beginTransaction()}) internally acquires the mailbox lock and it's released by
  * {@code Mailbox.endTransaction()}, so that you don't have to explicitly call {@link #lock()} and {@link #release()}
  * wrapping a mailbox transaction.
+ * <p>
+ * When {@code zimbra_mailbox_lock_optimistic_read} is enabled, short read-only checks can be run through
+ * {@link #readOptimistically(OptimisticRead)}, which does not touch the shared lock at all unless a writer held or
+ * acquired the mailbox lock while the check was running.  Only the "nothing changed since the last sync" checks of
+ * the mailbox sync methods use it today.  Item fetches, searches and IMAP FETCH cannot: they load items into the
+ * mailbox caches, go to the database or index, or walk {@code ImapFolder} state that is only safe to read under
+ * the lock, none of which an {@link OptimisticRead} may do.
  *
  */
 public final class MailboxLock {
@@ -46,6 +55,20 @@ public final class MailboxLock {
     private InterProcessSemaphoreMutex dLock = null;
     private final Stack<Boolean> lockStack = new Stack<Boolean>();
     private Mailbox mbox;
+    /** write-locked for as long as any thread holds the mailbox write lock; used only for optimistic read stamps */
+    private final StampedLock writeStamp = new StampedLock();
+    private long writeStampValue = 0L;
+    /** time the current thread acquired its outermost hold on this lock, for the lock hold time stats */
+    private final ThreadLocal<Long> holdStart = new ThreadLocal<Long>();
+
+    /**
+     * A read-only piece of work that may be executed without holding the mailbox lock.  It must not modify the
+     * mailbox or any cache and must tolerate observing state that is being changed concurrently, as its result is
+     * discarded (and the work redone under the shared lock) if a writer interfered.
+     */
+    public interface OptimisticRead<T> {
+        T read() throws ServiceException;
+    }
 
     public MailboxLock(String id, Mailbox mbox) {
         if (Zimbra.isAlwaysOn()) {
@@ -168,15 +191,7 @@ public final class MailboxLock {
                     promote();
                     return;
                 }
-                lockStack.push(write);
-                try {
-                    acquireDistributedLock(write);
-                } catch (ServiceException e) {
-                    release();
-                    LockFailedException lfe = new LockFailedException("lockdb");
-                    lfe.logStackTrace();
-                    throw lfe;
-                }
+                locked(write);
                 return;
             }
             int queueLength = zLock.getQueueLength();
@@ -191,21 +206,17 @@ public final class MailboxLock {
                 throw e;
             }
             // Wait for the lock up to the timeout.
-            if (tryLockWithTimeout(write)) {
+            ZimbraPerf.COUNTER_MBOX_LOCK_QUEUE.increment(queueLength);
+            long waitStart = ZimbraPerf.STOPWATCH_MBOX_LOCK_WAIT.start();
+            boolean acquired = tryLockWithTimeout(write);
+            ZimbraPerf.STOPWATCH_MBOX_LOCK_WAIT.stop(waitStart);
+            if (acquired) {
                 if (mbox.requiresWriteLock() && !isWriteLockedByCurrentThread()) {
                     //writer finished a purge while we waited
                     promote();
                     return;
                 }
-                lockStack.push(write);
-                try {
-                    acquireDistributedLock(write);
-                } catch (ServiceException e) {
-                    release();
-                    LockFailedException lfe = new LockFailedException("lockdb");
-                    lfe.logStackTrace();
-                    throw lfe;
-                }
+                locked(write);
                 return;
             }
             LockFailedException e = new LockFailedException("timeout");
@@ -218,6 +229,93 @@ public final class MailboxLock {
         }
     }
 
+    /**
+     * Bookkeeping after the underlying read or write lock has been acquired by the current thread.
+     */
+    private void locked(boolean write) {
+        lockStack.push(write);
+        if (getHoldCount() == 1) {
+            holdStart.set(System.currentTimeMillis());
+        }
+        if (write && zLock.getWriteHoldCount() == 1) {
+            // we are the only writer, so this never blocks; it just invalidates outstanding optimistic reads
+            writeStampValue = writeStamp.writeLock();
+        }
+        try {
+            acquireDistributedLock(write);
+        } catch (ServiceException e) {
+            release();
+            LockFailedException lfe = new LockFailedException("lockdb");
+            lfe.logStackTrace();
+            throw lfe;
+        }
+    }
+
+    /** returned by {@link #tryOptimisticRead} when the read could not be validated */
+    private static final Object NOT_VALIDATED = new Object();
+
+    /**
+     * Runs {@code reader} without acquiring the mailbox lock if optimistic reads are enabled, validating afterwards
+     * that no writer held the lock in the meantime and that the mailbox change sequence did not move.  On conflict,
+     * or if optimistic reads are disabled or cannot be used right now, {@code reader} is run again under the shared
+     * lock.
+     */
+    public <T> T readOptimistically(OptimisticRead<T> reader) throws ServiceException {
+        Object result = tryOptimisticRead(reader);
+        if (result != NOT_VALIDATED) {
+            return cast(result);
+        }
+        lock(false);
+        try {
+            return reader.read();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Like {@link #readOptimistically(OptimisticRead)}, but returns {@code fallback} instead of taking the shared
+     * lock when the optimistic read cannot be used or validated.  This is for callers that lock the mailbox right
+     * afterwards anyway and can redo the check under that lock, rather than acquiring it twice.  If the current
+     * thread already holds the lock, {@code reader} simply runs under it.
+     */
+    public <T> T readOptimistically(OptimisticRead<T> reader, T fallback) throws ServiceException {
+        if (getHoldCount() > 0) {
+            return reader.read();
+        }
+        Object result = tryOptimisticRead(reader);
+        return result == NOT_VALIDATED ? fallback : MailboxLock.<T>cast(result);
+    }
+
+    private Object tryOptimisticRead(OptimisticRead<?> reader) throws ServiceException {
+        if (!LC.zimbra_mailbox_lock_optimistic_read.booleanValue() || getHoldCount() > 0 || mbox.requiresWriteLock()) {
+            return NOT_VALIDATED;
+        }
+        long stamp = writeStamp.tryOptimisticRead();
+        if (stamp != 0L) {
+            int changeId = mbox.getLastChangeID();
+            try {
+                Object result = reader.read();
+                if (writeStamp.validate(stamp) && changeId == mbox.getLastChangeID()) {
+                    ZimbraPerf.COUNTER_MBOX_LOCK_OPTIMISTIC.increment(100);
+                    return result;
+                }
+            } catch (ServiceException | RuntimeException e) {
+                if (writeStamp.validate(stamp) && changeId == mbox.getLastChangeID()) {
+                    throw e;
+                }
+                // a concurrent writer may have caused the failure; treat it as a conflict
+            }
+        }
+        ZimbraPerf.COUNTER_MBOX_LOCK_OPTIMISTIC.increment(0);
+        return NOT_VALIDATED;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object result) {
+        return (T) result;
+    }
+
     public void release() {
         Boolean write = false;
         try {
@@ -234,8 +332,18 @@ public final class MailboxLock {
         ZimbraLog.mailbox.trace("RELEASE %s", (write ? "WRITE" : "READ"));
 
         releaseDistributedLock(write);
+        if (getHoldCount() == 1) {
+            Long start = holdStart.get();
+            if (start != null) {
+                ZimbraPerf.STOPWATCH_MBOX_LOCK_HOLD.stop(start);
+                holdStart.remove();
+            }
+        }
         if (write) {
             assert(zLock.getWriteHoldCount() > 0);
+            if (zLock.getWriteHoldCount() == 1) {
+                writeStamp.unlockWrite(writeStampValue);
+            }
             zLock.writeLock().unlock();
         } else {
             zLock.readLock().unlock();
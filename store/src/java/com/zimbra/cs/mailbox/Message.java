@@ -51,6 +51,7 @@ import com.zimbra.cs.account.CalendarResource;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.Rights.User;
 import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.imap.ImapMessage;
 import com.zimbra.cs.index.IndexDocument;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.mailbox.MailItem.CustomMetadata.CustomMetadataList;
@@ -212,6 +213,7 @@ public class Message extends MailItem {
     private DraftInfo draftInfo;
     private ArrayList<CalendarItemInfo> calendarItemInfos;
     private String calendarIntendedFor;
+    private Metadata imapStructure;
 
     Message(Mailbox mbox, UnderlyingData ud) throws ServiceException {
         this(mbox, ud, false);
@@ -253,6 +255,14 @@ public class Message extends MailItem {
         return Strings.nullToEmpty(fragment);
     }
 
+    /** Returns the IMAP BODYSTRUCTURE and ENVELOPE serialized when the
+     *  message was delivered, or {@code null} if there are none.
+     *
+     * @see com.zimbra.cs.imap.ImapMessage#precomputeStructure */
+    public Metadata getImapStructure() {
+        return imapStructure;
+    }
+
     /**
      * Returns the normalized subject of the message.  This is done by taking the {@code Subject:} header and removing
      * prefixes (e.g. {@code "Re:"}) and suffixes (e.g. {@code "(fwd)"}) and the like.
@@ -522,15 +532,15 @@ public class Message extends MailItem {
 
     static Message create(int id, Folder folder, Conversation conv, ParsedMessage pm, StagedBlob staged,
                           boolean unread, int flags, Tag.NormalizedTags ntags, DraftInfo dinfo,
-                          boolean noICal, ZVCalendar cal, CustomMetadataList extended)
+                          boolean noICal, ZVCalendar cal, CustomMetadataList extended, Metadata imapStructure)
     throws ServiceException {
         return createInternal(id, folder, conv, pm, staged, unread, flags, ntags,
-                              dinfo, noICal, cal, extended, new MessageCreateFactory());
+                              dinfo, noICal, cal, extended, imapStructure, new MessageCreateFactory());
     }
 
     static Message createInternal(int id, Folder folder, Conversation conv, ParsedMessage pm, StagedBlob staged,
             boolean unread, int flags, Tag.NormalizedTags ntags, DraftInfo dinfo, boolean noICal, ZVCalendar cal,
-            CustomMetadataList extended, MessageCreateFactory fact)
+            CustomMetadataList extended, Metadata imapStructure, MessageCreateFactory fact)
     throws ServiceException {
         if (folder == null || !folder.canContain(Type.MESSAGE)) {
             throw MailServiceException.CANNOT_CONTAIN(folder, Type.MESSAGE);
@@ -592,7 +602,8 @@ public class Message extends MailItem {
         data.setFlags(flags & (Flag.FLAGS_MESSAGE | Flag.FLAGS_GENERIC));
         data.setTags(ntags);
         data.setSubject(pm.getNormalizedSubject());
-        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()), dinfo, null, null).toString();
+        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()), dinfo, null, null)
+                .put(Metadata.FN_IMAP_STRUCTURE, imapStructure).toString();
         data.unreadCount = unread ? 1 : 0;
         data.contentChanged(mbox);
 
@@ -1475,9 +1486,12 @@ public class Message extends MailItem {
             mData.size = newSize;
         }
 
+        // the blob may have changed, so the precomputed IMAP structure has to follow it
+        imapStructure = ImapMessage.precomputeStructure(pm, getDigest());
+
         // rewrite the DB row to reflect our new view
         saveData(new DbMailItem(mMailbox), encodeMetadata(mRGBColor, mMetaVersion, mVersion, mExtendedData, pm, fragment,
-                draftInfo, calendarItemInfos, calendarIntendedFor));
+                draftInfo, calendarItemInfos, calendarIntendedFor).put(Metadata.FN_IMAP_STRUCTURE, imapStructure));
 
         if (parent instanceof VirtualConversation) {
             ((VirtualConversation) parent).recalculateMetadata(Collections.singletonList(this));
@@ -1531,6 +1545,7 @@ public class Message extends MailItem {
             }
         }
         calendarIntendedFor = meta.get(Metadata.FN_CAL_INTENDED_FOR, null);
+        imapStructure = meta.getMap(Metadata.FN_IMAP_STRUCTURE, true);
 
         Metadata draftMeta = meta.getMap(Metadata.FN_DRAFT, true);
         if (draftMeta != null) {
@@ -1552,7 +1567,8 @@ public class Message extends MailItem {
     @Override
     Metadata encodeMetadata(Metadata meta) {
         return encodeMetadata(meta, mRGBColor, mMetaVersion, mVersion, mExtendedData, sender, recipients, fragment,
-                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor);
+                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor)
+                .put(Metadata.FN_IMAP_STRUCTURE, imapStructure);
     }
 
     private static Metadata encodeMetadata(Color color, int metaVersion, int version, CustomMetadataList extended, ParsedMessage pm,
@@ -18,14 +18,24 @@ package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -46,21 +56,66 @@ public class MessageCache {
 
     private static final Log sLog = LogFactory.getLog(MessageCache.class);
 
+    /**
+     * Cached structure for one digest.  <tt>expanded</tt>, <tt>expandedSize</tt> and
+     * <tt>size</tt> are guarded by the node's monitor.
+     */
     private static final class CacheNode {
-        CacheNode()  { }
-        MimeMessage message;
+        CacheNode(MimeMessage message, long size) {
+            this.message = message;
+            this.size = size;
+        }
+        final MimeMessage message;
         MimeMessage expanded;
-        Map<Integer, String> smimeAccessInfo = new HashMap<Integer, String>();
+        final Map<Integer, String> smimeAccessInfo = Collections.synchronizedMap(new HashMap<Integer, String>());
         long size = 0;
+        long expandedSize = 0;
     }
 
-    /** Cache mapping message digest to the corresponding message structure. */
-    private static Map<String, CacheNode> sCache = new LinkedHashMap<String, CacheNode>(150, (float) 0.75, true);
-    /** Maximum number of items in {@link #sCache}. */
-    private static int sMaxCacheSize;
+    /** Cache mapping message digest to the corresponding message structure.  Concurrent
+     *  requests for a digest that isn't cached wait for a single load. */
+    private static volatile Cache<String, CacheNode> sCache;
+    /** Nodes whose expanded message differs from the original.  Bounded separately from
+     *  {@link #sCache}, so that converted and decrypted copies can't crowd out the originals;
+     *  an entry aging out of here only drops the node's expanded message. */
+    private static volatile Cache<String, CacheNode> sExpanded;
     /** Number of bytes of message data stored in the cache.  This value includes only
      * messages that are read into memory, not streamed from disk. */
-    private volatile static long sDataSize = 0;
+    private static final AtomicLong sDataSize = new AtomicLong();
+
+    private static final RemovalListener<String, CacheNode> NODE_REMOVED = new RemovalListener<String, CacheNode>() {
+        @Override
+        public void onRemoval(RemovalNotification<String, CacheNode> notification) {
+            CacheNode node = notification.getValue();
+            if (node == null) {
+                return;
+            }
+            if (notification.wasEvicted()) {
+                sLog.debug("Pruning digest %s from the cache.", notification.getKey());
+            }
+            sExpanded.asMap().remove(notification.getKey(), node);
+            synchronized (node) {
+                sDataSize.addAndGet(-(node.size + node.expandedSize));
+                node.size = 0;
+                node.expandedSize = 0;
+            }
+        }
+    };
+
+    private static final RemovalListener<String, CacheNode> EXPANDED_REMOVED = new RemovalListener<String, CacheNode>() {
+        @Override
+        public void onRemoval(RemovalNotification<String, CacheNode> notification) {
+            CacheNode node = notification.getValue();
+            if (node == null || notification.getCause() == RemovalCause.REPLACED) {
+                return;
+            }
+            synchronized (node) {
+                sDataSize.addAndGet(-node.expandedSize);
+                node.expandedSize = 0;
+                node.expanded = null;
+            }
+        }
+    };
 
     static {
         try {
@@ -70,26 +125,45 @@ public class MessageCache {
         }
     }
 
-    public static void loadSettings() throws ServiceException {
-        sMaxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
-        ZimbraLog.cache.info("setting message cache size to " + sMaxCacheSize);
+    /**
+     * Sizes the cache from <tt>zimbraMessageCacheSize</tt>.  Cached messages are carried
+     * over to the resized cache.
+     */
+    public static synchronized void loadSettings() throws ServiceException {
+        int maxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
+        int maxExpandedSize = (int) ((long) maxCacheSize * LC.zimbra_message_cache_expanded_percent.intValue() / 100);
+        ZimbraLog.cache.info("setting message cache size to " + maxCacheSize + ", expanded messages to " + maxExpandedSize);
+
+        Cache<String, CacheNode> cache = CacheBuilder.newBuilder()
+            .maximumSize(maxCacheSize).removalListener(NODE_REMOVED).build();
+        Cache<String, CacheNode> expanded = CacheBuilder.newBuilder()
+            .maximumSize(maxExpandedSize).removalListener(EXPANDED_REMOVED).build();
+        Cache<String, CacheNode> oldCache = sCache;
+        Cache<String, CacheNode> oldExpanded = sExpanded;
+        sExpanded = expanded;
+        sCache = cache;
+        if (oldCache != null) {
+            expanded.putAll(oldExpanded.asMap());
+            cache.putAll(oldCache.asMap());
+        }
     }
 
     /** Returns the number of messages in the cache. */
     public static int getSize() {
-        synchronized (sCache) {
-            return sCache.size();
-        }
+        return (int) sCache.size();
+    }
+
+    /** Returns the number of cached messages that also hold an expanded copy. */
+    public static int getExpandedSize() {
+        return (int) sExpanded.size();
     }
 
     public static boolean contains(String digest) {
-        synchronized (sCache) {
-            return sCache.containsKey(digest);
-        }
+        return sCache.asMap().containsKey(digest);
     }
 
     public static long getDataSize() {
-        return sDataSize;
+        return sDataSize.get();
     }
 
     /** Uncaches any data associated with the given item.  This must be done
@@ -124,12 +198,8 @@ public class MessageCache {
      *  stale data. */
     public static void purge(String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.remove(digest);
-                if (node != null) {
-                    sLog.debug("Purged digest %s from the message cache.", digest);
-                    sDataSize -= node.size;
-                }
+            if (sCache.asMap().remove(digest) != null) {
+                sLog.debug("Purged digest %s from the message cache.", digest);
             }
         }
     }
@@ -148,43 +218,44 @@ public class MessageCache {
      * @see #getItemContent()
      * @see com.zimbra.cs.mime.TnefConverter
      * @see com.zimbra.cs.mime.UUEncodeConverter */
-    static MimeMessage getMimeMessage(MailItem item, boolean expand) throws ServiceException {
+    static MimeMessage getMimeMessage(final MailItem item, boolean expand) throws ServiceException {
         String digest = item.getDigest();
         CacheNode cnode = null;
         boolean cacheHit = true;
-        boolean newNode = false;
-        InputStream in = null;
+        final boolean[] loaded = new boolean[1];
         int mboxId = item.getMailboxId();
         boolean isEncrypted = false;
-
-        synchronized (sCache) {
-            cnode = sCache.get(digest);
-            if (cnode == null) {
-                newNode = true;
-                cnode = new CacheNode();
-            }
-        }
+        boolean newlyExpanded = false;
+        MimeMessage result;
 
         try {
-            if (cnode.message == null) {
-                sLog.debug("Loading MimeMessage for item %d.", item.getId());
-                cacheHit = false;
-                try {
-                    in = fetchFromStore(item);
-                    cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
-                    if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
-                        cnode.size = item.getSize();
-                        // Not the best place to increment the data size, but cacheItem()
-                        // won't get called if we're expanding a message for an existing
-                        // node.
-                        sDataSize += cnode.size;
-                    }
-                } finally {
-                    ByteUtil.closeStream(in);
+            cnode = sCache.get(digest, new Callable<CacheNode>() {
+                @Override
+                public CacheNode call() throws Exception {
+                    loaded[0] = true;
+                    return loadNode(item);
                 }
+            });
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            } else if (cause instanceof IOException) {
+                throw ServiceException.FAILURE("IOException while retrieving content for item " + item.getId(), cause);
+            } else if (cause instanceof MessagingException) {
+                throw ServiceException.FAILURE("MessagingException while creating MimeMessage for item " + item.getId(), cause);
             }
+            throw ServiceException.FAILURE("error loading MimeMessage for item " + item.getId(), cause);
+        }
+        if (loaded[0]) {
+            cacheHit = false;
+        }
 
-            if (expand) {
+        if (!expand) {
+            result = cnode.message;
+        } else {
+            // Concurrent expansions of the same message wait for the first one.
+            synchronized (cnode) {
                 sLog.debug("Expanding MimeMessage for item %d.", item.getId());
                 try {
                     MimeMessage decryptedMimeMessage = null;
@@ -209,24 +280,25 @@ public class MessageCache {
                     //expand if the message has not yet been expanded or if the message is decrypted successfully
                     if (cnode.expanded == null || (decryptedMimeMessage != null && cnode.expanded != decryptedMimeMessage)) {
                         cacheHit = false;
-                        expandMessage(item, cnode, decryptedMimeMessage);
+                        newlyExpanded = expandMessage(item, cnode, decryptedMimeMessage);
                     }
                 } catch (Exception e) {
                     // if the conversion bombs for any reason, revert to the original
                     sLog.warn("MIME converter failed for message %d.  Reverting to original.", item.getId(), e);
                     cnode.expanded = cnode.message;
                 }
-            }
 
-            if (newNode) {
-                cacheItem(digest, cnode);
+                if (isEncrypted && (!cnode.smimeAccessInfo.containsKey(mboxId)
+                    || cnode.smimeAccessInfo.get(mboxId) != null)) {
+                    result = cnode.message;
+                } else {
+                    result = cnode.expanded;
+                }
+            }
+            if (newlyExpanded && sCache.asMap().get(digest) == cnode) {
+                // Outside the node's monitor, since this may evict (and lock) another node.
+                sExpanded.put(digest, cnode);
             }
-        } catch (IOException e) {
-            throw ServiceException.FAILURE("IOException while retrieving content for item " + item.getId(), e);
-        } catch (MessagingException e) {
-            throw ServiceException.FAILURE("MessagingException while creating MimeMessage for item " + item.getId(), e);
-        } finally {
-            ByteUtil.closeStream(in);
         }
 
         if (cacheHit) {
@@ -236,15 +308,25 @@ public class MessageCache {
             sLog.debug("Cache miss for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(0);
         }
+        return result;
+    }
 
-        if (expand) {
-            if (isEncrypted && (!cnode.smimeAccessInfo.containsKey(mboxId)
-                || cnode.smimeAccessInfo.get(mboxId) != null)) {
-                return cnode.message;
+    private static CacheNode loadNode(MailItem item) throws ServiceException, IOException, MessagingException {
+        sLog.debug("Loading MimeMessage for item %d.", item.getId());
+        long start = ZimbraPerf.STOPWATCH_MSG_CACHE_LOAD.start();
+        InputStream in = null;
+        try {
+            in = fetchFromStore(item);
+            MimeMessage message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
+            long size = 0;
+            if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
+                size = item.getSize();
+                sDataSize.addAndGet(size);
             }
-            return cnode.expanded;
-        } else {
-            return cnode.message;
+            return new CacheNode(message, size);
+        } finally {
+            ByteUtil.closeStream(in);
+            ZimbraPerf.STOPWATCH_MSG_CACHE_LOAD.stop(start);
         }
     }
 
@@ -266,7 +348,11 @@ public class MessageCache {
         return false;
     }
 
-    private static void expandMessage(MailItem item, CacheNode cnode, MimeMessage decryptedMimeMessage)
+    /**
+     * Expands the node's message.  Must be called with the node locked.
+     * @return whether the expanded message differs from the original
+     */
+    private static boolean expandMessage(MailItem item, CacheNode cnode, MimeMessage decryptedMimeMessage)
         throws MessagingException, ServiceException {
         MimeMessage mimeToExpand = cnode.message;
         if (decryptedMimeMessage != null) {
@@ -286,9 +372,11 @@ public class MessageCache {
         expander.expand();
         cnode.expanded = expander.getExpanded();
         if (cnode.expanded != cnode.message) {
-            sDataSize += cnode.size;
-            cnode.size *= 2;
+            sDataSize.addAndGet(cnode.size - cnode.expandedSize);
+            cnode.expandedSize = cnode.size;
+            return true;
         }
+        return false;
     }
 
     private static MimeMessage doDecryption(MailItem item, CacheNode cnode, int mboxId) {
@@ -353,48 +441,30 @@ public class MessageCache {
      * @param expanded the expanded message
      */
     public static void cacheMessage(String digest, MimeMessage original, MimeMessage expanded) {
+        if (original == null) {
+            return;
+        }
         sLog.debug("Caching existing MimeMessage, digest=%s.", digest);
-        CacheNode cnode = new CacheNode();
-        cnode.message = original;
+        CacheNode cnode = new CacheNode(original, 0);
         cnode.expanded = expanded;
-        cacheItem(digest, cnode);
-    }
-
-    private static void cacheItem(String digest, CacheNode cnode) {
-        sLog.debug("Caching MimeMessage for digest %s.", digest);
-        synchronized (sCache) {
-            sCache.put(digest, cnode);
-            // Cache data size was incremented in getMimeMessage().
-
-            // trim the cache if needed
-            if (sCache.size() > sMaxCacheSize) {
-                Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-                while (sCache.size() > sMaxCacheSize && it.hasNext()) {
-                    Map.Entry<String, CacheNode> entry = it.next();
-                    sLog.debug("Pruning digest %s from the cache.", entry.getKey());
-                    it.remove();
-                    sDataSize -= entry.getValue().size;
-                }
-            }
+        sCache.put(digest, cnode);
+        if (expanded != null && expanded != original) {
+            sExpanded.put(digest, cnode);
         }
     }
 
     public static void removeDecryptedMessages(int mboxId) {
         sLog.debug("Start removing decrypted messages for mboxId=%d", mboxId);
-        synchronized (sCache) {
-            Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, CacheNode> entry = it.next();
-                CacheNode cacheNode = entry.getValue();
-                try {
-                    if (Mime.isEncrypted(cacheNode.message.getContentType())
-                        && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
-                        cacheNode.smimeAccessInfo.remove(mboxId);
-                    }
-                } catch (MessagingException e) {
-                    sLog.warn("MessagingException while checking content type for cache node with digest = %s",
-                        entry.getKey(), e);
+        for (Map.Entry<String, CacheNode> entry : sCache.asMap().entrySet()) {
+            CacheNode cacheNode = entry.getValue();
+            try {
+                if (Mime.isEncrypted(cacheNode.message.getContentType())
+                    && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
+                    cacheNode.smimeAccessInfo.remove(mboxId);
                 }
+            } catch (MessagingException e) {
+                sLog.warn("MessagingException while checking content type for cache node with digest = %s",
+                    entry.getKey(), e);
             }
         }
         sLog.debug("Removed decrypted messages for mboxId=%d", mboxId);
@@ -402,11 +472,9 @@ public class MessageCache {
 
     public static String getDecryptionError(int id, String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.get(digest);
-                if (node != null) {
-                    return node.smimeAccessInfo.get(id);
-                }
+            CacheNode node = sCache.getIfPresent(digest);
+            if (node != null) {
+                return node.smimeAccessInfo.get(id);
             }
         }
         return null;
@@ -0,0 +1,443 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Server-wide, size-bounded second level cache for {@link MailItem}s that dropped out of a mailbox's own item cache.
+ * <p>
+ * Items are stored as their encoded {@link MailItem.UnderlyingData} (the same representation that
+ * {@link MemcachedItemCache} uses), optionally outside of the Java heap, so that losing the per-mailbox cache to GC
+ * pressure or trimming does not send every lookup back to the database.  Off-heap entries live in fixed-size blocks of
+ * one direct buffer per stripe, which are reused as soon as their entry goes; a direct buffer per entry would only be
+ * freed once the GC gets around to its owner.  The cache is
+ * exclusive with the per-mailbox cache: an entry is added when the mailbox trims a clean item after a commit and is
+ * removed again as soon as the mailbox loads it, so a live (mutable) {@link MailItem} and its encoded copy never
+ * coexist.
+ * <p>
+ * Eviction is deterministic: the cache is split into lock stripes by mailbox id, each with an equal share of
+ * {@code zimbra_mailbox_shared_item_cache_size} bytes.  Within a stripe the least recently used mailbox gives up its
+ * least recently used item first, and no single mailbox may hold more than
+ * {@code zimbra_mailbox_shared_item_cache_mailbox_quota} percent of the total.
+ */
+public final class SharedItemCache {
+
+    /** rough per-entry bookkeeping cost (map entries, key boxing, uuid index) added to the encoded size */
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int STRIPES = 16;
+    /** off-heap allocation unit */
+    private static final int BLOCK_SIZE = 256;
+
+    private static SharedItemCache instance = new SharedItemCache(LC.zimbra_mailbox_shared_item_cache_size.longValue(),
+            LC.zimbra_mailbox_shared_item_cache_mailbox_quota.intValue(),
+            LC.zimbra_mailbox_shared_item_cache_offheap.booleanValue());
+
+    public static SharedItemCache getInstance() {
+        return instance;
+    }
+
+    @VisibleForTesting
+    static void setInstance(SharedItemCache cache) {
+        instance = cache;
+    }
+
+    private static final class Entry {
+        final String uuid;
+        final int parentId;
+        /** the encoded item, or null if it is stored in the stripe's slab */
+        final byte[] heap;
+        /** the slab blocks holding the encoded item, in order */
+        final int[] blocks;
+        final int length;
+        final int weight;
+
+        Entry(String uuid, int parentId, byte[] heap, int[] blocks, int length) {
+            this.uuid = uuid;
+            this.parentId = parentId;
+            this.heap = heap;
+            this.blocks = blocks;
+            this.length = length;
+            this.weight = weigh(length, uuid);
+        }
+    }
+
+    private static int weigh(int length, String uuid) {
+        return length + ENTRY_OVERHEAD + (uuid == null ? 0 : uuid.length() * 2);
+    }
+
+    /** a direct buffer carved into {@link #BLOCK_SIZE} byte blocks, with a stack of the free ones */
+    private static final class Slab {
+        final ByteBuffer buf;
+        final int[] free;
+        int freeCount;
+
+        Slab(int blocks) {
+            buf = ByteBuffer.allocateDirect(blocks * BLOCK_SIZE);
+            free = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                free[i] = blocks - 1 - i;
+            }
+            freeCount = blocks;
+        }
+
+        static int blocksFor(int length) {
+            return Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        }
+
+        int[] allocate(int length) {
+            int[] blocks = new int[blocksFor(length)];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = free[--freeCount];
+            }
+            return blocks;
+        }
+
+        void release(int[] blocks) {
+            for (int block : blocks) {
+                free[freeCount++] = block;
+            }
+        }
+
+        void write(int[] blocks, byte[] data) {
+            ByteBuffer dup = buf.duplicate();
+            for (int i = 0, off = 0; off < data.length; i++, off += BLOCK_SIZE) {
+                dup.clear();
+                dup.position(blocks[i] * BLOCK_SIZE);
+                dup.put(data, off, Math.min(BLOCK_SIZE, data.length - off));
+            }
+        }
+
+        byte[] read(int[] blocks, int length) {
+            byte[] data = new byte[length];
+            ByteBuffer dup = buf.duplicate();
+            for (int i = 0, off = 0; off < length; i++, off += BLOCK_SIZE) {
+                dup.clear();
+                dup.position(blocks[i] * BLOCK_SIZE);
+                dup.get(data, off, Math.min(BLOCK_SIZE, length - off));
+            }
+            return data;
+        }
+    }
+
+    /** one mailbox's entries, least recently used first */
+    private static final class Segment {
+        final LinkedHashMap<Integer, Entry> byId = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+        final Map<String, Integer> uuid2id = new HashMap<String, Integer>();
+        long weight = 0;
+    }
+
+    private static final class Stripe {
+        /** mailbox id to segment, least recently used mailbox first */
+        final LinkedHashMap<Integer, Segment> segments = new LinkedHashMap<Integer, Segment>(16, 0.75f, true);
+        long weight = 0;
+        int count = 0;
+        /** off-heap storage, allocated on first use */
+        Slab slab;
+    }
+
+    private final Stripe[] stripes;
+    private final long stripeCapacity;
+    private final int slabBlocks;
+    private final long mailboxQuota;
+    private final boolean offHeap;
+
+    @VisibleForTesting
+    SharedItemCache(long capacity, int mailboxQuotaPercent, boolean offHeap) {
+        this.stripeCapacity = Math.max(0L, capacity) / STRIPES;
+        this.mailboxQuota = Math.max(1L, capacity * Math.max(1, Math.min(100, mailboxQuotaPercent)) / 100);
+        this.offHeap = offHeap;
+        this.slabBlocks = (int) Math.min(stripeCapacity / BLOCK_SIZE, Integer.MAX_VALUE / BLOCK_SIZE);
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        if (isEnabled()) {
+            ZimbraLog.cache.info("shared item cache: %d bytes, %d bytes per mailbox, %s", capacity, mailboxQuota,
+                    offHeap ? "off-heap" : "on-heap");
+        }
+    }
+
+    public boolean isEnabled() {
+        return stripeCapacity > 0;
+    }
+
+    private Stripe stripe(int mailboxId) {
+        return stripes[(mailboxId & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    /**
+     * Stores an encoded copy of a clean item that the mailbox is about to drop from its own cache.
+     */
+    void put(Mailbox mbox, MailItem item) {
+        if (!isEnabled() || item.getId() <= 0 || item instanceof Folder || item instanceof Tag
+                || item instanceof VirtualConversation) {
+            return;
+        }
+        String uuid = item.getUuid();
+        byte[] encoded = item.serializeUnderlyingData().toString().getBytes(StandardCharsets.UTF_8);
+        int weight = weigh(encoded.length, uuid);
+        if (weight > mailboxQuota || weight > stripeCapacity
+                || (offHeap && Slab.blocksFor(encoded.length) > slabBlocks)) {
+            return;
+        }
+        int mailboxId = mbox.getId();
+        Stripe stripe = stripe(mailboxId);
+        int evicted = 0;
+        synchronized (stripe) {
+            Segment segment = stripe.segments.get(mailboxId);
+            if (segment != null) {
+                Entry old = segment.byId.remove(item.getId());
+                if (old != null) {
+                    unlink(stripe, segment, old);
+                }
+            }
+            Entry entry;
+            if (offHeap) {
+                if (stripe.slab == null) {
+                    stripe.slab = new Slab(slabBlocks);
+                }
+                // block rounding can run the slab dry before the byte budget is reached
+                Iterator<Segment> it = stripe.segments.values().iterator();
+                while (stripe.slab.freeCount < Slab.blocksFor(encoded.length) && it.hasNext()) {
+                    Segment victim = it.next();
+                    while (stripe.slab.freeCount < Slab.blocksFor(encoded.length) && evictEldest(stripe, victim)) {
+                        evicted++;
+                    }
+                    if (victim.byId.isEmpty()) {
+                        it.remove();
+                    }
+                }
+                int[] blocks = stripe.slab.allocate(encoded.length);
+                stripe.slab.write(blocks, encoded);
+                entry = new Entry(uuid, item.getParentId(), null, blocks, encoded.length);
+            } else {
+                entry = new Entry(uuid, item.getParentId(), encoded, null, encoded.length);
+            }
+            segment = stripe.segments.get(mailboxId);
+            if (segment == null) {
+                segment = new Segment();
+                stripe.segments.put(mailboxId, segment);
+            }
+            segment.byId.put(item.getId(), entry);
+            if (entry.uuid != null) {
+                segment.uuid2id.put(entry.uuid, item.getId());
+            }
+            segment.weight += entry.weight;
+            stripe.weight += entry.weight;
+            stripe.count++;
+
+            // per-mailbox fairness first, so that one busy mailbox cannot flush everybody else
+            while (segment.weight > mailboxQuota && evictEldest(stripe, segment)) {
+                evicted++;
+            }
+            // then the stripe's byte budget, starting with the least recently used mailbox
+            Iterator<Segment> it = stripe.segments.values().iterator();
+            while (stripe.weight > stripeCapacity && it.hasNext()) {
+                Segment victim = it.next();
+                while (stripe.weight > stripeCapacity && evictEldest(stripe, victim)) {
+                    evicted++;
+                }
+                if (victim.byId.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        if (evicted > 0) {
+            ZimbraPerf.COUNTER_MBOX_SHARED_ITEM_CACHE_EVICT.increment(evicted);
+        }
+    }
+
+    private static boolean evictEldest(Stripe stripe, Segment segment) {
+        Iterator<Map.Entry<Integer, Entry>> it = segment.byId.entrySet().iterator();
+        if (!it.hasNext()) {
+            return false;
+        }
+        Entry eldest = it.next().getValue();
+        it.remove();
+        unlink(stripe, segment, eldest);
+        return true;
+    }
+
+    /** Accounts for an entry that was just removed from the segment's map, and frees its blocks. */
+    private static void unlink(Stripe stripe, Segment segment, Entry entry) {
+        if (entry.uuid != null) {
+            segment.uuid2id.remove(entry.uuid);
+        }
+        if (entry.blocks != null) {
+            stripe.slab.release(entry.blocks);
+        }
+        segment.weight -= entry.weight;
+        stripe.weight -= entry.weight;
+        stripe.count--;
+    }
+
+    /**
+     * Removes the item from the cache and returns its decoded data, or {@code null} if it was not cached.
+     */
+    MailItem.UnderlyingData take(int mailboxId, int itemId) {
+        if (!isEnabled()) {
+            return null;
+        }
+        byte[] encoded = null;
+        Stripe stripe = stripe(mailboxId);
+        synchronized (stripe) {
+            Segment segment = stripe.segments.get(mailboxId);
+            if (segment != null) {
+                Entry entry = segment.byId.remove(itemId);
+                if (entry != null) {
+                    // read the blocks before unlink() hands them back to the slab
+                    encoded = entry.heap != null ? entry.heap : stripe.slab.read(entry.blocks, entry.length);
+                    unlink(stripe, segment, entry);
+                }
+            }
+        }
+        ZimbraPerf.COUNTER_MBOX_SHARED_ITEM_CACHE.increment(encoded == null ? 0 : 100);
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            MailItem.UnderlyingData data = new MailItem.UnderlyingData();
+            data.deserialize(new Metadata(new String(encoded, StandardCharsets.UTF_8)));
+            return data;
+        } catch (ServiceException e) {
+            ZimbraLog.cache.warn("discarding undecodable shared item cache entry %d in mailbox %d", itemId, mailboxId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Same as {@link #take(int, int)}, looking the item up by UUID.
+     */
+    MailItem.UnderlyingData take(int mailboxId, String uuid) {
+        if (!isEnabled() || uuid == null) {
+            return null;
+        }
+        Integer itemId;
+        Stripe stripe = stripe(mailboxId);
+        synchronized (stripe) {
+            Segment segment = stripe.segments.get(mailboxId);
+            itemId = segment == null ? null : segment.uuid2id.get(uuid);
+        }
+        if (itemId == null) {
+            ZimbraPerf.COUNTER_MBOX_SHARED_ITEM_CACHE.increment(0);
+            return null;
+        }
+        return take(mailboxId, itemId);
+    }
+
+    /**
+     * Drops the item if cached.  Must be called whenever the item may have been changed behind the mailbox's cache.
+     */
+    void remove(int mailboxId, int itemId) {
+        if (!isEnabled()) {
+            return;
+        }
+        Stripe stripe = stripe(mailboxId);
+        synchronized (stripe) {
+            Segment segment = stripe.segments.get(mailboxId);
+            if (segment == null) {
+                return;
+            }
+            Entry entry = segment.byId.remove(itemId);
+            if (entry != null) {
+                unlink(stripe, segment, entry);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached children of the item.  Must be called along with {@link #remove} whenever the mailbox uncaches
+     * an item's children, since they may hold state derived from the parent.
+     */
+    void removeChildren(int mailboxId, int parentId) {
+        if (!isEnabled()) {
+            return;
+        }
+        Stripe stripe = stripe(mailboxId);
+        synchronized (stripe) {
+            Segment segment = stripe.segments.get(mailboxId);
+            if (segment == null) {
+                return;
+            }
+            for (Iterator<Entry> it = segment.byId.values().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (entry.parentId == parentId) {
+                    it.remove();
+                    unlink(stripe, segment, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops everything cached for the mailbox.
+     */
+    public void purgeMailbox(int mailboxId) {
+        if (!isEnabled()) {
+            return;
+        }
+        Stripe stripe = stripe(mailboxId);
+        synchronized (stripe) {
+            Segment segment = stripe.segments.remove(mailboxId);
+            if (segment != null) {
+                stripe.weight -= segment.weight;
+                stripe.count -= segment.byId.size();
+                if (stripe.slab != null) {
+                    for (Entry entry : segment.byId.values()) {
+                        if (entry.blocks != null) {
+                            stripe.slab.release(entry.blocks);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Returns the number of bytes accounted to cached entries. */
+    public long getWeight() {
+        long weight = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                weight += stripe.weight;
+            }
+        }
+        return weight;
+    }
+
+    /** Returns the number of cached items. */
+    public int getSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.count;
+            }
+        }
+        return size;
+    }
+}
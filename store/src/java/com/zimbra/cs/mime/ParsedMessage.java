@@ -27,12 +27,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.zip.GZIPInputStream;
 
 import javax.mail.Address;
@@ -146,7 +147,7 @@ public final class ParsedMessage {
     private CalendarPartInfo calendarPartInfo;
     private boolean wasMutated;
     private InputStream sharedStream;
-    private final Map<Mailbox, Threader> threaders = new HashMap<Mailbox, Threader>();
+    private final ConcurrentMap<Mailbox, Threader> threaders = new ConcurrentHashMap<Mailbox, Threader>();
     private String dataSourceId = null;
 
     public ParsedMessage(MimeMessage msg, boolean indexAttachments) throws ServiceException {
@@ -309,6 +310,7 @@ public final class ParsedMessage {
     }
 
     public ParsedMessage setDefaultCharset(String charset) {
+        boolean changed = !StringUtil.equal(charset, defaultCharset);
         defaultCharset = charset;
         if (mimeMessage instanceof ZMimeMessage) {
             ((ZMimeMessage) mimeMessage).setProperty("mail.mime.charset", charset);
@@ -316,7 +318,10 @@ public final class ParsedMessage {
         if (expandedMessage != mimeMessage && expandedMessage instanceof ZMimeMessage) {
             ((ZMimeMessage) expandedMessage).setProperty("mail.mime.charset", charset);
         }
-        subject = normalizedSubject = null;
+        if (changed) {
+            // concurrent LMTP deliveries with the same charset rely on the cached subject staying put
+            subject = normalizedSubject = null;
+        }
         return this;
     }
 
@@ -1379,7 +1384,10 @@ public final class ParsedMessage {
         Threader threader = threaders.get(mbox);
         if (threader == null) {
             threader = new Threader(mbox, this);
-            threaders.put(mbox, threader);
+            Threader existing = threaders.putIfAbsent(mbox, threader);
+            if (existing != null) {
+                threader = existing;
+            }
         }
         return threader;
     }
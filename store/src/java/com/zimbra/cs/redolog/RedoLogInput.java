@@ -18,9 +18,11 @@ package com.zimbra.cs.redolog;
 
 import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 import com.zimbra.common.util.ByteUtil;
 
@@ -46,6 +48,15 @@ public class RedoLogInput {
         mIN = raf;
     }
 
+    /**
+     * Reads from the buffer's position, typically a {@code MappedByteBuffer} of the whole redo log file,
+     * without copying except for the byte arrays and strings handed out to the ops.
+     */
+    public RedoLogInput(ByteBuffer buf, String path) {
+        mPath = path;
+        mIN = new ByteBufferInput(buf);
+    }
+
     /**
      * Returns the path to the redo log file, or <tt>null</tt> if this object
      * reads from an <tt>InputStream</tt>. 
@@ -63,6 +74,8 @@ public class RedoLogInput {
         if (mIN instanceof RandomAccessFile) {
             RandomAccessFile file = (RandomAccessFile) mIN;
             return file.getFilePointer();
+        } else if (mIN instanceof ByteBufferInput) {
+            return ((ByteBufferInput) mIN).mBuf.position();
         }
         return -1;
     }
@@ -102,4 +115,59 @@ public class RedoLogInput {
     //public String readLine() throws IOException { return mIN.readLine(); }
     //public char readChar(int v) throws IOException { return mIN.readChar(); }
     //public float readFloat() throws IOException { return mIN.readFloat(); }
+
+    // DataInput over a ByteBuffer; running out of bytes is an EOFException, as with a file.
+    private static final class ByteBufferInput implements DataInput {
+        final ByteBuffer mBuf;
+
+        ByteBufferInput(ByteBuffer buf) {
+            mBuf = buf;
+        }
+
+        private ByteBuffer need(int n) throws EOFException {
+            if (mBuf.remaining() < n)
+                throw new EOFException();
+            return mBuf;
+        }
+
+        @Override public void readFully(byte[] b) throws IOException { readFully(b, 0, b.length); }
+        @Override public void readFully(byte[] b, int off, int len) throws IOException { need(len).get(b, off, len); }
+        @Override public boolean readBoolean() throws IOException { return need(1).get() != 0; }
+        @Override public byte readByte() throws IOException { return need(1).get(); }
+        @Override public int readUnsignedByte() throws IOException { return need(1).get() & 0xff; }
+        @Override public short readShort() throws IOException { return need(2).getShort(); }
+        @Override public int readUnsignedShort() throws IOException { return need(2).getShort() & 0xffff; }
+        @Override public char readChar() throws IOException { return need(2).getChar(); }
+        @Override public int readInt() throws IOException { return need(4).getInt(); }
+        @Override public long readLong() throws IOException { return need(8).getLong(); }
+        @Override public float readFloat() throws IOException { return need(4).getFloat(); }
+        @Override public double readDouble() throws IOException { return need(8).getDouble(); }
+        @Override public String readUTF() throws IOException { return DataInputStream.readUTF(this); }
+
+        @Override public int skipBytes(int n) {
+            int skip = Math.max(0, Math.min(n, mBuf.remaining()));
+            mBuf.position(mBuf.position() + skip);
+            return skip;
+        }
+
+        // Redo ops never call this (RedoLogInput doesn't expose it); implemented as DataInputStream.readLine()
+        // so that this is a complete DataInput.
+        @Override public String readLine() {
+            if (!mBuf.hasRemaining())
+                return null;
+            StringBuilder line = new StringBuilder();
+            while (mBuf.hasRemaining()) {
+                int c = mBuf.get() & 0xff;
+                if (c == '\n')
+                    break;
+                if (c == '\r') {
+                    if (mBuf.hasRemaining() && mBuf.get(mBuf.position()) == '\n')
+                        mBuf.get();
+                    break;
+                }
+                line.append((char) c);
+            }
+            return line.toString();
+        }
+    }
 }
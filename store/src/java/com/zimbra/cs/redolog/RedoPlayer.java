@@ -30,6 +30,7 @@ import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.redolog.logger.FileLogReader;
@@ -61,6 +62,8 @@ public class RedoPlayer {
     private boolean mSkipDeleteOps;
     protected boolean handleMailboxConflict;
     protected ConcurrentMap<Integer, Integer> mailboxConflicts = new ConcurrentHashMap<Integer, Integer>();
+    private int mReplayThreads;
+    private ReplayExecutor mReplayer;   // replays committed ops while scanLog() is running
 
     public RedoPlayer(boolean writable) {
         this(writable, false, false, false, false);
@@ -74,6 +77,15 @@ public class RedoPlayer {
         mIgnoreReplayErrors = ignoreReplayErrors;
         mSkipDeleteOps = skipDeleteOps;
         this.handleMailboxConflict = handleMailboxConflict;
+        mReplayThreads = LC.zimbra_redolog_replay_threads.intValue();
+    }
+
+    /**
+     * Sets the number of threads used to replay ops.  Ops on the same mailbox are always replayed
+     * in log order; ops on different mailboxes are replayed concurrently when this is more than 1.
+     */
+    public void setReplayThreads(int threads) {
+        mReplayThreads = threads;
     }
 
     public void shutdown() {
@@ -115,8 +127,20 @@ public class RedoPlayer {
             long startTime, long endTime, long ignoreCommitsAtOrAfter)
     throws IOException, ServiceException {
         FileLogReader logReader = new FileLogReader(logfile, mWritable);
+        if (redoCommitted && mboxIDsMap != null) {
+            // ops of other mailboxes would be discarded by processOp() anyway
+            logReader.setMailboxFilter(mboxIDsMap.keySet());
+        }
         logReader.open();
         long lastPosition = 0;
+        if (redoCommitted) {
+            mReplayer = new ReplayExecutor(mReplayThreads, -1, new ReplayExecutor.Player() {
+                @Override
+                public void play(RedoableOp op) throws Exception {
+                    replayCommitted(op);
+                }
+            });
+        }
 
         // Read all ops in redo log, discarding those with commit/abort entries.
         try {
@@ -162,6 +186,11 @@ public class RedoPlayer {
             }
         } finally {
             logReader.close();
+            if (mReplayer != null) {
+                ReplayExecutor replayer = mReplayer;
+                mReplayer = null;
+                replayer.finish();
+            }
         }
     }
 
@@ -322,18 +351,7 @@ public class RedoPlayer {
                             if (mSkipDeleteOps && prepareOp.isDeleteOp()) {
                                 ZimbraLog.redolog.info("Skipping delete op: " + prepareOp.toString());
                             } else {
-                                try {
-                                    if (ZimbraLog.redolog.isDebugEnabled())
-                                        ZimbraLog.redolog.debug("Redoing: " + prepareOp.toString());
-                                    prepareOp.setUnloggedReplay(mUnloggedReplay);
-                                    playOp(prepareOp);
-                                } catch(Exception e) {
-                                    if (!ignoreReplayErrors())
-                                        throw ServiceException.FAILURE("Error executing redoOp", e);
-                                    else
-                                        ZimbraLog.redolog.warn(
-                                                "Ignoring error during redo log replay: " + e.getMessage(), e);
-                                }
+                                mReplayer.submit(prepareOp);
                             }
                         }
                     }
@@ -342,6 +360,22 @@ public class RedoPlayer {
         }
     }
 
+    // Called by mReplayer, possibly on a replay thread.
+    private void replayCommitted(RedoableOp prepareOp) throws ServiceException {
+        try {
+            if (ZimbraLog.redolog.isDebugEnabled())
+                ZimbraLog.redolog.debug("Redoing: " + prepareOp.toString());
+            prepareOp.setUnloggedReplay(mUnloggedReplay);
+            playOp(prepareOp);
+        } catch(Exception e) {
+            if (!ignoreReplayErrors())
+                throw ServiceException.FAILURE("Error executing redoOp", e);
+            else
+                ZimbraLog.redolog.warn(
+                        "Ignoring error during redo log replay: " + e.getMessage(), e);
+        }
+    }
+
     protected boolean ignoreReplayErrors() { return mIgnoreReplayErrors; }
 
     /**
@@ -381,7 +415,7 @@ public class RedoPlayer {
      * @return number of operations redone (regardless of their success)
      * @throws Exception
      */
-    public int runCrashRecovery(RedoLogManager redoLogMgr,
+    public int runCrashRecovery(final RedoLogManager redoLogMgr,
             List<RedoableOp> postStartupRecoveryOps)
     throws Exception {
         File redoLog = redoLogMgr.getLogFile();
@@ -418,21 +452,11 @@ public class RedoPlayer {
             return 0;
         }
 
-        synchronized (mOpsMapGuard) {
-            Set entrySet = mOpsMap.entrySet();
-            ZimbraLog.redolog.info("Redoing " + numOps + " uncommitted transactions");
-            for (Iterator it = entrySet.iterator(); it.hasNext(); ) {
-                Map.Entry entry = (Entry) it.next();
-                RedoableOp op = (RedoableOp) entry.getValue();
-                if (op == null)
-                    continue;
-
-                if (op.deferCrashRecovery()) {
-                    ZimbraLog.redolog.info("Deferring crash recovery to after startup: " + op);
-                    postStartupRecoveryOps.add(op);
-                    continue;
-                }
-
+        // Each op's commit/abort record is logged right after the op is redone, on the same thread,
+        // so the records of one mailbox stay in log order even when replaying in parallel.
+        ReplayExecutor replayer = new ReplayExecutor(mReplayThreads, numOps, new ReplayExecutor.Player() {
+            @Override
+            public void play(RedoableOp op) {
                 if (ZimbraLog.redolog.isInfoEnabled())
                     ZimbraLog.redolog.info("REDOING: " + op);
 
@@ -454,6 +478,28 @@ public class RedoPlayer {
                     }
                 }
             }
+        });
+        synchronized (mOpsMapGuard) {
+            Set entrySet = mOpsMap.entrySet();
+            ZimbraLog.redolog.info("Redoing " + numOps + " uncommitted transactions");
+            try {
+                for (Iterator it = entrySet.iterator(); it.hasNext(); ) {
+                    Map.Entry entry = (Entry) it.next();
+                    RedoableOp op = (RedoableOp) entry.getValue();
+                    if (op == null)
+                        continue;
+
+                    if (op.deferCrashRecovery()) {
+                        ZimbraLog.redolog.info("Deferring crash recovery to after startup: " + op);
+                        postStartupRecoveryOps.add(op);
+                        continue;
+                    }
+
+                    replayer.submit(op);
+                }
+            } finally {
+                replayer.finish();
+            }
             mOpsMap.clear();
         }
 
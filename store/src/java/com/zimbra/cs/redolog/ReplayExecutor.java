@@ -0,0 +1,174 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+/**
+ * Replays redo ops on a fixed number of worker threads.
+ * <p>
+ * Ops are partitioned by mailbox id, so ops on one mailbox are still replayed one at a time and in
+ * log order, while different mailboxes replay concurrently.  An op that isn't bound to a single
+ * mailbox (e.g. {@code StoreIncomingBlob}) is a barrier: it is replayed in the submitting thread
+ * after everything submitted before it has finished.  With one thread every op is replayed inline.
+ * <p>
+ * The first exception thrown by the {@link Player} is rethrown from the next {@link #submit} or from
+ * {@link #finish}; ops already queued at that point are skipped.
+ */
+final class ReplayExecutor {
+
+    interface Player {
+        void play(RedoableOp op) throws Exception;
+    }
+
+    private static final int MAX_QUEUED_PER_THREAD = 256;
+    private static final long PROGRESS_INTERVAL = 30 * Constants.MILLIS_PER_SECOND;
+
+    private final Player player;
+    private final ExecutorService[] lanes;
+    private final int total;
+    private final AtomicInteger completed = new AtomicInteger();
+    private final long startTime = System.currentTimeMillis();
+    private long lastProgress = startTime;
+    private int queued = 0;             // submitted to a lane but not finished; guarded by this
+    private volatile Exception failure;
+
+    /**
+     * @param threads number of replay threads
+     * @param total number of ops that will be submitted, or -1 if not known; only used for progress logging
+     */
+    ReplayExecutor(int threads, int total, Player player) {
+        this.player = player;
+        this.total = total;
+        if (threads > 1) {
+            lanes = new ExecutorService[threads];
+            for (int i = 0; i < threads; i++) {
+                lanes[i] = Executors.newSingleThreadExecutor(
+                        new ThreadFactoryBuilder().setNameFormat("RedoReplay-" + i).setDaemon(true).build());
+            }
+            ZimbraLog.redolog.info("replaying redo ops on %d threads", threads);
+        } else {
+            lanes = null;
+        }
+    }
+
+    void submit(final RedoableOp op) throws ServiceException {
+        checkFailure();
+        int mboxId = op.getMailboxId();
+        if (lanes == null || mboxId == RedoableOp.MAILBOX_ID_ALL || mboxId == RedoableOp.UNKNOWN_ID) {
+            awaitQueued(0);
+            checkFailure();
+            try {
+                player.play(op);
+            } catch (Exception e) {
+                failure = e;
+            }
+            completed.incrementAndGet();
+            checkFailure();
+        } else {
+            awaitQueued(lanes.length * MAX_QUEUED_PER_THREAD - 1);
+            synchronized (this) {
+                queued++;
+            }
+            lanes[(mboxId & Integer.MAX_VALUE) % lanes.length].execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (failure == null) {
+                            player.play(op);
+                        }
+                    } catch (Exception e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    } finally {
+                        completed.incrementAndGet();
+                        synchronized (ReplayExecutor.this) {
+                            queued--;
+                            ReplayExecutor.this.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+        logProgress(false);
+    }
+
+    /**
+     * Waits for all submitted ops and stops the replay threads.
+     */
+    void finish() throws ServiceException {
+        try {
+            awaitQueued(0);
+        } finally {
+            if (lanes != null) {
+                for (ExecutorService lane : lanes) {
+                    lane.shutdownNow();
+                }
+            }
+        }
+        logProgress(true);
+        checkFailure();
+    }
+
+    int getCompleted() {
+        return completed.get();
+    }
+
+    private synchronized void awaitQueued(int max) throws ServiceException {
+        while (queued > max) {
+            try {
+                wait(PROGRESS_INTERVAL);
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED("redo replay");
+            }
+            logProgress(false);
+        }
+    }
+
+    private synchronized void logProgress(boolean done) {
+        long now = System.currentTimeMillis();
+        if (!done && now - lastProgress < PROGRESS_INTERVAL) {
+            return;
+        }
+        lastProgress = now;
+        int count = completed.get();
+        long rate = count * Constants.MILLIS_PER_SECOND / Math.max(1, now - startTime);
+        if (total > 0) {
+            ZimbraLog.redolog.info("replayed %d of %d redo ops (%d ops/s)", count, total, rate);
+        } else {
+            ZimbraLog.redolog.info("replayed %d redo ops (%d ops/s)", count, rate);
+        }
+    }
+
+    private void checkFailure() throws ServiceException {
+        Exception e = failure;
+        if (e instanceof ServiceException) {
+            throw (ServiceException) e;
+        } else if (e != null) {
+            throw ServiceException.FAILURE("Error executing redoOp", e);
+        }
+    }
+}
@@ -38,6 +38,7 @@ import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
 
 import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.redolog.logger.RedoLogIndex;
 
 /**
  * @author jhahm
@@ -109,9 +110,32 @@ public class RolloverManager {
 	        if (numErrors > 0)
 	        	throw new IOException("Error(s) occurred while renaming temporary redo log files");
 		}
+		deleteOrphanIndexes();
 	}
 
 
+    /**
+     * Deletes an archived log together with its index, and returns whether the log was deleted.
+     */
+    public static boolean deleteArchiveLog(File log) {
+        File idx = RedoLogIndex.getIndexFile(log);
+        if (idx.exists() && !idx.delete()) {
+            mLog.warn("Unable to delete redo log index " + idx.getAbsolutePath());
+        }
+        return log.delete();
+    }
+
+    /**
+     * Deletes the indexes in the archive directory whose log was deleted without them.
+     */
+    public void deleteOrphanIndexes() {
+        File dir = mRedoLogMgr.getRolloverDestDir();
+        int deleted = RedoLogIndex.deleteOrphans(dir);
+        if (deleted > 0) {
+            mLog.info("Deleted " + deleted + " redo log indexes without a log in " + dir.getAbsolutePath());
+        }
+    }
+
 	/**
 	 * Returns the archive log files in the specified directory, sorted
 	 * by the sequence number encoded in the filename.
@@ -27,7 +27,11 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.redolog.RedoLogInput;
 import com.zimbra.cs.redolog.op.RedoableOp;
@@ -50,6 +54,16 @@ public class FileLogReader {
     private long mFileSizeAtOpen;
     private long mLastOpStartOffset;
 
+    // Read-only readers map the file and parse ops straight out of the mapping instead of
+    // going through RandomAccessFile, which costs a system call per readInt()/readLong().
+    private ByteBuffer mBuf;
+
+    // Set by setMailboxFilter().  If the log has a side index, ops of other mailboxes are
+    // skipped without being read at all.
+    private Set<Integer> mMailboxFilter;
+    private RedoLogIndex mIndex;
+    private int mIndexPos;
+
 
     public FileLogReader(File logfile) {
         this(logfile, false);
@@ -69,12 +83,32 @@ public class FileLogReader {
             mHeader.read(mRAF);
             mHeaderRead = true;
             mFileSizeAtOpen = mRAF.length();
+            if (mReadOnly && mFileSizeAtOpen <= Integer.MAX_VALUE && LC.zimbra_redolog_mmap_reader.booleanValue()) {
+                mBuf = mRAF.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mFileSizeAtOpen);
+                mBuf.position((int) mRAF.getFilePointer());
+                mIN = new RedoLogInput(mBuf, mFile.getPath());
+            }
+            if (mMailboxFilter != null) {
+                mIndex = RedoLogIndex.read(mFile, mFileSizeAtOpen);
+                mIndexPos = 0;
+            }
         } catch (IOException e) {
             throw new IOException("Error opening " + mFile.getAbsolutePath(), e);
         }
     }
 
+    /**
+     * Only return ops of the given mailboxes, plus ops that aren't bound to a single mailbox.  This is
+     * a hint: it only takes effect if the log has a valid side index, so callers must still filter the
+     * ops they get.  Must be called before {@link #open()}.
+     */
+    public synchronized void setMailboxFilter(Set<Integer> mailboxIds) {
+        mMailboxFilter = mailboxIds;
+    }
+
     public synchronized void close() throws IOException {
+        mBuf = null;
+        mIndex = null;
         try {
             mRAF.close();
         } catch (IOException e) {
@@ -95,7 +129,14 @@ public class FileLogReader {
         if (mRAF == null) {
           throw new IOException(mFile.getAbsolutePath() + " not open.");
         }
-        long pos = mRAF.getFilePointer();
+        long pos = position();
+        if (mIndex != null) {
+            long next = nextIndexedOp(pos);
+            if (next != pos) {
+                seek(next);
+                pos = next;
+            }
+        }
         if (pos == mFileSizeAtOpen) {
             // EOF reached.
             return null;
@@ -126,9 +167,10 @@ public class FileLogReader {
             }
             first = false;
             // Skip over bad bytes by looking for the next occurrence of "ZMREDO" redo op marker.
-            mRAF.seek(currPos + 1);
-            if (searchInRAF(RedoableOp.REDO_MAGIC.getBytes()))  {
-                currPos = mRAF.getFilePointer();
+            seek(currPos + 1);
+            if (mBuf != null ? searchInBuffer(RedoableOp.REDO_MAGIC.getBytes()) :
+                    searchInRAF(RedoableOp.REDO_MAGIC.getBytes()))  {
+                currPos = position();
             } else {
                 String msg = String.format(
                         "Found %d junk bytes from offset 0x%08x to end of file, in redolog %s",
@@ -143,7 +185,30 @@ public class FileLogReader {
     }
 
     public synchronized long position() throws IOException {
-        return mRAF.getFilePointer();
+        return mBuf != null ? mBuf.position() : mRAF.getFilePointer();
+    }
+
+    private void seek(long pos) throws IOException {
+        if (mBuf != null) {
+            mBuf.position((int) pos);
+        } else {
+            mRAF.seek(pos);
+        }
+    }
+
+    // Returns the offset of the first op at or after pos that passes the mailbox filter, or the end of file.
+    private long nextIndexedOp(long pos) {
+        while (mIndexPos < mIndex.size() && mIndex.getOffset(mIndexPos) < pos) {
+            mIndexPos++;
+        }
+        while (mIndexPos < mIndex.size()) {
+            int mboxId = mIndex.getMailboxId(mIndexPos);
+            if (mboxId <= 0 || mMailboxFilter.contains(mboxId)) {
+                return mIndex.getOffset(mIndexPos);
+            }
+            mIndexPos++;
+        }
+        return mFileSizeAtOpen;
     }
 
     public synchronized long getLastOpStartOffset() throws IOException {
@@ -166,6 +231,26 @@ public class FileLogReader {
         }
     }
 
+    /**
+     * Search the pattern in mBuf, positioning it at the beginning of the pattern.
+     * @return true if pattern was found, false if not found
+     */
+    private boolean searchInBuffer(byte[] pattern) {
+        int start = mBuf.position();
+        int last = mBuf.limit() - pattern.length;
+        for (int i = start; i <= last; i++) {
+            int j = 0;
+            while (j < pattern.length && mBuf.get(i + j) == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                mBuf.position(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Search the pattern in mRAF, positioning the pointer at the beginning of the pattern.
      * @param pattern
@@ -23,7 +23,9 @@
  */
 package com.zimbra.cs.redolog.logger;
 
+import com.google.common.io.ByteStreams;
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.ZimbraLog;
@@ -35,14 +37,19 @@ import com.zimbra.cs.redolog.RedoLogManager;
 import com.zimbra.cs.redolog.RolloverManager;
 import com.zimbra.cs.redolog.op.CommitTxn;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -96,6 +103,18 @@ public class FileLogWriter implements LogWriter {
 
     private CommitNotifyQueue mCommitNotifyQueue;
 
+    // Group commit mode: log() only appends the serialized op to mPending, and a single
+    // GroupCommitThread writes and fsyncs everything queued since its previous fsync.
+    private final boolean mGroupCommit;
+    private GroupCommitThread mGroupCommitter;
+    private Batch mPending;         // ops logged but not yet written; guarded by mLock
+    private long mWritePos;         // file offset of the next batch; owned by the group commit thread while it runs
+
+    // Offset and mailbox of every op in the current file, written as a side index when the file
+    // is archived at rollover.  Null if not indexing or if the file has ops we didn't see logged.
+    private final boolean mIndexing;
+    private RedoLogIndex mIndex;    // guarded by mLock
+
     public FileLogWriter(RedoLogManager redoLogMgr,
                          File logfile,
                          long fsyncIntervalMS) {
@@ -112,6 +131,12 @@ public class FileLogWriter implements LogWriter {
         mFsyncCount = mLogCount = 0;
 
         mCommitNotifyQueue = new CommitNotifyQueue(100);
+
+        // fsyncIntervalMS <= 0 asks for fsync in the calling thread, e.g. the temporary logger used in rollover()
+        mGroupCommit = fsyncIntervalMS > 0 && LC.zimbra_redolog_group_commit.booleanValue();
+        mPending = new Batch();
+
+        mIndexing = LC.zimbra_redolog_index.booleanValue() && !RedoConfig.redoLogDeleteOnRollover();
     }
 
     @Override public long getSequence() {
@@ -212,11 +237,23 @@ public class FileLogWriter implements LogWriter {
             long len = mRAF.length();
             mRAF.seek(len);
             mFileSize = len;
+            mWritePos = len;
+
+            // Keep an index handed over by rollover() only if it still describes the whole file.
+            if (!mIndexing) {
+                mIndex = null;
+            } else if (len <= FileHeader.HEADER_LEN) {
+                mIndex = new RedoLogIndex();
+            } else if (mIndex != null && mIndex.getEnd() != len) {
+                mIndex = null;
+            }
 
             mLogSeq = mFsyncSeq = 0;
         }
 
-        if (mFsyncIntervalMS > 0)
+        if (mGroupCommit)
+            startGroupCommitThread();
+        else if (mFsyncIntervalMS > 0)
             startFsyncThread();
     }
 
@@ -225,9 +262,12 @@ public class FileLogWriter implements LogWriter {
      */
     @Override public synchronized void close() throws IOException {
         stopFsyncThread();
+        stopGroupCommitThread();
 
         synchronized (mLock) {
             if (mRAF != null) {
+                if (mIndex != null)
+                    mIndex.setEnd(mFileSize);
                 if (mLastOpTstamp != 0)
                 	mHeader.setLastOpTstamp(mLastOpTstamp);
                 mHeader.setOpen(false);
@@ -268,8 +308,17 @@ public class FileLogWriter implements LogWriter {
      * Fsync is required, but the sleep interval for fsync thread is 0.  We
      * special case this condition to mean fsync should be done by the calling
      * thread.
+     *
+     * In group commit mode (zimbra_redolog_group_commit) the op is only queued,
+     * and synchronous callers wait until the group commit thread has written
+     * and fsynced the batch that contains it.
      */
     @Override public void log(RedoableOp op, InputStream data, boolean synchronous) throws IOException {
+        if (mGroupCommit) {
+            logGroupCommit(op, data, synchronous);
+            return;
+        }
+
         int seq;
         boolean sameMboxAsLastOp = false;
 
@@ -292,6 +341,8 @@ public class FileLogWriter implements LogWriter {
             mLogSeq++;
             mLogCount++;
             seq = mLogSeq;
+            if (mIndex != null)
+                mIndex.add(mFileSize, op.getMailboxId());
             int numRead;
             byte[] buf = new byte[1024];
             while ((numRead = data.read(buf)) >= 0) {
@@ -356,6 +407,82 @@ public class FileLogWriter implements LogWriter {
 
     private int mLastOpMboxId;
 
+    private void logGroupCommit(RedoableOp op, InputStream data, boolean synchronous) throws IOException {
+        // serialize outside the lock, so that concurrent loggers only contend on the append
+        byte[] record;
+        try {
+            record = ByteStreams.toByteArray(data);
+        } finally {
+            data.close();
+        }
+
+        int seq;
+        synchronized (mLock) {
+            if (mRAF == null || mGroupCommitter == null)
+                throw new IOException("Redolog file closed");
+
+            long tstamp = op.getTimestamp();
+            mLastOpTstamp = Math.max(tstamp, mLastOpTstamp);
+            if (mFirstOpTstamp == 0) {
+                mFirstOpTstamp = tstamp;
+                mHeader.setFirstOpTstamp(mFirstOpTstamp);
+                mHeader.setLastOpTstamp(mLastOpTstamp);
+                mPending.mHeaderDirty = true;
+            }
+
+            mLogSeq++;
+            mLogCount++;
+            seq = mLogSeq;
+            if (mIndex != null)
+                mIndex.add(mFileSize, op.getMailboxId());
+            mPending.add(record, seq);
+            mFileSize += record.length;
+
+            // Appended in log order under the lock, and called back by the group commit thread
+            // only after the batch has been fsynced.
+            if (op instanceof CommitTxn) {
+                CommitTxn cmt = (CommitTxn) op;
+                RedoCommitCallback cb = cmt.getCallback();
+                if (cb != null) {
+                    long redoSeq = mRedoLogMgr.getRolloverManager().getCurrentSequence();
+                    mPending.mNotifs.add(new Notif(cb, new CommitId(redoSeq, cmt)));
+                }
+            }
+
+            mLastLogTime = System.currentTimeMillis();
+            mLock.notifyAll();  // wake up the group commit thread
+        }
+
+        if (synchronous)
+            waitForGroupCommit(seq);
+    }
+
+    // Block until the group commit thread has fsynced everything up to and including seq.
+    private void waitForGroupCommit(int seq) throws IOException {
+        synchronized (mFsyncCond) {
+            while (getFsyncSeq() < seq) {
+                synchronized (mLock) {
+                    // close() drains the queue before closing the file
+                    if (mRAF == null)
+                        throw new IOException("Redolog file closed");
+                }
+                try {
+                    mFsyncCond.wait(1000);
+                } catch (InterruptedException e) {
+                    ZimbraLog.redolog.info("Thread interrupted during fsync");
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private int getFsyncSeq() {
+        synchronized (mLock) {
+            return mFsyncSeq;
+        }
+    }
+
     @Override public void flush() throws IOException {
         fsync();
     }
@@ -396,13 +523,17 @@ public class FileLogWriter implements LogWriter {
             tempLogger.log(op, op.getInputStream(), false);
         }
         tempLogger.close();
+        RedoLogIndex index;
+        synchronized (mLock) {
+            index = mIndex;
+        }
 
         // Rename the current log to rolled-over name.
         File rolloverFile = romgr.getRolloverFile(lastSeq);
         if (RedoConfig.redoLogDeleteOnRollover()) {
             // Delete the current log.  We don't need to hold on to the
             // indexing-only log files after rollover.
-            if (!mFile.delete())
+            if (!RolloverManager.deleteArchiveLog(mFile))
                 throw new IOException("Unable to delete current redo log " + mFile.getAbsolutePath());
         } else {
             File destDir = rolloverFile.getParentFile();
@@ -410,7 +541,17 @@ public class FileLogWriter implements LogWriter {
                 destDir.mkdirs();
             if (!mFile.renameTo(rolloverFile))
                 throw new IOException("Unable to rename current redo log to " + rolloverFile.getAbsolutePath());
+            if (index != null) {
+                try {
+                    index.write(rolloverFile);
+                } catch (IOException e) {
+                    // only an optimization for later scans of the archived log
+                    ZimbraLog.redolog.warn("Unable to write index for %s", rolloverFile.getAbsolutePath(), e);
+                }
+            }
         }
+        // drop the indexes of archived logs that were deleted since, e.g. after a backup
+        romgr.deleteOrphanIndexes();
 
         // Rename the temporary logger to current logfile name.
         String tempPath = tempLogfile.getAbsolutePath();
@@ -418,7 +559,10 @@ public class FileLogWriter implements LogWriter {
         if (!tempLogfile.renameTo(mFile))
             throw new IOException("Unable to rename " + tempPath + " to " + currentPath);
 
-        // Reopen current log.
+        // Reopen current log, continuing the index of the ops copied into it.
+        synchronized (mLock) {
+            mIndex = tempLogger.mIndex;
+        }
         open();
         noStat(false);
 
@@ -436,7 +580,7 @@ public class FileLogWriter implements LogWriter {
     }
 
     private synchronized void startFsyncThread() {
-        if (mFsyncer == null && mFsyncIntervalMS > 0) {
+        if (mFsyncer == null && mFsyncIntervalMS > 0 && !mGroupCommit) {
             mFsyncer = new FsyncThread(mFsyncIntervalMS);
             mFsyncer.start();
         }
@@ -449,8 +593,45 @@ public class FileLogWriter implements LogWriter {
         }
     }
 
+    private synchronized void startGroupCommitThread() {
+        if (mGroupCommitter == null) {
+            GroupCommitThread committer = new GroupCommitThread();
+            synchronized (mLock) {
+                mGroupCommitter = committer;
+            }
+            committer.start();
+        }
+    }
+
+    // Drains whatever is still queued before returning.
+    private synchronized void stopGroupCommitThread() {
+        GroupCommitThread committer;
+        synchronized (mLock) {
+            committer = mGroupCommitter;
+            if (committer == null)
+                return;
+            mGroupCommitter = null;
+            mLock.notifyAll();
+        }
+        committer.stopThread();
+        synchronized (mFsyncCond) {
+            mFsyncCond.notifyAll();
+        }
+    }
+
     // do fsync if there are items logged since last fsync
     private void fsync() throws IOException {
+        if (mGroupCommit) {
+            int seq;
+            synchronized (mLock) {
+                seq = mLogSeq;
+                if (mGroupCommitter == null || seq <= mFsyncSeq)
+                    return;
+            }
+            waitForGroupCommit(seq);
+            return;
+        }
+
         boolean fsyncNeeded = false;
         int seq = 0;
         synchronized (mLock) {
@@ -564,8 +745,145 @@ public class FileLogWriter implements LogWriter {
     }
 
 
+    // Ops queued between two group commits, in log order.
+    private static class Batch {
+        private final List<byte[]> mRecords = new ArrayList<byte[]>();
+        private final List<Notif> mNotifs = new ArrayList<Notif>();
+        private boolean mHeaderDirty;
+        private int mLastSeq;
+
+        void add(byte[] record, int seq) {
+            mRecords.add(record);
+            mLastSeq = seq;
+        }
+
+        boolean isEmpty() {
+            return mRecords.isEmpty() && !mHeaderDirty;
+        }
+    }
+
+    // Single writer for group commit mode.  Each pass takes everything logged since the previous
+    // pass, copies it into one direct buffer, writes it with the file channel and fsyncs once, so
+    // the number of fsyncs adapts to the load instead of to a fixed interval.
+    private class GroupCommitThread extends Thread {
+        private final ByteBuffer mBuffer;
+
+        GroupCommitThread() {
+            super("FileLogWriter.GroupCommitThread-" + System.currentTimeMillis());
+            mBuffer = ByteBuffer.allocateDirect(
+                    Math.max(64 * 1024, LC.zimbra_redolog_group_commit_buffer_size.intValue()));
+        }
+
+        @Override public void run() {
+            ZimbraLog.redolog.info("Starting group commit thread");
+            while (true) {
+                Batch batch;
+                synchronized (mLock) {
+                    while (mPending.isEmpty() && mGroupCommitter == this) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            ZimbraLog.redolog.warn("Group commit thread interrupted", e);
+                        }
+                    }
+                    if (mPending.isEmpty())
+                        break;  // stopped and drained
+                    batch = mPending;
+                    mPending = new Batch();
+                }
+
+                try {
+                    commit(batch);
+                } catch (IOException e) {
+                    String message = "Error while writing " + mFile.getAbsolutePath() + "; Aborting.";
+                    Zimbra.halt(message, e);
+                }
+            }
+            ZimbraLog.redolog.info("group commit thread exiting");
+        }
+
+        private void commit(Batch batch) throws IOException {
+            // mRAF can't go away under us; close() stops this thread before closing the file.
+            FileChannel channel = mRAF.getChannel();
+            if (batch.mHeaderDirty) {
+                synchronized (mLock) {
+                    mHeader.write(mRAF);
+                }
+            }
+
+            mBuffer.clear();
+            for (byte[] record : batch.mRecords) {
+                if (record.length > mBuffer.remaining())
+                    write(channel, mBuffer);
+                if (record.length > mBuffer.capacity()) {
+                    write(channel, ByteBuffer.wrap(record));
+                } else {
+                    mBuffer.put(record);
+                }
+            }
+            write(channel, mBuffer);
+
+            if (!mFsyncDisabled) {
+                long start = ZimbraPerf.STOPWATCH_REDO_FSYNC.start();
+                channel.force(false);
+                ZimbraPerf.STOPWATCH_REDO_FSYNC.stop(start);
+            }
+            if (!batch.mRecords.isEmpty())
+                ZimbraPerf.COUNTER_REDO_BATCH_SIZE.increment(batch.mRecords.size());
+
+            synchronized (mLock) {
+                if (batch.mLastSeq > mFsyncSeq)
+                    mFsyncSeq = batch.mLastSeq;
+                if (!mFsyncDisabled)
+                    mFsyncCount++;
+            }
+            synchronized (mFsyncCond) {
+                mFsyncCond.notifyAll();
+            }
+            for (Notif notif : batch.mNotifs) {
+                callback(notif);
+            }
+        }
+
+        // Writes out the buffer's content at the current end of the log and leaves it cleared.
+        private void write(FileChannel channel, ByteBuffer buf) throws IOException {
+            if (buf == mBuffer)
+                buf.flip();
+            while (buf.hasRemaining()) {
+                mWritePos += channel.write(buf, mWritePos);
+            }
+            buf.clear();
+        }
+
+        // Stop the thread after it has drained the queue.  Wait until the thread really stops.
+        public void stopThread() {
+            try {
+                while (isAlive()) {
+                    ZimbraLog.redolog.info("waiting for %s to finish.", getName());
+                    join(Constants.MILLIS_PER_MINUTE);
+                }
+                ZimbraLog.redolog.info("%s finished", getName());
+            } catch (InterruptedException e) {
+                ZimbraLog.redolog.warn("InterruptedException while stopping GroupCommitThread", e);
+            }
+        }
+    }
+
+
     // Commit callback handling
 
+    private static void callback(Notif notif) {
+        RedoCommitCallback cb = notif.getCallback();
+        assert(cb != null);
+        try {
+            cb.callback(notif.getCommitId());
+        } catch (OutOfMemoryError e) {
+            Zimbra.halt("out of memory", e);
+        } catch (Throwable t) {
+            ZimbraLog.misc.error("Error while making commit callback", t);
+        }
+    }
+
     private static class Notif {
         private RedoCommitCallback mCallback;
         private CommitId mCommitId;
@@ -616,15 +934,7 @@ public class FileLogWriter implements LogWriter {
                 fsync();
             Notif notif;
             while ((notif = pop()) != null) {
-                RedoCommitCallback cb = notif.getCallback();
-                assert(cb != null);
-                try {
-                    cb.callback(notif.getCommitId());
-                } catch (OutOfMemoryError e) {
-                    Zimbra.halt("out of memory", e);
-                } catch (Throwable t) {
-                    ZimbraLog.misc.error("Error while making commit callback", t);
-                }
+                callback(notif);
             }
         }
     }
@@ -0,0 +1,197 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Side index of a redo log file: the offset and mailbox id of every op, in log order.  It lets
+ * {@link FileLogReader} skip the ops of mailboxes a scan isn't interested in without deserializing
+ * them, since ops carry no length of their own.
+ * <p>
+ * {@link FileLogWriter} builds it while logging and writes it next to the archived log at rollover as
+ * {@code <logfile>.idx}.  A reader only trusts an index that ends exactly where the log ends.  Archived logs are
+ * deleted by code that doesn't know about the index (e.g. backup), so {@link com.zimbra.cs.redolog.RolloverManager} removes the indexes
+ * whose log is gone.
+ */
+public class RedoLogIndex {
+
+    private static final int MAGIC = 0x5a4d5249;  // "ZMRI"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".idx";
+
+    private int[] mOffsets;
+    private int[] mMailboxIds;
+    private int mCount;
+    private long mEnd;
+    private boolean mOverflow;  // log grew beyond what int offsets can address
+
+    RedoLogIndex() {
+        this(1024);
+    }
+
+    private RedoLogIndex(int capacity) {
+        mOffsets = new int[capacity];
+        mMailboxIds = new int[capacity];
+    }
+
+    public static File getIndexFile(File logfile) {
+        return new File(logfile.getParentFile(), logfile.getName() + SUFFIX);
+    }
+
+    /**
+     * Deletes the indexes in {@code dir} whose log file no longer exists, and returns how many it deleted.
+     */
+    public static int deleteOrphans(File dir) {
+        File[] indexes = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File parent, String name) {
+                return name.endsWith(SUFFIX) || name.endsWith(SUFFIX + ".tmp");
+            }
+        });
+        if (indexes == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File idx : indexes) {
+            String name = idx.getName();
+            String logName = name.substring(0, name.lastIndexOf(SUFFIX));
+            if (!new File(dir, logName).exists()) {
+                if (idx.delete()) {
+                    deleted++;
+                } else {
+                    ZimbraLog.redolog.warn("Unable to delete redo log index %s", idx.getAbsolutePath());
+                }
+            }
+        }
+        return deleted;
+    }
+
+    void add(long offset, int mailboxId) {
+        if (mOverflow) {
+            return;
+        } else if (offset > Integer.MAX_VALUE) {
+            mOverflow = true;
+            return;
+        }
+        if (mCount == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+            mMailboxIds = Arrays.copyOf(mMailboxIds, mCount * 2);
+        }
+        mOffsets[mCount] = (int) offset;
+        mMailboxIds[mCount] = mailboxId;
+        mCount++;
+    }
+
+    void setEnd(long end) {
+        mEnd = end;
+    }
+
+    /** Returns the size of the log file this index covers. */
+    long getEnd() {
+        return mEnd;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    long getOffset(int i) {
+        return mOffsets[i];
+    }
+
+    int getMailboxId(int i) {
+        return mMailboxIds[i];
+    }
+
+    /**
+     * Writes the index for the given log file.  The index is written to a temporary file first, so
+     * a reader never sees a partial one.
+     */
+    void write(File logfile) throws IOException {
+        if (mOverflow) {
+            return;
+        }
+        File idx = getIndexFile(logfile);
+        File tmp = new File(idx.getParentFile(), idx.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mEnd);
+            out.writeInt(mCount);
+            for (int i = 0; i < mCount; i++) {
+                out.writeInt(mOffsets[i]);
+                out.writeInt(mMailboxIds[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(idx)) {
+            tmp.delete();
+            throw new IOException("Unable to rename " + tmp.getAbsolutePath() + " to " + idx.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Returns the index of the log file if there is one that covers exactly {@code logSize} bytes, or
+     * {@code null}.
+     */
+    static RedoLogIndex read(File logfile, long logSize) {
+        File idx = getIndexFile(logfile);
+        if (!idx.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                ZimbraLog.redolog.warn("ignoring unrecognized redolog index %s", idx.getAbsolutePath());
+                return null;
+            }
+            long end = in.readLong();
+            if (end != logSize) {
+                ZimbraLog.redolog.info("ignoring stale redolog index %s", idx.getAbsolutePath());
+                return null;
+            }
+            int count = in.readInt();
+            RedoLogIndex index = new RedoLogIndex(Math.max(1, count));
+            for (int i = 0; i < count; i++) {
+                index.add(in.readInt(), in.readInt());
+            }
+            index.setEnd(end);
+            return index;
+        } catch (IOException e) {
+            ZimbraLog.redolog.warn("unable to read redolog index %s", idx.getAbsolutePath(), e);
+            return null;
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+}
@@ -19,13 +19,20 @@ package com.zimbra.cs.server;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslFilter;
 
 import com.google.common.base.Charsets;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.security.sasl.SaslFilter;
+import com.zimbra.cs.util.IOUtil;
 
 public final class NioOutputStream extends OutputStream {
     private final IoSession session;
@@ -79,6 +86,39 @@ public final class NioOutputStream extends OutputStream {
         buf.put((byte) b);
     }
 
+    /**
+     * Returns whether {@link #transferFrom} can be used, i.e. whether bytes reach the socket unmodified.
+     * A TLS or SASL security layer has to see the plaintext, so files must then be copied through the heap.
+     */
+    public boolean canTransferFiles() {
+        IoFilterChain chain = session.getFilterChain();
+        return !chain.contains(SslFilter.class) && !chain.contains(SaslFilter.class);
+    }
+
+    /**
+     * Writes {@code count} bytes of the file starting at {@code position} straight from the file to the socket
+     * with {@link FileChannel#transferTo}, after anything already buffered.  Takes ownership of the channel,
+     * which is closed once the region has been written or the write has failed.
+     *
+     * @see #canTransferFiles()
+     */
+    public synchronized void transferFrom(final FileChannel channel, long position, long count) throws IOException {
+        WriteFuture future;
+        try {
+            flush();
+            future = writeToSession(new DefaultFileRegion(channel, position, count));
+        } catch (IOException | RuntimeException e) {
+            IOUtil.closeQuietly(channel);
+            throw e;
+        }
+        future.addListener(new IoFutureListener<WriteFuture>() {
+            @Override
+            public void operationComplete(WriteFuture f) {
+                IOUtil.closeQuietly(channel);
+            }
+        });
+    }
+
     @Override
     public synchronized void flush() throws IOException {
         if (buf.position() > 0) {
@@ -88,7 +128,7 @@ public final class NioOutputStream extends OutputStream {
         }
     }
 
-    private synchronized void writeToSession(Object output) throws IOException {
+    private synchronized WriteFuture writeToSession(Object output) throws IOException {
         long writeBytes = session.getScheduledWriteBytes();
         WriteFuture future = session.write(output);
         if (writeBytes > maxScheduledBytes) {
@@ -107,6 +147,7 @@ public final class NioOutputStream extends OutputStream {
                 ZimbraLog.nio.debug("now have %d scheduled bytes, %d messages; %d written bytes %d messages", session.getScheduledWriteBytes(), session.getScheduledWriteMessages(), session.getWrittenBytes(), session.getWrittenMessages());
             }
         }
+        return future;
     }
 
     @Override
@@ -22,12 +22,13 @@ import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -39,15 +40,20 @@ import com.zimbra.cs.account.Provisioning;
 
 /**
  * Base class for TCP servers using thread per connection model.
+ * <p>
+ * With {@code tcp_server_virtual_threads} set, each connection runs on its own virtual thread instead of a pooled
+ * platform thread, and the number of concurrent connections is capped by {@link ServerConfig#getMaxConnections()}
+ * (or the max thread count, whichever is larger) rather than by the size of the thread pool.
  */
 public abstract class TcpServer implements Runnable, Server {
     private Log log;
     private ThreadPoolExecutor pooledExecutor;
     private ServerSocket serverSocket;
-    private List<ProtocolHandler> activeHandlers;
+    private Set<ProtocolHandler> activeHandlers;
     private boolean sslEnabled;
     private final ServerConfig config;
     private volatile boolean shutdownRequested;
+    private boolean virtualThreads;
 
     public TcpServer(ServerConfig config) throws ServiceException {
         this.config = config;
@@ -69,16 +75,31 @@ public abstract class TcpServer implements Runnable, Server {
             maxThreads = 10;
         }
 
-        // Core pool size is 1, to limit the number of idle threads in thread dumps.
-        // Idle threads are aged out of the pool after X minutes.
-        int keepAlive = config != null ? config.getThreadKeepAliveTime() : 2 * 60;
-        pooledExecutor = new ThreadPoolExecutor(1, maxThreads, keepAlive, TimeUnit.SECONDS,
-                new SynchronousQueue<Runnable>(), new TcpThreadFactory(getName(), false, Thread.NORM_PRIORITY));
+        ThreadFactory virtualFactory = null;
+        if (LC.tcp_server_virtual_threads.booleanValue()) {
+            virtualFactory = TcpThreadFactory.newVirtualThreadFactory(getName());
+            if (virtualFactory == null) {
+                log.warn("virtual threads are not supported by this JVM; using a pool of %d threads", maxThreads);
+            }
+        }
+        if (virtualFactory != null) {
+            // virtual threads are cheap to create and to park, so don't keep any around; the executor
+            // is only there to bound the number of concurrent connections
+            int maxConnections = Math.max(maxThreads, config != null ? config.getMaxConnections() : 0);
+            pooledExecutor = new ThreadPoolExecutor(0, maxConnections, 1, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), virtualFactory);
+            virtualThreads = true;
+        } else {
+            // Core pool size is 1, to limit the number of idle threads in thread dumps.
+            // Idle threads are aged out of the pool after X minutes.
+            int keepAlive = config != null ? config.getThreadKeepAliveTime() : 2 * 60;
+            pooledExecutor = new ThreadPoolExecutor(1, maxThreads, keepAlive, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new TcpThreadFactory(getName(), false, Thread.NORM_PRIORITY));
+        }
 
-        // TODO a linked list is probably the wrong datastructure here
         // TODO write tests with multiple concurrent client
         // TODO write some tests for shutdown/startup
-        activeHandlers = new LinkedList<ProtocolHandler>();
+        activeHandlers = Collections.newSetFromMap(new ConcurrentHashMap<ProtocolHandler, Boolean>());
     }
 
     @Override
@@ -105,35 +126,34 @@ public abstract class TcpServer implements Runnable, Server {
     }
 
     public void addActiveHandler(ProtocolHandler handler) {
-        synchronized (activeHandlers) {
-            activeHandlers.add(handler);
-        }
+        activeHandlers.add(handler);
     }
 
     public void removeActiveHandler(ProtocolHandler handler) {
-        synchronized (activeHandlers) {
-            activeHandlers.remove(handler);
-        }
+        activeHandlers.remove(handler);
     }
 
     protected int numActiveHandlers() {
-        synchronized (activeHandlers) {
-            return activeHandlers.size();
-        }
+        return activeHandlers.size();
     }
 
     public int numThreads() {
         return pooledExecutor.getPoolSize();
     }
 
+    /**
+     * Returns true if connections are handled on virtual threads.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
     private void shutdownActiveHandlers(boolean graceful) {
-        synchronized (activeHandlers) {
-            for (ProtocolHandler handler : activeHandlers) {
-                if (graceful) {
-                    handler.gracefulShutdown("graceful shutdown requested");
-                } else {
-                    handler.hardShutdown("hard shutdown requested");
-                }
+        for (ProtocolHandler handler : activeHandlers) {
+            if (graceful) {
+                handler.gracefulShutdown("graceful shutdown requested");
+            } else {
+                handler.hardShutdown("hard shutdown requested");
             }
         }
     }
@@ -193,8 +213,12 @@ public abstract class TcpServer implements Runnable, Server {
     public void run() {
         Thread.currentThread().setName(getName());
 
-        log.info("Starting accept loop: %d core threads, %d max threads.",
-            pooledExecutor.getCorePoolSize(), pooledExecutor.getMaximumPoolSize());
+        if (virtualThreads) {
+            log.info("Starting accept loop: virtual threads, %d max connections.", pooledExecutor.getMaximumPoolSize());
+        } else {
+            log.info("Starting accept loop: %d core threads, %d max threads.",
+                pooledExecutor.getCorePoolSize(), pooledExecutor.getMaximumPoolSize());
+        }
 
         while (!shutdownRequested) {
             try {
@@ -205,7 +229,8 @@ public abstract class TcpServer implements Runnable, Server {
                 try {
                     pooledExecutor.execute(handler);
                 } catch (RejectedExecutionException e) {
-                    log.error("cannot handle connection; thread pool exhausted", e);
+                    log.error(virtualThreads ? "cannot handle connection; too many connections" :
+                        "cannot handle connection; thread pool exhausted", e);
                     // send a "server busy" message to the client before dropping connection
                     //   (but skip if client expects an SSL handshake, which we can't do here)
                     if (config != null && !isSslEnabled()) {
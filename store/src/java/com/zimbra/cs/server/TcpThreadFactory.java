@@ -17,8 +17,11 @@
 
 package com.zimbra.cs.server;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.ThreadFactory;
 
+import com.zimbra.common.util.ZimbraLog;
+
 public class TcpThreadFactory implements ThreadFactory {
     private int count = 0;
     private final String prefix;
@@ -48,4 +51,22 @@ public class TcpThreadFactory implements ThreadFactory {
         t.setPriority(priority);
         return t;
     }
+
+    /**
+     * Returns a factory for virtual threads named {@code prefix-1}, {@code prefix-2}, ..., or {@code null}
+     * if the running JVM does not support virtual threads.  Looked up reflectively since we still compile
+     * for Java 8.
+     */
+    public static ThreadFactory newVirtualThreadFactory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, prefix + '-', 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            ZimbraLog.misc.debug("virtual threads are not available", e);
+            return null;
+        }
+    }
 }
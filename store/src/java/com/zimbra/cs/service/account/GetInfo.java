@@ -461,4 +461,12 @@ public class GetInfo extends AccountDocumentHandler  {
     private void doDiscoverRights(Element eRights, Account account, Set<Right> rights) throws ServiceException {
         DiscoverRights.discoverRights(account, rights, eRights, false);
     }
+
+    @Override
+    public boolean isParallelSafe(Element request) {
+        // extensions are handed the request's ZimbraSoapContext and may change it
+        synchronized (extensions) {
+            return extensions.isEmpty();
+        }
+    }
 }
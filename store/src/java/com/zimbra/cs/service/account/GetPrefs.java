@@ -94,4 +94,8 @@ public class GetPrefs extends AccountDocumentHandler  {
         }
     }   
 
+    @Override
+    public boolean isParallelSafe(Element request) {
+        return true;
+    }
 }
@@ -20,7 +20,14 @@ package com.zimbra.cs.service.admin;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.AdminConstants;
 import com.zimbra.common.soap.Element;
@@ -62,25 +69,20 @@ public final class CheckBlobConsistency extends AdminDocumentHandler {
 
         boolean checkSize = request.getAttributeBool(AdminConstants.A_CHECK_SIZE, true);
         boolean reportUsedBlobs = request.getAttributeBool(AdminConstants.A_REPORT_USED_BLOBS, false);
+        int samplePercent = (int) request.getAttributeLong(AdminConstants.A_SAMPLE_PERCENT, 100);
+        if (samplePercent < 1 || samplePercent > 100) {
+            throw ServiceException.INVALID_REQUEST("invalid " + AdminConstants.A_SAMPLE_PERCENT + ": " + samplePercent, null);
+        }
 
         // Check blobs and assemble response.
         Element response = zsc.createElement(AdminConstants.CHECK_BLOB_CONSISTENCY_RESPONSE);
 
         StoreManager sm = StoreManager.getInstance();
-        if (sm instanceof ExternalStoreManager) {
-
-            for (int mboxId : mailboxIds) {
-                ExternalBlobConsistencyChecker checker = new ExternalBlobConsistencyChecker();
-                BlobConsistencyChecker.Results results = checker.check(null, mboxId, checkSize, reportUsedBlobs);
-                if (results.hasInconsistency() || reportUsedBlobs) { //or checking used blobs
-                    Element mboxEl = response.addElement(AdminConstants.E_MAILBOX).addAttribute(AdminConstants.A_ID, mboxId);
-                    results.toElement(mboxEl);
-                }
-            }
-        } else if (sm instanceof FileBlobStore) {
+        List<Short> volumeIds = null; // external stores have no volumes
+        if (sm instanceof FileBlobStore) {
 
             // Assemble the list of volumes.
-            List<Short> volumeIds = new ArrayList<Short>();
+            volumeIds = new ArrayList<Short>();
             List<Element> volumeElementList = request.listElements(AdminConstants.E_VOLUME);
             if (volumeElementList.isEmpty()) {
                 // Get all message volume id's.
@@ -105,21 +107,66 @@ public final class CheckBlobConsistency extends AdminDocumentHandler {
                 }
             }
 
-            for (int mboxId : mailboxIds) {
-                BlobConsistencyChecker checker = new BlobConsistencyChecker();
-                BlobConsistencyChecker.Results results = checker.check(volumeIds, mboxId, checkSize, reportUsedBlobs);
-                if (results.hasInconsistency() || reportUsedBlobs) {
-                    Element mboxEl = response.addElement(AdminConstants.E_MAILBOX).addAttribute(AdminConstants.A_ID, mboxId);
-                    results.toElement(mboxEl);
-                }
-            }
-        } else {
+        } else if (!(sm instanceof ExternalStoreManager)) {
             //neither ExternalStoreManager nor FileBlobStore..some third type we haven't coded for
             throw ServiceException.INVALID_REQUEST(sm.getClass().getName() + " is not supported", null);
         }
+
+        List<BlobConsistencyChecker.Results> allResults =
+                check(sm instanceof ExternalStoreManager, volumeIds, mailboxIds, checkSize, reportUsedBlobs, samplePercent);
+        for (int i = 0; i < mailboxIds.size(); i++) {
+            BlobConsistencyChecker.Results results = allResults.get(i);
+            if (results.hasInconsistency() || reportUsedBlobs) { //or checking used blobs
+                Element mboxEl = response.addElement(AdminConstants.E_MAILBOX).addAttribute(AdminConstants.A_ID, mailboxIds.get(i));
+                results.toElement(mboxEl);
+            }
+        }
         return response;
     }
 
+    /**
+     * Checks the mailboxes on up to {@code zimbra_blob_consistency_check_threads} threads and returns the results
+     * in the order of {@code mailboxIds}.
+     */
+    private static List<BlobConsistencyChecker.Results> check(final boolean external, final List<Short> volumeIds,
+            List<Integer> mailboxIds, final boolean checkSize, final boolean reportUsedBlobs, final int samplePercent)
+    throws ServiceException {
+        int threads = Math.max(Math.min(LC.zimbra_blob_consistency_check_threads.intValue(), mailboxIds.size()), 1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("CheckBlobConsistency-%d").setDaemon(true).build());
+        try {
+            List<Future<BlobConsistencyChecker.Results>> futures =
+                    new ArrayList<Future<BlobConsistencyChecker.Results>>(mailboxIds.size());
+            for (final int mboxId : mailboxIds) {
+                futures.add(executor.submit(new Callable<BlobConsistencyChecker.Results>() {
+                    @Override
+                    public BlobConsistencyChecker.Results call() throws ServiceException {
+                        BlobConsistencyChecker checker =
+                                external ? new ExternalBlobConsistencyChecker() : new BlobConsistencyChecker();
+                        checker.setSamplePercent(samplePercent);
+                        return checker.check(volumeIds, mboxId, checkSize, reportUsedBlobs);
+                    }
+                }));
+            }
+            List<BlobConsistencyChecker.Results> results = new ArrayList<BlobConsistencyChecker.Results>(futures.size());
+            for (Future<BlobConsistencyChecker.Results> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (InterruptedException e) {
+                    throw ServiceException.INTERRUPTED("checking blob consistency");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof ServiceException) {
+                        throw (ServiceException) e.getCause();
+                    }
+                    throw ServiceException.FAILURE("checking blob consistency", e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Override
     public void docRights(List<AdminRight> relatedRights, List<String> notes) {
         notes.add(AdminRightCheckPoint.Notes.SYSTEM_ADMINS_ONLY);
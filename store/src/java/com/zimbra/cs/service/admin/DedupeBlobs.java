@@ -120,6 +120,7 @@ public final class DedupeBlobs extends AdminDocumentHandler {
         Pair<Integer, Long> pair = deduper.getCountAndSize();
         resp.setTotalCount(pair.getFirst());
         resp.setTotalSize(pair.getSecond());
+        resp.setDigestRate(deduper.getDigestRate());
         return zsc.jaxbToElement(resp);
     }
 
@@ -25,8 +25,11 @@ import com.zimbra.cs.account.Server;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.cs.account.accesscontrol.AdminRight;
 import com.zimbra.cs.account.accesscontrol.Rights.Admin;
+import com.zimbra.cs.session.IWaitSet;
 import com.zimbra.cs.session.Session;
 import com.zimbra.cs.session.SessionCache;
+import com.zimbra.cs.session.WaitSetMgr;
+import com.zimbra.soap.JaxbUtil;
 import com.zimbra.soap.ZimbraSoapContext;
 
 import java.util.ArrayList;
@@ -107,6 +110,11 @@ public class DumpSessions extends AdminDocumentHandler {
                 }
             }
         }
+        // WaitSet sessions are not in the SessionCache, so report each WaitSet's size, backlog and latency instead
+        for (IWaitSet ws : WaitSetMgr.getAll()) {
+            JaxbUtil.addChildElementFromJaxb(response, AdminConstants.E_WAITSET, AdminConstants.NAMESPACE_STR,
+                    ws.getStats());
+        }
         response.addAttribute(AdminConstants.A_ACTIVE_SESSIONS, totalActiveSessions);
         
         return response;
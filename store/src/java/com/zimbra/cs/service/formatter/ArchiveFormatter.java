@@ -17,6 +17,7 @@
 package com.zimbra.cs.service.formatter;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -28,6 +29,7 @@ import java.nio.charset.CharsetEncoder;
 import java.text.DateFormat;
 import java.text.Normalizer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -42,8 +44,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
@@ -60,6 +66,7 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.calendar.ZCalendar.ZCalendarBuilder;
 import com.zimbra.common.calendar.ZCalendar.ZICalendarParseHandler;
 import com.zimbra.common.calendar.ZCalendar.ZVCalendar;
@@ -150,6 +157,154 @@ public abstract class ArchiveFormatter extends Formatter {
         }
     }
 
+    /**
+     * Reads the blobs of the next items to export on a few threads while the archive writer is busy with the
+     * current one.  At most {@code zimbra_archive_formatter_read_ahead_bytes} of content is held in memory per
+     * export; blobs bigger than a sixteenth of that are left for the writer to stream.  The threads are shared by
+     * all exports, and when they fall behind the writer reads the blob itself.
+     */
+    private static final class ReadAhead {
+        private static final int MAX_ITEMS = 256;
+        private static ExecutorService sharedExecutor;
+
+        private final ExecutorService executor;
+        private final long maxBytes;
+        private final ArrayDeque<Entry> pending = new ArrayDeque<Entry>();
+        private long pendingBytes;
+
+        static final class Entry {
+            final MailItem item;
+            final Future<byte[]> content;
+            final long size;
+
+            Entry(MailItem item, Future<byte[]> content, long size) {
+                this.item = item;
+                this.content = content;
+                this.size = size;
+            }
+
+            /** Returns the prefetched blob, or {@code null} if the writer has to read it itself. */
+            byte[] getContent() {
+                if (content == null) {
+                    return null;
+                }
+                try {
+                    return content.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                } catch (ExecutionException e) {
+                    ZimbraLog.misc.debug("unable to read ahead blob for item %d", item.getId(), e.getCause());
+                    return null;
+                }
+            }
+        }
+
+        private ReadAhead(ExecutorService executor, long maxBytes) {
+            this.executor = executor;
+            this.maxBytes = maxBytes;
+        }
+
+        /** Returns {@code null} if read-ahead is disabled. */
+        static ReadAhead newInstance() {
+            ExecutorService executor = getExecutor();
+            long maxBytes = LC.zimbra_archive_formatter_read_ahead_bytes.longValue();
+            return executor != null && maxBytes > 0 ? new ReadAhead(executor, maxBytes) : null;
+        }
+
+        private static synchronized ExecutorService getExecutor() {
+            int threads = LC.zimbra_archive_formatter_read_ahead_threads.intValue();
+            if (threads <= 0) {
+                return null;
+            }
+            if (sharedExecutor == null) {
+                // when the queue is full the archive writer reads the blob itself
+                sharedExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(threads * 16),
+                        new ThreadFactoryBuilder().setNameFormat("ArchiveReadAhead-%d").setDaemon(true).build(),
+                        new ThreadPoolExecutor.CallerRunsPolicy());
+            }
+            return sharedExecutor;
+        }
+
+        boolean isEmpty() {
+            return pending.isEmpty();
+        }
+
+        boolean isFull() {
+            return pending.size() >= MAX_ITEMS || pendingBytes >= maxBytes;
+        }
+
+        void add(final MailItem mi) {
+            final long size = mi.getSize();
+            Future<byte[]> content = null;
+            if (mi.getDigest() != null && size > 0 && size <= maxBytes / 16) {
+                content = executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        InputStream is = mi.getContentStream();
+                        try {
+                            return ByteUtil.getContent(is, (int) size);
+                        } finally {
+                            ByteUtil.closeStream(is);
+                        }
+                    }
+                });
+            }
+            Entry entry = new Entry(mi, content, content == null ? 0 : size);
+            pendingBytes += entry.size;
+            pending.add(entry);
+        }
+
+        Entry take() {
+            Entry entry = pending.poll();
+            pendingBytes -= entry.size;
+            return entry;
+        }
+
+        void clear() {
+            for (Entry entry : pending) {
+                if (entry.content != null) {
+                    entry.content.cancel(false);
+                }
+            }
+            pending.clear();
+            pendingBytes = 0;
+        }
+    }
+
+    /**
+     * Throughput of one export or import, logged when it finishes.  The peak heap is the JVM-wide heap in use,
+     * sampled every 64 items.
+     */
+    private static final class RunStats {
+        private final long start = System.currentTimeMillis();
+        private int items;
+        private long bytes;
+        private long peakHeap;
+
+        void add(long size) {
+            items++;
+            bytes += Math.max(size, 0);
+            if ((items & 0x3f) == 0) {
+                sampleHeap();
+            }
+        }
+
+        private void sampleHeap() {
+            Runtime rt = Runtime.getRuntime();
+            peakHeap = Math.max(peakHeap, rt.totalMemory() - rt.freeMemory());
+        }
+
+        void log(String op, Mailbox mbox) {
+            sampleHeap();
+            long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+            ZimbraLog.misc.info("archive %s of mailbox %d: %d items, %d bytes in %d ms (%d items/s, %d KB/s), peak heap %d MB",
+                    op, mbox.getId(), items, bytes, elapsed, items * 1000L / elapsed, bytes * 1000L / 1024 / elapsed,
+                    peakHeap >> 20);
+        }
+    }
+
     public abstract interface ArchiveInputEntry {
         public long getModTime();
         public String getName();
@@ -218,6 +373,8 @@ public abstract class ArchiveFormatter extends Formatter {
         ArchiveOutputStream aos = null;
         String types = context.getTypesString();
         MailboxMaintenance maintenance = null;
+        ReadAhead readAhead = null;
+        RunStats stats = new RunStats();
         try {
             if (filename == null || filename.equals("")) {
                 Date date = new Date();
@@ -273,8 +430,10 @@ public abstract class ArchiveFormatter extends Formatter {
             CharsetEncoder encoder = charset.newEncoder();
             if (context.requestedItems != null) {
                 try {
-                    for (UserServletContext.Item item : context.requestedItems)
+                    for (UserServletContext.Item item : context.requestedItems) {
+                        stats.add(item.mailItem.getSize());
                         aos = saveItem(context, item.mailItem, fldrs, cnts, item.versioned, aos, encoder, names);
+                    }
                 } catch (Exception e) {
                     warn(e);
                 }
@@ -330,6 +489,7 @@ public abstract class ArchiveFormatter extends Formatter {
 
                         Collections.sort(items, sp);
                         for (MailItem item : items) {
+                            stats.add(item.getSize());
                             aos = saveItem(context, item, fldrs, cnts, false, aos, encoder, names);
                         }
                     }
@@ -351,17 +511,31 @@ public abstract class ArchiveFormatter extends Formatter {
                         typesMap.put(taskTypes, (StringUtil.isNullOrEmpty(taskQuery)) ? "is:local" : taskQuery);
                     }
                 }
+                readAhead = ReadAhead.newInstance();
                 for (Map.Entry<Set<MailItem.Type>, String> entry : typesMap.entrySet()) {
                     results = context.targetMailbox.index.search(context.opContext,
                             entry.getValue(), entry.getKey(), SortBy.NONE,
                             LC.zimbra_archive_formatter_search_chunk_size.intValue());
                     try {
-                        while (results.hasNext()) {
+                        while (results.hasNext() || (readAhead != null && !readAhead.isEmpty())) {
                             if (saveTargetFolder) {
                                 saveTargetFolder = false;
                                 aos = saveItem(context, context.target, fldrs, cnts, false, aos, encoder, names);
                             }
-                            aos = saveItem(context, results.getNext().getMailItem(), fldrs, cnts, false, aos, encoder, names);
+                            MailItem mi;
+                            byte[] content = null;
+                            if (readAhead == null) {
+                                mi = results.getNext().getMailItem();
+                            } else {
+                                while (results.hasNext() && !readAhead.isFull()) {
+                                    readAhead.add(results.getNext().getMailItem());
+                                }
+                                ReadAhead.Entry next = readAhead.take();
+                                mi = next.item;
+                                content = next.getContent();
+                            }
+                            stats.add(mi.getSize());
+                            aos = saveItem(context, mi, fldrs, cnts, false, aos, encoder, names, content);
                         }
                         IOUtil.closeQuietly(results);
                         results = null;
@@ -369,6 +543,9 @@ public abstract class ArchiveFormatter extends Formatter {
                         warn(e);
                     } finally {
                         IOUtil.closeQuietly(results);
+                        if (readAhead != null) {
+                            readAhead.clear();
+                        }
                     }
                 }
             }
@@ -381,6 +558,9 @@ public abstract class ArchiveFormatter extends Formatter {
                 aos = getOutputStream(context, UTF8);
             }
         } finally {
+            if (readAhead != null) {
+                readAhead.clear();
+            }
             if (maintenance != null) {
                 MailboxManager.getInstance().endMaintenance(maintenance, true, true);
             }
@@ -389,6 +569,7 @@ public abstract class ArchiveFormatter extends Formatter {
                     aos.close();
                 } catch (Exception e) {
                 }
+                stats.log("export", context.targetMailbox);
             }
         }
     }
@@ -421,6 +602,16 @@ public abstract class ArchiveFormatter extends Formatter {
         Map<Integer, String> fldrs, Map<Integer, Integer> cnts,
         boolean version, ArchiveOutputStream aos,
         CharsetEncoder charsetEncoder, Set<String> names) throws ServiceException {
+        return saveItem(context, mi, fldrs, cnts, version, aos, charsetEncoder, names, null);
+    }
+
+    /**
+     * @param content the item's blob if it has already been read ahead, otherwise {@code null}
+     */
+    private ArchiveOutputStream saveItem(UserServletContext context, MailItem mi,
+        Map<Integer, String> fldrs, Map<Integer, Integer> cnts,
+        boolean version, ArchiveOutputStream aos,
+        CharsetEncoder charsetEncoder, Set<String> names, byte[] content) throws ServiceException {
 
         String ext = null, name = null;
         String extra = null;
@@ -574,7 +765,7 @@ public abstract class ArchiveFormatter extends Formatter {
                 return aos;
             }
             try {
-                is = mi.getContentStream();
+                is = content != null ? new ByteArrayInputStream(content) : mi.getContentStream();
             } catch (Exception e) {
                 ZimbraLog.misc.error("missing blob for item %d: expected %d", mi.getId(), miSize);
                 return aos;
@@ -857,6 +1048,7 @@ public abstract class ArchiveFormatter extends Formatter {
         String subfolder = context.params.get("subfolder");
         String timestamp = context.params.get("timestamp");
         String timeout = context.params.get("timeout");
+        RunStats stats = new RunStats();
 
         try {
             ArchiveInputStream ais;
@@ -955,7 +1147,9 @@ public abstract class ArchiveFormatter extends Formatter {
                     */
                     if (aie.getName().startsWith("__MACOSX/")) {
                         continue;
-                    } else if (aie.getName().endsWith(".meta")) {
+                    }
+                    stats.add(aie.getSize());
+                    if (aie.getName().endsWith(".meta")) {
                         meta = true;
                         if (id != null) {
                             addItem(context, fldr, fmap, digestInfo, idMap, ids, searchTypes, r, id, ais, null, errs);
@@ -1003,6 +1197,7 @@ public abstract class ArchiveFormatter extends Formatter {
         } catch (Exception e) {
             ex = e;
         }
+        stats.log("import", context.targetMailbox);
         try {
             updateClient(context, ex, errs);
         } catch (ServiceException e) {
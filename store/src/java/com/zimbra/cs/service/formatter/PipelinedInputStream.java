@@ -0,0 +1,156 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.formatter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.zimbra.common.util.ByteUtil;
+
+/**
+ * Reads the wrapped stream in a task on {@code executor}, up to {@code depth} buffers of {@code bufferSize} bytes
+ * ahead of the consumer, so that e.g. gunzipping an uploaded archive overlaps with importing its items.  The task
+ * occupies an executor thread until the stream is read to the end or closed.
+ */
+final class PipelinedInputStream extends InputStream {
+    private static final byte[] EOF = new byte[0];
+
+    private final InputStream in;
+    private final BlockingQueue<byte[]> queue;
+    private final String name;
+    private final Future<?> reader;
+    private byte[] buf = new byte[0];
+    private int pos;
+    private boolean eof;
+    private volatile Throwable failure;
+
+    /**
+     * @throws RejectedExecutionException if {@code executor} has no thread to spare, in which case nothing has
+     *     been read from {@code in}
+     */
+    PipelinedInputStream(InputStream in, final int bufferSize, int depth, ExecutorService executor, String name) {
+        this.in = in;
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<byte[]>(depth);
+        this.reader = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        byte[] b = new byte[bufferSize];
+                        int n = fill(b);
+                        if (n > 0) {
+                            if (n < b.length) {
+                                byte[] partial = new byte[n];
+                                System.arraycopy(b, 0, partial, 0, n);
+                                b = partial;
+                            }
+                            queue.put(b);
+                        }
+                        if (n < bufferSize) {
+                            break;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return; // closed by the consumer
+                } catch (Throwable t) {
+                    failure = t;
+                }
+                try {
+                    queue.put(EOF);
+                } catch (InterruptedException ignore) {
+                }
+            }
+        });
+    }
+
+    private int fill(byte[] b) throws IOException {
+        int n = 0;
+        while (n < b.length) {
+            int r = in.read(b, n, b.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    private boolean next() throws IOException {
+        if (eof) {
+            return false;
+        }
+        try {
+            buf = queue.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted reading from " + name);
+        }
+        pos = 0;
+        if (buf == EOF) {
+            eof = true;
+            Throwable t = failure;
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            } else if (t != null) {
+                throw new IOException(name + " failed", t);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == buf.length && !next()) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == buf.length && !next()) {
+            return -1;
+        }
+        int n = Math.min(len, buf.length - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return buf.length - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        eof = true;
+        reader.cancel(true);
+        queue.clear();
+        ByteUtil.closeStream(in);
+    }
+}
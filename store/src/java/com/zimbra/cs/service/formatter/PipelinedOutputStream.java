@@ -0,0 +1,160 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.formatter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands everything written to it over to a task on {@code executor} which writes it to the wrapped stream, so that
+ * e.g. gzip compression and the socket write of an archive export run alongside the thread producing the archive.
+ * At most {@code depth} buffers of {@code bufferSize} bytes are queued at any time.  The task occupies an executor
+ * thread until the stream is closed, so the executor must reject it rather than queue it when it has no idle thread.
+ */
+final class PipelinedOutputStream extends OutputStream {
+    private static final byte[] EOF = new byte[0];
+
+    private final BlockingQueue<byte[]> queue;
+    private final String name;
+    private final Future<?> writer;
+    private final int bufferSize;
+    private byte[] buf;
+    private int count;
+    private boolean closed;
+    private volatile Throwable failure;
+
+    /**
+     * @throws RejectedExecutionException if {@code executor} has no thread to spare, in which case nothing has
+     *     been written to {@code out}
+     */
+    PipelinedOutputStream(final OutputStream out, int bufferSize, int depth, ExecutorService executor, String name) {
+        this.name = name;
+        this.bufferSize = bufferSize;
+        this.buf = new byte[bufferSize];
+        this.queue = new ArrayBlockingQueue<byte[]>(depth);
+        this.writer = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (byte[] b = queue.take(); b != EOF; b = queue.take()) {
+                        out.write(b);
+                    }
+                    out.close();
+                } catch (Throwable t) {
+                    failure = t;
+                    // keep draining so that the producer never blocks on a full queue
+                    try {
+                        while (queue.take() != EOF) {
+                        }
+                    } catch (InterruptedException ignore) {
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == bufferSize) {
+            handOff();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == bufferSize) {
+                handOff();
+            }
+            int n = Math.min(len, bufferSize - count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Queues whatever has been written so far.  This does not wait for the writer thread to flush the wrapped stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            handOff();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            put(EOF);
+            try {
+                writer.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted waiting for " + name);
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            }
+        }
+        checkFailure();
+    }
+
+    private void handOff() throws IOException {
+        checkFailure();
+        byte[] b = buf;
+        if (count < bufferSize) {
+            byte[] partial = new byte[count];
+            System.arraycopy(b, 0, partial, 0, count);
+            b = partial;
+        } else {
+            buf = new byte[bufferSize];
+        }
+        count = 0;
+        put(b);
+    }
+
+    private void put(byte[] b) throws IOException {
+        try {
+            queue.put(b);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted writing to " + name);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure;
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t != null) {
+            throw new IOException(name + " failed", t);
+        }
+    }
+}
@@ -17,15 +17,28 @@
 package com.zimbra.cs.service.formatter;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.service.UserServletContext;
 import com.zimbra.cs.service.UserServletException;
 import com.zimbra.cs.service.formatter.FormatterFactory.FormatType;
 
 public class TgzFormatter extends TarFormatter {
+    private static final int PIPELINE_BUFFER_SIZE = 64 * 1024;
+    private static ExecutorService pipelineExecutor;
+
     @Override public String[] getDefaultMimeTypes() {
         return new String[] { "application/x-compressed-tar" };
     }
@@ -37,13 +50,50 @@ public class TgzFormatter extends TarFormatter {
     
     protected ArchiveInputStream getInputStream(UserServletContext context,
         String charset) throws IOException, ServiceException, UserServletException {
-        return new TarArchiveInputStream(new GZIPInputStream(
-            context.getRequestInputStream(-1)), charset);
+        InputStream is = new GZIPInputStream(context.getRequestInputStream(-1));
+        int buffers = LC.zimbra_archive_formatter_pipeline_buffers.intValue();
+        ExecutorService executor = buffers > 0 ? getPipelineExecutor() : null;
+        if (executor != null) {
+            // inflate on a separate thread so that it overlaps with adding the items to the mailbox
+            try {
+                is = new PipelinedInputStream(is, PIPELINE_BUFFER_SIZE, buffers, executor, "ArchiveFormatter-gunzip");
+            } catch (RejectedExecutionException e) {
+                ZimbraLog.misc.debug("all archive pipeline threads busy, inflating inline");
+            }
+        }
+        return new TarArchiveInputStream(is, charset);
     }
 
     protected ArchiveOutputStream getOutputStream(UserServletContext context, String
         charset) throws IOException {
-        return new TarArchiveOutputStream(new GZIPOutputStream(
-            context.resp.getOutputStream()), charset);
+        OutputStream os = new GZIPOutputStream(context.resp.getOutputStream());
+        int buffers = LC.zimbra_archive_formatter_pipeline_buffers.intValue();
+        ExecutorService executor = buffers > 0 ? getPipelineExecutor() : null;
+        if (executor != null) {
+            // deflate on a separate thread so that it overlaps with reading the blobs
+            try {
+                os = new PipelinedOutputStream(os, PIPELINE_BUFFER_SIZE, buffers, executor, "ArchiveFormatter-gzip");
+            } catch (RejectedExecutionException e) {
+                ZimbraLog.misc.debug("all archive pipeline threads busy, deflating inline");
+            }
+        }
+        return new TarArchiveOutputStream(os, charset);
+    }
+
+    /**
+     * Each pipelined stream holds on to a thread until it is closed, so the pool hands out threads up to its limit
+     * and rejects the rest instead of queueing them; the caller then gzips inline.
+     */
+    private static synchronized ExecutorService getPipelineExecutor() {
+        int threads = LC.zimbra_archive_formatter_pipeline_threads.intValue();
+        if (threads <= 0) {
+            return null;
+        }
+        if (pipelineExecutor == null) {
+            pipelineExecutor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setNameFormat("ArchivePipeline-%d").setDaemon(true).build(),
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+        return pipelineExecutor;
     }
 }
@@ -53,4 +53,9 @@ public class GetSearchFolder extends MailDocumentHandler  {
 
         return response;
     }
+
+    @Override
+    public boolean isParallelSafe(Element request) {
+        return true;
+    }
 }
@@ -114,7 +114,7 @@ public class Search extends MailDocumentHandler  {
             // must use results.getSortBy() because the results might have ignored our sortBy
             // request and used something else...
             response.addAttribute(MailConstants.A_SORTBY, results.getSortBy().toString());
-            putHits(zsc, octxt, response, results, params, memberOfMap);
+            putHits(zsc, octxt, response, results, params, memberOfMap, isResponseStreamable(context));
         } catch (IOException e) {
         } 
         return response;
@@ -131,7 +131,7 @@ public class Search extends MailDocumentHandler  {
     }
 
     private void putHits(ZimbraSoapContext zsc, OperationContext octxt, Element el, ZimbraQueryResults results,
-            SearchParams params, Map<String,Set<String>> memberOfMap) throws ServiceException {
+            SearchParams params, Map<String,Set<String>> memberOfMap, boolean streamable) throws ServiceException {
 
         if (params.getInlineRule() == ExpandResults.HITS ||
             params.getInlineRule() == ExpandResults.FIRST_MSG ||
@@ -159,6 +159,14 @@ public class Search extends MailDocumentHandler  {
         SearchResponse resp = new SearchResponse(zsc, octxt, el, params, memberOfMap);
         resp.setIncludeMailbox(false);
         resp.setSortOrder(pager.getSortOrder());
+        if (streamable && params.getTypes().size() == 1) {
+            // in JSON the streamed hits become a single array, so only stream single-type searches
+            if (params.getTypes().contains(MailItem.Type.MESSAGE)) {
+                resp.setStreaming(MailConstants.E_MSG);
+            } else if (params.getTypes().contains(MailItem.Type.CONVERSATION)) {
+                resp.setStreaming(MailConstants.E_CONV);
+            }
+        }
         boolean expand;
         ExpandResults expandValue = params.getInlineRule();
         int hitNum = 0;
@@ -502,5 +510,14 @@ public class Search extends MailDocumentHandler  {
             request.addAttribute(recipField, "0");
         }
     }
-}
 
+    @Override
+    public boolean isParallelSafe(Element request) {
+        // read="1" marks the returned messages read
+        try {
+            return !request.getAttributeBool(MailConstants.A_MARK_READ, false);
+        } catch (ServiceException e) {
+            return false;
+        }
+    }
+}
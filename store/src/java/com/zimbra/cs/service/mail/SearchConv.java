@@ -300,4 +300,9 @@ public final class SearchConv extends Search {
         return el;
     }
 
+    @Override
+    public boolean isParallelSafe(Element request) {
+        // not reviewed for concurrent use; runs in order like any other request
+        return false;
+    }
 }
@@ -16,6 +16,8 @@
  */
 package com.zimbra.cs.service.mail;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -83,6 +85,8 @@ final class SearchResponse {
     private SortBy sortOrder = SortBy.NONE;;
     private boolean allRead = false;
     private final Map<String,Set<String>> memberOfMap;
+    private String streamName;
+    private List<DeferredHit> deferred;
 
     protected SearchResponse(ZimbraSoapContext zsc, OperationContext octxt, Element el, SearchParams params) {
         this(zsc, octxt, el, params, (Map<String,Set<String>>) null);
@@ -116,6 +120,17 @@ final class SearchResponse {
         sortOrder = value;
     }
 
+    /**
+     * Encode message and conversation hits while the response is serialized instead of when they're
+     * added, so that the response never holds all of their elements at once.  Only use this when
+     * the response is written straight to the client (see {@link DocumentHandler#isResponseStreamable})
+     * and every deferred hit encodes to an element called <tt>name</tt>.  Proxied hits with that name
+     * are deferred too, so they keep their place among the local hits.
+     */
+    void setStreaming(String name) {
+        streamName = name;
+    }
+
     /**
      * Append a paging flag to the response.
      *
@@ -156,53 +171,113 @@ final class SearchResponse {
     /* We need to pass in a boolean signifying whether to expand the message or not (bug 75990)
     */
     void add(ZimbraHit hit, boolean expandMsg) throws ServiceException {
+        if (hit instanceof MessageHit && params.getFetchMode() != SearchParams.Fetch.IDS) {
+            // for bug 7568, mark-as-read must happen before the response is encoded.
+            markRead(((MessageHit) hit).getMessage(), expandMsg);
+        }
+        if (streamName != null && params.getFetchMode() != SearchParams.Fetch.IDS &&
+                (hit instanceof MessageHit || hit instanceof ConversationHit || isStreamedProxiedHit(hit))) {
+            defer(hit, expandMsg);
+        } else if (encode(element, hit, expandMsg) != null) {
+            size++;
+        }
+    }
+
+    // Hits from a mountpoint on another server are already encoded; they must go through the deferred list
+    // with the local hits, or they end up out of order and (in JSON) clash with the streamed array.
+    private boolean isStreamedProxiedHit(ZimbraHit hit) {
+        return hit instanceof ProxiedHit && streamName.equals(((ProxiedHit) hit).getElement().getName());
+    }
+
+    private Element encode(Element parent, ZimbraHit hit, boolean expandMsg) throws ServiceException {
         Element el = null;
         if (params.getFetchMode() == SearchParams.Fetch.IDS) {
             if (hit instanceof ConversationHit) {
                 // need to expand the contained messages
-                el = element.addElement(MailConstants.E_HIT);
+                el = parent.addElement(MailConstants.E_HIT);
                 el.addAttribute(MailConstants.A_ID, ifmt.formatItemId(hit.getParsedItemID()));
             } else {
-                el = element.addElement(MailConstants.E_HIT);
+                el = parent.addElement(MailConstants.E_HIT);
                 el.addAttribute(MailConstants.A_ID, ifmt.formatItemId(hit.getParsedItemID()));
             }
         } else if (hit instanceof ProxiedHit) {
-            element.addElement(((ProxiedHit) hit).getElement().detach());
-            size++;
-            return;
+            return parent.addElement(((ProxiedHit) hit).getElement().detach());
         } else {
             if (hit instanceof ConversationHit) {
-                el = add((ConversationHit) hit);
+                el = add(parent, (ConversationHit) hit);
             } else if (hit instanceof MessageHit) {
-                el = add((MessageHit) hit,expandMsg);
+                el = add(parent, (MessageHit) hit, expandMsg);
             } else if (hit instanceof MessagePartHit) {
-                el = add((MessagePartHit) hit);
+                el = add(parent, (MessagePartHit) hit);
             } else if (hit instanceof ContactHit) {
-                el = add((ContactHit) hit);
+                el = add(parent, (ContactHit) hit);
             } else if (hit instanceof NoteHit) {
-                el = add((NoteHit) hit);
+                el = add(parent, (NoteHit) hit);
             } else if (hit instanceof CalendarItemHit) {
-                el = add((CalendarItemHit) hit); // el could be null
+                el = add(parent, (CalendarItemHit) hit); // el could be null
             } else if (hit instanceof DocumentHit) {
-                el = add((DocumentHit) hit);
+                el = add(parent, (DocumentHit) hit);
             } else {
                 LOG.error("Got an unknown hit type putting search hits: " + hit);
-                return;
+                return null;
             }
         }
 
         if (el != null) {
-            size++;
             el.addAttribute(MailConstants.A_SORT_FIELD, hit.getSortField(sortOrder).toString());
             if (includeMailbox) {
                 el.addAttribute(MailConstants.A_ID, new ItemId(hit.getAcctIdStr(), hit.getItemId()).toString());
             }
         }
+        return el;
     }
 
-    private Element add(ConversationHit hit) throws ServiceException {
+    private static final class DeferredHit {
+        final ZimbraHit hit;
+        final boolean expand;
+
+        DeferredHit(ZimbraHit hit, boolean expand) {
+            this.hit = hit;
+            this.expand = expand;
+        }
+    }
+
+    /**
+     * Loads everything the hit's encoding needs while the search results are still open, and
+     * queues the hit to be encoded when the response is serialized.
+     */
+    private void defer(ZimbraHit hit, boolean expandMsg) throws ServiceException {
+        if (hit instanceof ConversationHit) {
+            ConversationHit chit = (ConversationHit) hit;
+            chit.getConversation();
+            for (MessageHit mhit : chit.getMessageHits()) {
+                mhit.getMessage();
+            }
+        }
+        if (deferred == null) {
+            deferred = new ArrayList<DeferredHit>();
+            element.addNonUniqueElement(new Element.StreamingElement(streamName, new Element.StreamingElement.Streamer() {
+                @Override
+                public void stream(Element.StreamingElement.Output out) throws IOException {
+                    for (DeferredHit dhit : deferred) {
+                        try {
+                            encode(out.getParent(), dhit.hit, dhit.expand);
+                        } catch (ServiceException e) {
+                            // too late for a fault, the response is already on its way
+                            LOG.warn("unable to encode search hit %s", dhit.hit.getParsedItemID(), e);
+                        }
+                        out.flush();
+                    }
+                }
+            }));
+        }
+        deferred.add(new DeferredHit(hit, expandMsg));
+        size++;
+    }
+
+    private Element add(Element parent, ConversationHit hit) throws ServiceException {
         if (params.getFetchMode() == SearchParams.Fetch.IDS) {
-            Element el = element.addNonUniqueElement(MailConstants.E_CONV);
+            Element el = parent.addNonUniqueElement(MailConstants.E_CONV);
             for (MessageHit mhit : hit.getMessageHits()) {
                 ConversationMsgHitInfo cMsgHit = new ConversationMsgHitInfo(ifmt.formatItemId(mhit.getItemId()));
                 cMsgHit.toElement(el);
@@ -211,7 +286,7 @@ final class SearchResponse {
         } else {
             Conversation conv = hit.getConversation();
             MessageHit mhit = hit.getFirstMessageHit();
-            Element el = ToXML.encodeConversationSummary(element, ifmt, octxt, conv,
+            Element el = ToXML.encodeConversationSummary(parent, ifmt, octxt, conv,
                     mhit == null ? null : mhit.getMessage(), params.getWantRecipients());
 
             Collection<MessageHit> msgHits = hit.getMessageHits();
@@ -252,9 +327,7 @@ final class SearchResponse {
     }
 
     //for bug 75990, we are now passing an expandMsg boolean instead of calculating in isInLineExpand
-    private Element add(MessageHit hit, boolean expandMsg) throws ServiceException {
-        Message msg = hit.getMessage();
-        // for bug 7568, mark-as-read must happen before the response is encoded.
+    private void markRead(Message msg, boolean expandMsg) {
         if (expandMsg && msg.isUnread() && params.getMarkRead()) {
             // Mark the message as READ
             try {
@@ -267,7 +340,10 @@ final class SearchResponse {
                 }
             }
         }
+    }
 
+    private Element add(Element parent, MessageHit hit, boolean expandMsg) throws ServiceException {
+        Message msg = hit.getMessage();
         Element el;
         int fields;
         if (params.isQuick()) {
@@ -276,12 +352,12 @@ final class SearchResponse {
             fields = getFieldBitmask();
         }
         if (expandMsg) {
-            el = ToXML.encodeMessageAsMP(element, ifmt, octxt, msg, null, params.getMaxInlinedLength(),
+            el = ToXML.encodeMessageAsMP(parent, ifmt, octxt, msg, null, params.getMaxInlinedLength(),
                     params.getWantHtml(), params.getNeuterImages(), params.getInlinedHeaders(), true,
                     params.getWantExpandGroupInfo(), LC.mime_encode_missing_blob.booleanValue(),
                     params.getWantContent(), fields);
         } else {
-            el = ToXML.encodeMessageSummary(element, ifmt, octxt, msg, params.getWantRecipients(), fields);
+            el = ToXML.encodeMessageSummary(parent, ifmt, octxt, msg, params.getWantRecipients(), fields);
         }
 
         el.addAttribute(MailConstants.A_CONTENTMATCHED, true);
@@ -304,9 +380,9 @@ final class SearchResponse {
         return Element.reorderChildElements(el, nameOrder);
     }
 
-    private Element add(MessagePartHit hit) throws ServiceException {
+    private Element add(Element parent, MessagePartHit hit) throws ServiceException {
         Message msg = hit.getMessageResult().getMessage();
-        Element el = element.addElement(MailConstants.E_MIMEPART);
+        Element el = parent.addElement(MailConstants.E_MIMEPART);
         el.addAttribute(MailConstants.A_SIZE, msg.getSize());
         el.addAttribute(MailConstants.A_DATE, msg.getDate());
         el.addAttribute(MailConstants.A_CONV_ID, msg.getConversationId());
@@ -335,8 +411,8 @@ final class SearchResponse {
         return fields;
     }
 
-    private Element add(ContactHit hit) throws ServiceException {
-        return ToXML.encodeContact(element, ifmt, octxt, hit.getContact(), (ContactGroup)null,
+    private Element add(Element parent, ContactHit hit) throws ServiceException {
+        return ToXML.encodeContact(parent, ifmt, octxt, hit.getContact(), (ContactGroup)null,
                 (Collection<String>)null /* memberAttrFilter */, true /* summary */,
                 (Collection<String>)null /* attrFilter */, getFieldBitmask(),
                 (String)null /* migratedDlist */, false /* returnHiddenAttrs */,
@@ -344,15 +420,15 @@ final class SearchResponse {
                 ContactMemberOfMap.setOfMemberOf(zsc.getRequestedAccountId(), hit.getItemId(), memberOfMap));
     }
 
-    private Element add(NoteHit hit) throws ServiceException {
-        return ToXML.encodeNote(element, ifmt, octxt, hit.getNote());
+    private Element add(Element parent, NoteHit hit) throws ServiceException {
+        return ToXML.encodeNote(parent, ifmt, octxt, hit.getNote());
     }
 
-    private Element add(DocumentHit hit) throws ServiceException {
+    private Element add(Element parent, DocumentHit hit) throws ServiceException {
         if (hit.getItemType() == MailItem.Type.DOCUMENT) {
-            return ToXML.encodeDocument(element, ifmt, octxt, hit.getDocument());
+            return ToXML.encodeDocument(parent, ifmt, octxt, hit.getDocument());
         } else if (hit.getItemType() == MailItem.Type.WIKI) {
-            return ToXML.encodeWiki(element, ifmt, octxt, (WikiItem) hit.getDocument());
+            return ToXML.encodeWiki(parent, ifmt, octxt, (WikiItem) hit.getDocument());
         } else {
             throw ServiceException.UNKNOWN_DOCUMENT("invalid document type " + hit.getItemType(), null);
         }
@@ -364,7 +440,7 @@ final class SearchResponse {
      *
      * @return could be NULL
      */
-    private Element add(CalendarItemHit hit) throws ServiceException {
+    private Element add(Element parent, CalendarItemHit hit) throws ServiceException {
         CalendarItem item = hit.getCalendarItem();
         Account acct = DocumentHandler.getRequestedAccount(zsc);
         long rangeStart = params.getCalItemExpandStart();
@@ -379,7 +455,7 @@ final class SearchResponse {
 
         Element el = encoded.element;
         if (el != null) {
-            element.addElement(el);
+            parent.addElement(el);
             ToXML.setCalendarItemFields(el, ifmt, octxt, item, PendingModifications.Change.ALL_FIELDS, false,
                     params.getNeuterImages());
             el.addAttribute(MailConstants.A_CONTENTMATCHED, true);
@@ -71,6 +71,10 @@ public class ItemIdFormatter {
         return mDefaultId;
     }
 
+    public boolean isUnqualified() {
+        return mUnqualifiedItemIds;
+    }
+
     /**
      * Formats the {@link MailItem}'s ID into a <code>String</code> that's
      * addressable by the request's originator.  In other words, if the owner
@@ -155,8 +155,9 @@ public final class AllAccountsWaitSet extends WaitSetBase {
                 mBufferedCommits.add(new Pair<String/*acctId*/, String/*commitId*/>(accountId, commitIdStr));
             } else {
                 mNextSeqNo = commitIdStr;
-                mCurrentSignalledAccounts.add(accountId);
-                trySendData();
+                if (mChanges.signal(accountId, null, null)) {
+                    trySendData();
+                }
             }
         }
     }
@@ -191,9 +192,7 @@ public final class AllAccountsWaitSet extends WaitSetBase {
                 Mailbox mbox = MailboxManager.getInstance().getMailboxById(id);
                 if (mbox != null) {
                     String accountId = mbox.getAccountId();
-                    synchronized(this) {
-                        mCurrentSignalledAccounts.add(accountId);
-                    }
+                    mChanges.signal(accountId, null, null);
                 }
             } catch (ServiceException e) {
                 ZimbraLog.session.warn("AllAccountsWaitSet skipping notification of mailbox id %d because we could not fetch it",
@@ -209,14 +208,14 @@ public final class AllAccountsWaitSet extends WaitSetBase {
         //
         synchronized(this) {
             for (Pair<String/*acctid*/,String/*commitId*/> p : mBufferedCommits) {
-                mCurrentSignalledAccounts.add(p.getFirst());
+                mChanges.signal(p.getFirst(), null, null);
                 mNextSeqNo = p.getSecond();
             }
 
             // no more buffering!
             mBufferedCommits = null;
 
-            if (mCurrentSignalledAccounts.size() > 0) {
+            if (!mChanges.isEmpty()) {
                 trySendData();
             }
         }
@@ -256,10 +255,9 @@ public final class AllAccountsWaitSet extends WaitSetBase {
             }
             interestTypes = types;
         }
-        mCurrentSignalledSessions.clear();
+        mChanges.clear();
         mSentSignalledSessions.clear();
         mSentSignalledAccounts.clear();
-        mCurrentSignalledAccounts.clear();
         return null;
     }
 
@@ -93,4 +93,9 @@ public interface IWaitSet {
 
     /** Handle a QueryWaitSet request by encoding all of our internal data into a JAXB object for the response */
     public WaitSetInfo handleQuery();
+
+    /**
+     * Size, backlog and delivery latency of this WaitSet, without the per-account detail of {@link #handleQuery()}
+     */
+    public WaitSetInfo getStats();
 }
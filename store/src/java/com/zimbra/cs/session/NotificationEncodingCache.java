@@ -0,0 +1,125 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.service.mail.ToXML;
+import com.zimbra.cs.service.util.ItemIdFormatter;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Encodes a notified item once for all the {@link SoapSession}s that are notified of the same change,
+ * e.g. the hundreds of sessions that have a busy shared folder mounted.  Each session still builds its
+ * own <tt>&lt;notify></tt> block, but copies the items other sessions already encoded instead of
+ * encoding them again.
+ * <p>
+ * Only items whose encoding doesn't depend on the viewer beyond what goes into the key are shared:
+ * plain messages, keyed by mailbox, item, modified sequence, notified fields, SOAP protocol, the way
+ * the session formats item IDs, and whether it sees tag IDs.  Conversations, folders, calendar items
+ * and invites are filtered or annotated per viewer and are always encoded by the session.
+ */
+final class NotificationEncodingCache {
+
+    private static final Cache<Key, Element> cache = LC.zimbra_session_notification_cache_size.intValue() > 0 ?
+            CacheBuilder.newBuilder().maximumSize(LC.zimbra_session_notification_cache_size.intValue())
+                    .expireAfterWrite(5, TimeUnit.MINUTES).<Key, Element>build() : null;
+
+    private NotificationEncodingCache() {
+    }
+
+    private static final class Key {
+        final int mailboxId;
+        final int itemId;
+        final int modSequence;
+        final int fields;
+        final Class<?> protocol;
+        final boolean unqualified;
+        final boolean ownerIsAuth;
+        final String defaultAccount;
+        final boolean fullAccess;
+
+        Key(Element parent, ItemIdFormatter ifmt, MailItem item, int fields, boolean fullAccess) {
+            this.mailboxId = item.getMailboxId();
+            this.itemId = item.getId();
+            this.modSequence = item.getModifiedSequence();
+            this.fields = fields;
+            this.protocol = parent.getClass();
+            this.unqualified = ifmt.isUnqualified();
+            // formatted IDs only depend on whether their account is the authenticated one
+            String auth = ifmt.getAuthenticatedId();
+            String dflt = ifmt.getDefaultAccountId();
+            this.ownerIsAuth = item.getMailbox().getAccountId().equals(auth);
+            this.defaultAccount = dflt == null || dflt.equals(auth) ? "" : dflt;
+            this.fullAccess = fullAccess;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mailboxId == other.mailboxId && itemId == other.itemId && modSequence == other.modSequence &&
+                    fields == other.fields && protocol == other.protocol && unqualified == other.unqualified &&
+                    ownerIsAuth == other.ownerIsAuth && defaultAccount.equals(other.defaultAccount) &&
+                    fullAccess == other.fullAccess;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mailboxId, itemId, modSequence, fields, protocol, defaultAccount);
+        }
+    }
+
+    private static boolean isShareable(MailItem item) {
+        return item.getClass() == Message.class && !((Message) item).isInvite();
+    }
+
+    /**
+     * Same as {@link ToXML#encodeItem(Element, ItemIdFormatter, OperationContext, MailItem, int)}, but
+     * reuses an earlier encoding of the same item for another session when it can.
+     */
+    static Element encodeItem(Element parent, ItemIdFormatter ifmt, OperationContext octxt, MailItem item, int fields)
+            throws ServiceException {
+        if (cache == null || !isShareable(item)) {
+            return ToXML.encodeItem(parent, ifmt, octxt, item, fields);
+        }
+        Key key = new Key(parent, ifmt, item, fields, ToXML.hasFullAccess(item.getMailbox(), octxt));
+        Element cached = cache.getIfPresent(key);
+        ZimbraPerf.COUNTER_NOTIFY_ENCODE_CACHE.increment(cached != null ? 100 : 0);
+        if (cached != null) {
+            Element elt = cached.clone();
+            parent.addNonUniqueElement(elt);
+            return elt;
+        }
+        Element elt = ToXML.encodeItem(parent, ifmt, octxt, item, fields);
+        if (elt != null) {
+            cache.put(key, elt.clone());
+        }
+        return elt;
+    }
+}
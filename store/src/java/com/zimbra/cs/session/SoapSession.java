@@ -70,6 +70,7 @@ import com.zimbra.cs.service.util.ItemId;
 import com.zimbra.cs.service.util.ItemIdFormatter;
 import com.zimbra.cs.session.PendingModifications.Change;
 import com.zimbra.cs.session.PendingModifications.ModificationKey;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.BuildInfo;
 import com.zimbra.cs.util.IOUtil;
 import com.zimbra.cs.util.Zimbra;
@@ -1413,7 +1414,9 @@ public class SoapSession extends Session {
         QueuedNotifications last = notifications.getLast();
         for (QueuedNotifications ntfn : notifications) {
             if (ntfn.hasNotifications() || ntfn == last) {
+                long start = ZimbraPerf.STOPWATCH_NOTIFY_ENCODE.start();
                 putQueuedNotifications(mbox, ntfn, ctxt, zsc);
+                ZimbraPerf.STOPWATCH_NOTIFY_ENCODE.stop(start);
             }
         }
 
@@ -1486,7 +1489,7 @@ public class SoapSession extends Session {
                         MailItem mi = (MailItem) item;
                         ItemIdFormatter ifmt = new ItemIdFormatter(mAuthenticatedAccountId, mi.getMailbox(), false);
                         try {
-                            Element elem = ToXML.encodeItem(eCreated, ifmt, octxt, mi, ToXML.NOTIFY_FIELDS);
+                            Element elem = NotificationEncodingCache.encodeItem(eCreated, ifmt, octxt, mi, ToXML.NOTIFY_FIELDS);
                             // special-case notifications for new mountpoints in the authenticated user's mailbox
                             if (item instanceof Mountpoint && mbox == mi.getMailbox()) {
                                 Map<ItemId, Pair<Boolean, Element>> mountpoints = new HashMap<ItemId, Pair<Boolean, Element>>(2);
@@ -1528,7 +1531,7 @@ public class SoapSession extends Session {
                         MailItem item = (MailItem) chg.what;
 
                         try {
-                            Element elt = ToXML.encodeItem(eModified, ifmt, octxt, item, chg.why);
+                            Element elt = NotificationEncodingCache.encodeItem(eModified, ifmt, octxt, item, chg.why);
                             if (elt == null) {
                                 ModificationKey mkey = new PendingLocalModifications.ModificationKey(item);
                                 addDeletedNotification(mkey, deletedIds);
@@ -22,6 +22,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
@@ -47,8 +48,11 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
     private long mCbSeqNo = 0; // seqno passed in by the current waiting callback
     private long mCurrentSeqNo; // current sequence number
 
-    /** these are the accounts we are listening to.  Stores EITHER a WaitSetSession or an AccountID  */
-    private HashMap<String, WaitSetAccount> mSessions = new HashMap<String, WaitSetAccount>();
+    /**
+     * these are the accounts we are listening to.  Stores EITHER a WaitSetSession or an AccountID.  Modified with
+     * the WaitSet lock held, but concurrent so that mailbox notifications can check membership without it.
+     */
+    private final ConcurrentHashMap<String, WaitSetAccount> mSessions = new ConcurrentHashMap<String, WaitSetAccount>();
 
     /** Constructor */
     SomeAccountsWaitSet(String ownerAccountId, String id, Set<MailItem.Type> defaultInterest) {
@@ -246,19 +250,18 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
      * Cleanup and remove all the sessions referenced by this WaitSet
      */
     @Override
-    synchronized protected HashMap<String, WaitSetAccount> destroy() {
+    synchronized protected Map<String, WaitSetAccount> destroy() {
         try {
             MailboxManager.getInstance().removeListener(this);
         } catch (ServiceException e) {
             ZimbraLog.session.warn("Caught unexpected ServiceException while destroying WaitSet: "+e, e);
         }
         cancelExistingCB();
-        HashMap<String, WaitSetAccount> toRet = mSessions;
-        mSessions = new HashMap<String, WaitSetAccount>();
-        mCurrentSignalledSessions.clear();
+        HashMap<String, WaitSetAccount> toRet = new HashMap<String, WaitSetAccount>(mSessions);
+        mSessions.clear();
+        mChanges.clear();
         mSentSignalledSessions.clear();
         mSentSignalledAccounts.clear();
-        mCurrentSignalledAccounts.clear();
         mCurrentSeqNo = Long.MAX_VALUE;
         return toRet;
    }
@@ -275,36 +278,35 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
      *
      * @param session
      */
-    synchronized protected void unsignalDataReady(WaitSetSession session) {
-        if (mSessions.containsKey(session.getTargetAccountId())) { // ...false if waitset is shutting down...
-            mCurrentSignalledAccounts.remove(session.getTargetAccountId());
-            mCurrentSignalledSessions.remove(session.getTargetAccountId());
-        }
+    protected void unsignalDataReady(WaitSetSession session) {
+        mChanges.unsignal(session.getTargetAccountId());
     }
 
     /**
      * Called by the WaitSetSession when there is data to be signalled by this session
      * @param session
      */
-    synchronized protected void signalDataReady(WaitSetSession session) {
+    protected void signalDataReady(WaitSetSession session) {
         signalDataReady(session, null);
     }
 
     /**
-     * Called by the WaitSetSession when there is data to be signalled by this session
+     * Called by the WaitSetSession when there is data to be signalled by this session.  The change is recorded
+     * without the WaitSet lock, which is only taken if a WaitSetRequest is waiting for it.
      * @param session
      */
-    synchronized protected void signalDataReady(WaitSetSession session, PendingModifications pms) {
+    protected void signalDataReady(WaitSetSession session, PendingModifications pms) {
         boolean trace = ZimbraLog.session.isTraceEnabled();
         if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady 1");
         String targetAccId = session.getTargetAccountId();
         if (mSessions.containsKey(targetAccId)) { // ...false if waitset is shutting down...
             if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady 2");
-            if (mCurrentSignalledAccounts.add(targetAccId)) {
-                mCurrentSignalledSessions.add(session);
+            // doWait() sets mCb before draining, so either it sees this change or we see its callback
+            if (mChanges.signal(targetAccId, session, pms) && mCb != null) {
                 if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady 3");
-                addMods(currentPendingModifications, targetAccId, pms);
-                trySendData();
+                synchronized (this) {
+                    trySendData();
+                }
             }
         }
         if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady done");
@@ -41,7 +41,8 @@ public abstract class WaitSetBase implements IWaitSet {
     protected final Set<MailItem.Type> defaultInterest;
 
     protected long mLastAccessedTime = -1;
-    protected WaitSetCallback mCb = null;
+    /** volatile so that signalling threads can check for a waiter without taking the WaitSet lock */
+    protected volatile WaitSetCallback mCb = null;
 
     /**
      * List of errors (right now, only mailbox deletion notifications) to be sent
@@ -50,9 +51,7 @@ public abstract class WaitSetBase implements IWaitSet {
     protected List<WaitSetError> mSentErrors = new ArrayList<WaitSetError>();
 
     /** this is the signalled set data that is new (has never been sent) */
-    protected HashSet<String /*accountId*/> mCurrentSignalledAccounts = Sets.newHashSet();
-    protected HashSet<WaitSetSession> mCurrentSignalledSessions = Sets.newHashSet();
-    protected Map<String /*accountId*/, PendingModifications> currentPendingModifications = Maps.newHashMap();
+    protected final WaitSetChangeTable mChanges = new WaitSetChangeTable();
 
     /** this is the signalled set data that we've already sent, it just hasn't been acked yet */
     protected HashSet<String /*accountId*/> mSentSignalledAccounts = Sets.newHashSet();
@@ -161,37 +160,21 @@ public abstract class WaitSetBase implements IWaitSet {
         //        send if Current NOT empty OR
         //                (CB not up to date AND Sent not empty)
         //
-        if ((mCurrentSignalledAccounts.size() > 0 || mCurrentErrors.size() > 0) ||
+        if ((!mChanges.isEmpty() || mCurrentErrors.size() > 0) ||
                         (!cbIsCurrent && (mSentSignalledSessions.size() > 0 || mSentErrors.size() > 0 || mSentSignalledAccounts.size() > 0))) {
-            // if sent is empty, then just swap sent,current instead of copying
-            if (mSentSignalledAccounts.size() == 0) {
-                ZimbraLog.session.trace("WaitSetBase.trySendData 2a");
-                // SWAP sent <->current
-                HashSet<String> tempAccounts = mCurrentSignalledAccounts;
-                mCurrentSignalledAccounts = mSentSignalledAccounts;
-                mSentSignalledAccounts = tempAccounts;
-                HashSet<WaitSetSession> tempSessions = mCurrentSignalledSessions;
-                mCurrentSignalledSessions = mSentSignalledSessions;
-                mSentSignalledSessions = tempSessions;
-                Map<String, PendingModifications> tempNotifications = currentPendingModifications;
-                currentPendingModifications = sentPendingModifications;
-                sentPendingModifications = tempNotifications;
-            } else {
-                ZimbraLog.session.trace("WaitSetBase.trySendData 2b");
-                assert(!cbIsCurrent);
-                mSentSignalledAccounts.addAll(mCurrentSignalledAccounts);
-                mCurrentSignalledAccounts.clear();
-                mSentSignalledSessions.addAll(mCurrentSignalledSessions);
-                mCurrentSignalledSessions.clear();
-                sentPendingModifications.putAll(currentPendingModifications);
-                currentPendingModifications.clear();
-            }
+            // only the accounts which changed are visited, however many accounts the set is watching
+            int drained = mChanges.drainTo(mSentSignalledAccounts, mSentSignalledSessions, sentPendingModifications);
+            ZimbraLog.session.trace("WaitSetBase.trySendData 2 drained=%d", drained);
 
             // error list
             mSentErrors.addAll(mCurrentErrors);
             mCurrentErrors.clear();
 
-            assert(mSentSignalledAccounts.size() > 0 || mSentErrors.size() > 0);
+            if (mSentSignalledAccounts.isEmpty() && mSentErrors.isEmpty()) {
+                // the pending changes were unsignalled after we checked
+                ZimbraLog.session.trace("WaitSetBase.trySendData nothing left to send");
+                return;
+            }
             ZimbraLog.session.trace("WaitSetBase.trySendData 3");
             mCb.dataReady(this, toNextSeqNo(), false, mSentErrors, mSentSignalledSessions, mSentSignalledAccounts, sentPendingModifications);
             mCb = null;
@@ -200,10 +183,25 @@ public abstract class WaitSetBase implements IWaitSet {
         ZimbraLog.session.trace("WaitSetBase.trySendData done");
     }
 
+    /**
+     * Does not take the WaitSet lock, so it can be used to monitor a busy WaitSet
+     */
     @Override
-    public synchronized WaitSetInfo handleQuery() {
+    public WaitSetInfo getStats() {
         WaitSetInfo info = WaitSetInfo.createForWaitSetIdOwnerInterestsLastAccessDate(mWaitSetId, mOwnerAccountId,
                 WaitSetRequest.expandInterestStr(defaultInterest), mLastAccessedTime);
+        info.setNumAccounts(countSessions());
+        info.setBacklog(mChanges.size());
+        info.setBacklogAge(mChanges.getBacklogAge());
+        info.setDelivered(mChanges.getDeliveredCount());
+        info.setLatencyAvg(mChanges.getAverageLatency());
+        info.setLatencyMax(mChanges.getMaxLatency());
+        return info;
+    }
+
+    @Override
+    public synchronized WaitSetInfo handleQuery() {
+        WaitSetInfo info = getStats();
 
         if (mCurrentErrors.size() > 0) {
             for (WaitSetError error : mCurrentErrors) {
@@ -212,9 +210,9 @@ public abstract class WaitSetBase implements IWaitSet {
         }
 
         // signaled accounts
-        if (mCurrentSignalledAccounts.size() > 0) {
+        if (!mChanges.isEmpty()) {
             StringBuilder signaledStr = new StringBuilder();
-            for (String accountId : mCurrentSignalledAccounts) {
+            for (String accountId : mChanges.getAccountIds()) {
                 if (signaledStr.length() > 0)
                     signaledStr.append(",");
                 signaledStr.append(accountId);
@@ -238,8 +236,4 @@ public abstract class WaitSetBase implements IWaitSet {
         }
         fids.addAll(changedFolderIds);
     }
-
-    protected synchronized void addMods(Map<String, PendingModifications> mods, String acctId, PendingModifications mod) {
-        mods.put(acctId, mod);
-    }
 }
@@ -62,7 +62,7 @@ public class WaitSetCallback {
             }
 
             this.signalledAccounts = (signalledAccounts == null) ? Sets.newHashSetWithExpectedSize(0)
-                    : Sets.newCopyOnWriteArraySet(signalledAccounts);
+                    : Sets.newHashSet(signalledAccounts);
             if(pms != null) {
                 this.pendingModifications = Maps.newHashMapWithExpectedSize(pms.size());
                 this.pendingModifications.putAll(pms);
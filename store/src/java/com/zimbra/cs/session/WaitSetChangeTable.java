@@ -0,0 +1,148 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The accounts in a WaitSet which have changed since they were last handed to a WaitSetRequest.
+ * <p>
+ * Mailbox notifications record a change here without taking the WaitSet lock, and a repeat change to an account
+ * which is already pending costs a single lookup.  WaitSetBase drains the table while holding its lock, so sending
+ * is proportional to the number of changed accounts rather than to the number of accounts in the WaitSet.
+ */
+final class WaitSetChangeTable {
+
+    private static final class Change {
+        final long signalledTime;
+        final WaitSetSession session;
+        final PendingModifications mods;
+
+        Change(WaitSetSession session, PendingModifications mods) {
+            this.signalledTime = System.currentTimeMillis();
+            this.session = session;
+            this.mods = mods;
+        }
+    }
+
+    private final ConcurrentHashMap<String /*accountId*/, Change> changes = new ConcurrentHashMap<String, Change>();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong deliveredLatency = new AtomicLong();
+    private volatile long maxLatency = 0;
+
+    /**
+     * Records a change to the account.  The session and modifications of the first change are kept until the account
+     * is drained, later changes only keep it pending.
+     *
+     * @return TRUE if the account was not already pending
+     */
+    boolean signal(String accountId, WaitSetSession session, PendingModifications mods) {
+        if (changes.containsKey(accountId)) {
+            return false;
+        }
+        return changes.putIfAbsent(accountId, new Change(session, mods)) == null;
+    }
+
+    /**
+     * @return TRUE if the account was pending
+     */
+    boolean unsignal(String accountId) {
+        return changes.remove(accountId) != null;
+    }
+
+    boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    int size() {
+        return changes.size();
+    }
+
+    /** Weakly consistent view of the pending accounts */
+    Set<String> getAccountIds() {
+        return changes.keySet();
+    }
+
+    /**
+     * Moves every pending change into the supplied collections and records how long each one waited.  Changes
+     * signalled while this is running are either included or left for the next drain.
+     *
+     * @return the number of accounts drained
+     */
+    int drainTo(Set<String> accounts, Set<WaitSetSession> sessions, Map<String, PendingModifications> mods) {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        long latency = 0;
+        long max = maxLatency;
+        for (Iterator<Map.Entry<String, Change>> iter = changes.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<String, Change> entry = iter.next();
+            Change change = entry.getValue();
+            iter.remove();
+            accounts.add(entry.getKey());
+            if (change.session != null) {
+                sessions.add(change.session);
+            }
+            if (change.mods != null) {
+                mods.put(entry.getKey(), change.mods);
+            }
+            long waited = Math.max(0, now - change.signalledTime);
+            latency += waited;
+            max = Math.max(max, waited);
+            count++;
+        }
+        if (count > 0) {
+            delivered.addAndGet(count);
+            deliveredLatency.addAndGet(latency);
+            maxLatency = max;
+        }
+        return count;
+    }
+
+    void clear() {
+        changes.clear();
+    }
+
+    /**
+     * @return how long the oldest pending change has been waiting, in milliseconds, or 0 if nothing is pending
+     */
+    long getBacklogAge() {
+        long oldest = Long.MAX_VALUE;
+        for (Change change : changes.values()) {
+            oldest = Math.min(oldest, change.signalledTime);
+        }
+        return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    /** number of account changes handed to a WaitSetRequest so far */
+    long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /** average milliseconds between a change being signalled and being handed to a WaitSetRequest */
+    long getAverageLatency() {
+        long count = delivered.get();
+        return count == 0 ? 0 : deliveredLatency.get() / count;
+    }
+
+    long getMaxLatency() {
+        return maxLatency;
+    }
+}
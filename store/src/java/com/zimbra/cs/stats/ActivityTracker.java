@@ -33,17 +33,31 @@ public class ActivityTracker
 implements StatsDumperDataSource {
 
     private String mFilename;
+    private String mHeader = "command,exec_count,exec_ms_avg";
     private ConcurrentHashMap<String, Counter> mCounterMap =
         new ConcurrentHashMap<String, Counter>();
     
     public ActivityTracker(String filename) {
         mFilename = filename;
     }
+
+    /**
+     * @param header the CSV header, for trackers that don't record execution time in milliseconds
+     */
+    public ActivityTracker(String filename, String header) {
+        mFilename = filename;
+        mHeader = header;
+    }
     
     public void addStat(String commandName, long startTime) {
         Counter counter = getCounter(commandName);
         counter.increment(System.currentTimeMillis() - startTime);
     }
+
+    /** Records an elapsed time already measured by the caller, in the tracker's own unit. */
+    public void addElapsed(String commandName, long elapsed) {
+        getCounter(commandName).increment(elapsed);
+    }
     
     private Counter getCounter(String commandName) {
         Counter counter = mCounterMap.get(commandName);
@@ -87,7 +101,7 @@ implements StatsDumperDataSource {
     }
 
     public String getHeader() {
-        return "command,exec_count,exec_ms_avg";
+        return mHeader;
     }
 
     public boolean hasTimestampColumn() {
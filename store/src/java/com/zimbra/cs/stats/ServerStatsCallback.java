@@ -25,8 +25,10 @@ import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.PermissionCache;
 import com.zimbra.cs.account.ldap.LdapProv;
 import com.zimbra.cs.mailbox.MessageCache;
+import com.zimbra.cs.mailbox.SharedItemCache;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.FileDescriptorCache;
+import com.zimbra.cs.store.file.BlobCompressor;
 
 
 public class ServerStatsCallback implements RealtimeStatsCallback {
@@ -35,10 +37,15 @@ public class ServerStatsCallback implements RealtimeStatsCallback {
         Map<String, Object> data = new HashMap<String, Object>();
         data.put(ZimbraPerf.RTS_MBOX_CACHE_SIZE, ZimbraPerf.getMailboxCacheSize());
         data.put(ZimbraPerf.RTS_MSG_CACHE_SIZE, MessageCache.getSize());
+        data.put(ZimbraPerf.RTS_MSG_CACHE_EXPANDED_SIZE, MessageCache.getExpandedSize());
         
         FileDescriptorCache fdc = BlobInputStream.getFileDescriptorCache();
         data.put(ZimbraPerf.RTS_FD_CACHE_SIZE, fdc.getSize());
         data.put(ZimbraPerf.RTS_FD_CACHE_HIT_RATE, fdc.getHitRate());
+        data.put(ZimbraPerf.RTS_FD_CACHE_OPEN, fdc.getNumOpen());
+        data.put(ZimbraPerf.RTS_BLOB_COMPRESS_QUEUE, BlobCompressor.getQueueSize());
+        data.put(ZimbraPerf.RTS_BLOB_COMPRESS_SAVED, BlobCompressor.getBytesSaved());
+        data.put(ZimbraPerf.RTS_SHARED_ITEM_CACHE_SIZE, SharedItemCache.getInstance().getWeight());
         
         data.put(ZimbraPerf.RTS_ACL_CACHE_HIT_RATE, PermissionCache.getHitRate());
         
@@ -112,12 +112,27 @@ public class ZimbraPerf {
     @Description("Number of message structures cached in memory")
     public static final String RTS_MSG_CACHE_SIZE = "msg_cache_size";
 
+    @Description("Number of cached message structures that also hold an expanded or decrypted copy")
+    public static final String RTS_MSG_CACHE_EXPANDED_SIZE = "msg_cache_expanded_size";
+
     @Description("Number of open file descriptors that reference message content")
     public static final String RTS_FD_CACHE_SIZE = "fd_cache_size";
 
     @Description("File descriptor cache hit rate")
     public static final String RTS_FD_CACHE_HIT_RATE = "fd_cache_hit_rate";
 
+    @Description("Number of file descriptors held by the file descriptor cache, including ones waiting to be closed")
+    public static final String RTS_FD_CACHE_OPEN = "fd_cache_open";
+
+    @Description("Number of blobs waiting for background compression")
+    public static final String RTS_BLOB_COMPRESS_QUEUE = "blob_compress_queue";
+
+    @Description("Number of bytes saved by background blob compression")
+    public static final String RTS_BLOB_COMPRESS_SAVED = "blob_compress_saved";
+
+    @Description("Number of bytes held by the shared item cache")
+    public static final String RTS_SHARED_ITEM_CACHE_SIZE = "shared_item_cache_size";
+
     // LDAP provisioning caches.
     @Description("LDAP ACL cache hit rate")
     public static final String RTS_ACL_CACHE_HIT_RATE = "acl_cache_hit_rate";
@@ -183,7 +198,10 @@ public class ZimbraPerf {
     public static final StopWatch STOPWATCH_MBOX_GET = new StopWatch();         // Mailbox accessor response time
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
+    public static final StopWatch STOPWATCH_MSG_CACHE_LOAD = new StopWatch();   // loading and parsing a message into the message cache
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_SHARED_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_SHARED_ITEM_CACHE_EVICT = new Counter();
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
     public static final StopWatch STOPWATCH_POP = new StopWatch();
@@ -197,9 +215,28 @@ public class ZimbraPerf {
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_SEEK_RATE = new Counter();
+    public static final StopWatch STOPWATCH_FD_CACHE_EVICT = new StopWatch();   // time from file descriptor cache eviction to close
     public static final StopWatch STOPWATCH_EWS = new StopWatch();
+    public static final StopWatch STOPWATCH_MBOX_LOCK_WAIT = new StopWatch();   // time spent blocked on a mailbox lock
+    public static final StopWatch STOPWATCH_MBOX_LOCK_HOLD = new StopWatch();   // time a mailbox lock was held
+    public static final Counter COUNTER_MBOX_LOCK_QUEUE = new Counter();        // waiters already queued when blocking
+    public static final Counter COUNTER_MBOX_LOCK_OPTIMISTIC = new Counter();   // optimistic read success rate
+    public static final StopWatch STOPWATCH_REDO_FSYNC = new StopWatch();       // redolog group commit fsync latency
+    public static final Counter COUNTER_REDO_BATCH_SIZE = new Counter();        // redo ops per group commit
+    public static final StopWatch STOPWATCH_LMTP_STORE = new StopWatch();       // LMTP: spooling the incoming message to the blob store
+    public static final StopWatch STOPWATCH_LMTP_PARSE = new StopWatch();       // LMTP: parsing the incoming message
+    public static final StopWatch STOPWATCH_LMTP_DELIVER = new StopWatch();     // LMTP: delivery to a single recipient
+    public static final StopWatch STOPWATCH_IDX_COMMIT = new StopWatch();       // index writer commit latency
+    public static final StopWatch STOPWATCH_IDX_NRT_REOPEN = new StopWatch();   // near-real-time index reader reopen latency
+    public static final Counter COUNTER_IDX_COVERED_SEARCH = new Counter();     // search chunks answered without the DB
+    public static final Counter COUNTER_NOTIFY_FANOUT = new Counter();          // sessions notified per committed change
+    public static final StopWatch STOPWATCH_NOTIFY_ENCODE = new StopWatch();    // encoding one SOAP <notify> block
+    public static final Counter COUNTER_NOTIFY_ENCODE_CACHE = new Counter();    // notified items copied from an earlier encoding
 
     public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
+    // request parse time in microseconds, per SOAP command
+    public static final ActivityTracker SOAP_PARSE_TRACKER = new ActivityTracker("soap_parse.csv",
+            "command,parse_count,parse_us_avg");
     public static final ActivityTracker IMAP_TRACKER = new ActivityTracker("imap.csv");
     public static final ActivityTracker IMAPD_TRACKER = new ActivityTracker("imapd.csv");
     public static final ActivityTracker POP_TRACKER = new ActivityTracker("pop3.csv");
@@ -219,8 +256,10 @@ public class ZimbraPerf {
             RTS_POP_CONN, RTS_POP_THREADS, RTS_POP_SSL_CONN, RTS_POP_SSL_THREADS,
             RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS,
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
-            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
-            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
+            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE, RTS_MSG_CACHE_EXPANDED_SIZE,
+            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE, RTS_FD_CACHE_OPEN,
+            RTS_BLOB_COMPRESS_QUEUE, RTS_BLOB_COMPRESS_SAVED,
+            RTS_SHARED_ITEM_CACHE_SIZE,
             RTS_ACL_CACHE_HIT_RATE,
             RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
             RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE,
@@ -282,9 +321,21 @@ public class ZimbraPerf {
     @Description("Message cache hit rate")
     private static final String DC_MBOX_MSG_CACHE = "mbox_msg_cache";
 
+    @Description("Number of messages loaded into the message cache")
+    private static final String DC_MSG_CACHE_LOAD_COUNT = "msg_cache_load_count";
+
+    @Description("Average time in milliseconds to load and parse a message into the message cache")
+    private static final String DC_MSG_CACHE_LOAD_MS_AVG = "msg_cache_load_ms_avg";
+
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Shared item cache hit rate, for lookups that missed the mailbox's own item cache")
+    private static final String DC_MBOX_SHARED_ITEM_CACHE = "mbox_shared_item_cache";
+
+    @Description("Number of items evicted from the shared item cache")
+    private static final String DC_MBOX_SHARED_ITEM_CACHE_EVICT = "mbox_shared_item_cache_evict";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
@@ -309,6 +360,12 @@ public class ZimbraPerf {
     @Description("Percentage of file descriptor cache disk reads that required a seek")
     private static final String DC_BIS_SEEK_RATE = "bis_seek_rate";
 
+    @Description("Number of file descriptors aged out of the file descriptor cache and closed")
+    private static final String DC_FD_CACHE_EVICT_COUNT = "fd_cache_evict_count";
+
+    @Description("Average time in milliseconds from aging a file descriptor out of the cache to closing it")
+    private static final String DC_FD_CACHE_EVICT_MS_AVG = "fd_cache_evict_ms_avg";
+
     @Description("Average number of concurrent index writers")
     private static final String DC_IDX_WRT_AVG = "idx_wrt_avg";
 
@@ -339,6 +396,65 @@ public class ZimbraPerf {
     @Description("Number of calendars (folders) in the calendar summary cache LRU in Java heap")
     private static final String DC_CALCACHE_LRU_SIZE = "calcache_lru_size";
 
+    @Description("Number of times that a thread had to wait for a mailbox lock")
+    private static final String DC_MBOX_LOCK_WAIT_COUNT = "mbox_lock_wait_count";
+
+    @Description("Average time (ms) spent waiting for a contended mailbox lock")
+    private static final String DC_MBOX_LOCK_WAIT_MS_AVG = "mbox_lock_wait_ms_avg";
+
+    @Description("Number of times that a mailbox lock was released")
+    private static final String DC_MBOX_LOCK_HOLD_COUNT = "mbox_lock_hold_count";
+
+    @Description("Average time (ms) a mailbox lock was held")
+    private static final String DC_MBOX_LOCK_HOLD_MS_AVG = "mbox_lock_hold_ms_avg";
+
+    @Description("Average number of threads already queued for a mailbox lock when another thread had to wait")
+    private static final String DC_MBOX_LOCK_QUEUE_AVG = "mbox_lock_queue_avg";
+
+    @Description("Percentage of optimistic mailbox reads that did not have to fall back to the mailbox lock")
+    private static final String DC_MBOX_LOCK_OPTIMISTIC = "mbox_lock_optimistic";
+
+    @Description("Number of redolog group commit fsyncs")
+    private static final String DC_REDO_FSYNC_COUNT = "redo_fsync_count";
+
+    @Description("Average time (ms) of a redolog group commit fsync")
+    private static final String DC_REDO_FSYNC_MS_AVG = "redo_fsync_ms_avg";
+
+    @Description("Average number of redo ops written by one redolog group commit")
+    private static final String DC_REDO_BATCH_SIZE_AVG = "redo_batch_size_avg";
+    @Description("Number of LMTP messages stored in the blob store")
+    private static final String DC_LMTP_STORE_COUNT = "lmtp_store_count";
+    @Description("Average time in milliseconds to store an LMTP message in the blob store")
+    private static final String DC_LMTP_STORE_MS_AVG = "lmtp_store_ms_avg";
+    @Description("Number of LMTP messages parsed")
+    private static final String DC_LMTP_PARSE_COUNT = "lmtp_parse_count";
+    @Description("Average time in milliseconds to parse an LMTP message")
+    private static final String DC_LMTP_PARSE_MS_AVG = "lmtp_parse_ms_avg";
+    @Description("Number of LMTP recipient deliveries")
+    private static final String DC_LMTP_DELIVER_COUNT = "lmtp_deliver_count";
+    @Description("Average time in milliseconds to deliver an LMTP message to one recipient")
+    private static final String DC_LMTP_DELIVER_MS_AVG = "lmtp_deliver_ms_avg";
+    @Description("Number of index writer commits")
+    private static final String DC_IDX_COMMIT_COUNT = "idx_commit_count";
+    @Description("Average time in milliseconds to commit an index writer")
+    private static final String DC_IDX_COMMIT_MS_AVG = "idx_commit_ms_avg";
+    @Description("Number of near-real-time index reader reopens")
+    private static final String DC_IDX_NRT_REOPEN_COUNT = "idx_nrt_reopen_count";
+    @Description("Average time in milliseconds to reopen a near-real-time index reader")
+    private static final String DC_IDX_NRT_REOPEN_MS_AVG = "idx_nrt_reopen_ms_avg";
+    @Description("Percentage of coverable search chunks that were answered from the index and the item cache")
+    private static final String DC_IDX_COVERED_SEARCH = "idx_covered_search";
+    @Description("Number of committed mailbox changes with listening sessions")
+    private static final String DC_NOTIFY_COUNT = "notify_count";
+    @Description("Average number of sessions notified of a committed mailbox change")
+    private static final String DC_NOTIFY_FANOUT_AVG = "notify_fanout_avg";
+    @Description("Number of SOAP notification blocks encoded")
+    private static final String DC_NOTIFY_ENCODE_COUNT = "notify_encode_count";
+    @Description("Average time in milliseconds to encode a SOAP notification block")
+    private static final String DC_NOTIFY_ENCODE_MS_AVG = "notify_encode_ms_avg";
+    @Description("Percentage of notified items copied from another session's encoding instead of encoded again")
+    private static final String DC_NOTIFY_ENCODE_CACHE = "notify_encode_cache";
+
     private static CopyOnWriteArrayList<Accumulator> sAccumulators = null;
 
     private static final long CSV_DUMP_FREQUENCY = Constants.MILLIS_PER_MINUTE;
@@ -479,7 +595,13 @@ public class ZimbraPerf {
                                     .setAverageName(DC_MBOX_GET_MS_AVG),
                             new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
                             new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
+                            new DeltaCalculator(STOPWATCH_MSG_CACHE_LOAD).setCountName(DC_MSG_CACHE_LOAD_COUNT)
+                                    .setAverageName(DC_MSG_CACHE_LOAD_MS_AVG),
                             new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                            new DeltaCalculator(COUNTER_MBOX_SHARED_ITEM_CACHE)
+                                    .setAverageName(DC_MBOX_SHARED_ITEM_CACHE),
+                            new DeltaCalculator(COUNTER_MBOX_SHARED_ITEM_CACHE_EVICT)
+                                    .setTotalName(DC_MBOX_SHARED_ITEM_CACHE_EVICT),
                             new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT)
                                     .setAverageName(DC_SOAP_MS_AVG),
                             new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT)
@@ -503,6 +625,33 @@ public class ZimbraPerf {
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_READ).setTotalName(DC_BIS_READ),
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_SEEK_RATE)
                                     .setAverageName(DC_BIS_SEEK_RATE),
+                            new DeltaCalculator(STOPWATCH_FD_CACHE_EVICT).setCountName(DC_FD_CACHE_EVICT_COUNT)
+                                    .setAverageName(DC_FD_CACHE_EVICT_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_MBOX_LOCK_WAIT).setCountName(DC_MBOX_LOCK_WAIT_COUNT)
+                                    .setAverageName(DC_MBOX_LOCK_WAIT_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_MBOX_LOCK_HOLD).setCountName(DC_MBOX_LOCK_HOLD_COUNT)
+                                    .setAverageName(DC_MBOX_LOCK_HOLD_MS_AVG),
+                            new DeltaCalculator(COUNTER_MBOX_LOCK_QUEUE).setAverageName(DC_MBOX_LOCK_QUEUE_AVG),
+                            new DeltaCalculator(COUNTER_MBOX_LOCK_OPTIMISTIC).setAverageName(DC_MBOX_LOCK_OPTIMISTIC),
+                            new DeltaCalculator(STOPWATCH_REDO_FSYNC).setCountName(DC_REDO_FSYNC_COUNT)
+                                    .setAverageName(DC_REDO_FSYNC_MS_AVG),
+                            new DeltaCalculator(COUNTER_REDO_BATCH_SIZE).setAverageName(DC_REDO_BATCH_SIZE_AVG),
+                            new DeltaCalculator(STOPWATCH_LMTP_STORE).setCountName(DC_LMTP_STORE_COUNT)
+                                    .setAverageName(DC_LMTP_STORE_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_LMTP_PARSE).setCountName(DC_LMTP_PARSE_COUNT)
+                                    .setAverageName(DC_LMTP_PARSE_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_LMTP_DELIVER).setCountName(DC_LMTP_DELIVER_COUNT)
+                                    .setAverageName(DC_LMTP_DELIVER_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_IDX_COMMIT).setCountName(DC_IDX_COMMIT_COUNT)
+                                    .setAverageName(DC_IDX_COMMIT_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_IDX_NRT_REOPEN).setCountName(DC_IDX_NRT_REOPEN_COUNT)
+                                    .setAverageName(DC_IDX_NRT_REOPEN_MS_AVG),
+                            new DeltaCalculator(COUNTER_IDX_COVERED_SEARCH).setAverageName(DC_IDX_COVERED_SEARCH),
+                            new DeltaCalculator(COUNTER_NOTIFY_FANOUT).setCountName(DC_NOTIFY_COUNT)
+                                    .setAverageName(DC_NOTIFY_FANOUT_AVG),
+                            new DeltaCalculator(STOPWATCH_NOTIFY_ENCODE).setCountName(DC_NOTIFY_ENCODE_COUNT)
+                                    .setAverageName(DC_NOTIFY_ENCODE_MS_AVG),
+                            new DeltaCalculator(COUNTER_NOTIFY_ENCODE_CACHE).setAverageName(DC_NOTIFY_ENCODE_CACHE),
                             realtimeStats
                     }
                 );
@@ -557,6 +706,7 @@ public class ZimbraPerf {
         }
         StatsDumper.schedule(new Stats("mailboxd.csv", sAccumulators, jmxServerStats), CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SOAP_TRACKER, CSV_DUMP_FREQUENCY);
+        StatsDumper.schedule(SOAP_PARSE_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(IMAP_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(POP_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(LDAP_TRACKER, CSV_DUMP_FREQUENCY);
@@ -33,6 +33,7 @@ import com.google.common.base.MoreObjects;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.zmime.ZSharedFileInputStream;
+import com.zimbra.cs.store.file.BlobCompressor;
 
 /**
  * Represents a blob in blob store incoming directory.  An incoming blob
@@ -88,7 +89,9 @@ public class Blob {
     }
 
     public boolean isCompressed() throws IOException {
-        if (compressed == null) {
+        // blobs stored uncompressed may get compressed in the background later on
+        if (compressed == null || (!compressed && BlobCompressor.isEnabled() && rawSize != null
+                && rawSize.longValue() != file.length())) {
             if (rawSize != null && rawSize.longValue() == file.length()) {
                 this.compressed = Boolean.FALSE;
             } else {
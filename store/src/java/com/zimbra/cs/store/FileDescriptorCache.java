@@ -22,15 +22,23 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.zip.GZIPInputStream;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
-import com.zimbra.common.stats.Counter;
 import com.zimbra.common.util.FileCache;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.Log;
@@ -38,37 +46,104 @@ import com.zimbra.common.util.LogFactory;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
  * Caches file descriptors to blobs in the mail store.  If the blob is compressed,
  * uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
+ * <p>
+ * The cache is split into shards by path, each with its own LRU and its own lock, so
+ * that concurrent readers of different blobs don't serialize on a single monitor.
+ * Small caches use a single shard and behave as a strict LRU.  Once {@link #loadSettings}
+ * has been called, descriptors that are aged out are closed on a background thread.
  */
 public class FileDescriptorCache
 {
     private static final Log sLog = LogFactory.getLog(FileDescriptorCache.class);
 
-    // Create the file cache with default LinkedHashMap values, but sorted by last access time.
-    private final LinkedHashMap<String, SharedFile> mCache = new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
-    // Create a concurrent list for the SharedFies for which the mapping has been removed but is still in use by some threads.
-    private final List<SharedFileInfo> mInactiveCache = Collections.synchronizedList(new ArrayList<SharedFileInfo>());
+    // Don't split the cache into shards that hold fewer entries than this.
+    private static final int MIN_SHARD_SIZE = 32;
+
+    private volatile Shard[] mShards;
+    // SharedFiles for which the mapping has been removed but are still in use by some threads.
+    private final Queue<SharedFileInfo> mInactiveCache = new ConcurrentLinkedQueue<SharedFileInfo>();
+    private final int mMaxShards;
     private int mMaxSize = 1000;
     private final FileCache<String> mUncompressedFileCache;
-    private final Counter mHitRate = new Counter();
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+    private final AtomicInteger mNumOpen = new AtomicInteger();
+    private volatile ExecutorService mCloser;
 
-    private class SharedFileInfo {
-        public String path;
-        public SharedFile file;
+    private static class SharedFileInfo {
+        public final String path;
+        public final SharedFile file;
+        public final long evictTime;
 
-        public SharedFileInfo(String path, SharedFile file) {
+        public SharedFileInfo(String path, SharedFile file, long evictTime) {
             this.path = path;
             this.file = file;
+            this.evictTime = evictTime;
+        }
+    }
+
+    /**
+     * One LRU partition of the cache.  All access is synchronized on the shard.  A shard
+     * is retired when {@link #setMaxSize} replaces the shard array; callers that find a
+     * retired shard look up the current one again.
+     */
+    private static class Shard {
+        final LinkedHashMap<String, SharedFile> map = new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
+        final int maxSize;
+        boolean retired = false;
+
+        Shard(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Removes the least recently used entries until the shard fits, and adds
+         * them to <tt>evicted</tt>.
+         */
+        List<SharedFileInfo> prune(List<SharedFileInfo> evicted) {
+            if (map.size() <= maxSize) {
+                return evicted;
+            }
+            if (evicted == null) {
+                evicted = new ArrayList<SharedFileInfo>();
+            }
+            long now = ZimbraPerf.STOPWATCH_FD_CACHE_EVICT.start();
+            Iterator<Map.Entry<String, SharedFile>> iEntries = map.entrySet().iterator();
+            while (iEntries.hasNext() && map.size() > maxSize) {
+                Map.Entry<String, SharedFile> entry = iEntries.next();
+                iEntries.remove();
+                evicted.add(new SharedFileInfo(entry.getKey(), entry.getValue(), now));
+            }
+            return evicted;
         }
     }
 
     public FileDescriptorCache(FileCache<String> uncompressedCache) {
         mUncompressedFileCache = uncompressedCache;
+        mMaxShards = Integer.highestOneBit(Math.max(LC.zimbra_fd_cache_shards.intValue(), 1));
+        mShards = newShards(mMaxSize);
+    }
+
+    private Shard[] newShards(int maxSize) {
+        int numShards = Math.min(mMaxShards, Integer.highestOneBit(Math.max(maxSize / MIN_SHARD_SIZE, 1)));
+        Shard[] shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new Shard((maxSize + numShards - 1) / numShards);
+        }
+        return shards;
+    }
+
+    private Shard getShard(String path) {
+        Shard[] shards = mShards;
+        int hash = path.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
     }
 
     public synchronized FileDescriptorCache setMaxSize(int maxSize) {
@@ -76,8 +151,40 @@ public class FileDescriptorCache
             throw new IllegalArgumentException("maxSize value of " + maxSize + " is invalid (must be at least 0)");
 
         mMaxSize = maxSize;
-        mHitRate.reset(); // Recalculate hit rate based on the new size.
-        pruneIfNecessary();
+        // Recalculate hit rate based on the new size.
+        mHits.reset();
+        mMisses.reset();
+
+        // Move the existing entries over to a new set of shards sized for maxSize.
+        Shard[] oldShards = mShards;
+        mShards = newShards(maxSize);
+        List<SharedFileInfo> evicted = null;
+        for (Shard oldShard : oldShards) {
+            List<Map.Entry<String, SharedFile>> entries;
+            synchronized (oldShard) {
+                oldShard.retired = true;
+                entries = new ArrayList<Map.Entry<String, SharedFile>>(oldShard.map.entrySet());
+                oldShard.map.clear();
+            }
+            for (Map.Entry<String, SharedFile> entry : entries) {
+                Shard shard = getShard(entry.getKey());
+                synchronized (shard) {
+                    if (!shard.map.containsKey(entry.getKey())) {
+                        shard.map.put(entry.getKey(), entry.getValue());
+                        evicted = shard.prune(evicted);
+                        continue;
+                    }
+                }
+                // Another thread reopened the file while we were moving it.
+                if (evicted == null) {
+                    evicted = new ArrayList<SharedFileInfo>();
+                }
+                evicted.add(new SharedFileInfo(entry.getKey(), entry.getValue(), ZimbraPerf.STOPWATCH_FD_CACHE_EVICT.start()));
+            }
+        }
+        if (evicted != null) {
+            closeEvicted(evicted);
+        }
         return this;
     }
 
@@ -89,27 +196,50 @@ public class FileDescriptorCache
             Provisioning.A_zimbraMailFileDescriptorCacheSize, fileDescriptorCacheSize);
 
         setMaxSize(fileDescriptorCacheSize);
+        startCloser();
 
         return this;
     }
 
+    private synchronized void startCloser() {
+        if (mCloser == null) {
+            mCloser = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("FileDescriptorCacheCloser").setDaemon(true).build());
+        }
+    }
+
     /**
      * Closes all file descriptors, clears the cache, and removes any files from
      * the uncompressed cache.
      */
     public synchronized void shutdown() {
-        Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-        while (iEntries.hasNext()) {
-            Map.Entry<String, SharedFile> entry = iEntries.next();
-            String path = entry.getKey();
-            SharedFile file = entry.getValue();
-            iEntries.remove();
+        ExecutorService closer = mCloser;
+        mCloser = null;
+        if (closer != null) {
+            closer.shutdown();
             try {
-                boolean success = close(file, path);
-                if (!success)
-                    sLog.warn("Unable to close %s. File is in use.", file);
-            } catch (IOException e) {
-                sLog.warn("Unable to close %s", file, e);
+                closer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (Shard shard : mShards) {
+            List<Map.Entry<String, SharedFile>> entries;
+            synchronized (shard) {
+                entries = new ArrayList<Map.Entry<String, SharedFile>>(shard.map.entrySet());
+                shard.map.clear();
+            }
+            for (Map.Entry<String, SharedFile> entry : entries) {
+                String path = entry.getKey();
+                SharedFile file = entry.getValue();
+                try {
+                    boolean success = close(file, path);
+                    if (!success)
+                        sLog.warn("Unable to close %s. File is in use.", file);
+                } catch (IOException e) {
+                    sLog.warn("Unable to close %s", file, e);
+                }
             }
         }
     }
@@ -136,30 +266,38 @@ public class FileDescriptorCache
     }
 
     boolean contains(String path) {
-        synchronized (this) {
-            return mCache.containsKey(path);
+        Shard shard = getShard(path);
+        synchronized (shard) {
+            return shard.map.containsKey(path);
         }
     }
 
     /**
      * Returns the existing cache entry or creates a new one.  Implicitly
-     * increments the number of readers for the <tt>SharedFile</tt>.
+     * increments the number of readers for the <tt>SharedFile</tt>.  The reader
+     * count is incremented while the shard is locked, so that the entry can't be
+     * aged out and closed between the lookup and the read.
      */
     private SharedFile getSharedFile(String path, long rawSize) throws IOException {
         SharedFile sharedFile = null;
 
-        synchronized (this) {
-            sharedFile = mCache.get(path);
+        Shard shard = getShard(path);
+        synchronized (shard) {
+            if (!shard.retired) {
+                sharedFile = shard.map.get(path);
+                if (sharedFile != null) {
+                    sharedFile.aboutToRead();
+                }
+            }
         }
         if (sharedFile != null) {
             sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
-            sharedFile.aboutToRead();
-            mHitRate.increment(100);
+            mHits.increment();
             return sharedFile;
         }
 
         // Open a new file descriptor.
-        mHitRate.increment(0);
+        mMisses.increment();
         File file = new File(path);
 
         if (file.length() != rawSize && FileUtil.isGzipped(file)) {
@@ -181,19 +319,37 @@ public class FileDescriptorCache
             sLog.debug("Opening new file descriptor for %s.", path);
             sharedFile = new SharedFile(file);
         }
-
-        synchronized (this) {
-            if (mCache.containsKey(path)) {
-                sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
-                sharedFile.close();
-                sharedFile = mCache.get(path);
-            } else {
-                sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
-                mCache.put(path, sharedFile);
+        mNumOpen.incrementAndGet();
+
+        List<SharedFileInfo> evicted = null;
+        SharedFile duplicate = null;
+        while (true) {
+            shard = getShard(path);
+            synchronized (shard) {
+                if (shard.retired) {
+                    continue;
+                }
+                SharedFile existing = shard.map.get(path);
+                if (existing != null) {
+                    sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
+                    duplicate = sharedFile;
+                    sharedFile = existing;
+                } else {
+                    sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
+                    shard.map.put(path, sharedFile);
+                    evicted = shard.prune(null);
+                }
+                sharedFile.aboutToRead();
             }
+            break;
+        }
+        if (duplicate != null) {
+            duplicate.close();
+            mNumOpen.decrementAndGet();
+        }
+        if (evicted != null) {
+            closeEvicted(evicted);
         }
-        sharedFile.aboutToRead();
-        pruneIfNecessary();
 
         return sharedFile;
     }
@@ -205,14 +361,15 @@ public class FileDescriptorCache
     public void remove(String path) throws IOException {
         SharedFile file = null;
 
-        synchronized (this) {
-            file = mCache.remove(path);
+        Shard shard = getShard(path);
+        synchronized (shard) {
+            file = shard.map.remove(path);
         }
 
         if (file != null) {
             boolean success = close(file, path);
             if (!success)
-                mInactiveCache.add(new SharedFileInfo(path, file));
+                mInactiveCache.add(new SharedFileInfo(path, file, 0));
         } else {
             sLog.debug("Attempted to remove %s but could not find it in the cache.", path);
         }
@@ -221,6 +378,46 @@ public class FileDescriptorCache
         quietCloseInactiveCache();
     }
 
+    /**
+     * Closes descriptors that were aged out of the cache, on the closer thread if
+     * there is one.
+     */
+    private void closeEvicted(final List<SharedFileInfo> evicted) {
+        ExecutorService closer = mCloser;
+        if (closer != null) {
+            try {
+                closer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeEvictedNow(evicted);
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+            }
+        }
+        closeEvictedNow(evicted);
+    }
+
+    private void closeEvictedNow(List<SharedFileInfo> evicted) {
+        for (SharedFileInfo info : evicted) {
+            try {
+                boolean success = close(info.file, info.path);
+                if (success) {
+                    ZimbraPerf.STOPWATCH_FD_CACHE_EVICT.stop(info.evictTime);
+                } else {
+                    mInactiveCache.add(info);
+                }
+            } catch (IOException e) {
+                ZimbraLog.store.warn("Unable to close file descriptor for " + info.path, e);
+            }
+        }
+
+        // Close if there are any SharedFiles in the inactive cache.
+        quietCloseInactiveCache();
+    }
+
     /**
      * Close the file if it is not in use.
      * @return true if the file is closed, false otherwise.
@@ -232,13 +429,12 @@ public class FileDescriptorCache
 
             if (file.getNumReaders() == 0) {
                 file.close();
+                mNumOpen.decrementAndGet();
                 if (mUncompressedFileCache != null) {
-                    synchronized (this) {
-                        if (!mCache.containsKey(path)) {
-                            mUncompressedFileCache.remove(path);
-                        } else {
-                            sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.");
-                        }
+                    if (!contains(path)) {
+                        mUncompressedFileCache.remove(path);
+                    } else {
+                        sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.", path);
                     }
                 }
                 return true;
@@ -249,58 +445,45 @@ public class FileDescriptorCache
     }
 
     private void quietCloseInactiveCache() {
-        synchronized (mInactiveCache) {
-            Iterator<SharedFileInfo> iter = mInactiveCache.iterator();
-            while (iter.hasNext()) {
-                SharedFileInfo info = iter.next();
-                try {
-                    boolean success = close(info.file, info.path);
-                    if (success)
-                        iter.remove();
-                } catch (IOException e) {
-                    ZimbraLog.store.warn("Unable to close file descriptor for " + info.path, e);
-                    iter.remove();
+        for (SharedFileInfo info : mInactiveCache) {
+            // Only one thread wins the remove, so each descriptor is closed once.
+            if (info.file.getNumReaders() > 0 || !mInactiveCache.remove(info)) {
+                continue;
+            }
+            try {
+                boolean success = close(info.file, info.path);
+                if (!success) {
+                    mInactiveCache.add(info);
+                } else if (info.evictTime > 0) {
+                    ZimbraPerf.STOPWATCH_FD_CACHE_EVICT.stop(info.evictTime);
                 }
+            } catch (IOException e) {
+                ZimbraLog.store.warn("Unable to close file descriptor for " + info.path, e);
             }
         }
     }
 
-    public synchronized int getSize() {
-        return mCache.size();
+    public int getSize() {
+        int size = 0;
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                size += shard.map.size();
+            }
+        }
+        return size;
     }
 
-    public double getHitRate() {
-        return mHitRate.getAverage();
+    /**
+     * Returns the number of descriptors this cache holds open, including those that
+     * have been removed from the cache but are still being read or waiting to be closed.
+     */
+    public int getNumOpen() {
+        return mNumOpen.get();
     }
 
-    private void pruneIfNecessary() {
-         if (getSize() <= mMaxSize)
-            return;
-
-        List<Map.Entry<String, SharedFile>> removeList = new ArrayList<Map.Entry<String, SharedFile>>();
-
-        synchronized (this) {
-            Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-            while (iEntries.hasNext() && mCache.size() > mMaxSize) {
-                Map.Entry<String, SharedFile> mapEntry = iEntries.next();
-                iEntries.remove();
-                removeList.add(mapEntry);
-            }
-        }
-        for (Map.Entry<String, SharedFile> mapEntry : removeList) {
-            String path = mapEntry.getKey();
-            SharedFile file = mapEntry.getValue();
-            try {
-                boolean success = close(file, path);
-                if (!success) {
-                    mInactiveCache.add(new SharedFileInfo(path, file));
-                }
-            } catch (IOException e) {
-                ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
-            }
-        }
-
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
+    public double getHitRate() {
+        long hits = mHits.sum();
+        long total = hits + mMisses.sum();
+        return total == 0 ? 0.0 : hits * 100.0 / total;
     }
 }
@@ -64,6 +64,11 @@ public class ExternalBlobConsistencyChecker extends BlobConsistencyChecker {
             int minId = 0;
             int maxId = CHUNK_SIZE;
             while (minId <= mailboxMaxId) {
+                if (!isSampled()) {
+                    minId = maxId + 1;
+                    maxId += CHUNK_SIZE;
+                    continue;
+                }
                 for (BlobInfo blobInfo : DbBlobConsistency.getExternalMailItemBlobInfo(conn, mbox, minId, maxId)) {
                     checkExternalBlob(mbox, checkSize, blobInfo, sm);
                 }
@@ -82,6 +87,10 @@ public class ExternalBlobConsistencyChecker extends BlobConsistencyChecker {
         } finally {
             DbPool.quietClose(conn);
         }
+        if (samplePercent < 100) {
+            // the locators of the skipped id ranges are still in the list, and a locator can't be mapped back to an id
+            unexpectedBlobPaths.clear();
+        }
         for (String unexpected : unexpectedBlobPaths) {
             BlobInfo bi = new BlobInfo();
             bi.external = true;
@@ -0,0 +1,307 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.VolumeManager;
+
+/**
+ * Compresses mailbox blobs in the background when {@code zimbra_blob_compress_async} is set, so that delivery only
+ * pays for writing and syncing the uncompressed blob once.  The compressed copy is written next to the blob and
+ * renamed over it, and the blob's entry in the {@link com.zimbra.cs.store.FileDescriptorCache} is dropped so that
+ * readers reopen it.
+ * <p>
+ * Blobs that are hard linked from more than one place, e.g. a message delivered to several mailboxes, are left
+ * alone: replacing one of the links would store the message twice.
+ * <p>
+ * The compressed copy is named {@code <blob>.compressing} until the swap.  Copies left behind by a crash are removed
+ * by a sweep of the message volumes that runs on the compressor's own threads at startup.
+ */
+public final class BlobCompressor {
+    private static volatile BlobCompressor instance;
+
+    private static final Striped<Lock> LOCKS = Striped.lock(64);
+    private static final String TEMP_SUFFIX = ".compressing";
+    /** paths of the compressed copies being written right now */
+    private static final Set<String> IN_FLIGHT = Sets.newConcurrentHashSet();
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final int maxQueueSize;
+    private final long delay;
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    @VisibleForTesting
+    BlobCompressor(int threads, int maxQueueSize, long delay) {
+        this.executor = new ScheduledThreadPoolExecutor(threads,
+                new ThreadFactoryBuilder().setNameFormat("BlobCompressor-%d").setDaemon(true).build());
+        this.maxQueueSize = maxQueueSize;
+        this.delay = delay;
+    }
+
+    static synchronized void startup() {
+        if (instance == null && LC.zimbra_blob_compress_async.booleanValue()) {
+            instance = new BlobCompressor(Math.max(LC.zimbra_blob_compress_threads.intValue(), 1),
+                    Math.max(LC.zimbra_blob_compress_queue_size.intValue(), 1),
+                    Math.max(LC.zimbra_blob_compress_delay_ms.longValue(), 0));
+            ZimbraLog.store.info("compressing blobs in the background");
+            final List<File> roots = new ArrayList<File>();
+            for (Volume vol : VolumeManager.getInstance().getAllVolumes()) {
+                if (vol.getType() == Volume.TYPE_MESSAGE || vol.getType() == Volume.TYPE_MESSAGE_SECONDARY) {
+                    roots.add(new File(vol.getRootPath()));
+                }
+            }
+            final BlobCompressor compressor = instance;
+            compressor.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compressor.sweep(roots);
+                }
+            });
+        }
+    }
+
+    @VisibleForTesting
+    static synchronized void setInstance(BlobCompressor compressor) {
+        instance = compressor;
+    }
+
+    static synchronized void shutdown() {
+        if (instance != null) {
+            instance.executor.shutdownNow();
+            instance = null;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return instance != null;
+    }
+
+    /** Returns the number of blobs waiting to be compressed. */
+    public static int getQueueSize() {
+        BlobCompressor compressor = instance;
+        return compressor == null ? 0 : compressor.executor.getQueue().size();
+    }
+
+    /** Returns the number of bytes saved by background compression since startup. */
+    public static long getBytesSaved() {
+        BlobCompressor compressor = instance;
+        return compressor == null ? 0 : compressor.bytesSaved.get();
+    }
+
+    /**
+     * Returns the lock held while a blob is swapped for its compressed copy.  Deleting the blob under this lock
+     * keeps the swap from bringing it back.
+     */
+    static Lock getLock(File file) {
+        return LOCKS.get(file.getPath());
+    }
+
+    /** Returns whether {@code file} is a compressed copy that is being written right now. */
+    static boolean isInFlight(File file) {
+        return IN_FLIGHT.contains(file.getPath());
+    }
+
+    /** Returns whether {@code file} is a compressed copy that was left behind by an interrupted compression. */
+    static boolean isLeftover(File file) {
+        return file.getName().endsWith(TEMP_SUFFIX) && !isInFlight(file);
+    }
+
+    /**
+     * Deletes {@code file} if it is a compressed copy that was left behind by an interrupted compression, and
+     * returns whether it was.
+     */
+    static boolean deleteLeftover(File file) {
+        if (!isLeftover(file)) {
+            return false;
+        }
+        ZimbraLog.store.info("deleting leftover compressed copy %s", file.getPath());
+        return file.delete();
+    }
+
+    /**
+     * Deletes the leftover compressed copies under {@code roots}, and returns how many it deleted.
+     */
+    @VisibleForTesting
+    int sweep(Collection<File> roots) {
+        final int[] deleted = new int[1];
+        for (File root : roots) {
+            if (executor.isShutdown()) {
+                break;
+            }
+            try {
+                Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                        if (deleteLeftover(path.toFile())) {
+                            deleted[0]++;
+                        }
+                        return executor.isShutdown() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path path, IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                ZimbraLog.store.warn("unable to sweep %s for leftover compressed copies", root.getPath(), e);
+            }
+        }
+        if (deleted[0] > 0) {
+            ZimbraLog.store.info("deleted %d leftover compressed copies", deleted[0]);
+        }
+        return deleted[0];
+    }
+
+    /**
+     * Queues {@code file} for compression after {@code zimbra_blob_compress_delay_ms}.  If the queue is full the
+     * blob is simply left uncompressed.
+     */
+    static void submit(final File file, final long rawSize) {
+        final BlobCompressor compressor = instance;
+        if (compressor == null) {
+            return;
+        }
+        if (compressor.executor.getQueue().size() >= compressor.maxQueueSize) {
+            ZimbraLog.store.debug("compression queue full, leaving %s uncompressed", file.getPath());
+            return;
+        }
+        try {
+            compressor.executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compressor.compress(file, rawSize);
+                    } catch (IOException e) {
+                        ZimbraLog.store.warn("unable to compress %s", file.getPath(), e);
+                    }
+                }
+            }, compressor.delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /**
+     * Replaces {@code file} with a compressed copy, and returns whether it did.
+     */
+    @VisibleForTesting
+    boolean compress(File file, long rawSize) throws IOException {
+        Object inode = getInode(file, rawSize);
+        if (inode == null) {
+            return false;
+        }
+
+        File temp = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+        long compressedSize;
+        InputStream in = null;
+        FileOutputStream fos = null;
+        boolean swapped = false;
+        IN_FLIGHT.add(temp.getPath());
+        try {
+            in = new FileInputStream(file);
+            fos = new FileOutputStream(temp);
+            GZIPOutputStream gzip = new GZIPOutputStream(fos);
+            ByteUtil.copy(in, false, gzip, false);
+            gzip.finish();
+            if (!DebugConfig.disableMessageStoreFsync) {
+                fos.getChannel().force(true);
+            }
+            fos.close();
+            fos = null;
+            compressedSize = temp.length();
+            if (compressedSize >= rawSize) {
+                return false;
+            }
+
+            Lock lock = getLock(file);
+            lock.lock();
+            try {
+                // don't resurrect a deleted blob or replace one that got linked elsewhere in the meantime
+                if (!inode.equals(getInode(file, rawSize))) {
+                    return false;
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                swapped = true;
+                BlobInputStream.getFileDescriptorCache().remove(file.getPath());
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            ByteUtil.closeStream(in);
+            ByteUtil.closeStream(fos);
+            if (!swapped) {
+                temp.delete();
+            }
+            IN_FLIGHT.remove(temp.getPath());
+        }
+        bytesSaved.addAndGet(rawSize - compressedSize);
+        ZimbraLog.store.debug("compressed %s from %d to %d bytes", file.getPath(), rawSize, compressedSize);
+        return true;
+    }
+
+    /**
+     * Returns the inode of {@code file} if it is an uncompressed blob with a single link, otherwise {@code null}.
+     */
+    private static Object getInode(File file, long rawSize) throws IOException {
+        Map<String, Object> attrs;
+        try {
+            attrs = Files.readAttributes(file.toPath(), "unix:ino,nlink,size");
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (UnsupportedOperationException e) {
+            return null; // no way to tell whether the blob is shared
+        }
+        if (((Number) attrs.get("nlink")).intValue() != 1 || ((Number) attrs.get("size")).longValue() != rawSize) {
+            return null;
+        }
+        return attrs.get("ino");
+    }
+}
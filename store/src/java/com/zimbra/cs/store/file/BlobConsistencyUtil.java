@@ -19,9 +19,17 @@ package com.zimbra.cs.store.file;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
@@ -34,6 +42,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.AdminConstants;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.soap.Element.XMLElement;
+import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.CliUtil;
 import com.zimbra.cs.account.soap.SoapProvisioning;
 import com.zimbra.cs.db.DbPool;
@@ -56,6 +65,9 @@ public class BlobConsistencyUtil {
     private static final String LO_NO_EXPORT = "no-export";
     private static final String LO_OUTPUT_USED_BLOBS = "output-used-blobs";
     private static final String LO_USED_BLOB_LIST = "used-blob-list";
+    private static final String LO_SAMPLE = "sample";
+    private static final String LO_THREADS = "threads";
+    private static final String LO_CHECKPOINT = "checkpoint";
 
     private Options options;
     private List<Integer> mailboxIds;
@@ -71,6 +83,10 @@ public class BlobConsistencyUtil {
     private boolean outputUsedBlobs = false;
     private String usedBlobList;
     private PrintWriter usedBlobWriter;
+    private int samplePercent = 100;
+    private int threads = 1;
+    private String checkpoint;
+    private PrintWriter checkpointWriter;
 
     private BlobConsistencyUtil() {
         options = new Options();
@@ -96,6 +112,19 @@ public class BlobConsistencyUtil {
         o.setArgName("path");
         options.addOption(o);
 
+        o = new Option(null, LO_SAMPLE, true, "Only check a random sample of about this percentage of the blob directories.");
+        o.setArgName("percent");
+        options.addOption(o);
+
+        o = new Option("t", LO_THREADS, true, "Number of mailboxes to check at once.  Default is 1.");
+        o.setArgName("count");
+        options.addOption(o);
+
+        o = new Option(null, LO_CHECKPOINT, true,
+            "Record checked mailboxes in a file and skip the ones it lists.  The file is removed when the check completes.");
+        o.setArgName("path");
+        options.addOption(o);
+
         options.addOption(null, LO_MISSING_BLOB_DELETE_ITEM, false, "Delete any items that have a missing blob.");
 
         o = new Option(null, LO_EXPORT_DIR, true, "Target directory for database export files.");
@@ -159,6 +188,31 @@ public class BlobConsistencyUtil {
             }
         }
 
+        String sample = CliUtil.getOptionValue(cl, LO_SAMPLE);
+        if (sample != null) {
+            try {
+                samplePercent = Integer.parseInt(sample);
+            } catch (NumberFormatException e) {
+                usage("Invalid sample percentage: " + sample);
+            }
+            if (samplePercent < 1 || samplePercent > 100) {
+                usage("Sample percentage must be between 1 and 100: " + sample);
+            }
+        }
+
+        String threadCount = CliUtil.getOptionValue(cl, LO_THREADS);
+        if (threadCount != null) {
+            try {
+                threads = Integer.parseInt(threadCount);
+            } catch (NumberFormatException e) {
+                usage("Invalid thread count: " + threadCount);
+            }
+            if (threads < 1) {
+                usage("Thread count must be at least 1: " + threadCount);
+            }
+        }
+        checkpoint = CliUtil.getOptionValue(cl, LO_CHECKPOINT);
+
         skipSizeCheck = CliUtil.hasOption(cl, LO_SKIP_SIZE_CHECK);
         verbose = CliUtil.hasOption(cl, LO_VERBOSE);
         unexpectedBlobList = CliUtil.getOptionValue(cl, LO_UNEXPECTED_BLOB_LIST);
@@ -196,14 +250,26 @@ public class BlobConsistencyUtil {
         if (mailboxIds == null) {
             mailboxIds = getAllMailboxIds(prov);
         }
+        if (checkpoint != null) {
+            Set<Integer> done = readCheckpoint();
+            if (!done.isEmpty()) {
+                System.out.format("Skipping %d mailboxes already checked according to %s.\n", done.size(), checkpoint);
+                mailboxIds.removeAll(done);
+            }
+            checkpointWriter = new PrintWriter(new FileOutputStream(checkpoint, true), true);
+        }
         try {
         	DbPool.startup();
-        	for (int mboxId : mailboxIds) {
-        		System.out.println("Checking mailbox " + mboxId + ".");
-        		checkMailbox(mboxId, prov);
-        	}
+        	checkMailboxes(prov);
         }  finally{
         	DbPool.shutdown();
+        	if (checkpointWriter != null) {
+        	    checkpointWriter.close();
+        	}
+        }
+        if (checkpoint != null) {
+            // all done, so the next run starts from scratch
+            new File(checkpoint).delete();
         }
         if (unexpectedBlobWriter != null) {
             unexpectedBlobWriter.close();
@@ -214,6 +280,69 @@ public class BlobConsistencyUtil {
         }
     }
 
+    private Set<Integer> readCheckpoint()
+    throws IOException {
+        Set<Integer> done = new HashSet<Integer>();
+        File file = new File(checkpoint);
+        if (file.exists()) {
+            for (String line : new String(ByteUtil.getContent(file), "UTF-8").split("\n")) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    try {
+                        done.add(Integer.parseInt(line));
+                    } catch (NumberFormatException e) {
+                        // partially written last line of an interrupted run
+                    }
+                }
+            }
+        }
+        return done;
+    }
+
+    private void checkMailboxes(SoapProvisioning prov)
+    throws Exception {
+        if (threads == 1) {
+            for (int mboxId : mailboxIds) {
+                checkMailbox(mboxId, prov);
+            }
+            return;
+        }
+        // SoapProvisioning.invoke() is synchronized, so each worker gets its own authenticated instance
+        // rather than queueing behind the others on a shared one.
+        final ThreadLocal<SoapProvisioning> workerProvs = new ThreadLocal<SoapProvisioning>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(mailboxIds.size());
+            for (final int mboxId : mailboxIds) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws ServiceException {
+                        SoapProvisioning workerProv = workerProvs.get();
+                        if (workerProv == null) {
+                            workerProv = SoapProvisioning.getAdminInstance();
+                            workerProv.soapZimbraAdminAuthenticate();
+                            workerProvs.set(workerProv);
+                        }
+                        checkMailbox(mboxId, workerProv);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private List<Integer> getAllMailboxIds(SoapProvisioning prov)
     throws ServiceException {
         List<Integer> ids = new ArrayList<Integer>();
@@ -242,8 +371,23 @@ public class BlobConsistencyUtil {
         request.addElement(AdminConstants.E_MAILBOX).addAttribute(AdminConstants.A_ID, mboxId);
         request.addAttribute(AdminConstants.A_CHECK_SIZE, !skipSizeCheck);
         request.addAttribute(AdminConstants.A_REPORT_USED_BLOBS, outputUsedBlobs || usedBlobWriter != null);
+        if (samplePercent < 100) {
+            request.addAttribute(AdminConstants.A_SAMPLE_PERCENT, samplePercent);
+        }
 
+        System.out.println("Checking mailbox " + mboxId + ".");
         Element response = prov.invoke(request);
+        // keep the output of concurrently checked mailboxes apart
+        synchronized (this) {
+            printAndFix(response, prov);
+            if (checkpointWriter != null) {
+                checkpointWriter.println(mboxId);
+            }
+        }
+    }
+
+    private void printAndFix(Element response, SoapProvisioning prov)
+    throws ServiceException {
         for (Element mboxEl : response.listElements(AdminConstants.E_MAILBOX)) {
             // Print results.
             BlobConsistencyChecker.Results results = new BlobConsistencyChecker.Results(mboxEl);
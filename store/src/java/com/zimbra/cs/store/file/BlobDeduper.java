@@ -27,14 +27,18 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.collections.MultiMap;
 import org.apache.commons.collections.map.MultiValueMap;
 
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.db.Db;
 import com.zimbra.cs.db.DbMailItem;
 import com.zimbra.cs.db.DbMailbox;
 import com.zimbra.cs.db.DbPool;
@@ -42,7 +46,6 @@ import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.db.DbVolumeBlobs;
 import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.store.MailboxBlob.MailboxBlobInfo;
-import com.zimbra.cs.util.SpoolingCache;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.Volume.VolumeMetadata;
 import com.zimbra.cs.volume.VolumeManager;
@@ -54,6 +57,11 @@ public class BlobDeduper {
     private boolean stopProcessing = false;
     private int totalLinksCreated = 0;
     private long totalSizeSaved = 0;
+    private int digestsProcessed = 0;
+    private int digestsTotal = 0;
+    private long totalDigestsProcessed = 0;
+    private long startTime = 0;
+    private long endTime = 0;
     private Map<Short, String> volumeBlobsProgress = new LinkedHashMap<Short, String>();
     private Map<Short, String> blobDigestsProgress = new LinkedHashMap<Short, String>();
     
@@ -66,28 +74,11 @@ public class BlobDeduper {
         return SINGLETON;
     }
 
-    private Pair<Integer, Long> processDigest(String digest, Volume volume) throws ServiceException {
-        // get the blobs
-        DbConnection conn = null;
-        List<BlobReference> blobs;
-        try {
-            conn = DbPool.getConnection();
-            blobs = DbVolumeBlobs.getBlobReferences(conn, digest, volume);
-        } finally {
-            DbPool.quietClose(conn);
-        }
-        // dedupe the paths
-        if (blobs.size() > 1) {
-            ZimbraLog.misc.debug("Deduping " + blobs.size() + " files for digest " + digest + " volume " + volume.getId());
-            return deDupe(blobs);
-        } else if (blobs.size() == 1) { 
-            // mark the blob as processed if there is only one blob for given digest.
-            markBlobAsProcessed(blobs.get(0));
-        }
-        return new Pair<Integer,Long>(0, Long.valueOf(0));
-    }
-
-    private Pair<Integer, Long> deDupe(List<BlobReference> blobs) throws ServiceException {
+    /**
+     * Links all the files of {@code blobs} to one inode.  The ids of the references that are done are added to
+     * {@code processed} rather than written back one at a time.
+     */
+    private Pair<Integer, Long> deDupe(List<BlobReference> blobs, List<Long> processed) {
         int linksCreated = 0;
         long sizeSaved = 0;
         long srcInodeNum = 0;
@@ -169,7 +160,7 @@ public class BlobDeduper {
                     continue;
                 }
                 if (srcInodeNum == blob.getFileInfo().getInodeNum()) {
-                    markBlobAsProcessed(blob);
+                    processed.add(blob.getId());
                     continue;
                 }
                 // create the links for paths in two steps.
@@ -181,7 +172,7 @@ public class BlobDeduper {
                     IO.link(holdPath, tempPath);
                     File destFile = new File(path);
                     tempFile.renameTo(destFile);
-                    markBlobAsProcessed(blob);
+                    processed.add(blob.getId());
                     linksCreated++;
                     sizeSaved += blob.getFileInfo().getSize();
                 } catch (IOException e) {
@@ -202,11 +193,11 @@ public class BlobDeduper {
         return new Pair<Integer,Long>(linksCreated, sizeSaved);
     }
         
-    private void markBlobAsProcessed(BlobReference blob) throws ServiceException {
+    private void markBlobsAsProcessed(List<Long> ids) throws ServiceException {
         DbConnection conn = null;
         try {
             conn = DbPool.getConnection();
-            DbVolumeBlobs.updateProcessed(conn, blob.getId(), true);
+            DbVolumeBlobs.updateProcessed(conn, ids, true);
             conn.commit();
         } finally {
             DbPool.quietClose(conn);
@@ -231,6 +222,7 @@ public class BlobDeduper {
     private synchronized void resetProgress() {
         inProgress = false;
         stopProcessing = false;
+        endTime = System.currentTimeMillis();
     }
     
     private synchronized void incrementCountAndSize(int count, long size) {
@@ -241,6 +233,29 @@ public class BlobDeduper {
     public synchronized Pair<Integer, Long> getCountAndSize() {
         return new Pair<Integer,Long>(totalLinksCreated, totalSizeSaved);
     }
+
+    private synchronized void startDigests(short volumeId, int total) {
+        digestsProcessed = 0;
+        digestsTotal = total;
+        blobDigestsProgress.put(volumeId, "0/" + total);
+    }
+
+    private synchronized void digestProcessed(short volumeId) {
+        digestsProcessed++;
+        totalDigestsProcessed++;
+        blobDigestsProgress.put(volumeId, digestsProcessed + "/" + digestsTotal);
+    }
+
+    /**
+     * Returns the number of digests deduped per second by the current run, or by the last one if none is running.
+     */
+    public synchronized long getDigestRate() {
+        if (startTime == 0) {
+            return 0;
+        }
+        long elapsed = Math.max((inProgress ? System.currentTimeMillis() : endTime) - startTime, 1);
+        return totalDigestsProcessed * 1000 / elapsed;
+    }
     
     public synchronized Map<Short, String> getVolumeBlobsProgress() {
         return volumeBlobsProgress;
@@ -312,6 +327,8 @@ public class BlobDeduper {
             inProgress = true;
             totalLinksCreated = 0;
             totalSizeSaved = 0;
+            totalDigestsProcessed = 0;
+            startTime = System.currentTimeMillis();
             volumeBlobsProgress.clear();
             blobDigestsProgress.clear();
         }
@@ -320,6 +337,106 @@ public class BlobDeduper {
         thread.start();
     }
     
+    private static final List<BlobReference> END_OF_DIGESTS = Collections.emptyList();
+
+    /**
+     * Dedupes the digests of one slice of the digest space.  A digest always goes to the same worker, so the files
+     * of a digest are never linked by two threads at once.  The processed flags are written back in batches.
+     */
+    private class DedupeWorker extends Thread {
+        private final short volumeId;
+        private final BlockingQueue<List<BlobReference>> queue;
+        private final List<Long> processed = new ArrayList<Long>();
+        private volatile Throwable failure;
+
+        DedupeWorker(short volumeId, int index, int queueSize) {
+            super("BlobDeduper-" + volumeId + "-" + index);
+            setDaemon(true);
+            this.volumeId = volumeId;
+            this.queue = new ArrayBlockingQueue<List<BlobReference>>(queueSize);
+        }
+
+        void submit(List<BlobReference> blobs) throws ServiceException {
+            checkFailure();
+            try {
+                queue.put(blobs);
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED("interrupted queueing digest for " + getName());
+            }
+        }
+
+        /** Waits for the queued digests to be done and their processed flags to be written. */
+        void finish() throws ServiceException {
+            try {
+                queue.put(END_OF_DIGESTS);
+                join();
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED("interrupted waiting for " + getName());
+            }
+            checkFailure();
+        }
+
+        private void checkFailure() throws ServiceException {
+            Throwable t = failure;
+            if (t instanceof ServiceException) {
+                throw (ServiceException) t;
+            } else if (t != null) {
+                throw ServiceException.FAILURE(getName() + " failed", t);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                List<BlobReference> blobs;
+                try {
+                    blobs = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (blobs == END_OF_DIGESTS) {
+                    break;
+                } else if (failure != null) {
+                    continue; // keep draining so that the scan never blocks on a full queue
+                }
+                try {
+                    process(blobs);
+                } catch (Throwable t) {
+                    failure = t;
+                }
+            }
+            try {
+                flushProcessed();
+            } catch (Throwable t) {
+                if (failure == null) {
+                    failure = t;
+                }
+            }
+        }
+
+        private void process(List<BlobReference> blobs) throws ServiceException {
+            if (blobs.size() > 1) {
+                ZimbraLog.misc.debug("Deduping %d files for digest %s volume %d", blobs.size(), blobs.get(0).getDigest(), volumeId);
+                Pair<Integer, Long> pair = deDupe(blobs, processed);
+                incrementCountAndSize(pair.getFirst(), pair.getSecond());
+            } else {
+                // mark the blob as processed if there is only one blob for given digest.
+                processed.add(blobs.get(0).getId());
+            }
+            digestProcessed(volumeId);
+            if (processed.size() >= Db.getINClauseBatchSize()) {
+                flushProcessed();
+            }
+        }
+
+        private void flushProcessed() throws ServiceException {
+            if (!processed.isEmpty()) {
+                markBlobsAsProcessed(processed);
+                processed.clear();
+            }
+        }
+    }
+
     private class BlobDeduperThread extends Thread {
         List<Short> volumeIds;
 
@@ -402,41 +519,85 @@ public class BlobDeduper {
             }
         }
         
-        public void run() {   
-            for (short volumeId : volumeIds) {
-                try {
-                    ZimbraLog.misc.info("Running deduper for volume %d", volumeId);
-                    Volume vol = VolumeManager.getInstance().getVolume(volumeId);
-                    // populate the volume_blox table first;
-                    populateVolumeBlobs(vol);
-                    SpoolingCache<String> digests;
-                    DbConnection conn = null;
-                    try {
-                        conn = DbPool.getConnection();
-                        digests = DbVolumeBlobs.getUniqueDigests(conn, vol);
-                    } finally {
-                        DbPool.quietClose(conn);
-                    }
-                    int count = 0;
-                    setBlobDigestsProgress(volumeId, count + "/" + digests.size());
-                    for (String digest : digests) {
-                        Pair<Integer, Long> pair = processDigest(digest, vol);
-                        incrementCountAndSize(pair.getFirst(), pair.getSecond());
-                        count++;
-                        setBlobDigestsProgress(volumeId, count + "/" + digests.size());
+        /**
+         * Walks the volume's blob references grouped by digest and hands every group to the worker owning that
+         * digest.  Since the processed flags are only set once a digest is done, a stopped run picks up where it
+         * left off when it is started again.
+         */
+        private void dedupeDigests(final Volume vol) throws ServiceException {
+            int total;
+            DbConnection conn = null;
+            try {
+                conn = DbPool.getConnection();
+                total = DbVolumeBlobs.countUniqueDigests(conn, vol);
+            } finally {
+                DbPool.quietClose(conn);
+            }
+            startDigests(vol.getId(), total);
+
+            final DedupeWorker[] workers = new DedupeWorker[Math.max(LC.zimbra_blob_deduper_threads.intValue(), 1)];
+            int queueSize = Math.max(LC.zimbra_blob_deduper_queue_size.intValue(), 1);
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new DedupeWorker(vol.getId(), i, queueSize);
+                workers[i].start();
+            }
+            ServiceException error = null;
+            try {
+                conn = DbPool.getConnection();
+                DbVolumeBlobs.visitUnprocessedDigests(conn, vol, new DbVolumeBlobs.DigestVisitor() {
+                    @Override
+                    public boolean visit(List<BlobReference> blobs) throws ServiceException {
                         if (isStopProcessing()) {
                             ZimbraLog.misc.info("Recieved the stop signal. Stopping the deduplication process.");
-                            break;
+                            return false;
                         }
+                        String digest = blobs.get(0).getDigest();
+                        int shard = (digest.hashCode() & 0x7fffffff) % workers.length;
+                        workers[shard].submit(blobs);
+                        return true;
+                    }
+                });
+            } catch (ServiceException e) {
+                error = e;
+            } finally {
+                DbPool.quietClose(conn);
+                for (DedupeWorker worker : workers) {
+                    try {
+                        worker.finish();
+                    } catch (ServiceException e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        public void run() {   
+            try {
+                for (short volumeId : volumeIds) {
+                    try {
+                        ZimbraLog.misc.info("Running deduper for volume %d", volumeId);
+                        Volume vol = VolumeManager.getInstance().getVolume(volumeId);
+                        // populate the volume_blox table first;
+                        populateVolumeBlobs(vol);
+                        dedupeDigests(vol);
+                    } catch (Throwable t) {
+                        ZimbraLog.misc.error("error while performing deduplication", t);
+                    }
+                    if (isStopProcessing()) {
+                        break;
                     }
-                } catch (Throwable t) {
-                    ZimbraLog.misc.error("error while performing deduplication", t);
-                } finally {
-                    resetProgress();
                 }
+            } finally {
+                resetProgress();
             }
             ZimbraLog.misc.info("Deduping done. Total of " + totalLinksCreated
-                    + " links created and saved approximately " + totalSizeSaved + " bytes.");
+                    + " links created and saved approximately " + totalSizeSaved + " bytes ("
+                    + getDigestRate() + " digests/s).");
         }
     }
 }
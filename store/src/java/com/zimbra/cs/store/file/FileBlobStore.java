@@ -19,6 +19,7 @@ package com.zimbra.cs.store.file;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.locks.Lock;
 
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.localconfig.LC;
@@ -57,11 +58,13 @@ public final class FileBlobStore extends StoreManager {
         FileCache<String> ufCache = FileCache.Builder.createWithStringKey(ufCacheDir, false)
             .minLifetime(LC.uncompressed_cache_min_lifetime.longValue()).build();
         BlobInputStream.setFileDescriptorCache(new FileDescriptorCache(ufCache).loadSettings());
+        BlobCompressor.startup();
     }
 
     @Override
     public void shutdown() {
         IncomingDirectory.stopSweeper();
+        BlobCompressor.shutdown();
         BlobInputStream.getFileDescriptorCache().shutdown();
     }
 
@@ -197,7 +200,20 @@ public final class FileBlobStore extends StoreManager {
     throws IOException, ServiceException {
         Volume volume = MANAGER.getCurrentMessageVolume();
         VolumeBlob blob = ((VolumeStagedBlob) src).getLocalBlob();
-        return link(blob, destMbox, destItemId, destRevision, volume.getId());
+        VolumeMailboxBlob mblob = link(blob, destMbox, destItemId, destRevision, volume.getId());
+        compressLater(mblob.getLocalBlob(), volume);
+        return mblob;
+    }
+
+    /**
+     * Hands a freshly delivered blob to the {@link BlobCompressor} if it was stored uncompressed only because
+     * compression happens in the background.
+     */
+    private static void compressLater(VolumeBlob blob, Volume volume) throws IOException {
+        if (BlobCompressor.isEnabled() && volume.isCompressBlobs() && !blob.isCompressed() &&
+                blob.getRawSize() > volume.getCompressionThreshold()) {
+            BlobCompressor.submit(blob.getFile(), blob.getRawSize());
+        }
     }
 
     public VolumeMailboxBlob link(Blob src, Mailbox destMbox, int destItemId, int destRevision, short destVolumeId)
@@ -306,6 +322,7 @@ public final class FileBlobStore extends StoreManager {
         }
 
         VolumeBlob vblob = (VolumeBlob) new VolumeBlob(destFile, volume.getId()).copyCachedDataFrom(blob);
+        compressLater(vblob, volume);
         return new VolumeMailboxBlob(destMbox, destItemId, destRevision, volume.getLocator(), vblob);
     }
 
@@ -342,7 +359,18 @@ public final class FileBlobStore extends StoreManager {
         }
         ZimbraLog.store.debug("Deleting %s.", file.getPath());
         BlobInputStream.getFileDescriptorCache().remove(file.getPath());  // Prevent stale cache read.
-        boolean deleted = file.delete();
+        boolean deleted;
+        if (BlobCompressor.isEnabled()) {
+            Lock lock = BlobCompressor.getLock(file);
+            lock.lock();
+            try {
+                deleted = file.delete();
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            deleted = file.delete();
+        }
         if (deleted) {
             return true;
         }
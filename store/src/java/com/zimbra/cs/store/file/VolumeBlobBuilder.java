@@ -36,7 +36,8 @@ public final class VolumeBlobBuilder extends BlobBuilder {
 
     @Override
     protected boolean useCompression() throws IOException {
-        if (disableCompression) {
+        if (disableCompression || BlobCompressor.isEnabled()) {
+            // compressed later on by the BlobCompressor
             return false;
         }
         try {
@@ -142,6 +142,15 @@ public abstract class DocumentHandler {
         return octxt;
     }
 
+    /**
+     * Returns whether the response to this request is written straight to a chunked HTTP response,
+     * in which case a handler may encode large lists of children lazily with an
+     * {@link com.zimbra.common.soap.Element.StreamingElement}.
+     */
+    public static boolean isResponseStreamable(Map<String, Object> context) {
+        return context != null && Boolean.TRUE.equals(context.get(SoapEngine.STREAM_RESPONSE));
+    }
+
     /** Returns the {@link Account} corresponding to the authenticated user.
      *  The authenticated user is determined from the serialized
      *  {@link com.zimbra.cs.account.AuthToken} in the SOAP request's
@@ -276,6 +285,16 @@ public abstract class DocumentHandler {
         return true;
     }
 
+    /** Returns <tt>true</tt> if this request only reads state and can be run
+     *  concurrently with the other parallel-safe requests of a BatchRequest.
+     *  Unlike {@link #isReadOnly}, handlers must opt in explicitly, and only
+     *  if nothing they run changes the {@link ZimbraSoapContext} other than
+     *  by proxying; each such request gets its own copy of the context and
+     *  auth token, but shares the mailbox and the notification session. */
+    public boolean isParallelSafe(Element request) {
+        return false;
+    }
+
     /** Returns whether the client making the SOAP request is localhost. */
     protected boolean clientIsLocal(Map<String, Object> context) {
         HttpServletRequest req = (HttpServletRequest) context.get(SoapServlet.SERVLET_REQUEST);
@@ -20,7 +20,18 @@ package com.zimbra.soap;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
@@ -30,7 +41,10 @@ import javax.xml.stream.XMLStreamReader;
 
 import org.eclipse.jetty.continuation.ContinuationSupport;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
@@ -40,6 +54,7 @@ import com.zimbra.common.soap.SoapFaultException;
 import com.zimbra.common.soap.SoapParseException;
 import com.zimbra.common.soap.SoapProtocol;
 import com.zimbra.common.soap.SoapTransport;
+import com.zimbra.common.soap.StaxElementParser;
 import com.zimbra.common.soap.XmlParseException;
 import com.zimbra.common.soap.ZimbraNamespace;
 import com.zimbra.common.util.Constants;
@@ -62,6 +77,7 @@ import com.zimbra.cs.service.admin.AdminAccessControl;
 import com.zimbra.cs.service.admin.AdminDocumentHandler;
 import com.zimbra.cs.servlet.CsrfFilter;
 import com.zimbra.cs.servlet.CsrfTokenException;
+import com.zimbra.cs.servlet.ZThreadLocal;
 import com.zimbra.cs.servlet.ZimbraInvalidLoginFilter;
 import com.zimbra.cs.servlet.util.CsrfUtil;
 import com.zimbra.cs.session.Session;
@@ -111,7 +127,12 @@ public class SoapEngine {
     /** context name of the original user agent */
     public static final String ORIG_REQUEST_USER_AGENT = "orig.request.user.agent";
 
+    /** set to true if the response will be written straight to a chunked servlet response, so
+     *  handlers may return a {@link com.zimbra.common.soap.Element.StreamingElement} */
+    public static final String STREAM_RESPONSE = "soap.response.stream";
+
     private final DocumentDispatcher dispatcher = new DocumentDispatcher();
+    private static ThreadPoolExecutor batchExecutor;
 
     SoapEngine() {
         SoapTransport.setDefaultUserAgent(SoapTransport.DEFAULT_USER_AGENT_NAME, BuildInfo.VERSION);
@@ -258,13 +279,15 @@ public class SoapEngine {
                     ServiceException.PARSE_ERROR("empty request payload", null));
         }
 
-        InputStream in = new ByteArrayInputStream(soapMessage);
+        long startTime = System.nanoTime();
         Element document = null;
         try {
-            if (soapMessage[0] == '<') {
-                document = Element.parseXML(in);
+            if (soapMessage[0] != '<') {
+                document = Element.parseJSON(new String(soapMessage, StandardCharsets.UTF_8));
+            } else if (LC.soap_request_pull_parser_enabled.booleanValue()) {
+                document = StaxElementParser.parseXML(soapMessage);
             } else {
-                document = Element.parseJSON(in);
+                document = Element.parseXML(new ByteArrayInputStream(soapMessage));
             }
         } catch (SoapParseException e) {
             SoapProtocol soapProto = SoapProtocol.SoapJS;
@@ -275,6 +298,8 @@ public class SoapEngine {
             SoapProtocol soapProto = chooseFaultProtocolFromBadXml(new ByteArrayInputStream(soapMessage));
             return soapFaultEnv(soapProto, "SOAP exception", e);
         }
+        ZimbraPerf.SOAP_PARSE_TRACKER.addElapsed(getParseStatName(document),
+                (System.nanoTime() - startTime) / 1000);
         Element resp = dispatch(path, document, context);
 
         /*
@@ -460,31 +485,7 @@ public class SoapEngine {
             acknowledgeNotifications(zsc);
 
             if (doc.getQName().equals(ZimbraNamespace.E_BATCH_REQUEST)) {
-                boolean contOnError = doc.getAttribute(ZimbraNamespace.A_ONERROR, ZimbraNamespace.DEF_ONERROR).equals("continue");
-                responseBody = zsc.createElement(ZimbraNamespace.E_BATCH_RESPONSE);
-                if (!isResumed) {
-                    ZimbraLog.soap.info(doc.getName());
-                }
-                for (Element req : doc.listElements()) {
-                    String id = req.getAttribute(A_REQUEST_CORRELATOR, null);
-                    long start = System.currentTimeMillis();
-                    Element br = dispatchRequest(dispatcher.getHandler(req), req, context, zsc);
-                    if (!isResumed) {
-                        ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
-                    }
-                    if (id != null) {
-                        br.addAttribute(A_REQUEST_CORRELATOR, id);
-                    }
-                    responseBody.addNonUniqueElement(br);
-                    if (!contOnError && responseProto.isFault(br)) {
-                        break;
-                    }
-                    if (proxyAuthToken != null) {
-                        // requests will invalidate it when proxying locally;
-                        // make sure it's set for each sub-request in batch
-                        zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
-                    }
-                }
+                responseBody = dispatchBatch(doc, context, zsc, isResumed, proxyAuthToken);
             } else {
                 String id = doc.getAttribute(A_REQUEST_CORRELATOR, null);
                 long start = System.currentTimeMillis();
@@ -530,6 +531,173 @@ public class SoapEngine {
         return responseProto.soapEnvelope(responseBody, responseHeader);
     }
 
+    /**
+     * Handles a <tt>BatchRequest</tt>.  With <tt>onerror="continue"</tt>, runs of parallel-safe sub-requests are
+     * executed concurrently; every other sub-request waits for the ones before it and runs alone, in order.
+     */
+    @VisibleForTesting
+    Element dispatchBatch(Element doc, Map<String, Object> context, ZimbraSoapContext zsc, boolean isResumed,
+            String proxyAuthToken) {
+        boolean contOnError = doc.getAttribute(ZimbraNamespace.A_ONERROR, ZimbraNamespace.DEF_ONERROR).equals("continue");
+        Element responseBody = zsc.createElement(ZimbraNamespace.E_BATCH_RESPONSE);
+        if (!isResumed) {
+            ZimbraLog.soap.info(doc.getName());
+        }
+        ExecutorService executor = contOnError ? getBatchExecutor() : null;
+        List<Element> parallel = new ArrayList<Element>();
+        for (Element req : doc.listElements()) {
+            DocumentHandler reqHandler = dispatcher.getHandler(req);
+            if (executor != null && reqHandler != null && reqHandler.isParallelSafe(req)) {
+                parallel.add(req);
+                continue;
+            }
+            dispatchParallel(executor, parallel, responseBody, context, zsc, isResumed, proxyAuthToken);
+            parallel.clear();
+            Element br = dispatchBatchRequest(reqHandler, req, context, zsc, isResumed);
+            responseBody.addNonUniqueElement(br);
+            if (!contOnError && zsc.getResponseProtocol().isFault(br)) {
+                break;
+            }
+            if (proxyAuthToken != null) {
+                // requests will invalidate it when proxying locally;
+                // make sure it's set for each sub-request in batch
+                zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
+            }
+        }
+        dispatchParallel(executor, parallel, responseBody, context, zsc, isResumed, proxyAuthToken);
+        return responseBody;
+    }
+
+    private Element dispatchBatchRequest(DocumentHandler handler, Element req, Map<String, Object> context,
+            ZimbraSoapContext zsc, boolean isResumed) {
+        String id = req.getAttribute(A_REQUEST_CORRELATOR, null);
+        long start = System.currentTimeMillis();
+        Element br = dispatchRequest(handler, req, context, zsc);
+        if (!isResumed) {
+            ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
+        }
+        if (id != null) {
+            br.addAttribute(A_REQUEST_CORRELATOR, id);
+        }
+        return br;
+    }
+
+    /**
+     * Runs parallel-safe batch sub-requests and adds their responses to the batch response in request order.  The
+     * first one runs alone with the batch's own context, since it may fault in the notification session that the
+     * others must find.  The rest then run concurrently, each with its own copy of the {@link ZimbraSoapContext},
+     * auth token and request context map, the last one on the calling thread.  If the context can't be copied they
+     * run in order instead.
+     */
+    private void dispatchParallel(ExecutorService executor, List<Element> reqs, Element responseBody,
+            Map<String, Object> context, ZimbraSoapContext zsc, final boolean isResumed, String proxyAuthToken) {
+        if (reqs.isEmpty()) {
+            return;
+        }
+        Element first = reqs.get(0);
+        responseBody.addNonUniqueElement(dispatchBatchRequest(dispatcher.getHandler(first), first, context, zsc, isResumed));
+        if (proxyAuthToken != null) {
+            zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
+        }
+        List<Element> rest = reqs.subList(1, reqs.size());
+        if (rest.isEmpty()) {
+            return;
+        }
+        List<ZimbraSoapContext> copies = new ArrayList<ZimbraSoapContext>(rest.size());
+        for (int i = 0; i < rest.size(); i++) {
+            ZimbraSoapContext copy = zsc.copyForParallelRequest();
+            if (copy == null) {
+                for (Element req : rest) {
+                    responseBody.addNonUniqueElement(dispatchBatchRequest(dispatcher.getHandler(req), req, context, zsc, isResumed));
+                    if (proxyAuthToken != null) {
+                        zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
+                    }
+                }
+                return;
+            }
+            copies.add(copy);
+        }
+
+        final Thread caller = Thread.currentThread();
+        final Map<String, String> logContext = ZimbraLog.getContextMap();
+        final RequestContext reqCtxt = ZThreadLocal.getRequestContext();
+        List<Future<Element>> pending = new ArrayList<Future<Element>>(rest.size() - 1);
+        for (int i = 0; i < rest.size() - 1; i++) {
+            final Element req = rest.get(i);
+            final ZimbraSoapContext reqZsc = copies.get(i);
+            final Map<String, Object> reqContext = copyContext(context, reqZsc);
+            pending.add(executor.submit(new Callable<Element>() {
+                @Override
+                public Element call() {
+                    if (Thread.currentThread() == caller) {
+                        // the pool was saturated and handed the sub-request back
+                        return dispatchBatchRequest(dispatcher.getHandler(req), req, reqContext, reqZsc, isResumed);
+                    }
+                    ZimbraLog.setContext(logContext);
+                    ZThreadLocal.setContext(reqCtxt);
+                    try {
+                        return dispatchBatchRequest(dispatcher.getHandler(req), req, reqContext, reqZsc, isResumed);
+                    } finally {
+                        ZThreadLocal.unset();
+                        ZimbraLog.clearContext();
+                    }
+                }
+            }));
+        }
+        Element last = rest.get(rest.size() - 1);
+        ZimbraSoapContext lastZsc = copies.get(copies.size() - 1);
+        Element lastResponse = dispatchBatchRequest(dispatcher.getHandler(last), last, copyContext(context, lastZsc),
+                lastZsc, isResumed);
+        for (int i = 0; i < pending.size(); i++) {
+            Element br;
+            try {
+                br = Uninterruptibles.getUninterruptibly(pending.get(i));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof OutOfMemoryError) {
+                    Zimbra.halt("handler exception", e.getCause());
+                }
+                LOG.warn("handler exception", e.getCause());
+                br = zsc.getResponseProtocol().soapFault(ServiceException.FAILURE(e.getCause().toString(), e.getCause()));
+                String id = rest.get(i).getAttribute(A_REQUEST_CORRELATOR, null);
+                if (id != null) {
+                    br.addAttribute(A_REQUEST_CORRELATOR, id);
+                }
+            }
+            responseBody.addNonUniqueElement(br);
+        }
+        responseBody.addNonUniqueElement(lastResponse);
+    }
+
+    private static Map<String, Object> copyContext(Map<String, Object> context, ZimbraSoapContext zsc) {
+        Map<String, Object> copy = new HashMap<String, Object>(context);
+        copy.put(ZIMBRA_CONTEXT, zsc);
+        return copy;
+    }
+
+    /**
+     * Returns the pool for parallel batch sub-requests, or {@code null} if they run in order.  A change of
+     * {@code soap_batch_parallel_threads} replaces the pool; sub-requests already on the old one still finish.
+     */
+    @VisibleForTesting
+    static synchronized ExecutorService getBatchExecutor() {
+        int threads = LC.soap_batch_parallel_threads.intValue();
+        if (batchExecutor != null && batchExecutor.getCorePoolSize() != threads) {
+            batchExecutor.shutdown();
+            batchExecutor = null;
+        }
+        if (threads <= 0) {
+            return null;
+        }
+        if (batchExecutor == null) {
+            // when the queue is full the request thread runs the sub-request itself
+            batchExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(threads * 4),
+                    new ThreadFactoryBuilder().setNameFormat("SoapBatch-%d").setDaemon(true).build(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return batchExecutor;
+    }
+
     private Element getSoapContextElement(SoapProtocol soapProto, Element envelope) throws ServiceException {
         Element contextElmt = null;
         if (soapProto != null && soapProto.getHeader(envelope) != null) {
@@ -715,6 +883,13 @@ public class SoapEngine {
         return statName;
     }
 
+    /** Names the parse of a whole envelope after the request in its body. */
+    private String getParseStatName(Element envelope) {
+        SoapProtocol soapProto = SoapProtocol.determineProtocol(envelope);
+        Element request = soapProto == null ? null : soapProto.getBodyElement(envelope);
+        return request == null ? "unknown" : getStatName(request);
+    }
+
     public DocumentDispatcher getDocumentDispatcher() {
         return dispatcher;
     }
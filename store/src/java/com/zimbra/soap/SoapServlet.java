@@ -302,6 +302,9 @@ public class SoapServlet extends ZimbraServlet {
         //checkAuthToken(req.getCookies(), context);
         context.put(SoapEngine.REQUEST_PORT, req.getServerPort());
         context.put(SoapEngine.ORIG_REQUEST_USER_AGENT, req.getHeader(HeaderConstants.HTTP_HEADER_ORIG_USER_AGENT));
+        if (LC.soap_response_streaming_enabled.booleanValue() && isChunkingEnabled(req)) {
+            context.put(SoapEngine.STREAM_RESPONSE, Boolean.TRUE);
+        }
         Element envelope = null;
         try {
             envelope = mEngine.dispatch(req.getRequestURI(), buffer, context);
@@ -340,11 +343,7 @@ public class SoapServlet extends ZimbraServlet {
             return LC.soap_response_buffer_size.intValue();
     }
 
-    private void sendResponse(HttpServletRequest req, HttpServletResponse resp, Element envelope) throws IOException {
-        SoapProtocol soapProto = SoapProtocol.determineProtocol(envelope);
-        int statusCode = soapProto.hasFault(envelope) ?
-                HttpServletResponse.SC_INTERNAL_SERVER_ERROR : HttpServletResponse.SC_OK;
-
+    private boolean isChunkingEnabled(HttpServletRequest req) {
         boolean chunkingEnabled = LC.soap_response_chunked_transfer_encoding_enabled.booleanValue();
 
         if (chunkingEnabled) {
@@ -359,6 +358,15 @@ public class SoapServlet extends ZimbraServlet {
                 chunkingEnabled = false;
             }
         }
+        return chunkingEnabled;
+    }
+
+    private void sendResponse(HttpServletRequest req, HttpServletResponse resp, Element envelope) throws IOException {
+        SoapProtocol soapProto = SoapProtocol.determineProtocol(envelope);
+        int statusCode = soapProto.hasFault(envelope) ?
+                HttpServletResponse.SC_INTERNAL_SERVER_ERROR : HttpServletResponse.SC_OK;
+
+        boolean chunkingEnabled = isChunkingEnabled(req);
 
         // use jetty default if the LC key is not set
         int responseBufferSize = soapResponseBufferSize();
@@ -258,6 +258,61 @@ public final class ZimbraSoapContext {
         }
     }
 
+    /**
+     * Returns a copy of this context for a <tt>BatchRequest</tt> sub-request that runs concurrently with the
+     * others, so that what its handler changes on the context or the auth token (e.g. the proxy auth token, when
+     * it proxies) is not seen by them.  Returns {@code null} if the auth token can't be copied.
+     */
+    ZimbraSoapContext copyForParallelRequest() {
+        AuthToken authToken = null;
+        ZAuthToken rawAuthToken = mRawAuthToken;
+        if (mAuthToken != null) {
+            authToken = AuthToken.copyOf(mAuthToken);
+            if (authToken == null) {
+                return null;
+            }
+            try {
+                rawAuthToken = authToken.toZAuthToken();
+            } catch (ServiceException e) {
+                return null;
+            }
+        }
+        return new ZimbraSoapContext(this, authToken, rawAuthToken);
+    }
+
+    private ZimbraSoapContext(ZimbraSoapContext zsc, AuthToken authToken, ZAuthToken rawAuthToken) {
+        mRawAuthToken = rawAuthToken;
+        mAuthToken = authToken;
+        mAuthTokenAccountId = zsc.mAuthTokenAccountId;
+        mRequestedAccountId = zsc.mRequestedAccountId;
+        mRequestProtocol = zsc.mRequestProtocol;
+        mResponseProtocol = zsc.mResponseProtocol;
+        mChangeConstraintType = zsc.mChangeConstraintType;
+        mMaximumChangeId = zsc.mMaximumChangeId;
+        mSessionEnabled = zsc.mSessionEnabled;
+        mSessionProxied = zsc.mSessionProxied;
+        if (zsc.mSessionInfo != null) {
+            SessionInfo sinfo = zsc.mSessionInfo;
+            mSessionInfo = new SessionInfo(sinfo.sessionId, sinfo.sequence, sinfo.created);
+        }
+        mUnqualifiedItemIds = zsc.mUnqualifiedItemIds;
+        mWaitForNotifications = zsc.mWaitForNotifications;
+        mCanceledWaitForNotifications = zsc.mCanceledWaitForNotifications;
+        continuationResume = zsc.continuationResume;
+        mProxyTarget = zsc.mProxyTarget;
+        mIsProxyRequest = zsc.mIsProxyRequest;
+        mHopCount = zsc.mHopCount;
+        mMountpointTraversed = zsc.mMountpointTraversed;
+        mOriginalUserAgent = zsc.mOriginalUserAgent;
+        mUserAgent = zsc.mUserAgent;
+        mRequestIP = zsc.mRequestIP;
+        mPort = zsc.mPort;
+        mVia = zsc.mVia;
+        soapRequestId = zsc.soapRequestId;
+        mNotificationFormat = zsc.mNotificationFormat;
+        mCurWaitSetID = zsc.mCurWaitSetID;
+    }
+
     /**
      * Creates a {@link ZimbraSoapContext} from the {@code <context>}
      * {@link Element} from the SOAP header.